@@ -8,6 +8,9 @@
 package de.fau.sensorlib;
 
 
+import android.bluetooth.le.ScanRecord;
+import android.util.SparseArray;
+
 import de.fau.sensorlib.enums.KnownSensor;
 import de.fau.sensorlib.enums.SensorState;
 
@@ -15,6 +18,28 @@ public class BleManufacturerDataHelper {
 
     private static final String TAG = BleManufacturerDataHelper.class.getSimpleName();
 
+    /**
+     * Length of the NilsPod manufacturer data: operation state, charging state, battery level, number of recordings
+     */
+    private static final int NILSPOD_MANU_DATA_LENGTH = 4;
+
+    /**
+     * Returns the manufacturer-specific data of an advertisement.
+     *
+     * @param scanRecord the advertisement, can be <code>null</code>
+     * @return the manufacturer-specific data, <code>null</code> if the advertisement does not contain any
+     */
+    public static byte[] getManufacturerData(ScanRecord scanRecord) {
+        if (scanRecord == null) {
+            return null;
+        }
+        SparseArray<byte[]> data = scanRecord.getManufacturerSpecificData();
+        if (data == null || data.size() == 0 || data.valueAt(0) == null || data.valueAt(0).length == 0) {
+            return null;
+        }
+        return data.valueAt(0);
+    }
+
     public static int getBatteryLevel(KnownSensor sensor, byte[] manuData) {
         if (manuData == null || sensor == null) {
             return 0;
@@ -22,6 +47,9 @@ public class BleManufacturerDataHelper {
 
         switch (sensor) {
             case NILSPOD:
+                if (manuData.length < NILSPOD_MANU_DATA_LENGTH) {
+                    return 0;
+                }
                 return manuData[2];
         }
 
@@ -35,6 +63,9 @@ public class BleManufacturerDataHelper {
 
         switch (sensor) {
             case NILSPOD:
+                if (manuData.length < NILSPOD_MANU_DATA_LENGTH) {
+                    return false;
+                }
                 return manuData[1] != 0;
         }
 
@@ -49,6 +80,9 @@ public class BleManufacturerDataHelper {
 
         switch (sensor) {
             case NILSPOD:
+                if (manuData.length < NILSPOD_MANU_DATA_LENGTH) {
+                    return SensorState.UNDEFINED;
+                }
                 switch (manuData[0]) {
                     case 1:
                         return SensorState.STREAMING;
@@ -71,6 +105,9 @@ public class BleManufacturerDataHelper {
 
         switch (sensor) {
             case NILSPOD:
+                if (manuData.length < NILSPOD_MANU_DATA_LENGTH) {
+                    return 0;
+                }
                 return manuData[3];
         }
 
@@ -9,17 +9,28 @@ package de.fau.sensorlib;
 
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanResult;
+import android.os.Handler;
 import android.util.Log;
-import android.util.SparseArray;
 
 import androidx.annotation.CallSuper;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Callback implementation for the BLE scan callback.
+ * <p>
+ * Scan results are processed in batches (see {@link android.bluetooth.le.ScanSettings.Builder#setReportDelay(long)}),
+ * newly found sensors of one batch are reported together via {@link SensorFoundCallback#onKnownSensorsFound(List, int[])}.
+ * Sensors that were already reported are reported via {@link SensorFoundCallback#onKnownSensorsUpdated(List, int[])}.
  */
 public class BleScanCallback extends ScanCallback {
 
@@ -28,9 +39,24 @@ public class BleScanCallback extends ScanCallback {
     private SensorFoundCallback mSensorCallback;
 
     /**
-     * List of device-addresses that were already reported in the callback. Used to avoid double or triple reports of the same device.
+     * Device-addresses that were already reported in the callback. Used to avoid double or triple reports of the same device.
+     */
+    private Set<String> mScannedAddresses = new HashSet<>();
+
+    /**
+     * Known sensors that were already reported in the callback, by device-address
+     */
+    private Map<String, SensorInfo> mKnownSensors = new HashMap<>();
+
+    /**
+     * Action to run once the next batch of scan results was delivered (e.g., stopping the scan after flushing)
+     */
+    private final AtomicReference<Runnable> mOnNextBatch = new AtomicReference<>();
+
+    /**
+     * True if the scan was stopped from within this callback, all further results are ignored
      */
-    private List<String> mScannedAddresses = new ArrayList<>(20);
+    private boolean mScanStopped;
 
     public BleScanCallback(SensorFoundCallback sensorCallback) {
         mSensorCallback = sensorCallback;
@@ -38,51 +64,114 @@ public class BleScanCallback extends ScanCallback {
 
     @Override
     @CallSuper
-    public synchronized void onScanResult(int callbackType, ScanResult result) {
-        // check if we already reported this device in this scan iteration
-        if (mScannedAddresses.contains(result.getDevice().getAddress())) {
-            //Log.d(TAG, "Skipping BLE device: already discovered.");
+    public void onScanResult(int callbackType, ScanResult result) {
+        onBatchScanResults(Collections.singletonList(result));
+    }
+
+    @Override
+    @CallSuper
+    public void onBatchScanResults(List<ScanResult> results) {
+        try {
+            processScanResults(results);
+        } finally {
+            runPendingAction();
+        }
+    }
+
+    /**
+     * Runs the given action once the next batch of scan results was delivered, or after the given timeout if no
+     * batch is delivered.
+     */
+    void runAfterNextBatch(Runnable action, Handler handler, long timeout) {
+        mOnNextBatch.set(action);
+        handler.postDelayed(this::runPendingAction, timeout);
+    }
+
+    private void runPendingAction() {
+        Runnable action = mOnNextBatch.getAndSet(null);
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    private synchronized void processScanResults(List<ScanResult> results) {
+        if (mScanStopped) {
             return;
         }
-        mScannedAddresses.add(result.getDevice().getAddress());
-
-        byte[] manuData;
-        SensorInfo s;
-        if (result.getScanRecord() != null) {
-            SparseArray<byte[]> data = result.getScanRecord().getManufacturerSpecificData();
-            if (data != null && data.size() > 0) {
-                manuData = data.valueAt(0);
+
+        // latest RSSI by device-address, a device can be contained multiple times in one batch
+        LinkedHashMap<String, Integer> foundSensors = new LinkedHashMap<>();
+        LinkedHashMap<String, Integer> updatedSensors = new LinkedHashMap<>();
+        boolean continueScan = true;
+
+        for (ScanResult result : results) {
+            String address = result.getDevice().getAddress();
+            if (mScannedAddresses.add(address)) {
+                SensorInfo s = createSensorInfo(result);
+                if (s.getDeviceClass() != null) {
+                    Log.d(TAG, "New BLE device: " + s.getDeviceName() + " @ " + result.getRssi());
+                    mKnownSensors.put(address, s);
+                    foundSensors.put(address, result.getRssi());
+                } else if (!mSensorCallback.onUnknownSensorFound(result.getDevice().getName(), address)) {
+                    // sensors found earlier in this batch are still reported
+                    continueScan = false;
+                    break;
+                }
             } else {
-                manuData = new byte[0];
+                SensorInfo s = mKnownSensors.get(address);
+                if (s == null) {
+                    // unknown sensors are only reported once
+                    continue;
+                }
+                byte[] manuData = BleManufacturerDataHelper.getManufacturerData(result.getScanRecord());
+                if (manuData != null) {
+                    // keep the last known state if the advertisement does not contain any
+                    s.setManufacturerData(manuData);
+                }
+                if (foundSensors.containsKey(address)) {
+                    foundSensors.put(address, result.getRssi());
+                } else {
+                    updatedSensors.put(address, result.getRssi());
+                }
             }
+        }
 
-            s = new SensorInfo(result.getDevice().getName(), result.getDevice().getAddress(), manuData);
+        if (!foundSensors.isEmpty()) {
+            List<SensorInfo> sensors = new ArrayList<>(foundSensors.size());
+            int[] rssi = toSensorList(foundSensors, sensors);
+            continueScan &= mSensorCallback.onKnownSensorsFound(sensors, rssi);
+        }
 
-            if (s.getDeviceClass() != null) {
-                Log.d(TAG, "Manufacturer Data: " + s.getDeviceClass() + ", " + Arrays.toString(manuData));
-            }
+        if (!continueScan) {
+            // this batch is already processed => no need to flush pending results before stopping
+            mScanStopped = true;
+            BleSensorManager.stopScan(this, false);
+            return;
+        }
 
-        } else {
-            s = new SensorInfo(result.getDevice().getName(), result.getDevice().getAddress());
+        if (!updatedSensors.isEmpty()) {
+            List<SensorInfo> sensors = new ArrayList<>(updatedSensors.size());
+            int[] rssi = toSensorList(updatedSensors, sensors);
+            mSensorCallback.onKnownSensorsUpdated(sensors, rssi);
         }
+    }
 
-        boolean ret;
-        if (s.getDeviceClass() != null) {
-            Log.d(TAG, "New BLE device: " + s.getDeviceName() + " @ " + result.getRssi());
-            // call this method for the DsSensorPickerFragment,
-            // because we need some information about the Bluetooth device
-            ret = mSensorCallback.onKnownSensorFound(s, result.getRssi());
-
-            // Logical OR because onKnownSensorFound(KnownSensor, BluetoothDevice)
-            // always returns true. If we should stop scanning, then this method returns
-            // false => ret == false.
-            ret &= mSensorCallback.onKnownSensorFound(s);
-        } else {
-            ret = mSensorCallback.onUnknownSensorFound(result.getDevice().getName(), result.getDevice().getAddress());
+    private int[] toSensorList(LinkedHashMap<String, Integer> rssiMap, List<SensorInfo> sensors) {
+        int[] rssi = new int[rssiMap.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : rssiMap.entrySet()) {
+            sensors.add(mKnownSensors.get(entry.getKey()));
+            rssi[i++] = entry.getValue();
         }
+        return rssi;
+    }
 
-        if (!ret) {
-            BleSensorManager.cancelRunningScans();
+    private static SensorInfo createSensorInfo(ScanResult result) {
+        byte[] manuData = BleManufacturerDataHelper.getManufacturerData(result.getScanRecord());
+        SensorInfo s = new SensorInfo(result.getDevice().getName(), result.getDevice().getAddress(), manuData);
+        if (s.getDeviceClass() != null && manuData != null) {
+            Log.d(TAG, "Manufacturer Data: " + s.getDeviceClass() + ", " + Arrays.toString(manuData));
         }
+        return s;
     }
 }
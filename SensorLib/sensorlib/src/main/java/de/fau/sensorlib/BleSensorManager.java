@@ -55,6 +55,16 @@ public class BleSensorManager {
 
     private static Handler sBleScanHandler = new Handler();
     public static final long DEFAULT_SCAN_DURATION = 10000;
+    /**
+     * Default delay (in ms) for batching scan results
+     */
+    public static final long DEFAULT_SCAN_REPORT_DELAY = 500;
+    private static long sScanReportDelay = DEFAULT_SCAN_REPORT_DELAY;
+    /**
+     * Maximum time (in ms) to wait for flushed scan results before a scan is stopped
+     */
+    private static final long SCAN_FLUSH_TIMEOUT = 1000;
+    private static boolean sScanBatching = false;
     private static BluetoothLeScanner sBleScanner;
     private static BleScanCallback sScanCallback;
 
@@ -64,6 +74,16 @@ public class BleSensorManager {
         return sIsScanning;
     }
 
+    /**
+     * Sets the delay for batching scan results, 0 to report each scan result immediately. Batching is only used if
+     * the Bluetooth controller supports it. Applies to scans started afterwards.
+     *
+     * @param reportDelay delay in ms
+     */
+    public static void setScanReportDelay(long reportDelay) {
+        sScanReportDelay = reportDelay;
+    }
+
     /**
      * method to list all available and connectable sensor within this framework.
      *
@@ -296,8 +316,32 @@ public class BleSensorManager {
      */
     public static synchronized void cancelRunningScans() {
         if (sScanCallback != null && sBleScanner != null) {
-            sBleScanner.stopScan(sScanCallback);
+            stopScan(sScanCallback, true);
+        }
+    }
+
+    /**
+     * Stops the scan of the given callback.
+     *
+     * @param scanCallback callback of the scan to stop
+     * @param flush        true to report batched scan results that are still pending before the scan is stopped
+     */
+    static void stopScan(BleScanCallback scanCallback, boolean flush) {
+        BluetoothLeScanner scanner = sBleScanner;
+        if (scanner == null) {
+            return;
+        }
+        if (scanCallback == sScanCallback) {
             sScanCallback = null;
+            sIsScanning = false;
+        }
+        if (flush && sScanBatching) {
+            // flushed results are delivered asynchronously and are dropped if the scan is already stopped
+            // => stop the scan once they were delivered
+            scanCallback.runAfterNextBatch(() -> scanner.stopScan(scanCallback), sBleScanHandler, SCAN_FLUSH_TIMEOUT);
+            scanner.flushPendingScanResults(scanCallback);
+        } else {
+            scanner.stopScan(scanCallback);
         }
     }
 
@@ -365,9 +409,12 @@ public class BleSensorManager {
         }
 
         // set scan settings and filters
+        // (batched results are delivered at once instead of one callback per advertisement)
+        long reportDelay = BluetoothAdapter.getDefaultAdapter().isOffloadedScanBatchingSupported() ? sScanReportDelay : 0;
+        sScanBatching = reportDelay > 0;
         ScanSettings settings = new ScanSettings.Builder()
                 .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                .setReportDelay(0)
+                .setReportDelay(reportDelay)
                 .build();
 
         // is an old scan still running? cancel it.
@@ -380,20 +427,20 @@ public class BleSensorManager {
         }
 
         // create new scan callback
-        sScanCallback = new BleScanCallback(callback);
+        BleScanCallback scanCallback = new BleScanCallback(callback);
+        sScanCallback = scanCallback;
 
         // start the BLE scan
         Log.d(TAG, "Starting BLE scan for " + scanPeriod / 1000 + " s ...");
         sIsScanning = true;
 
-        sBleScanner.startScan(filterList, settings, sScanCallback);
+        sBleScanner.startScan(filterList, settings, scanCallback);
 
-        // post a delayed runnable to stop the BLE scan after scanPeriod.
+        // post a delayed runnable to stop the BLE scan after scanPeriod (unless it was cancelled or replaced before).
         sBleScanHandler.postDelayed(() -> {
-            if (sScanCallback != null) {
+            if (sScanCallback == scanCallback) {
                 Log.d(TAG, "...Stopping BLE scan.");
-                sBleScanner.stopScan(sScanCallback);
-                sIsScanning = false;
+                stopScan(scanCallback, true);
             }
         }, scanPeriod);
     }
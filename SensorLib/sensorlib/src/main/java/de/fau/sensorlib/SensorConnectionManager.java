@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2018 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.fau.sensorlib.dataframe.SensorDataFrame;
+import de.fau.sensorlib.enums.HardwareSensor;
+import de.fau.sensorlib.enums.SensorState;
+import de.fau.sensorlib.sensors.AbstractSensor;
+import de.fau.sensorlib.sensors.Loggable;
+
+/**
+ * Connects several sensors in parallel and keeps them connected.
+ * <p>
+ * At most {@link #setMaxParallelConnections(int)} sensors are connecting at the same time. Failed connection attempts
+ * are retried with exponential backoff. When the connection to a sensor is lost, the sensor is reconnected automatically
+ * and its previous state is restored: sampling rate, selected hardware sensors and streaming or logging.
+ * Sensors disconnected via {@link #disconnect(AbstractSensor)} (or by the app) are not reconnected.
+ * <p>
+ * All methods have to be called from the main thread.
+ */
+public class SensorConnectionManager {
+
+    private static final String TAG = SensorConnectionManager.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_PARALLEL_CONNECTIONS = 4;
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 60000;
+    public static final long DEFAULT_CONNECT_TIMEOUT_MS = 20000;
+    /**
+     * Default number of connection attempts before a sensor is given up, -1 to retry forever
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = -1;
+
+    public interface ConnectionListener {
+        /**
+         * Called when a sensor is connected.
+         *
+         * @param sensor   The connected sensor
+         * @param restored true if the sensor was reconnected after a connection loss and its state restored
+         */
+        void onSensorConnected(AbstractSensor sensor, boolean restored);
+
+        /**
+         * Called when a connection attempt failed (or the connection was lost) and the next attempt is scheduled.
+         */
+        void onSensorReconnecting(AbstractSensor sensor, int attempt, long delayMs);
+
+        /**
+         * Called when a sensor could not be connected within the maximum number of attempts.
+         */
+        void onSensorConnectionFailed(AbstractSensor sensor);
+    }
+
+    private enum ConnectionPhase {
+        /**
+         * Waiting for a free connection slot or for the backoff delay to elapse
+         */
+        WAITING,
+        CONNECTING,
+        CONNECTED,
+        /**
+         * Disconnected by the app or given up
+         */
+        IDLE
+    }
+
+    /**
+     * State of a sensor before the connection was lost
+     */
+    private static class RestoreState {
+        private final double mSamplingRate;
+        private final EnumSet<HardwareSensor> mSelectedSensors;
+        private final SensorState mActiveState;
+
+        private RestoreState(AbstractSensor sensor, SensorState activeState) {
+            mSamplingRate = sensor.getSamplingRate();
+            mSelectedSensors = EnumSet.copyOf(sensor.getSelectedSensors());
+            mActiveState = activeState;
+        }
+    }
+
+    private class ManagedSensor implements SensorDataProcessor {
+        private final AbstractSensor mSensor;
+        private ConnectionPhase mPhase = ConnectionPhase.IDLE;
+        private int mNumAttempts;
+        /**
+         * STREAMING or LOGGING if the sensor is currently streaming or logging, CONNECTED otherwise
+         */
+        private SensorState mActiveState = SensorState.CONNECTED;
+        private RestoreState mRestoreState;
+        private final Runnable mTimeoutRunnable = this::onConnectTimeout;
+        private final Runnable mConnectRunnable = this::onBackoffElapsed;
+
+        private ManagedSensor(AbstractSensor sensor) {
+            mSensor = sensor;
+        }
+
+        @Override
+        public void onNewData(SensorDataFrame data) {
+        }
+
+        @Override
+        public void onConnected(AbstractSensor sensor) {
+            if (mPhase != ConnectionPhase.CONNECTING) {
+                return;
+            }
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            mPhase = ConnectionPhase.CONNECTED;
+            mNumAttempts = 0;
+            mNumConnecting--;
+            // restore after messages posted while connecting (e.g., the sensor reporting it is still logging) were handled
+            mHandler.post(this::restore);
+            scheduleNext();
+        }
+
+        @Override
+        public void onConnectionLost(AbstractSensor sensor) {
+            if (mPhase == ConnectionPhase.CONNECTING) {
+                mHandler.removeCallbacks(mTimeoutRunnable);
+                mNumConnecting--;
+                retry();
+            } else if (mPhase == ConnectionPhase.CONNECTED) {
+                Log.w(TAG, "<" + mSensor.getDeviceName() + "> connection lost, reconnecting...");
+                mRestoreState = new RestoreState(mSensor, mActiveState);
+                retry();
+            }
+        }
+
+        @Override
+        public void onDisconnected(AbstractSensor sensor) {
+            if (mPhase == ConnectionPhase.CONNECTING) {
+                mHandler.removeCallbacks(mTimeoutRunnable);
+                mNumConnecting--;
+                retry();
+            } else if (mPhase == ConnectionPhase.CONNECTED) {
+                // disconnected on purpose => do not reconnect
+                mPhase = ConnectionPhase.IDLE;
+                mRestoreState = null;
+            }
+        }
+
+        @Override
+        public void onStartStreaming(AbstractSensor sensor) {
+            mActiveState = SensorState.STREAMING;
+        }
+
+        @Override
+        public void onStopStreaming(AbstractSensor sensor) {
+            mActiveState = SensorState.CONNECTED;
+        }
+
+        @Override
+        public void onStartLogging(AbstractSensor sensor) {
+            mActiveState = SensorState.LOGGING;
+        }
+
+        @Override
+        public void onStopLogging(AbstractSensor sensor) {
+            mActiveState = SensorState.CONNECTED;
+        }
+
+        private void connect() {
+            mPhase = ConnectionPhase.CONNECTING;
+            mNumAttempts++;
+            mNumConnecting++;
+            mHandler.postDelayed(mTimeoutRunnable, mConnectTimeoutMs);
+            Log.d(TAG, "<" + mSensor.getDeviceName() + "> connection attempt " + mNumAttempts);
+            boolean started;
+            try {
+                started = mSensor.connect();
+            } catch (Exception e) {
+                e.printStackTrace();
+                started = false;
+            }
+            if (!started && mPhase == ConnectionPhase.CONNECTING) {
+                mHandler.removeCallbacks(mTimeoutRunnable);
+                mNumConnecting--;
+                retry();
+            }
+        }
+
+        private void onConnectTimeout() {
+            if (mPhase != ConnectionPhase.CONNECTING) {
+                return;
+            }
+            Log.w(TAG, "<" + mSensor.getDeviceName() + "> connection attempt timed out.");
+            mNumConnecting--;
+            // switch phase first, so the callbacks triggered by disconnecting are ignored
+            mPhase = ConnectionPhase.WAITING;
+            mSensor.disconnect();
+            retry();
+        }
+
+        private void retry() {
+            if (mMaxAttempts >= 0 && mNumAttempts >= mMaxAttempts) {
+                Log.e(TAG, "<" + mSensor.getDeviceName() + "> giving up after " + mNumAttempts + " attempts.");
+                mPhase = ConnectionPhase.IDLE;
+                mRestoreState = null;
+                if (mListener != null) {
+                    mListener.onSensorConnectionFailed(mSensor);
+                }
+                scheduleNext();
+                return;
+            }
+
+            long delay = getBackoff(mNumAttempts);
+            mPhase = ConnectionPhase.WAITING;
+            if (mListener != null) {
+                mListener.onSensorReconnecting(mSensor, mNumAttempts + 1, delay);
+            }
+            mHandler.postDelayed(mConnectRunnable, delay);
+            scheduleNext();
+        }
+
+        private void onBackoffElapsed() {
+            if (mPhase == ConnectionPhase.WAITING) {
+                mQueue.add(this);
+                scheduleNext();
+            }
+        }
+
+        private void restore() {
+            if (mPhase != ConnectionPhase.CONNECTED) {
+                return;
+            }
+            RestoreState state = mRestoreState;
+            mRestoreState = null;
+            if (state != null) {
+                Log.d(TAG, "<" + mSensor.getDeviceName() + "> restoring " + state.mActiveState + " @ " + state.mSamplingRate + " Hz");
+                mSensor.useHardwareSensors(state.mSelectedSensors);
+                if (state.mSamplingRate > 0 && mSensor.getSamplingRate() != state.mSamplingRate) {
+                    try {
+                        mSensor.requestSamplingRateChange(state.mSamplingRate);
+                    } catch (SensorException e) {
+                        Log.e(TAG, "<" + mSensor.getDeviceName() + "> restoring sampling rate failed: " + e.getMessage());
+                    }
+                }
+                if (state.mActiveState == SensorState.STREAMING && !mSensor.isStreaming()) {
+                    mSensor.startStreaming();
+                } else if (state.mActiveState == SensorState.LOGGING && !mSensor.isLogging() && mSensor instanceof Loggable) {
+                    // sensors that keep logging during the connection loss already report LOGGING at this point
+                    ((Loggable) mSensor).startLogging();
+                }
+            }
+            if (mListener != null) {
+                mListener.onSensorConnected(mSensor, state != null);
+            }
+        }
+    }
+
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<AbstractSensor, ManagedSensor> mSensors = new LinkedHashMap<>();
+    private final Deque<ManagedSensor> mQueue = new ArrayDeque<>();
+    private ConnectionListener mListener;
+
+    private int mNumConnecting;
+    private int mMaxParallelConnections = DEFAULT_MAX_PARALLEL_CONNECTIONS;
+    private long mInitialBackoffMs = DEFAULT_INITIAL_BACKOFF_MS;
+    private long mMaxBackoffMs = DEFAULT_MAX_BACKOFF_MS;
+    private long mConnectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+
+    public void setConnectionListener(ConnectionListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the maximum number of sensors connecting at the same time.
+     */
+    public void setMaxParallelConnections(int maxParallelConnections) {
+        mMaxParallelConnections = Math.max(1, maxParallelConnections);
+    }
+
+    /**
+     * Sets the backoff between connection attempts: the delay starts at <code>initialBackoffMs</code> and doubles
+     * with every failed attempt up to <code>maxBackoffMs</code>.
+     */
+    public void setBackoff(long initialBackoffMs, long maxBackoffMs) {
+        mInitialBackoffMs = initialBackoffMs;
+        mMaxBackoffMs = Math.max(initialBackoffMs, maxBackoffMs);
+    }
+
+    public void setConnectTimeout(long connectTimeoutMs) {
+        mConnectTimeoutMs = connectTimeoutMs;
+    }
+
+    /**
+     * Sets the number of consecutive connection attempts before a sensor is given up, -1 to retry forever.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Connects the given sensors and keeps them connected.
+     */
+    public void connect(List<? extends AbstractSensor> sensors) {
+        for (AbstractSensor sensor : sensors) {
+            connect(sensor);
+        }
+    }
+
+    /**
+     * Connects the given sensor and keeps it connected.
+     */
+    public void connect(AbstractSensor sensor) {
+        ManagedSensor managed = mSensors.get(sensor);
+        if (managed == null) {
+            managed = new ManagedSensor(sensor);
+            mSensors.put(sensor, managed);
+            sensor.addDataHandler(managed);
+        }
+        if (managed.mPhase != ConnectionPhase.IDLE) {
+            return;
+        }
+        managed.mNumAttempts = 0;
+        managed.mActiveState = SensorState.CONNECTED;
+        managed.mPhase = ConnectionPhase.WAITING;
+        mQueue.add(managed);
+        scheduleNext();
+    }
+
+    /**
+     * Disconnects the given sensor. The sensor is not reconnected anymore.
+     */
+    public void disconnect(AbstractSensor sensor) {
+        ManagedSensor managed = mSensors.get(sensor);
+        if (managed == null) {
+            return;
+        }
+        stopManaging(managed);
+        sensor.disconnect();
+    }
+
+    /**
+     * Disconnects all sensors.
+     */
+    public void disconnectAll() {
+        for (AbstractSensor sensor : new ArrayList<>(mSensors.keySet())) {
+            disconnect(sensor);
+        }
+    }
+
+    /**
+     * Stops managing all sensors without disconnecting them.
+     */
+    public void release() {
+        for (ManagedSensor managed : mSensors.values()) {
+            stopManaging(managed);
+            managed.mSensor.removeDataHandler(managed);
+        }
+        mSensors.clear();
+    }
+
+    /**
+     * Returns the sensors that are currently connected.
+     */
+    public List<AbstractSensor> getConnectedSensors() {
+        List<AbstractSensor> sensors = new ArrayList<>();
+        for (ManagedSensor managed : mSensors.values()) {
+            if (managed.mPhase == ConnectionPhase.CONNECTED) {
+                sensors.add(managed.mSensor);
+            }
+        }
+        return sensors;
+    }
+
+    private void stopManaging(ManagedSensor managed) {
+        if (managed.mPhase == ConnectionPhase.CONNECTING) {
+            mNumConnecting--;
+        }
+        managed.mPhase = ConnectionPhase.IDLE;
+        managed.mRestoreState = null;
+        mQueue.remove(managed);
+        mHandler.removeCallbacks(managed.mTimeoutRunnable);
+        mHandler.removeCallbacks(managed.mConnectRunnable);
+        scheduleNext();
+    }
+
+    private void scheduleNext() {
+        while (mNumConnecting < mMaxParallelConnections && !mQueue.isEmpty()) {
+            ManagedSensor managed = mQueue.poll();
+            if (managed.mPhase == ConnectionPhase.WAITING) {
+                managed.connect();
+            }
+        }
+    }
+
+    private long getBackoff(int numAttempts) {
+        long delay = mInitialBackoffMs;
+        for (int i = 1; i < numAttempts && delay < mMaxBackoffMs; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, mMaxBackoffMs);
+    }
+}
@@ -8,6 +8,7 @@
 package de.fau.sensorlib;
 
 import java.util.EnumSet;
+import java.util.List;
 
 import de.fau.sensorlib.enums.HardwareSensor;
 
@@ -35,6 +36,38 @@ public abstract class SensorFoundCallback {
         return onKnownSensorFound(sensor);
     }
 
+    /**
+     * Called with all sensors known to the sensorlib that were found in one batch of scan results.
+     * By default, {@link #onKnownSensorFound(SensorInfo, int)} and {@link #onKnownSensorFound(SensorInfo)}
+     * are called for each sensor.
+     *
+     * @param sensors the KnownSensors that were found
+     * @param rssi    the RSSI of each sensor, in the same order as <code>sensors</code>
+     * @return true to continue scanning, false to cancel the scan
+     */
+    public boolean onKnownSensorsFound(List<SensorInfo> sensors, int[] rssi) {
+        for (int i = 0; i < sensors.size(); i++) {
+            // Logical AND because onKnownSensorFound(SensorInfo, int) always returns true by default.
+            // If we should stop scanning, then one of these methods returns false.
+            boolean ret = onKnownSensorFound(sensors.get(i), rssi[i]);
+            ret &= onKnownSensorFound(sensors.get(i));
+            if (!ret) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called with sensors that were already reported during this scan and were seen again. Their advertisement
+     * state (battery level, charging state, number of recordings) was updated from the most recent advertisement.
+     *
+     * @param sensors the KnownSensors that were seen again
+     * @param rssi    the most recent RSSI of each sensor, in the same order as <code>sensors</code>
+     */
+    public void onKnownSensorsUpdated(List<SensorInfo> sensors, int[] rssi) {
+    }
+
     /**
      * Called when a subset of Hardware sensors of the sensor device was selected.
      *
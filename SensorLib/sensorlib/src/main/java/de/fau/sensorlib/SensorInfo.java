@@ -97,6 +97,19 @@ public class SensorInfo implements Serializable {
         return mManufacturerData;
     }
 
+    /**
+     * Updates the manufacturer data, e.g., from a more recent advertisement, and the state derived from it
+     * (battery level, charging state and number of recordings).
+     *
+     * @param manufacturerData the manufacturer-specific advertisement data
+     */
+    public void setManufacturerData(byte[] manufacturerData) {
+        mManufacturerData = manufacturerData;
+        mBatteryLevel = BleManufacturerDataHelper.getBatteryLevel(mDeviceClass, mManufacturerData);
+        mIsCharging = BleManufacturerDataHelper.getChargingState(mDeviceClass, mManufacturerData);
+        mNumRecordings = BleManufacturerDataHelper.getNumberOfRecordings(mDeviceClass, mManufacturerData);
+    }
+
     /**
      * Returns the battery level.
      *
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.fau.sensorlib.SensorException.SensorExceptionType;
+import de.fau.sensorlib.enums.SensorState;
+
+/**
+ * Tracks the presence and status (battery level, charging state, operation state, number of recordings) of a
+ * fleet of sensors from their BLE advertisements only, without connecting to them.
+ * <p>
+ * The tracker scans in low-power mode with batched results until it is stopped. If the sensors' MAC addresses
+ * (or manufacturer IDs) are known, hardware scan filters are used, which also keeps the scan running while the
+ * screen is off. The latest advertisement data and the time each sensor was last seen are kept in memory.
+ */
+public class SensorPresenceTracker {
+
+    private static final String TAG = SensorPresenceTracker.class.getSimpleName();
+
+    /**
+     * Default delay (in ms) for batching scan results
+     */
+    public static final long DEFAULT_REPORT_DELAY = 10000;
+
+    /**
+     * Maximum time (in ms) to wait for flushed scan results before the scan is stopped
+     */
+    private static final long SCAN_FLUSH_TIMEOUT = 1000;
+
+    public interface PresenceListener {
+        /**
+         * Called with all sensors that were seen in one batch of scan results.
+         *
+         * @param sensors the sensors that were seen
+         */
+        void onPresenceUpdated(List<SensorPresence> sensors);
+    }
+
+    /**
+     * Latest advertisement state of one sensor.
+     */
+    public static class SensorPresence {
+        private final SensorInfo mSensorInfo;
+        private int mRssi;
+        private long mLastSeen;
+        private long mFirstSeen;
+
+        private SensorPresence(SensorInfo sensorInfo, long timestamp) {
+            mSensorInfo = sensorInfo;
+            mFirstSeen = timestamp;
+        }
+
+        /**
+         * Returns the sensor info, including battery level, charging state and number of recordings
+         * decoded from the latest advertisement.
+         */
+        public SensorInfo getSensorInfo() {
+            return mSensorInfo;
+        }
+
+        public String getDeviceAddress() {
+            return mSensorInfo.getDeviceAddress();
+        }
+
+        public int getRssi() {
+            return mRssi;
+        }
+
+        /**
+         * Returns the time the sensor was last seen, in ms since boot (see {@link SystemClock#elapsedRealtime()}).
+         */
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+
+        /**
+         * Returns the time the sensor was first seen, in ms since boot (see {@link SystemClock#elapsedRealtime()}).
+         */
+        public long getFirstSeen() {
+            return mFirstSeen;
+        }
+
+        /**
+         * Returns the operation state advertised by the sensor, {@link SensorState#UNDEFINED} if the sensor is idle
+         * or does not advertise its state.
+         */
+        public SensorState getAdvertisedState() {
+            return BleManufacturerDataHelper.getSensorState(mSensorInfo.getDeviceClass(), mSensorInfo.getManufacturerData());
+        }
+
+        public boolean isRecording() {
+            return getAdvertisedState() == SensorState.LOGGING;
+        }
+    }
+
+
+    private final BluetoothLeScanner mScanner;
+    private final HashMap<String, SensorPresence> mSensors = new HashMap<>();
+    /**
+     * Devices that are not known to the sensorlib (address => device name they were classified with), to classify
+     * each device only once. A device is classified again if its name changes, e.g., once it could be resolved.
+     */
+    private final HashMap<String, String> mIgnoredDevices = new HashMap<>();
+    private final Set<String> mAddressFilter = new HashSet<>();
+    private final Set<Integer> mManufacturerIdFilter = new HashSet<>();
+    private long mReportDelay = DEFAULT_REPORT_DELAY;
+    private PresenceListener mListener;
+    private boolean mRunning;
+    private boolean mBatching;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /**
+     * Stops the scan once the results flushed by {@link #stop()} were delivered
+     */
+    private final AtomicReference<Runnable> mPendingStop = new AtomicReference<>();
+    private final Runnable mPendingStopRunnable = this::runPendingStop;
+
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            onBatchScanResults(Collections.singletonList(result));
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            try {
+                List<SensorPresence> updated = onScanResults(results);
+                if (!updated.isEmpty() && mListener != null) {
+                    mListener.onPresenceUpdated(updated);
+                }
+            } finally {
+                runPendingStop();
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "Presence scan failed: " + errorCode);
+            mRunning = false;
+        }
+    };
+
+
+    public SensorPresenceTracker() throws SensorException {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null) {
+            throw new SensorException(SensorExceptionType.btNotSupported);
+        }
+        mScanner = adapter.getBluetoothLeScanner();
+        if (mScanner == null) {
+            throw new SensorException(SensorExceptionType.bleScannerError);
+        }
+    }
+
+    public void setPresenceListener(PresenceListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Tracks the sensors with the given MAC addresses (hardware scan filter). Applies to the next call of
+     * {@link #start()}.
+     * <p>
+     * All filters are combined with OR, i.e., a device is tracked if it matches any address or any manufacturer ID
+     * (see {@link #addManufacturerIdFilter(int)}). Without filters, all devices are tracked.
+     */
+    public void setSensorAddresses(Collection<String> addresses) {
+        mAddressFilter.clear();
+        mAddressFilter.addAll(addresses);
+    }
+
+    /**
+     * Tracks devices advertising manufacturer-specific data with the given manufacturer ID (hardware scan filter).
+     * Applies to the next call of {@link #start()}.
+     * <p>
+     * All filters are combined with OR, i.e., a device is tracked if it matches any manufacturer ID or any address
+     * (see {@link #setSensorAddresses(Collection)}).
+     */
+    public void addManufacturerIdFilter(int manufacturerId) {
+        mManufacturerIdFilter.add(manufacturerId);
+    }
+
+    /**
+     * Sets the delay for batching scan results. Applies to the next call of {@link #start()}.
+     *
+     * @param reportDelay delay in ms
+     */
+    public void setReportDelay(long reportDelay) {
+        mReportDelay = reportDelay;
+    }
+
+    /**
+     * Starts tracking. The sensor table is kept, so tracking can be paused and resumed.
+     */
+    public synchronized void start() throws SensorException {
+        if (mRunning) {
+            return;
+        }
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (!adapter.isEnabled()) {
+            throw new SensorException(SensorExceptionType.btNotActivated);
+        }
+        // the previous scan still waits for its flushed results => stop it now, the callback can't be registered twice
+        runPendingStop();
+
+        List<ScanFilter> filters = new ArrayList<>();
+        for (String address : mAddressFilter) {
+            filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+        }
+        for (int manufacturerId : mManufacturerIdFilter) {
+            filters.add(new ScanFilter.Builder().setManufacturerData(manufacturerId, new byte[0]).build());
+        }
+
+        mBatching = adapter.isOffloadedScanBatchingSupported() && mReportDelay > 0;
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
+                .setReportDelay(mBatching ? mReportDelay : 0)
+                .build();
+
+        Log.d(TAG, "Starting presence tracking (" + filters.size() + " filters)...");
+        mScanner.startScan(filters, settings, mScanCallback);
+        mRunning = true;
+    }
+
+    /**
+     * Stops tracking. The sensor table is kept. Batched results that are still pending are reported before the
+     * scan is stopped.
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        Log.d(TAG, "...Stopping presence tracking.");
+        mRunning = false;
+        if (mBatching) {
+            // flushed results are delivered asynchronously and are dropped if the scan is already stopped
+            // => stop the scan once they were delivered
+            mPendingStop.set(() -> mScanner.stopScan(mScanCallback));
+            mHandler.postDelayed(mPendingStopRunnable, SCAN_FLUSH_TIMEOUT);
+            mScanner.flushPendingScanResults(mScanCallback);
+        } else {
+            mScanner.stopScan(mScanCallback);
+        }
+    }
+
+    private void runPendingStop() {
+        Runnable stop = mPendingStop.getAndSet(null);
+        if (stop != null) {
+            mHandler.removeCallbacks(mPendingStopRunnable);
+            stop.run();
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Returns all sensors seen since tracking was started.
+     */
+    public synchronized List<SensorPresence> getSensors() {
+        return new ArrayList<>(mSensors.values());
+    }
+
+    /**
+     * Returns the sensor with the given MAC address, <code>null</code> if it was not seen yet.
+     */
+    public synchronized SensorPresence getSensor(String address) {
+        return mSensors.get(address);
+    }
+
+    /**
+     * Returns all sensors that were not seen for the given time, e.g., because they are out of range or switched off.
+     *
+     * @param timeoutMs time in ms
+     */
+    public synchronized List<SensorPresence> getMissingSensors(long timeoutMs) {
+        long now = SystemClock.elapsedRealtime();
+        List<SensorPresence> missing = new ArrayList<>();
+        for (SensorPresence presence : mSensors.values()) {
+            if (now - presence.mLastSeen > timeoutMs) {
+                missing.add(presence);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Removes all sensors from the sensor table.
+     */
+    public synchronized void clear() {
+        mSensors.clear();
+        mIgnoredDevices.clear();
+    }
+
+    private synchronized List<SensorPresence> onScanResults(List<ScanResult> results) {
+        LinkedHashSet<SensorPresence> updated = new LinkedHashSet<>();
+        for (ScanResult result : results) {
+            String address = result.getDevice().getAddress();
+            String name = result.getDevice().getName();
+            if (mIgnoredDevices.containsKey(address) && Objects.equals(mIgnoredDevices.get(address), name)) {
+                continue;
+            }
+            // time the advertisement was received, not when the batch was delivered
+            long timestamp = result.getTimestampNanos() / 1000000;
+            byte[] manuData = BleManufacturerDataHelper.getManufacturerData(result.getScanRecord());
+
+            SensorPresence presence = mSensors.get(address);
+            if (presence == null) {
+                SensorInfo info = new SensorInfo(name, address, manuData);
+                if (info.getDeviceClass() == null) {
+                    mIgnoredDevices.put(address, name);
+                    continue;
+                }
+                mIgnoredDevices.remove(address);
+                presence = new SensorPresence(info, timestamp);
+                mSensors.put(address, presence);
+            } else if (timestamp < presence.mLastSeen) {
+                // older than the latest advertisement
+                continue;
+            } else if (manuData != null) {
+                // keep the last known state if the advertisement does not contain any
+                presence.mSensorInfo.setManufacturerData(manuData);
+            }
+            presence.mRssi = result.getRssi();
+            presence.mLastSeen = timestamp;
+            updated.add(presence);
+        }
+        return new ArrayList<>(updated);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib.dataframe;
+
+import de.fau.sensorlib.sensors.AbstractSensor;
+
+/**
+ * RSSI of a BLE connection together with the streaming packet loss since the previous RSSI reading.
+ */
+public class BleLinkQualityDataFrame extends SensorDataFrame implements RssiDataFrame {
+
+    public static final String[] COLUMNS = new String[]{"rssi", "num_received", "num_lost"};
+
+    private final int mRssi;
+    private final long mNumReceived;
+    private final long mNumLost;
+
+    /**
+     * @param sensor      the sensor the RSSI was read from
+     * @param timestamp   the timestamp in milliseconds when the RSSI was read
+     * @param rssi        the RSSI in dBm
+     * @param numReceived number of samples received since the previous RSSI reading, -1 if unknown
+     * @param numLost     number of samples lost since the previous RSSI reading, -1 if unknown
+     */
+    public BleLinkQualityDataFrame(AbstractSensor sensor, double timestamp, int rssi, long numReceived, long numLost) {
+        super(sensor, timestamp);
+        mRssi = rssi;
+        mNumReceived = numReceived;
+        mNumLost = numLost;
+    }
+
+    @Override
+    public double getRssi() {
+        return mRssi;
+    }
+
+    /**
+     * Returns the number of samples received since the previous RSSI reading, -1 if unknown.
+     */
+    public long getNumReceived() {
+        return mNumReceived;
+    }
+
+    /**
+     * Returns the number of samples lost since the previous RSSI reading, -1 if unknown.
+     */
+    public long getNumLost() {
+        return mNumLost;
+    }
+
+    /**
+     * Returns the fraction of samples lost since the previous RSSI reading, NaN if unknown or nothing was streamed.
+     */
+    public double getPacketLossRate() {
+        if (mNumReceived < 0 || mNumLost < 0 || mNumReceived + mNumLost == 0) {
+            return Double.NaN;
+        }
+        return (double) mNumLost / (mNumReceived + mNumLost);
+    }
+}
@@ -172,6 +172,11 @@ public enum KnownSensor {
 
     private Class<?> mSensorClass;
 
+    /**
+     * Classifier for device names, compiled from the identifying keywords of all sensors
+     */
+    private static final SensorNameClassifier sClassifier = new SensorNameClassifier(values());
+
     /**
      * Default constructor.
      *
@@ -225,19 +230,13 @@ public enum KnownSensor {
      * @return the KnownSensors enum corresponding to the given deviceName or null if it could not be associated with any entry.
      */
     public static KnownSensor inferSensorClass(String deviceName) {
-        for (KnownSensor s : KnownSensor.values()) {
-            if (s.mIdentifyingKeywords == null || s.mIdentifyingKeywords.length <= 0) {
-                continue;
-            }
-            for (String str : s.mIdentifyingKeywords) {
-                if (deviceName == null || deviceName.isEmpty()) {
-                    continue;
-                }
-                if (deviceName.contains(str)) {
-                    return s;
-                }
-            }
-        }
-        return null;
+        return sClassifier.classify(deviceName);
+    }
+
+    /**
+     * Returns the keywords that identify this sensor type/class given only the name.
+     */
+    String[] getIdentifyingKeywords() {
+        return (mIdentifyingKeywords == null) ? new String[0] : mIdentifyingKeywords;
     }
 }
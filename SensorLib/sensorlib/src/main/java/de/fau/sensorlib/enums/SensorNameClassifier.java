@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2018 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib.enums;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches device names against the identifying keywords of all {@link KnownSensor}s at once.
+ * <p>
+ * The keywords are compiled into an Aho-Corasick automaton, so a device name is classified in a single pass
+ * over its characters, independent of the number of keywords. If keywords of several sensors are contained in
+ * the name, the sensor declared first wins (same as checking the sensors one after another).
+ * Results are kept in a bounded LRU cache, since the same names are classified over and over during scans.
+ */
+class SensorNameClassifier {
+
+    private static final int CACHE_SIZE = 256;
+
+    /**
+     * Value for names that do not match any keyword
+     */
+    private static final int NO_MATCH = Integer.MAX_VALUE;
+
+    private final KnownSensor[] mSensors;
+
+    /**
+     * Symbol index of each ASCII character, 0 for characters not contained in any keyword
+     */
+    private final int[] mAsciiSymbols = new int[128];
+    /**
+     * Symbol index of non-ASCII characters contained in keywords
+     */
+    private final HashMap<Character, Integer> mOtherSymbols = new HashMap<>();
+    private int mNumSymbols = 1;
+
+    /**
+     * Transition table: next state for each state and symbol
+     */
+    private final int[][] mTransitions;
+    /**
+     * Lowest sensor ordinal of all keywords ending in each state (including keywords that are suffixes), or {@link #NO_MATCH}
+     */
+    private final int[] mMatches;
+
+    private final LinkedHashMap<String, Integer> mCache = new LinkedHashMap<String, Integer>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+
+    SensorNameClassifier(KnownSensor[] sensors) {
+        mSensors = sensors;
+
+        // assign symbols to all characters of the keywords
+        for (KnownSensor sensor : sensors) {
+            for (String keyword : sensor.getIdentifyingKeywords()) {
+                for (int i = 0; i < keyword.length(); i++) {
+                    char c = keyword.charAt(i);
+                    if (symbol(c) == 0) {
+                        if (c < mAsciiSymbols.length) {
+                            mAsciiSymbols[c] = mNumSymbols++;
+                        } else {
+                            mOtherSymbols.put(c, mNumSymbols++);
+                        }
+                    }
+                }
+            }
+        }
+
+        // build the keyword trie
+        List<int[]> trie = new ArrayList<>();
+        List<Integer> matches = new ArrayList<>();
+        trie.add(new int[mNumSymbols]);
+        matches.add(NO_MATCH);
+        for (KnownSensor sensor : sensors) {
+            for (String keyword : sensor.getIdentifyingKeywords()) {
+                if (keyword.isEmpty()) {
+                    continue;
+                }
+                int state = 0;
+                for (int i = 0; i < keyword.length(); i++) {
+                    int sym = symbol(keyword.charAt(i));
+                    if (trie.get(state)[sym] == 0) {
+                        trie.get(state)[sym] = trie.size();
+                        trie.add(new int[mNumSymbols]);
+                        matches.add(NO_MATCH);
+                    }
+                    state = trie.get(state)[sym];
+                }
+                matches.set(state, Math.min(matches.get(state), sensor.ordinal()));
+            }
+        }
+
+        mTransitions = trie.toArray(new int[0][]);
+        mMatches = new int[matches.size()];
+        for (int i = 0; i < mMatches.length; i++) {
+            mMatches[i] = matches.get(i);
+        }
+
+        // breadth-first: compute failure links and turn the trie into a complete transition table
+        int[] fail = new int[mTransitions.length];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int sym = 1; sym < mNumSymbols; sym++) {
+            if (mTransitions[0][sym] != 0) {
+                queue.add(mTransitions[0][sym]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            mMatches[state] = Math.min(mMatches[state], mMatches[fail[state]]);
+            for (int sym = 1; sym < mNumSymbols; sym++) {
+                int next = mTransitions[state][sym];
+                if (next != 0) {
+                    fail[next] = mTransitions[fail[state]][sym];
+                    queue.add(next);
+                } else {
+                    mTransitions[state][sym] = mTransitions[fail[state]][sym];
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the sensor whose keyword is contained in the device name.
+     *
+     * @param deviceName the device name
+     * @return the first matching sensor or null if no keyword is contained in the device name
+     */
+    KnownSensor classify(String deviceName) {
+        if (deviceName == null || deviceName.isEmpty()) {
+            return null;
+        }
+
+        Integer cached;
+        synchronized (mCache) {
+            cached = mCache.get(deviceName);
+        }
+        if (cached == null) {
+            cached = match(deviceName);
+            synchronized (mCache) {
+                mCache.put(deviceName, cached);
+            }
+        }
+        return (cached == NO_MATCH) ? null : mSensors[cached];
+    }
+
+    private int match(String deviceName) {
+        int best = NO_MATCH;
+        int state = 0;
+        for (int i = 0; i < deviceName.length(); i++) {
+            state = mTransitions[state][symbol(deviceName.charAt(i))];
+            if (mMatches[state] < best) {
+                best = mMatches[state];
+            }
+        }
+        return best;
+    }
+
+    private int symbol(char c) {
+        if (c < mAsciiSymbols.length) {
+            return mAsciiSymbols[c];
+        }
+        Integer sym = mOtherSymbols.get(c);
+        return (sym == null) ? 0 : sym;
+    }
+}
@@ -299,6 +299,15 @@ public abstract class AbstractSensor extends SensorInfo {
         mExternalHandlers.add(handler);
     }
 
+    /**
+     * Removes a SensorDataProcessor previously added with {@link #addDataHandler(SensorDataProcessor)}.
+     *
+     * @param handler the data handler that should not receive sensor callbacks anymore.
+     */
+    public void removeDataHandler(SensorDataProcessor handler) {
+        mExternalHandlers.remove(handler);
+    }
+
     /**
      * Selects the specified hardware sensors to be used and data from them reported back for this DsSensor. If the selected hardware sensors are not available the returned values are undefined for these types.
      *
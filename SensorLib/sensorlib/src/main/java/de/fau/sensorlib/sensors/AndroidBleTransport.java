@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2018 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib.sensors;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import de.fau.sensorlib.BleGattAttributes;
+
+/**
+ * {@link BleTransport} using the Android BLE stack. All GATT operations are serialized by a {@link GattOperationQueue}.
+ */
+public class AndroidBleTransport implements BleTransport {
+
+    private static final String TAG = AndroidBleTransport.class.getSimpleName();
+
+    /**
+     * MTU used if the MTU request failed
+     */
+    private static final int DEFAULT_MTU_SIZE = 23;
+
+    private final Context mContext;
+    private final BluetoothDevice mDevice;
+    private final String mName;
+    private final GattOperationQueue mQueue;
+
+    private BluetoothGatt mGatt;
+    private Callback mCallback;
+
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            mCallback.onConnectionStateChanged(status, newState == BluetoothGatt.STATE_CONNECTED);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            mCallback.onServicesDiscovered(status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            // only called on API < 33
+            onCharacteristicRead(characteristic, characteristic.getValue(), status);
+        }
+
+        @Override
+        public void onCharacteristicRead(@NonNull BluetoothGatt gatt, @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value, int status) {
+            // API >= 33: value is passed separately and not shared with later callbacks
+            onCharacteristicRead(characteristic, value, status);
+        }
+
+        private void onCharacteristicRead(BluetoothGattCharacteristic characteristic, byte[] value, int status) {
+            mQueue.onOperationCompleted(GattOperationQueue.OperationType.READ_CHARACTERISTIC, characteristic);
+            mCallback.onCharacteristicRead(characteristic, value, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            mQueue.onOperationCompleted(GattOperationQueue.OperationType.WRITE_CHARACTERISTIC, characteristic);
+            mCallback.onCharacteristicWrite(characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            // only called on API < 33
+            mCallback.onCharacteristicChanged(characteristic, characteristic.getValue());
+        }
+
+        @Override
+        public void onCharacteristicChanged(@NonNull BluetoothGatt gatt, @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value) {
+            // API >= 33: value is passed separately and not shared with later notifications
+            mCallback.onCharacteristicChanged(characteristic, value);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            mQueue.onOperationCompleted(GattOperationQueue.OperationType.WRITE_DESCRIPTOR, descriptor);
+            mCallback.onDescriptorWrite(descriptor, descriptor.getValue(), status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            // ignore late callbacks of requests that already timed out
+            if (mQueue.onOperationCompleted(GattOperationQueue.OperationType.REQUEST_MTU, null)) {
+                mCallback.onMtuChanged(mtu, status);
+            }
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            if (mQueue.onOperationCompleted(GattOperationQueue.OperationType.READ_REMOTE_RSSI, null)) {
+                mCallback.onReadRemoteRssi(rssi, status);
+            }
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            mCallback.onPhyUpdate(txPhy, rxPhy, status);
+        }
+
+        /**
+         * Hidden in the SDK (API >= 26), but called by the BLE stack when the connection parameters were updated.
+         * This is the only way to learn the connection interval actually in use.
+         */
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+            mCallback.onConnectionUpdated(interval, latency, timeout, status);
+        }
+    };
+
+    private final GattOperationQueue.OperationFailedListener mOperationFailedListener = operation -> {
+        switch (operation.getType()) {
+            case READ_CHARACTERISTIC:
+                mCallback.onCharacteristicRead(operation.getCharacteristic(), null, BluetoothGatt.GATT_FAILURE);
+                break;
+            case WRITE_CHARACTERISTIC:
+                mCallback.onCharacteristicWrite(operation.getCharacteristic(), BluetoothGatt.GATT_FAILURE);
+                break;
+            case WRITE_DESCRIPTOR:
+                mCallback.onDescriptorWrite(operation.getDescriptor(), operation.getValue(), BluetoothGatt.GATT_FAILURE);
+                break;
+            case REQUEST_MTU:
+                mCallback.onMtuChanged(DEFAULT_MTU_SIZE, BluetoothGatt.GATT_FAILURE);
+                break;
+            case READ_REMOTE_RSSI:
+                mCallback.onReadRemoteRssi(0, BluetoothGatt.GATT_FAILURE);
+                break;
+        }
+    };
+
+
+    public AndroidBleTransport(Context context, BluetoothDevice device, String name) {
+        mContext = context;
+        mDevice = device;
+        mName = name;
+        mQueue = new GattOperationQueue(name, mOperationFailedListener);
+    }
+
+    @Override
+    public synchronized boolean connect(Callback callback) {
+        mCallback = callback;
+        mGatt = mDevice.connectGatt(mContext, false, mGattCallback);
+        mQueue.setGatt(mGatt);
+        return mGatt != null;
+    }
+
+    @Override
+    public synchronized boolean reconnect() {
+        return mGatt != null && mGatt.connect();
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        if (mGatt != null) {
+            mGatt.disconnect();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        mQueue.setGatt(null);
+        if (mGatt != null) {
+            mGatt.close();
+            mGatt = null;
+        }
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return mGatt != null;
+    }
+
+    @Override
+    public String getDeviceName() {
+        return mDevice.getName();
+    }
+
+    @Override
+    public synchronized boolean discoverServices() {
+        return mGatt != null && mGatt.discoverServices();
+    }
+
+    @Override
+    public synchronized List<BluetoothGattService> getServices() {
+        return (mGatt == null) ? Collections.emptyList() : mGatt.getServices();
+    }
+
+    @Override
+    public synchronized BluetoothGattService getService(UUID uuid) {
+        return (mGatt == null) ? null : mGatt.getService(uuid);
+    }
+
+    @Override
+    public void readCharacteristic(BluetoothGattCharacteristic characteristic, GattOperationQueue.Priority priority) {
+        mQueue.enqueue(GattOperationQueue.GattOperation.readCharacteristic(characteristic, priority));
+    }
+
+    @Override
+    public void writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, GattOperationQueue.Priority priority) {
+        mQueue.enqueue(GattOperationQueue.GattOperation.writeCharacteristic(characteristic, value, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, priority));
+    }
+
+    @Override
+    public synchronized boolean setNotificationsEnabled(BluetoothGattCharacteristic characteristic, boolean enable) {
+        if (mGatt == null) {
+            return false;
+        }
+        mGatt.setCharacteristicNotification(characteristic, enable);
+        BluetoothGattDescriptor desc = characteristic.getDescriptor(BleGattAttributes.CLIENT_CHARACTERISTIC_CONFIGURATION);
+        if (desc == null) {
+            Log.w(TAG, "<" + mName + "> no CCC descriptor for " + BleGattAttributes.lookupCharacteristic(characteristic.getUuid()));
+            return false;
+        }
+        byte[] value = enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        mQueue.enqueue(GattOperationQueue.GattOperation.writeDescriptor(desc, value, GattOperationQueue.Priority.DEFAULT));
+        return true;
+    }
+
+    @Override
+    public void requestMtu(int mtu, GattOperationQueue.Priority priority) {
+        mQueue.enqueue(GattOperationQueue.GattOperation.requestMtu(mtu, priority));
+    }
+
+    @Override
+    public void readRemoteRssi(GattOperationQueue.Priority priority) {
+        mQueue.enqueue(GattOperationQueue.GattOperation.readRemoteRssi(priority));
+    }
+
+    @Override
+    public synchronized boolean requestConnectionPriority(int connectionPriority) {
+        return mGatt != null && mGatt.requestConnectionPriority(connectionPriority);
+    }
+
+    @Override
+    public synchronized boolean setPreferredPhy(int txPhyMask, int rxPhyMask) {
+        if (mGatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return false;
+        }
+        mGatt.setPreferredPhy(txPhyMask, rxPhyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        return true;
+    }
+
+    @Override
+    public boolean hasPendingOperations(GattOperationQueue.OperationType type) {
+        return mQueue.hasPendingOperations(type);
+    }
+
+    /**
+     * Returns the operation queue, e.g., to adjust timeouts and retries.
+     */
+    public GattOperationQueue getOperationQueue() {
+        return mQueue;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2018 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib.sensors;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * Link parameters of a BLE connection, depending on what the sensor is currently doing.
+ * <p>
+ * The MTU is not part of a profile: it is negotiated once per connection (with the maximum size) while connecting.
+ */
+public enum BleLinkProfile {
+    /**
+     * Connected, but no data transfer (also used while the sensor is logging)
+     */
+    IDLE(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, BluetoothDevice.PHY_LE_1M_MASK),
+    /**
+     * Continuous data stream at moderate throughput
+     */
+    STREAMING(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, BluetoothDevice.PHY_LE_1M_MASK),
+    /**
+     * Bulk transfer, e.g., session downloads
+     */
+    BULK(BluetoothGatt.CONNECTION_PRIORITY_HIGH, BluetoothDevice.PHY_LE_2M_MASK);
+
+    private final int mConnectionPriority;
+    private final int mPhyMask;
+
+    BleLinkProfile(int connectionPriority, int phyMask) {
+        mConnectionPriority = connectionPriority;
+        mPhyMask = phyMask;
+    }
+
+    /**
+     * Returns the connection priority, see {@link BluetoothGatt#requestConnectionPriority(int)}.
+     */
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    /**
+     * Returns the preferred PHY (for TX and RX), see {@link BluetoothGatt#setPreferredPhy(int, int, int)}.
+     */
+    public int getPhyMask() {
+        return mPhyMask;
+    }
+}
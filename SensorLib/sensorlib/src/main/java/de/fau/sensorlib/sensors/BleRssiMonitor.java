@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib.sensors;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import de.fau.sensorlib.dataframe.BleLinkQualityDataFrame;
+
+/**
+ * Periodically reads the RSSI of a connected {@link GenericBleSensor} and relates it to the packet loss of the
+ * data stream (see {@link GenericBleSensor#getNumLostSamples()}).
+ * <p>
+ * Every reading is sent to the sensor's data handlers as {@link BleLinkQualityDataFrame}, so apps that enable
+ * monitoring have to expect these frames in {@link de.fau.sensorlib.SensorDataProcessor#onNewData}. RSSI reads
+ * are queued with the lowest priority, so they never delay commands or configuration writes. Additionally,
+ * received and lost samples are accumulated per RSSI range, which shows from which signal strength on a phone
+ * placement starts losing data.
+ */
+public class BleRssiMonitor {
+
+    public static final long DEFAULT_INTERVAL_MS = 2000;
+
+    /**
+     * Width of the RSSI ranges packet loss is accumulated for
+     */
+    public static final int RSSI_BUCKET_WIDTH = 5;
+    private static final int MIN_RSSI = -127;
+    private static final int MAX_RSSI = 20;
+    private static final int NUM_BUCKETS = (MAX_RSSI - MIN_RSSI) / RSSI_BUCKET_WIDTH + 1;
+
+    /**
+     * RSSI value if no RSSI was read yet
+     */
+    public static final int RSSI_UNKNOWN = Integer.MIN_VALUE;
+
+    private final GenericBleSensor mSensor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private long mIntervalMs = DEFAULT_INTERVAL_MS;
+    private boolean mRunning;
+
+    private int mLastRssi = RSSI_UNKNOWN;
+    private long mLastNumReceived = -1;
+    private long mLastNumLost = -1;
+    private final long[] mNumReceivedPerBucket = new long[NUM_BUCKETS];
+    private final long[] mNumLostPerBucket = new long[NUM_BUCKETS];
+
+    private final Runnable mPollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRunning) {
+                return;
+            }
+            if (mSensor.isConnected()) {
+                mSensor.readRemoteRssi();
+            }
+            mHandler.postDelayed(this, mIntervalMs);
+        }
+    };
+
+
+    BleRssiMonitor(GenericBleSensor sensor) {
+        mSensor = sensor;
+    }
+
+    void start(long intervalMs) {
+        mIntervalMs = intervalMs;
+        mHandler.removeCallbacks(mPollRunnable);
+        mRunning = true;
+        mHandler.post(mPollRunnable);
+    }
+
+    void stop() {
+        mRunning = false;
+        mHandler.removeCallbacks(mPollRunnable);
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Called from the BLE stack when the RSSI was read.
+     */
+    void onRssiRead(int rssi, int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            return;
+        }
+
+        long numReceived = mSensor.getNumReceivedSamples();
+        long numLost = mSensor.getNumLostSamples();
+        long deltaReceived = -1;
+        long deltaLost = -1;
+
+        synchronized (this) {
+            if (numReceived >= 0 && numLost >= 0) {
+                if (mLastNumReceived >= 0 && mLastNumLost >= 0) {
+                    // counters are reset when streaming is (re)started
+                    deltaReceived = (numReceived >= mLastNumReceived) ? numReceived - mLastNumReceived : numReceived;
+                    deltaLost = (numLost >= mLastNumLost) ? numLost - mLastNumLost : numLost;
+                    // the previous RSSI is the best estimate for the interval since then
+                    int bucket = getBucket(mLastRssi != RSSI_UNKNOWN ? mLastRssi : rssi);
+                    mNumReceivedPerBucket[bucket] += deltaReceived;
+                    mNumLostPerBucket[bucket] += deltaLost;
+                }
+                mLastNumReceived = numReceived;
+                mLastNumLost = numLost;
+            }
+            mLastRssi = rssi;
+        }
+
+        mSensor.sendNewData(new BleLinkQualityDataFrame(mSensor, SystemClock.elapsedRealtime(), rssi, deltaReceived, deltaLost));
+    }
+
+    /**
+     * Returns the most recent RSSI in dBm, {@link #RSSI_UNKNOWN} if no RSSI was read yet.
+     */
+    public synchronized int getLastRssi() {
+        return mLastRssi;
+    }
+
+    /**
+     * Returns the fraction of samples lost while the RSSI was in the same range
+     * ({@link #RSSI_BUCKET_WIDTH} dBm) as the given RSSI.
+     *
+     * @param rssi RSSI in dBm
+     * @return the packet loss rate or NaN if nothing was streamed at this RSSI
+     */
+    public synchronized double getPacketLossRate(int rssi) {
+        int bucket = getBucket(rssi);
+        long total = mNumReceivedPerBucket[bucket] + mNumLostPerBucket[bucket];
+        return (total == 0) ? Double.NaN : (double) mNumLostPerBucket[bucket] / total;
+    }
+
+    /**
+     * Resets the accumulated packet loss statistics.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            mNumReceivedPerBucket[i] = 0;
+            mNumLostPerBucket[i] = 0;
+        }
+        mLastNumReceived = -1;
+        mLastNumLost = -1;
+    }
+
+    private static int getBucket(int rssi) {
+        int clamped = Math.max(MIN_RSSI, Math.min(MAX_RSSI, rssi));
+        return (clamped - MIN_RSSI) / RSSI_BUCKET_WIDTH;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2018 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib.sensors;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Transport layer between a {@link GenericBleSensor} and the device: connecting, service discovery, characteristic
+ * reads and writes, notifications and MTU requests.
+ * <p>
+ * Services, characteristics and descriptors are only used as data containers, so a transport does not need the
+ * Android BLE stack. {@link AndroidBleTransport} is used by default. The <code>FakeBleTransport</code> test fixture
+ * simulates a device in memory, e.g., for JVM tests (with Robolectric) and throughput benchmarks.
+ * <p>
+ * Status codes in {@link Callback} are GATT status codes, e.g., {@link android.bluetooth.BluetoothGatt#GATT_SUCCESS}.
+ */
+public interface BleTransport {
+
+    interface Callback {
+        void onConnectionStateChanged(int status, boolean connected);
+
+        void onServicesDiscovered(int status);
+
+        /**
+         * @param value the read value, not shared with subsequent callbacks. <code>null</code> if the read failed
+         */
+        void onCharacteristicRead(BluetoothGattCharacteristic characteristic, byte[] value, int status);
+
+        void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status);
+
+        /**
+         * @param value the notified value, not shared with subsequent notifications
+         */
+        void onCharacteristicChanged(BluetoothGattCharacteristic characteristic, byte[] value);
+
+        void onDescriptorWrite(BluetoothGattDescriptor descriptor, byte[] value, int status);
+
+        void onMtuChanged(int mtu, int status);
+
+        /**
+         * @param txPhy the TX PHY, e.g., {@link android.bluetooth.BluetoothDevice#PHY_LE_2M}
+         * @param rxPhy the RX PHY
+         */
+        void onPhyUpdate(int txPhy, int rxPhy, int status);
+
+        /**
+         * @param interval the connection interval in units of 1.25 ms
+         * @param latency  the peripheral latency in number of connection events
+         * @param timeout  the supervision timeout in units of 10 ms
+         */
+        void onConnectionUpdated(int interval, int latency, int timeout, int status);
+
+        /**
+         * @param rssi the RSSI in dBm
+         */
+        void onReadRemoteRssi(int rssi, int status);
+    }
+
+    /**
+     * Opens the connection. Can be called again after {@link #close()}.
+     *
+     * @return true if connecting was started, false otherwise
+     */
+    boolean connect(Callback callback);
+
+    /**
+     * Reconnects an open connection that was lost.
+     */
+    boolean reconnect();
+
+    void disconnect();
+
+    /**
+     * Closes the connection and drops all pending operations.
+     */
+    void close();
+
+    boolean isOpen();
+
+    /**
+     * Returns the name the device reports, e.g., when connected.
+     */
+    String getDeviceName();
+
+    boolean discoverServices();
+
+    List<BluetoothGattService> getServices();
+
+    BluetoothGattService getService(UUID uuid);
+
+    void readCharacteristic(BluetoothGattCharacteristic characteristic, GattOperationQueue.Priority priority);
+
+    /**
+     * Writes a characteristic without response.
+     */
+    void writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, GattOperationQueue.Priority priority);
+
+    /**
+     * Enables or disables notifications for the characteristic, including the write of its Client Characteristic
+     * Configuration descriptor.
+     *
+     * @return true if the descriptor write was queued, false otherwise
+     */
+    boolean setNotificationsEnabled(BluetoothGattCharacteristic characteristic, boolean enable);
+
+    void requestMtu(int mtu, GattOperationQueue.Priority priority);
+
+    void readRemoteRssi(GattOperationQueue.Priority priority);
+
+    boolean requestConnectionPriority(int connectionPriority);
+
+    /**
+     * Requests the preferred PHY, see {@link android.bluetooth.BluetoothGatt#setPreferredPhy(int, int, int)}.
+     *
+     * @return true if the request was issued, false if it is not supported or not connected
+     */
+    boolean setPreferredPhy(int txPhyMask, int rxPhyMask);
+
+    /**
+     * Checks whether operations of the given type are queued or in flight.
+     */
+    boolean hasPendingOperations(GattOperationQueue.OperationType type);
+}
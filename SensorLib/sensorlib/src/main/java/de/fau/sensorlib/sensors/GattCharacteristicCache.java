@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2018 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib.sensors;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+import de.fau.sensorlib.BleGattAttributes;
+
+/**
+ * Persistent cache of static characteristic values (e.g., Device Information Service strings),
+ * keyed by the sensor's MAC address.
+ * <p>
+ * Cached values are only valid as long as the sensor reports the same firmware revision
+ * ({@link BleGattAttributes#FIRMWARE_REVISION_STRING}) as when the values were cached. Values that are changed
+ * while being connected have to be invalidated explicitly.
+ */
+public class GattCharacteristicCache {
+
+    private static final String TAG = GattCharacteristicCache.class.getSimpleName();
+
+    private static final String PREFS_NAME = "GattCharacteristicCache";
+
+    private final SharedPreferences mPreferences;
+
+
+    public GattCharacteristicCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the cached characteristic values of the given sensor.
+     *
+     * @param macAddress       MAC address of the sensor
+     * @param firmwareRevision Firmware revision string currently reported by the sensor
+     * @return Map of characteristic UUIDs to values or <code>null</code> if no valid values are cached for this sensor
+     */
+    public synchronized Map<UUID, byte[]> getValues(String macAddress, byte[] firmwareRevision) {
+        Map<UUID, byte[]> values = readEntry(macAddress);
+        if (values == null) {
+            return null;
+        }
+        if (firmwareRevision == null || !Arrays.equals(values.get(BleGattAttributes.FIRMWARE_REVISION_STRING), firmwareRevision)) {
+            Log.d(TAG, "<" + macAddress + "> firmware revision changed, cached characteristics outdated.");
+            invalidate(macAddress);
+            return null;
+        }
+        return values;
+    }
+
+    /**
+     * Checks whether values are cached for the given sensor, independent of the firmware revision.
+     *
+     * @param macAddress MAC address of the sensor
+     */
+    public synchronized boolean contains(String macAddress) {
+        return mPreferences.contains(macAddress);
+    }
+
+    /**
+     * Stores the characteristic values of the given sensor in the cache, replacing all previously cached values.
+     *
+     * @param macAddress MAC address of the sensor
+     * @param values     Map of characteristic UUIDs to values, has to contain the firmware revision string
+     */
+    public synchronized void putValues(String macAddress, Map<UUID, byte[]> values) {
+        if (!values.containsKey(BleGattAttributes.FIRMWARE_REVISION_STRING)) {
+            // cached values could never be validated => don't cache
+            return;
+        }
+
+        JSONObject json = new JSONObject();
+        try {
+            for (Map.Entry<UUID, byte[]> entry : values.entrySet()) {
+                json.put(entry.getKey().toString(), Base64.encodeToString(entry.getValue(), Base64.NO_WRAP));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return;
+        }
+        mPreferences.edit().putString(macAddress, json.toString()).apply();
+    }
+
+    /**
+     * Removes the cached characteristic values of the given sensor.
+     *
+     * @param macAddress MAC address of the sensor
+     */
+    public synchronized void invalidate(String macAddress) {
+        mPreferences.edit().remove(macAddress).apply();
+    }
+
+    /**
+     * Removes all cached characteristic values.
+     */
+    public synchronized void clear() {
+        mPreferences.edit().clear().apply();
+    }
+
+    private Map<UUID, byte[]> readEntry(String macAddress) {
+        String jsonString = mPreferences.getString(macAddress, null);
+        if (jsonString == null) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(jsonString);
+            Map<UUID, byte[]> values = new HashMap<>();
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                values.put(UUID.fromString(key), Base64.decode(json.getString(key), Base64.NO_WRAP));
+            }
+            return values;
+        } catch (JSONException | IllegalArgumentException e) {
+            e.printStackTrace();
+            invalidate(macAddress);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2018 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib.sensors;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import de.fau.sensorlib.BleGattAttributes;
+
+/**
+ * Serializes all GATT operations (characteristic reads and writes, descriptor writes, MTU requests, RSSI reads) of one
+ * BLE connection, since the Android BLE stack only handles one operation at a time.
+ * <p>
+ * Exactly one operation is in flight. Operations are executed in order of their {@link Priority} and, within
+ * the same priority, in the order they were enqueued, so control commands can overtake bulk reads. An operation
+ * completes when its GATT callback arrives ({@link #onOperationCompleted(OperationType, Object)}) or when it times
+ * out. Operations the stack refuses to start are retried after a short delay; idempotent operations (reads,
+ * descriptor writes, MTU requests, RSSI reads) are also retried after a timeout. Characteristic writes are not repeated after a
+ * timeout, because a command might have been executed already.
+ * <p>
+ * The {@link OperationFailedListener} is never called while the queue's lock is held, so it may enqueue new
+ * operations or take locks of its own.
+ */
+public class GattOperationQueue {
+
+    private static final String TAG = GattOperationQueue.class.getSimpleName();
+
+    public static final long DEFAULT_TIMEOUT_MS = 2000;
+    public static final int DEFAULT_MAX_RETRIES = 2;
+
+    /**
+     * Delay before an operation the BLE stack refused to start is retried
+     */
+    private static final long RETRY_DELAY_MS = 50;
+
+    public enum Priority {
+        /**
+         * Time-critical commands, e.g., start/stop commands
+         */
+        CONTROL,
+        /**
+         * Regular writes, e.g., configuration writes or notification descriptors
+         */
+        DEFAULT,
+        /**
+         * Bulk operations, e.g., reading all characteristics after connecting
+         */
+        BULK
+    }
+
+    public enum OperationType {
+        READ_CHARACTERISTIC,
+        WRITE_CHARACTERISTIC,
+        WRITE_DESCRIPTOR,
+        REQUEST_MTU,
+        READ_REMOTE_RSSI
+    }
+
+    public interface OperationFailedListener {
+        /**
+         * Called when an operation finally failed, i.e., it could not be started or timed out and no retries are left.
+         *
+         * @param operation The failed operation
+         */
+        void onOperationFailed(GattOperation operation);
+    }
+
+    public static class GattOperation {
+        private final OperationType mType;
+        private final Priority mPriority;
+        private final BluetoothGattCharacteristic mCharacteristic;
+        private final BluetoothGattDescriptor mDescriptor;
+        private final byte[] mValue;
+        private final int mWriteType;
+        private final int mMtu;
+
+        private long mSequenceNumber;
+        private int mNumAttempts;
+
+        private GattOperation(OperationType type, Priority priority, BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor, byte[] value, int writeType, int mtu) {
+            mType = type;
+            mPriority = priority;
+            mCharacteristic = characteristic;
+            mDescriptor = descriptor;
+            mValue = value;
+            mWriteType = writeType;
+            mMtu = mtu;
+        }
+
+        public static GattOperation readCharacteristic(BluetoothGattCharacteristic characteristic, Priority priority) {
+            return new GattOperation(OperationType.READ_CHARACTERISTIC, priority, characteristic, null, null, 0, 0);
+        }
+
+        /**
+         * The value is stored with the operation and only set to the characteristic when the write is executed,
+         * so several writes to the same characteristic can be queued.
+         */
+        public static GattOperation writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType, Priority priority) {
+            return new GattOperation(OperationType.WRITE_CHARACTERISTIC, priority, characteristic, null, value, writeType, 0);
+        }
+
+        public static GattOperation writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value, Priority priority) {
+            return new GattOperation(OperationType.WRITE_DESCRIPTOR, priority, null, descriptor, value, 0, 0);
+        }
+
+        public static GattOperation requestMtu(int mtu, Priority priority) {
+            return new GattOperation(OperationType.REQUEST_MTU, priority, null, null, null, 0, mtu);
+        }
+
+        public static GattOperation readRemoteRssi(Priority priority) {
+            return new GattOperation(OperationType.READ_REMOTE_RSSI, priority, null, null, null, 0, 0);
+        }
+
+        public OperationType getType() {
+            return mType;
+        }
+
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        public BluetoothGattCharacteristic getCharacteristic() {
+            return mCharacteristic;
+        }
+
+        public BluetoothGattDescriptor getDescriptor() {
+            return mDescriptor;
+        }
+
+        public byte[] getValue() {
+            return mValue;
+        }
+
+        private Object getTarget() {
+            return (mType == OperationType.WRITE_DESCRIPTOR) ? mDescriptor : mCharacteristic;
+        }
+
+        private boolean isIdempotent() {
+            return mType != OperationType.WRITE_CHARACTERISTIC;
+        }
+
+        private boolean execute(BluetoothGatt gatt) {
+            switch (mType) {
+                case READ_CHARACTERISTIC:
+                    return gatt.readCharacteristic(mCharacteristic);
+                case WRITE_CHARACTERISTIC:
+                    mCharacteristic.setValue(mValue);
+                    mCharacteristic.setWriteType(mWriteType);
+                    return gatt.writeCharacteristic(mCharacteristic);
+                case WRITE_DESCRIPTOR:
+                    mDescriptor.setValue(mValue);
+                    return gatt.writeDescriptor(mDescriptor);
+                case REQUEST_MTU:
+                    return gatt.requestMtu(mMtu);
+                case READ_REMOTE_RSSI:
+                    return gatt.readRemoteRssi();
+                default:
+                    return false;
+            }
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            switch (mType) {
+                case READ_CHARACTERISTIC:
+                case WRITE_CHARACTERISTIC:
+                    return mType + " " + BleGattAttributes.lookupCharacteristic(mCharacteristic.getUuid()) + " [" + mPriority + "]";
+                case WRITE_DESCRIPTOR:
+                    return mType + " " + BleGattAttributes.lookupCharacteristic(mDescriptor.getCharacteristic().getUuid()) + " [" + mPriority + "]";
+                default:
+                    return mType + " [" + mPriority + "]";
+            }
+        }
+    }
+
+
+    private final String mName;
+    private final OperationFailedListener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final PriorityQueue<GattOperation> mQueue = new PriorityQueue<>(16, (o1, o2) -> {
+        int cmp = o1.mPriority.compareTo(o2.mPriority);
+        return (cmp != 0) ? cmp : Long.compare(o1.mSequenceNumber, o2.mSequenceNumber);
+    });
+
+    private BluetoothGatt mGatt;
+    /**
+     * The operation in flight (or waiting to be retried), <code>null</code> if the queue is idle
+     */
+    private GattOperation mCurrentOperation;
+    private long mNextSequenceNumber = 0;
+    /**
+     * Operations that failed while the lock was held, the listener is notified after releasing it
+     */
+    private final List<GattOperation> mFailedOperations = new ArrayList<>();
+
+    private long mTimeoutMs = DEFAULT_TIMEOUT_MS;
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+
+    private final Runnable mTimeoutRunnable = this::onTimeout;
+    private final Runnable mRetryRunnable = this::onRetry;
+
+
+    /**
+     * @param name     Name used for logging, e.g., the device name
+     * @param listener Listener notified about failed operations
+     */
+    public GattOperationQueue(String name, OperationFailedListener listener) {
+        mName = name;
+        mListener = listener;
+    }
+
+    public synchronized void setTimeout(long timeoutMs) {
+        mTimeoutMs = timeoutMs;
+    }
+
+    public synchronized void setMaxRetries(int maxRetries) {
+        mMaxRetries = maxRetries;
+    }
+
+    /**
+     * Sets the GATT client operations are executed on. Pending operations are dropped when set to <code>null</code>.
+     */
+    public synchronized void setGatt(BluetoothGatt gatt) {
+        mGatt = gatt;
+        if (gatt == null) {
+            clear();
+        }
+    }
+
+    public void enqueue(GattOperation operation) {
+        synchronized (this) {
+            operation.mSequenceNumber = mNextSequenceNumber++;
+            mQueue.add(operation);
+            executeNext();
+        }
+        notifyFailedOperations();
+    }
+
+    /**
+     * Called from the GATT callback when an operation completed. Callbacks that do not belong to the operation in
+     * flight (e.g., because it timed out before) are ignored.
+     *
+     * @param type   Type of the completed operation
+     * @param target The characteristic or descriptor of the completed operation, <code>null</code> for MTU requests
+     * @return <code>true</code> if the callback belonged to the operation in flight
+     */
+    public boolean onOperationCompleted(OperationType type, Object target) {
+        synchronized (this) {
+            GattOperation operation = mCurrentOperation;
+            if (operation == null || operation.mType != type || (target != null && !target.equals(operation.getTarget()))) {
+                return false;
+            }
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            mCurrentOperation = null;
+            executeNext();
+        }
+        notifyFailedOperations();
+        return true;
+    }
+
+    /**
+     * Checks whether operations of the given type are queued or in flight.
+     */
+    public synchronized boolean hasPendingOperations(OperationType type) {
+        if (mCurrentOperation != null && mCurrentOperation.mType == type) {
+            return true;
+        }
+        for (GattOperation operation : mQueue) {
+            if (operation.mType == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized boolean isIdle() {
+        return mCurrentOperation == null && mQueue.isEmpty();
+    }
+
+    /**
+     * Drops all pending operations, e.g., when the connection was closed.
+     */
+    public synchronized void clear() {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mHandler.removeCallbacks(mRetryRunnable);
+        mQueue.clear();
+        mCurrentOperation = null;
+    }
+
+    private void executeNext() {
+        while (mCurrentOperation == null && !mQueue.isEmpty()) {
+            GattOperation operation = mQueue.poll();
+            if (mGatt == null) {
+                Log.w(TAG, "<" + mName + "> no GATT connection, dropping " + operation);
+                fail(operation);
+                continue;
+            }
+
+            operation.mNumAttempts++;
+            mCurrentOperation = operation;
+            if (operation.execute(mGatt)) {
+                mHandler.postDelayed(mTimeoutRunnable, mTimeoutMs);
+            } else if (operation.mNumAttempts <= mMaxRetries) {
+                // BLE stack busy => keep the slot and retry shortly
+                mHandler.postDelayed(mRetryRunnable, RETRY_DELAY_MS);
+            } else {
+                Log.e(TAG, "<" + mName + "> " + operation + " could not be started.");
+                mCurrentOperation = null;
+                fail(operation);
+            }
+        }
+    }
+
+    private void onRetry() {
+        synchronized (this) {
+            GattOperation operation = mCurrentOperation;
+            if (operation == null) {
+                return;
+            }
+            // re-queue, keeping the original sequence number, so more urgent operations can go first
+            mCurrentOperation = null;
+            mQueue.add(operation);
+            executeNext();
+        }
+        notifyFailedOperations();
+    }
+
+    private void onTimeout() {
+        synchronized (this) {
+            GattOperation operation = mCurrentOperation;
+            if (operation == null) {
+                return;
+            }
+            mCurrentOperation = null;
+            if (operation.isIdempotent() && operation.mNumAttempts <= mMaxRetries) {
+                Log.w(TAG, "<" + mName + "> " + operation + " timed out, retrying (" + operation.mNumAttempts + "/" + mMaxRetries + ")...");
+                mQueue.add(operation);
+            } else {
+                Log.e(TAG, "<" + mName + "> " + operation + " timed out.");
+                fail(operation);
+            }
+            executeNext();
+        }
+        notifyFailedOperations();
+    }
+
+    /**
+     * Marks an operation as failed, must be called with the lock held. The listener is notified later by
+     * {@link #notifyFailedOperations()}.
+     */
+    private void fail(GattOperation operation) {
+        mFailedOperations.add(operation);
+    }
+
+    /**
+     * Notifies the listener about all failed operations, must be called without holding the lock.
+     */
+    private void notifyFailedOperations() {
+        List<GattOperation> failed;
+        synchronized (this) {
+            if (mFailedOperations.isEmpty()) {
+                return;
+            }
+            failed = new ArrayList<>(mFailedOperations);
+            mFailedOperations.clear();
+        }
+        if (mListener != null) {
+            for (GattOperation operation : failed) {
+                mListener.onOperationFailed(operation);
+            }
+        }
+    }
+}
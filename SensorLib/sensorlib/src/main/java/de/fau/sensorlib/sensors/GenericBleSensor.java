@@ -9,7 +9,6 @@ package de.fau.sensorlib.sensors;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
@@ -19,6 +18,9 @@ import android.util.Log;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -30,8 +32,6 @@ import de.fau.sensorlib.enums.HardwareSensor;
 import de.fau.sensorlib.enums.SensorMessage;
 import de.fau.sensorlib.enums.SensorState;
 
-import static android.bluetooth.BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
-
 /**
  * Implementation of a generic BLE sensor device.
  */
@@ -44,23 +44,6 @@ public class GenericBleSensor extends AbstractSensor {
      */
     protected EnumSet<HardwareSensor> mAvailableSensors = mDeviceClass.getAvailableSensors();
 
-    /**
-     * Bluetooth device.
-     */
-    private BluetoothDevice mBtDevice;
-
-    private enum BluetoothProfileState {
-        STATE_DISCONNECTED,
-        STATE_CONNECTING,
-        STATE_CONNECTED,
-        STATE_DISCONNECTING,
-        STATE_UNKNOWN;
-
-        public static BluetoothProfileState lookup(int state) {
-            return (state >= values().length - 1) ? STATE_UNKNOWN : values()[state];
-        }
-    }
-
     private enum BluetoothGattStatus {
         GATT_SUCCESS(0x00),
         GATT_READ_NOT_PERMITTED(0x02),
@@ -93,13 +76,17 @@ public class GenericBleSensor extends AbstractSensor {
         MODE_NILSPOD
     }
 
-    private static final int MAX_MTU_SIZE = 247;
+    /**
+     * Largest ATT MTU supported by Android, the device answers with the largest MTU it supports itself
+     */
+    private static final int MAX_MTU_SIZE = 517;
+    private static final int DEFAULT_MTU_SIZE = 23;
 
 
     /**
-     * GATT client instance for the BLE connection.
+     * Transport for the BLE connection, {@link AndroidBleTransport} unless set via {@link #setTransport(BleTransport)}.
      */
-    protected BluetoothGatt mGatt;
+    protected BleTransport mTransport;
 
     private BleGattAttributes.BodySenorLocation mBodyLocation;
 
@@ -115,73 +102,105 @@ public class GenericBleSensor extends AbstractSensor {
     }
 
     protected BluetoothGattService getService(UUID uuid) {
-        for (BluetoothGattService service : mServiceList) {
-            if (service.getUuid().equals(uuid)) {
-                return service;
-            }
-        }
-
-        return null;
+        return mServices.get(uuid);
     }
 
     /**
-     * Since BLE characteristics should be read sequentially, this thread-safe queue stores all the characteristic-read-requests.
+     * Handler for values of one characteristic, see {@link #registerCharacteristicHandler(UUID, CharacteristicHandler)}.
      */
-    protected ConcurrentLinkedQueue<BluetoothGattCharacteristic> mCharacteristicsReadRequests;
+    protected interface CharacteristicHandler {
+        /**
+         * @param characteristic the GATT characteristic instance.
+         * @param value          the received value, not shared with subsequent notifications.
+         * @param isChange       true if the value changed or false if it was read for the first/a single time.
+         * @return true if the value was processed, false otherwise.
+         */
+        boolean onNewValue(BluetoothGattCharacteristic characteristic, byte[] value, boolean isChange);
+    }
+
+
+    private ConcurrentLinkedQueue<BluetoothGattCharacteristic> mNotificationsList;
 
     /**
-     * Since BLE descriptors should be written sequentially, this thread-safe queue stores all the descriptor-write-requests.
+     * Store references to the sensor's services
      */
-    private ConcurrentLinkedQueue<BluetoothGattDescriptor> mDescriptorWriteRequests;
+    private HashMap<UUID, BluetoothGattService> mServices = new HashMap<>();
 
     /**
-     * Since BLE characteristics should be written sequentially, this thread-safe queue stores all the characteristic-write-requests.
+     * Handlers for characteristic values, registered at discovery time
      */
-    private ConcurrentLinkedQueue<BluetoothGattCharacteristic> mCharacteristicsWriteRequests;
-
-
-    private ConcurrentLinkedQueue<BluetoothGattCharacteristic> mNotificationsList;
+    private HashMap<UUID, CharacteristicHandler> mCharacteristicHandlers = new HashMap<>();
 
     /**
-     * Store references to the sensor's services
+     * Characteristic with the highest notification rate (e.g., the data stream), checked before the handler table
      */
-    private ArrayList<BluetoothGattService> mServiceList = new ArrayList<>();
+    private UUID mFastPathCharacteristic;
+    private CharacteristicHandler mFastPathHandler;
 
     private boolean mWasDiscovered = false;
+    private boolean mMtuRequested = false;
 
     private int mReconnectAttempts = 0;
     private static final int MAX_RECONNECT_ATTEMPTS = 2;
 
+    private volatile BleRssiMonitor mRssiMonitor;
+
+    private boolean mCharacteristicCacheEnabled = true;
+    private GattCharacteristicCache mCharacteristicCache;
+    /**
+     * Static characteristics whose read is deferred until the firmware revision was read and the cached values
+     * were validated, <code>null</code> if all characteristics are read from the sensor
+     */
+    private List<BluetoothGattCharacteristic> mDeferredReads;
     /**
-     * GATT callback instance.
+     * Values of static characteristics of the current connection
      */
-    private BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    private HashMap<UUID, byte[]> mStaticValues = new HashMap<>();
 
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            super.onConnectionStateChange(gatt, status, newState);
+    /**
+     * Link parameters of the current connection
+     */
+    private BleLinkProfile mLinkProfile;
+    private boolean mAutoLinkProfile = true;
+    private int mMtu = DEFAULT_MTU_SIZE;
+    private int mTxPhy = BluetoothDevice.PHY_LE_1M;
+    private int mRxPhy = BluetoothDevice.PHY_LE_1M;
+    /**
+     * Connection interval in units of 1.25 ms, -1 if unknown
+     */
+    private int mConnectionInterval = -1;
 
-            Log.d(TAG, "<" + getDeviceName() + "> BleStateChange: " + gatt + " < status: " + BluetoothGattStatus.lookup(status) + " – new state: " + BluetoothProfileState.lookup(newState) + " >");
+    /**
+     * Transport callback instance.
+     */
+    private final BleTransport.Callback mTransportCallback = new BleTransport.Callback() {
+
+        @Override
+        public void onConnectionStateChanged(int status, boolean connected) {
+            Log.d(TAG, "<" + getDeviceName() + "> BleStateChange: < status: " + BluetoothGattStatus.lookup(status) + " – connected: " + connected + " >");
 
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (newState == BluetoothGatt.STATE_CONNECTED) {
+                if (connected) {
                     // assign the custom name from the device
-                    mDeviceName = gatt.getDevice().getName();
+                    mDeviceName = mTransport.getDeviceName();
                     // discover provided services/sensors for this BLE device
-                    mGatt.discoverServices();
-                } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
+                    mTransport.discoverServices();
+                } else {
                     sendDisconnected();
-                    mGatt.close();
-                    mGatt = null;
+                    mTransport.close();
+                    mWasDiscovered = false;
+                    resetLinkParameters();
                 }
             } else {
                 if (getState() == SensorState.CONNECTING && mReconnectAttempts < MAX_RECONNECT_ATTEMPTS) {
                     mReconnectAttempts++;
                     Log.e(TAG, BluetoothGattStatus.lookup(status) + ", attempting to reconnect (" + mReconnectAttempts + "/" + MAX_RECONNECT_ATTEMPTS + ")...");
-                    mGatt.connect();
+                    mTransport.reconnect();
                 } else {
-                    mGatt.close();
-                    mGatt = null;
+                    mTransport.close();
+                    // services have to be discovered again on the next connection
+                    mWasDiscovered = false;
+                    resetLinkParameters();
                     if (getState() != SensorState.UPGRADING_FIRMWARE) {
                         sendConnectionLost();
                     }
@@ -189,12 +208,9 @@ public class GenericBleSensor extends AbstractSensor {
             }
         }
 
-
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            super.onServicesDiscovered(gatt, status);
+        public void onServicesDiscovered(int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(TAG, "<" + getDeviceName() + "> Gatt: " + gatt + "; " + mGatt);
                 // find out what sensor flags can be set based on the provided services
                 discoverSensor();
             } else {
@@ -203,162 +219,80 @@ public class GenericBleSensor extends AbstractSensor {
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicRead(gatt, characteristic, status);
-
-            // Peek at the request queue and check if this was our request (which it always should be), then remove it from the queue.
-            BluetoothGattCharacteristic qc = mCharacteristicsReadRequests.peek();
-            if (qc != null && qc.equals(characteristic)) {
-                mCharacteristicsReadRequests.poll();
-            }
-
-            onNewCharacteristicValue(characteristic, false);
-
-            // request MTU update as soon as all read requests have been completed (sensor is considered 'connected' when receiving MTU callback)
-            if (!isConnected() && mCharacteristicsReadRequests.isEmpty()) {
-                mGatt.requestMtu(MAX_MTU_SIZE);
-                return;
-            }
-
-
-            // Poll the request queue until it is empty or we find the next readable characteristic. Unreadable characteristics are removed and ignored.
-            boolean ret = false;
-            while (!ret) {
-                boolean read = false;
-                qc = mCharacteristicsReadRequests.poll();
-
-                if (qc != null) {
-                    read = mGatt.readCharacteristic(qc);
-
-                }
-                // request MTU update if queue is empty and there is no more characteristic to be read
-                // otherwise request MTU update when last characteristic has been read (sensor is considered 'connected' when receiving MTU callback)
-                if (!isConnected() && mCharacteristicsReadRequests.isEmpty() && !read) {
-                    mGatt.requestMtu(MAX_MTU_SIZE);
-                    break;
+        public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, byte[] value, int status) {
+            // unreadable characteristics are ignored
+            if (value != null) {
+                if (isStaticCharacteristic(characteristic.getUuid())) {
+                    mStaticValues.put(characteristic.getUuid(), value);
                 }
-
-                ret = (qc == null) || read;
-            }
-        }
-
-        @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicWrite(gatt, characteristic, status);
-
-            // Peek at the request queue and check if this was our request (which it always should be), then remove it from the queue.
-            BluetoothGattCharacteristic qc = mCharacteristicsWriteRequests.peek();
-            if (qc != null && qc.equals(characteristic)) {
-                mCharacteristicsWriteRequests.poll();
+                dispatchCharacteristicValue(characteristic, value, false);
             }
-
-            onNewCharacteristicWrite(characteristic, status);
-
-            if (mCharacteristicsWriteRequests.isEmpty()) {
-                return;
-            }
-
-            // Poll the request queue until it is empty or we find the next writable characteristic. Unwriteable characteristics are removed and ignored.
-            /*boolean ret = false;
-            while (!ret) {
-                boolean write = false;
-                qc = mCharacteristicsWriteRequests.poll();
-
-                if (qc != null) {
-                    write = mGatt.writeCharacteristic(qc);
-                }
-
-                ret = (qc == null) || write;
-            }*/
-
-            boolean ret = false;
-            while (!ret) {
-                qc = mCharacteristicsWriteRequests.peek();
-
-                if (qc == null) {
-                    mCharacteristicsWriteRequests.poll();
-                    ret = false;
-                } else {
-                    ret = mGatt.writeCharacteristic(qc);
-                }
+            if (mDeferredReads != null && BleGattAttributes.FIRMWARE_REVISION_STRING.equals(characteristic.getUuid())) {
+                onFirmwareRevisionRead(value);
             }
+            requestMtuIfAllRead();
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            super.onCharacteristicChanged(gatt, characteristic);
-            onNewCharacteristicValue(characteristic, true);
+        public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+            onNewCharacteristicWrite(characteristic, status);
         }
 
         @Override
-        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorRead(gatt, descriptor, status);
-            Log.d(TAG, "<" + getDeviceName() + "> onDescriptorRead: " + BleGattAttributes.lookupDescriptor(descriptor.getUuid()) + " :: " + Arrays.toString(descriptor.getValue()));
+        public void onCharacteristicChanged(BluetoothGattCharacteristic characteristic, byte[] value) {
+            dispatchCharacteristicValue(characteristic, value, true);
         }
 
         @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorWrite(gatt, descriptor, status);
-
-            // Peek at the request queue and check if this was our request (which it always should be), then remove it from the queue.
-            BluetoothGattDescriptor qd = mDescriptorWriteRequests.peek();
-            if (qd != null && qd.equals(descriptor)) {
-                mDescriptorWriteRequests.poll();
-            }
-
-            Log.d(TAG, "<" + getDeviceName() + "> onDescriptorWrite: " + BleGattAttributes.lookupCharacteristic(descriptor.getCharacteristic().getUuid()) + " -> " + BleGattAttributes.lookupDescriptor(descriptor.getUuid()) + " :: " + Arrays.toString(descriptor.getValue()));
+        public void onDescriptorWrite(BluetoothGattDescriptor descriptor, byte[] value, int status) {
+            Log.d(TAG, "<" + getDeviceName() + "> onDescriptorWrite: " + BleGattAttributes.lookupCharacteristic(descriptor.getCharacteristic().getUuid()) + " -> " + BleGattAttributes.lookupDescriptor(descriptor.getUuid()) + " :: " + Arrays.toString(value));
 
             // All descriptors were written and removed from the queue
-            if (mDescriptorWriteRequests.isEmpty() && descriptor.getValue().length > 0) {
-                if (Arrays.equals(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, descriptor.getValue())) {
+            if (!mTransport.hasPendingOperations(GattOperationQueue.OperationType.WRITE_DESCRIPTOR) && value != null && value.length > 0) {
+                if (Arrays.equals(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, value)) {
                     onAllGattNotificationsEnabled();
-                } else if (Arrays.equals(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, descriptor.getValue())) {
+                } else if (Arrays.equals(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, value)) {
                     onAllGattNotificationsDisabled();
                 }
-                return;
             }
+        }
 
-            /*boolean ret = false;
-            while (!ret) {
-                qd = mDescriptorWriteRequests.peek();
-                ret = qd == null || mGatt.writeDescriptor(qd);
-            }*/
-
-            // Peek at the request queue until it is empty or we find the next writable descriptor. Unwritable descriptors are removed and ignored.
-            boolean ret = false;
-            while (!ret) {
-                qd = mDescriptorWriteRequests.peek();
-                if (qd == null) {
-                    mDescriptorWriteRequests.poll();
-                    ret = false;
-                } else {
-                    ret = mGatt.writeDescriptor(qd);
-                }
+        @Override
+        public void onMtuChanged(int mtu, int status) {
+            // a failed MTU request continues with the default MTU
+            mMtu = (status == BluetoothGatt.GATT_SUCCESS) ? mtu : DEFAULT_MTU_SIZE;
+            Log.d(TAG, "<" + getDeviceName() + "> MTU: " + mMtu);
+            if (mStateMachineMode == BleConnectionMode.MODE_DEFAULT) {
+                // Sensor is now connected
+                sendConnected();
+            } else {
+                // enable Gatt notifications
+                enableGattNotifications();
             }
         }
 
         @Override
-        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
-            super.onReliableWriteCompleted(gatt, status);
+        public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mTxPhy = txPhy;
+                mRxPhy = rxPhy;
+            }
+            Log.d(TAG, "<" + getDeviceName() + "> PHY update: TX " + txPhy + ", RX " + rxPhy + " – status: " + BluetoothGattStatus.lookup(status));
         }
 
         @Override
-        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            super.onReadRemoteRssi(gatt, rssi, status);
+        public void onConnectionUpdated(int interval, int latency, int timeout, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mConnectionInterval = interval;
+            }
+            Log.d(TAG, "<" + getDeviceName() + "> connection update: interval " + (interval * 1.25) + " ms, latency " + latency + ", timeout " + (timeout * 10) + " ms – status: " + BluetoothGattStatus.lookup(status));
         }
 
         @Override
-        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-            super.onMtuChanged(gatt, mtu, status);
-            // request higher connection priority
-            // TODO commented out for testing purposes
-            //mGatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
-            if (mStateMachineMode == BleConnectionMode.MODE_DEFAULT) {
-                // Sensor is now connected
-                sendConnected();
-            } else {
-                // enable Gatt notifications
-                enableGattNotifications();
+        public void onReadRemoteRssi(int rssi, int status) {
+            BleRssiMonitor monitor = mRssiMonitor;
+            if (monitor != null) {
+                monitor.onRssiRead(rssi, status);
             }
         }
     };
@@ -392,38 +326,51 @@ public class GenericBleSensor extends AbstractSensor {
             Log.e(TAG, "<" + getDeviceName() + "> BleSensor connect failed.");
             return false;
         }
+        mReconnectAttempts = 0;
 
         // connection already existed?
-        if (mGatt != null) {
-            if (!mGatt.connect()) {
+        if (mTransport != null && mTransport.isOpen()) {
+            if (!mTransport.reconnect()) {
                 setState(SensorState.DISCONNECTED);
                 Log.d(TAG, "<" + getDeviceName() + "> GATT not connected, returning...");
                 return false;
             }
+            return true;
         }
 
-        mBtDevice = BleSensorManager.findBtDevice(mDeviceAddress);
-        if (mBtDevice == null) {
-            setState(SensorState.INITIALIZED);
-            return false;
+        if (mTransport == null) {
+            BluetoothDevice btDevice = BleSensorManager.findBtDevice(mDeviceAddress);
+            if (btDevice == null) {
+                setState(SensorState.INITIALIZED);
+                return false;
+            }
+            mTransport = new AndroidBleTransport(mContext, btDevice, getDeviceName());
         }
 
         // connect GATT
-        mGatt = mBtDevice.connectGatt(mContext, false, mGattCallback);
-
-        return true;
+        return mTransport.connect(mTransportCallback);
     }
 
     @Override
     public void disconnect() {
         super.disconnect();
-        mServiceList.clear();
+        mServices.clear();
 
-        if (mGatt != null) {
-            mGatt.disconnect();
+        if (mTransport != null) {
+            mTransport.disconnect();
         }
     }
 
+    /**
+     * Sets the transport used for connecting to the device instead of the Android BLE stack, e.g., the
+     * <code>FakeBleTransport</code> test fixture. Has to be called before {@link #connect()}.
+     *
+     * @param transport The transport to use
+     */
+    public void setTransport(BleTransport transport) {
+        mTransport = transport;
+    }
+
     @Override
     public void startStreaming() {
         if (mNotificationsList == null) {
@@ -465,22 +412,33 @@ public class GenericBleSensor extends AbstractSensor {
         }
 
         mWasDiscovered = true;
-        mCharacteristicsReadRequests = new ConcurrentLinkedQueue<>();
-        mCharacteristicsWriteRequests = new ConcurrentLinkedQueue<>();
-        mDescriptorWriteRequests = new ConcurrentLinkedQueue<>();
+        mMtuRequested = false;
         mNotificationsList = new ConcurrentLinkedQueue<>();
-        mServiceList = new ArrayList<>();
+        mServices = new HashMap<>();
+        mCharacteristicHandlers = new HashMap<>();
+        mFastPathCharacteristic = null;
+        mFastPathHandler = null;
+        registerCharacteristicHandlers();
+
+        mStaticValues = new HashMap<>();
+        mDeferredReads = null;
+        BluetoothGattService disService = mTransport.getService(BleGattAttributes.DEVICE_INFORMATION_SERVICE);
+        if (mCharacteristicCacheEnabled && disService != null && disService.getCharacteristic(BleGattAttributes.FIRMWARE_REVISION_STRING) != null
+                && getCharacteristicCache().contains(mDeviceAddress)) {
+            // firmware revision is read first (Device Information Service is discovered first)
+            mDeferredReads = new ArrayList<>();
+        }
 
         // manually discover Device Information Service first
-        if (mGatt.getService(BleGattAttributes.DEVICE_INFORMATION_SERVICE) != null) {
-            BluetoothGattService devInfoService = mGatt.getService(BleGattAttributes.DEVICE_INFORMATION_SERVICE);
+        BluetoothGattService devInfoService = mTransport.getService(BleGattAttributes.DEVICE_INFORMATION_SERVICE);
+        if (devInfoService != null) {
             onDiscoveredService(devInfoService);
             for (BluetoothGattCharacteristic chara : devInfoService.getCharacteristics()) {
                 onDiscoveredCharacteristic(devInfoService, chara);
             }
         }
 
-        for (BluetoothGattService gattService : mGatt.getServices()) {
+        for (BluetoothGattService gattService : mTransport.getServices()) {
             // skip this service since we already looked for and discovered this service
             if (gattService.getUuid().equals(BleGattAttributes.DEVICE_INFORMATION_SERVICE)) {
                 continue;
@@ -494,6 +452,9 @@ public class GenericBleSensor extends AbstractSensor {
                 onDiscoveredCharacteristic(gattService, gattCharacteristic);
             }
         }
+
+        // no readable characteristics => request MTU update right away
+        requestMtuIfAllRead();
     }
 
     /**
@@ -518,18 +479,7 @@ public class GenericBleSensor extends AbstractSensor {
      * @param characteristic the characteristic for which to enable notifications.
      */
     private synchronized boolean enableGattNotification(BluetoothGattCharacteristic characteristic) {
-        mGatt.setCharacteristicNotification(characteristic, true);
-        BluetoothGattDescriptor desc = characteristic.getDescriptor(BleGattAttributes.CLIENT_CHARACTERISTIC_CONFIGURATION);
-
-        if (mGatt != null && desc != null) {
-            desc.setValue(ENABLE_NOTIFICATION_VALUE);
-            mDescriptorWriteRequests.add(desc);
-            return mGatt.writeDescriptor(mDescriptorWriteRequests.peek());
-            /*if (mDescriptorWriteRequests.size() == 1) {
-                return mGatt.writeDescriptor(desc);
-            }*/
-        }
-        return false;
+        return mTransport != null && mTransport.setNotificationsEnabled(characteristic, true);
     }
 
     /**
@@ -538,20 +488,7 @@ public class GenericBleSensor extends AbstractSensor {
      * @param characteristic the characteristic for which to disable notifications.
      */
     private synchronized boolean disableGattNotification(BluetoothGattCharacteristic characteristic) {
-        if (mGatt != null) {
-            mGatt.setCharacteristicNotification(characteristic, false);
-            BluetoothGattDescriptor desc = characteristic.getDescriptor(BleGattAttributes.CLIENT_CHARACTERISTIC_CONFIGURATION);
-
-            if (mGatt != null && desc != null) {
-                desc.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-                mDescriptorWriteRequests.add(desc);
-                return mGatt.writeDescriptor(mDescriptorWriteRequests.peek());
-                /*if (mDescriptorWriteRequests.size() == 1) {
-                    return mGatt.writeDescriptor(desc);
-                }*/
-            }
-        }
-        return false;
+        return mTransport != null && mTransport.setNotificationsEnabled(characteristic, false);
     }
 
     /**
@@ -564,7 +501,7 @@ public class GenericBleSensor extends AbstractSensor {
 
         Log.d(TAG, getDeviceName() + " >> Service discovered: " + name);
 
-        mServiceList.add(service);
+        mServices.put(service.getUuid(), service);
 
         /*if (BleGattAttributes.HEART_RATE_SERVICE.equals(service.getUuid()) && shouldUseHardwareSensor(HardwareSensor.HEART_RATE_SERVICE)) {
             mAvailableSensors.add(HardwareSensor.HEART_RATE_SERVICE);
@@ -583,7 +520,11 @@ public class GenericBleSensor extends AbstractSensor {
         String name = BleGattAttributes.lookupCharacteristic(characteristic.getUuid());
 
         // add characteristic to read-requests
-        readCharacteristic(characteristic);
+        if (mDeferredReads != null && isStaticCharacteristic(characteristic.getUuid()) && !BleGattAttributes.FIRMWARE_REVISION_STRING.equals(characteristic.getUuid())) {
+            mDeferredReads.add(characteristic);
+        } else {
+            readCharacteristic(characteristic);
+        }
 
         if (shouldEnableNotification(characteristic)) {
             mNotificationsList.add(characteristic);
@@ -594,80 +535,463 @@ public class GenericBleSensor extends AbstractSensor {
 
 
     protected void readCharacteristic(BluetoothGattCharacteristic c) {
-        mCharacteristicsReadRequests.add(c);
-        if (mGatt != null && mCharacteristicsReadRequests.size() == 1) {
-            mGatt.readCharacteristic(mCharacteristicsReadRequests.peek());
+        if (mTransport != null) {
+            mTransport.readCharacteristic(c, GattOperationQueue.Priority.BULK);
         }
-        /*if (mCharacteristicsReadRequests.size() == 1) {
-            mGatt.readCharacteristic(c);
-        }*/
     }
 
     protected boolean writeCharacteristic(BluetoothGattCharacteristic c, byte[] value) {
-        c.setValue(value);
-        c.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-        mCharacteristicsWriteRequests.add(c);
+        return writeCharacteristic(c, value, GattOperationQueue.Priority.DEFAULT);
+    }
+
+    /**
+     * Queues a characteristic write (without response).
+     *
+     * @param c        the characteristic to write
+     * @param value    the value to write
+     * @param priority priority of the write, e.g., {@link GattOperationQueue.Priority#CONTROL} for time-critical commands
+     * @return true if the write was queued, false otherwise
+     */
+    protected boolean writeCharacteristic(BluetoothGattCharacteristic c, byte[] value, GattOperationQueue.Priority priority) {
+        if (mTransport == null || c == null || value == null) {
+            return false;
+        }
+        if (isStaticCharacteristic(c.getUuid())) {
+            invalidateCharacteristicCache();
+        }
+        mTransport.writeCharacteristic(c, value, priority);
+        return true;
+    }
+
+    /**
+     * Checks whether characteristic writes are queued that were not yet acknowledged by the BLE stack.
+     *
+     * @return true if the write queue is not empty, false otherwise
+     */
+    protected boolean hasPendingCharacteristicWrites() {
+        return mTransport != null && mTransport.hasPendingOperations(GattOperationQueue.OperationType.WRITE_CHARACTERISTIC);
+    }
+
+    /**
+     * Checks whether descriptor writes (i.e., notifications being enabled or disabled) are queued or in flight.
+     */
+    protected boolean hasPendingDescriptorWrites() {
+        return mTransport != null && mTransport.hasPendingOperations(GattOperationQueue.OperationType.WRITE_DESCRIPTOR);
+    }
 
-        if (mGatt != null && mCharacteristicsWriteRequests.size() == 1) {
-            mGatt.writeCharacteristic(mCharacteristicsWriteRequests.peek());
+    /**
+     * Requests the MTU update as soon as all characteristics have been read after connecting
+     * (sensor is considered 'connected' when receiving the MTU callback).
+     */
+    private void requestMtuIfAllRead() {
+        if (!isConnected() && !mMtuRequested && !mTransport.hasPendingOperations(GattOperationQueue.OperationType.READ_CHARACTERISTIC)) {
+            mMtuRequested = true;
+            mTransport.requestMtu(MAX_MTU_SIZE, GattOperationQueue.Priority.BULK);
+            if (mCharacteristicCacheEnabled) {
+                getCharacteristicCache().putValues(mDeviceAddress, mStaticValues);
+            }
         }
-        /*if (mCharacteristicsWriteRequests.size() == 1) {
-            return mGatt.writeCharacteristic(c);
-        }*/
+    }
 
-        return true;
+    /**
+     * Checks whether the value of the characteristic only changes with the firmware, so it can be cached across
+     * connections. Values of static characteristics are restored from the cache when reconnecting to a sensor with
+     * the same firmware revision instead of being read again.
+     * <p>
+     * By default, all characteristics of the Device Information Service are static. Writable characteristics
+     * (e.g., configurations) must not be static, since other devices can change them while the sensor is not
+     * connected to this app.
+     *
+     * @param uuid UUID of the characteristic
+     * @return true if the characteristic is static, false otherwise
+     */
+    protected boolean isStaticCharacteristic(UUID uuid) {
+        BluetoothGattService disService = getService(BleGattAttributes.DEVICE_INFORMATION_SERVICE);
+        return disService != null && disService.getCharacteristic(uuid) != null;
     }
 
     /**
-     * Called whenever a  characteristic has changed.
+     * Enables or disables caching of static characteristics across connections (enabled by default).
      *
-     * @param characteristic the new GATT characteristic instance.
-     * @param isChange       true if the value changed or false if it was read for the first/a single time.
-     * @return true if the value was processed, false otherwise.
+     * @see #isStaticCharacteristic(UUID)
      */
-    protected boolean onNewCharacteristicValue(BluetoothGattCharacteristic characteristic, boolean isChange) {
-        // First we check conditions that are regularly encountered (whenever values change)
-        if (BleGattAttributes.BATTERY_LEVEL.equals(characteristic.getUuid())) {
-            mBatteryLevel = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+    public void setCharacteristicCacheEnabled(boolean enabled) {
+        mCharacteristicCacheEnabled = enabled;
+        if (!enabled && mCharacteristicCache != null) {
+            mCharacteristicCache.invalidate(mDeviceAddress);
+        }
+    }
+
+    /**
+     * Removes the cached characteristic values of this sensor, e.g., after a configuration was reset on the sensor.
+     * Static characteristics are read from the sensor again on the next connection.
+     */
+    public void invalidateCharacteristicCache() {
+        if (mCharacteristicCacheEnabled) {
+            getCharacteristicCache().invalidate(mDeviceAddress);
+        }
+    }
+
+    private GattCharacteristicCache getCharacteristicCache() {
+        if (mCharacteristicCache == null) {
+            mCharacteristicCache = new GattCharacteristicCache(mContext);
+        }
+        return mCharacteristicCache;
+    }
+
+    /**
+     * Restores the deferred static characteristics from the cache if the firmware revision is unchanged,
+     * reads them from the sensor otherwise.
+     */
+    private void onFirmwareRevisionRead(byte[] firmwareRevision) {
+        List<BluetoothGattCharacteristic> deferredReads = mDeferredReads;
+        mDeferredReads = null;
+
+        Map<UUID, byte[]> cachedValues = getCharacteristicCache().getValues(mDeviceAddress, firmwareRevision);
+        int numRestored = 0;
+        for (BluetoothGattCharacteristic characteristic : deferredReads) {
+            byte[] value = (cachedValues == null) ? null : cachedValues.get(characteristic.getUuid());
+            if (value == null) {
+                readCharacteristic(characteristic);
+            } else {
+                numRestored++;
+                mStaticValues.put(characteristic.getUuid(), value);
+                // handlers that still use the characteristic's value see the same value as after a read
+                characteristic.setValue(value.clone());
+                dispatchCharacteristicValue(characteristic, value.clone(), false);
+            }
+        }
+        Log.d(TAG, "<" + getDeviceName() + "> restored " + numRestored + "/" + deferredReads.size() + " static characteristics from cache.");
+    }
+
+    /**
+     * Requests a connection parameter update, see {@link BluetoothGatt#requestConnectionPriority(int)}.
+     *
+     * @param connectionPriority One of {@link BluetoothGatt#CONNECTION_PRIORITY_BALANCED},
+     *                           {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH} or {@link BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER}
+     * @return true if the request was issued, false otherwise
+     */
+    protected boolean requestConnectionPriority(int connectionPriority) {
+        return mTransport != null && mTransport.requestConnectionPriority(connectionPriority);
+    }
+
+    @Override
+    protected void onStateChange(SensorState oldState, SensorState newState) {
+        super.onStateChange(oldState, newState);
+        updateLinkProfile();
+    }
+
+    /**
+     * Queues a read of the connection's RSSI (with the lowest priority).
+     */
+    protected void readRemoteRssi() {
+        if (mTransport != null) {
+            mTransport.readRemoteRssi(GattOperationQueue.Priority.BULK);
+        }
+    }
+
+    /**
+     * Starts reading the RSSI periodically while the sensor is connected (also after reconnecting).
+     * Each reading is sent to the data handlers as {@link de.fau.sensorlib.dataframe.BleLinkQualityDataFrame}.
+     *
+     * @param intervalMs interval between RSSI readings in ms, e.g., {@link BleRssiMonitor#DEFAULT_INTERVAL_MS}
+     * @return the RSSI monitor of this sensor
+     */
+    public BleRssiMonitor startRssiMonitoring(long intervalMs) {
+        if (mRssiMonitor == null) {
+            mRssiMonitor = new BleRssiMonitor(this);
+        }
+        mRssiMonitor.start(intervalMs);
+        return mRssiMonitor;
+    }
+
+    /**
+     * Stops reading the RSSI periodically. The statistics of the RSSI monitor are kept.
+     */
+    public void stopRssiMonitoring() {
+        if (mRssiMonitor != null) {
+            mRssiMonitor.stop();
+        }
+    }
+
+    /**
+     * Returns the RSSI monitor of this sensor, <code>null</code> if RSSI monitoring was never started.
+     */
+    public BleRssiMonitor getRssiMonitor() {
+        return mRssiMonitor;
+    }
+
+    /**
+     * Returns the number of streamed samples received since streaming was started, -1 if the sensor does not count them.
+     */
+    public long getNumReceivedSamples() {
+        return -1;
+    }
+
+    /**
+     * Returns the number of streamed samples lost since streaming was started, -1 if the sensor does not detect lost samples.
+     */
+    public long getNumLostSamples() {
+        return -1;
+    }
+
+    /**
+     * Returns the link profile for what the sensor is currently doing, used if the link profile is switched
+     * automatically (see {@link #setAutoLinkProfile(boolean)}).
+     *
+     * @return the link profile, or <code>null</code> to keep the current link profile
+     */
+    protected BleLinkProfile inferLinkProfile() {
+        switch (getState()) {
+            case CONNECTED:
+            case LOGGING:
+                return BleLinkProfile.IDLE;
+            case STREAMING:
+                return BleLinkProfile.STREAMING;
+            case DOWNLOADING:
+                return BleLinkProfile.BULK;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Switches to the inferred link profile if the link profile is switched automatically.
+     */
+    protected void updateLinkProfile() {
+        if (mAutoLinkProfile) {
+            BleLinkProfile profile = inferLinkProfile();
+            if (profile != null) {
+                applyLinkProfile(profile);
+            }
+        }
+    }
+
+    /**
+     * Switches to the given link profile ahead of a state change, e.g., right before requesting a bulk transfer.
+     * Ignored if the link profile was set manually.
+     */
+    protected void requestLinkProfile(BleLinkProfile profile) {
+        if (mAutoLinkProfile) {
+            applyLinkProfile(profile);
+        }
+    }
+
+    /**
+     * Requests the connection priority of the current link profile again, e.g., after the connection priority
+     * was temporarily changed with {@link #requestConnectionPriority(int)}.
+     */
+    protected void restoreLinkProfile() {
+        if (mLinkProfile == null) {
+            requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        } else {
+            requestConnectionPriority(mLinkProfile.getConnectionPriority());
+        }
+    }
+
+    /**
+     * Enables or disables switching the link profile automatically depending on the sensor state (enabled by default).
+     */
+    public void setAutoLinkProfile(boolean enabled) {
+        mAutoLinkProfile = enabled;
+        updateLinkProfile();
+    }
+
+    /**
+     * Sets the link profile manually. Disables switching the link profile automatically.
+     *
+     * @return true if the link profile was requested, false if the sensor is not connected
+     */
+    public boolean setLinkProfile(BleLinkProfile profile) {
+        mAutoLinkProfile = false;
+        return applyLinkProfile(profile);
+    }
+
+    private boolean applyLinkProfile(BleLinkProfile profile) {
+        if (profile == mLinkProfile) {
+            return true;
+        }
+        if (mTransport == null || !mTransport.isOpen() || !mTransport.requestConnectionPriority(profile.getConnectionPriority())) {
+            return false;
+        }
+        // PHY update is optional (API >= 26 and supported by both sides)
+        mTransport.setPreferredPhy(profile.getPhyMask(), profile.getPhyMask());
+        Log.d(TAG, "<" + getDeviceName() + "> link profile: " + mLinkProfile + " -> " + profile);
+        mLinkProfile = profile;
+        return true;
+    }
+
+    private void resetLinkParameters() {
+        mLinkProfile = null;
+        mMtu = DEFAULT_MTU_SIZE;
+        mTxPhy = BluetoothDevice.PHY_LE_1M;
+        mRxPhy = BluetoothDevice.PHY_LE_1M;
+        mConnectionInterval = -1;
+    }
+
+    /**
+     * Returns the current link profile, <code>null</code> if none was requested yet.
+     */
+    public BleLinkProfile getLinkProfile() {
+        return mLinkProfile;
+    }
+
+    /**
+     * Returns the negotiated ATT MTU in bytes.
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * Returns the TX PHY, e.g., {@link BluetoothDevice#PHY_LE_2M}.
+     */
+    public int getTxPhy() {
+        return mTxPhy;
+    }
+
+    /**
+     * Returns the RX PHY, e.g., {@link BluetoothDevice#PHY_LE_2M}.
+     */
+    public int getRxPhy() {
+        return mRxPhy;
+    }
+
+    /**
+     * Returns the connection interval in ms as reported by the BLE stack, -1 if unknown.
+     */
+    public double getConnectionIntervalMs() {
+        return (mConnectionInterval < 0) ? -1 : mConnectionInterval * 1.25;
+    }
+
+    private void dispatchCharacteristicValue(BluetoothGattCharacteristic characteristic, byte[] value, boolean isChange) {
+        UUID uuid = characteristic.getUuid();
+        if (value != null) {
+            CharacteristicHandler handler = uuid.equals(mFastPathCharacteristic) ? mFastPathHandler : mCharacteristicHandlers.get(uuid);
+            if (handler != null && handler.onNewValue(characteristic, value, isChange)) {
+                return;
+            }
+            if (onNewCharacteristicValue(uuid, value, isChange)) {
+                return;
+            }
+        }
+        onNewCharacteristicValue(characteristic, isChange);
+    }
+
+    /**
+     * Called at discovery time, before the services and characteristics are reported. Extended classes override this
+     * method (calling super) to register their handlers via {@link #registerCharacteristicHandler(UUID, CharacteristicHandler)}
+     * and {@link #setFastPathHandler(UUID, CharacteristicHandler)}.
+     */
+    protected void registerCharacteristicHandlers() {
+        registerCharacteristicHandler(BleGattAttributes.BATTERY_LEVEL, (characteristic, value, isChange) -> {
+            mBatteryLevel = value[0] & 0xFF;
             // Once battery level was read it means that battery measurement is available
             sendNotification(SensorMessage.BATTERY_LEVEL_CHANGED);
             Log.d(TAG, "<" + getDeviceName() + "> Battery level: " + mBatteryLevel);
-        }
+            return true;
+        });
 
         // the following are more or less one-time reads
-        else if (BleGattAttributes.DEVICE_NAME.equals(characteristic.getUuid())) {
+        registerCharacteristicHandler(BleGattAttributes.DEVICE_NAME, (characteristic, value, isChange) -> {
             mDeviceName = characteristic.getStringValue(0);
             Log.d(TAG, "<" + getDeviceName() + "> Name: " + mDeviceName);
-        } else if (BleGattAttributes.SERIAL_NUMBER_STRING.equals(characteristic.getUuid())) {
+            return true;
+        });
+        registerCharacteristicHandler(BleGattAttributes.SERIAL_NUMBER_STRING, (characteristic, value, isChange) -> {
             mSerialNumberString = characteristic.getStringValue(0);
             Log.d(TAG, "<" + getDeviceName() + "> Serial number: " + mSerialNumberString);
-        } else if (BleGattAttributes.FIRMWARE_REVISION_STRING.equals(characteristic.getUuid())) {
+            return true;
+        });
+        registerCharacteristicHandler(BleGattAttributes.FIRMWARE_REVISION_STRING, (characteristic, value, isChange) -> {
             mFirmwareRevisionString = characteristic.getStringValue(0);
             mFirmwareRevision = new FirmwareRevision(mFirmwareRevisionString);
             Log.d(TAG, "<" + getDeviceName() + "> Firmware revision: " + mFirmwareRevision);
-        } else if (BleGattAttributes.SOFTWARE_REVISION_STRING.equals(characteristic.getUuid())) {
+            return true;
+        });
+        registerCharacteristicHandler(BleGattAttributes.SOFTWARE_REVISION_STRING, (characteristic, value, isChange) -> {
             mSoftwareRevisionString = characteristic.getStringValue(0);
             Log.d(TAG, "<" + getDeviceName() + "> Software revision: " + mSoftwareRevisionString);
-        } else if (BleGattAttributes.HARDWARE_REVISION_STRING.equals(characteristic.getUuid())) {
+            return true;
+        });
+        registerCharacteristicHandler(BleGattAttributes.HARDWARE_REVISION_STRING, (characteristic, value, isChange) -> {
             mHardwareRevisionString = characteristic.getStringValue(0);
             mHardwareRevision = new HardwareRevision(mHardwareRevisionString);
             Log.d(TAG, "<" + getDeviceName() + "> Hardware revision: " + mHardwareRevision);
-        } else if (BleGattAttributes.MANUFACTURER_NAME_STRING.equals(characteristic.getUuid())) {
+            return true;
+        });
+        registerCharacteristicHandler(BleGattAttributes.MANUFACTURER_NAME_STRING, (characteristic, value, isChange) -> {
             mManufacturerString = characteristic.getStringValue(0);
             Log.d(TAG, "<" + getDeviceName() + "> Manufacturer: " + mManufacturerString);
-        } else if (BleGattAttributes.MODEL_NUMBER_STRING.equals(characteristic.getUuid())) {
+            return true;
+        });
+        registerCharacteristicHandler(BleGattAttributes.MODEL_NUMBER_STRING, (characteristic, value, isChange) -> {
             mModelNumberString = characteristic.getStringValue(0);
             Log.d(TAG, "<" + getDeviceName() + "> Model Number: " + mModelNumberString);
-        } else if (BleGattAttributes.SYSTEM_ID.equals(characteristic.getUuid())) {
+            return true;
+        });
+        registerCharacteristicHandler(BleGattAttributes.SYSTEM_ID, (characteristic, value, isChange) -> {
             mSensorSystemID = BleGattAttributes.valueToInt64(characteristic);
             Log.d(TAG, "<" + getDeviceName() + "> Sensor System ID: " + mSensorSystemID);
-        } else if (BleGattAttributes.BODY_SENSOR_LOCATION.equals(characteristic.getUuid())) {
-            mBodyLocation = BleGattAttributes.BodySenorLocation.inferBodySensorLocation(characteristic.getValue()[0]);
+            return true;
+        });
+        registerCharacteristicHandler(BleGattAttributes.BODY_SENSOR_LOCATION, (characteristic, value, isChange) -> {
+            mBodyLocation = BleGattAttributes.BodySenorLocation.inferBodySensorLocation(value[0]);
             Log.d(TAG, "<" + getDeviceName() + "> Body location: " + BleGattAttributes.BodySenorLocation.getLocation(mBodyLocation));
-        } else {
-            return false;
-        }
-        return true;
+            return true;
+        });
+    }
+
+    /**
+     * Registers a handler for the values of the given characteristic. Replaces previously registered handlers.
+     * Values that are not processed by the handler are passed to {@link #onNewCharacteristicValue(UUID, byte[], boolean)}
+     * and {@link #onNewCharacteristicValue(BluetoothGattCharacteristic, boolean)}.
+     *
+     * @param uuid    UUID of the characteristic
+     * @param handler Handler for the characteristic's values
+     */
+    protected void registerCharacteristicHandler(UUID uuid, CharacteristicHandler handler) {
+        mCharacteristicHandlers.put(uuid, handler);
+    }
+
+    /**
+     * Sets the handler for the characteristic with the highest notification rate (typically the data stream),
+     * which is checked before any table lookup.
+     *
+     * @param uuid    UUID of the characteristic
+     * @param handler Handler for the characteristic's values
+     */
+    protected void setFastPathHandler(UUID uuid, CharacteristicHandler handler) {
+        mFastPathCharacteristic = uuid;
+        mFastPathHandler = handler;
+    }
+
+    /**
+     * Called whenever a characteristic value was received, before {@link #onNewCharacteristicValue(BluetoothGattCharacteristic, boolean)}.
+     * <p>
+     * In contrast to {@link BluetoothGattCharacteristic#getValue()}, <code>value</code> is not overwritten by
+     * subsequent notifications, so extended classes can take ownership of the array (or wrap it in a
+     * {@link java.nio.ByteBuffer}) without copying it. Should be used for high-rate characteristics, e.g., data streams.
+     *
+     * @param uuid     UUID of the characteristic.
+     * @param value    the received value.
+     * @param isChange true if the value changed or false if it was read for the first/a single time.
+     * @return true if the value was processed, false to pass the characteristic to {@link #onNewCharacteristicValue(BluetoothGattCharacteristic, boolean)}.
+     */
+    protected boolean onNewCharacteristicValue(UUID uuid, byte[] value, boolean isChange) {
+        return false;
+    }
+
+    /**
+     * Called whenever a  characteristic has changed.
+     *
+     * @param characteristic the new GATT characteristic instance.
+     * @param isChange       true if the value changed or false if it was read for the first/a single time.
+     * @return true if the value was processed, false otherwise.
+     */
+    protected boolean onNewCharacteristicValue(BluetoothGattCharacteristic characteristic, boolean isChange) {
+        // standard characteristics are handled by the handlers registered in registerCharacteristicHandlers()
+        return false;
     }
 
     protected void onNewCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2018 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib.sensors;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class FakeBleTransportTest {
+
+    private static final UUID SERVICE = UUID.fromString("0000aaaa-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHARACTERISTIC = UUID.fromString("0000aaab-0000-1000-8000-00805f9b34fb");
+
+    private final FakeBleTransport mTransport = new FakeBleTransport("Fake")
+            .addService(SERVICE, CHARACTERISTIC)
+            .setCharacteristicValue(CHARACTERISTIC, new byte[]{0x01});
+
+    /**
+     * Records all callbacks of one connection.
+     */
+    private static class RecordingCallback implements BleTransport.Callback {
+        private final List<String> mEvents = new CopyOnWriteArrayList<>();
+        private final AtomicInteger mNumNotifications = new AtomicInteger();
+
+        @Override
+        public void onConnectionStateChanged(int status, boolean connected) {
+            mEvents.add(connected ? "connected" : "disconnected");
+        }
+
+        @Override
+        public void onServicesDiscovered(int status) {
+            mEvents.add("services");
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, byte[] value, int status) {
+            mEvents.add("read");
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+            mEvents.add("write");
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGattCharacteristic characteristic, byte[] value) {
+            mNumNotifications.incrementAndGet();
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGattDescriptor descriptor, byte[] value, int status) {
+            mEvents.add("descriptor");
+        }
+
+        @Override
+        public void onMtuChanged(int mtu, int status) {
+            mEvents.add("mtu");
+        }
+
+        @Override
+        public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+        }
+
+        @Override
+        public void onConnectionUpdated(int interval, int latency, int timeout, int status) {
+        }
+
+        @Override
+        public void onReadRemoteRssi(int rssi, int status) {
+        }
+
+        private boolean await(String event) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (!mEvents.contains(event)) {
+                if (System.currentTimeMillis() > deadline) {
+                    return false;
+                }
+                Thread.sleep(5);
+            }
+            return true;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mTransport.shutdown();
+    }
+
+    @Test
+    public void testCloseDropsScheduledOperations() throws Exception {
+        mTransport.setLatency(50, TimeUnit.MILLISECONDS);
+        RecordingCallback first = new RecordingCallback();
+        mTransport.connect(first);
+        mTransport.readCharacteristic(getCharacteristic(), GattOperationQueue.Priority.DEFAULT);
+        mTransport.close();
+
+        // reconnect before the operations of the closed connection are due
+        RecordingCallback second = new RecordingCallback();
+        mTransport.connect(second);
+        assertTrue(second.await("connected"));
+        Thread.sleep(200);
+
+        assertTrue(first.mEvents.isEmpty());
+        assertEquals(1, second.mEvents.size());
+        assertFalse(mTransport.hasPendingOperations(GattOperationQueue.OperationType.READ_CHARACTERISTIC));
+    }
+
+    @Test
+    public void testCloseStopsReplay() throws Exception {
+        RecordingCallback first = new RecordingCallback();
+        connectWithNotifications(first);
+
+        List<byte[]> packets = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            packets.add(new byte[]{(byte) i});
+        }
+        FakeBleTransport.Replay replay = mTransport.replay(CHARACTERISTIC, packets, 100);
+        Thread.sleep(100);
+        mTransport.close();
+        assertTrue(replay.await(1, TimeUnit.SECONDS));
+        int numDelivered = first.mNumNotifications.get();
+        assertTrue(numDelivered < packets.size());
+
+        // notifications of the closed connection are not delivered after reconnecting
+        RecordingCallback second = new RecordingCallback();
+        connectWithNotifications(second);
+        Thread.sleep(200);
+
+        assertEquals(numDelivered, first.mNumNotifications.get());
+        assertEquals(0, second.mNumNotifications.get());
+    }
+
+    private void connectWithNotifications(RecordingCallback callback) throws InterruptedException {
+        mTransport.connect(callback);
+        assertTrue(callback.await("connected"));
+        assertTrue(mTransport.setNotificationsEnabled(getCharacteristic(), true));
+        assertTrue(callback.await("descriptor"));
+    }
+
+    private BluetoothGattCharacteristic getCharacteristic() {
+        return mTransport.getService(SERVICE).getCharacteristic(CHARACTERISTIC);
+    }
+}
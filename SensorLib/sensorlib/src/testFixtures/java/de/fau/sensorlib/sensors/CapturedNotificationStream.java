@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib.sensors;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Sequence of captured characteristic notifications that can be replayed by a {@link FakeBleTransport}.
+ * <p>
+ * Streams are stored as text, one notification per line: <code>&lt;timestamp in µs&gt; &lt;characteristic UUID&gt; &lt;value as hex&gt;</code>.
+ * Empty lines and lines starting with <code>#</code> are ignored. Timestamps are relative to an arbitrary origin.
+ */
+public class CapturedNotificationStream {
+
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    public static class Notification {
+        private final long mTimestampUs;
+        private final UUID mCharacteristic;
+        private final byte[] mValue;
+
+        public Notification(long timestampUs, UUID characteristic, byte[] value) {
+            mTimestampUs = timestampUs;
+            mCharacteristic = characteristic;
+            mValue = value;
+        }
+
+        public long getTimestampUs() {
+            return mTimestampUs;
+        }
+
+        public UUID getCharacteristic() {
+            return mCharacteristic;
+        }
+
+        public byte[] getValue() {
+            return mValue;
+        }
+    }
+
+    private final List<Notification> mNotifications = new ArrayList<>();
+
+
+    /**
+     * Adds a notification, e.g., when capturing the stream of a real device.
+     *
+     * @param timestampUs    Receive time in µs
+     * @param characteristic UUID of the notifying characteristic
+     * @param value          Notified value (not copied)
+     */
+    public void add(long timestampUs, UUID characteristic, byte[] value) {
+        mNotifications.add(new Notification(timestampUs, characteristic, value));
+    }
+
+    public List<Notification> getNotifications() {
+        return Collections.unmodifiableList(mNotifications);
+    }
+
+    public int size() {
+        return mNotifications.size();
+    }
+
+    /**
+     * Returns the duration of the stream in µs.
+     */
+    public long getDurationUs() {
+        if (mNotifications.isEmpty()) {
+            return 0;
+        }
+        return mNotifications.get(mNotifications.size() - 1).mTimestampUs - mNotifications.get(0).mTimestampUs;
+    }
+
+    public static CapturedNotificationStream read(Reader reader) throws IOException {
+        CapturedNotificationStream stream = new CapturedNotificationStream();
+        BufferedReader br = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = br.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            if (parts.length != 3) {
+                throw new IOException("Malformed notification in line " + lineNumber + ": " + line);
+            }
+            try {
+                stream.add(Long.parseLong(parts[0]), UUID.fromString(parts[1]), parseHex(parts[2]));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed notification in line " + lineNumber + ": " + line, e);
+            }
+        }
+        return stream;
+    }
+
+    public void write(Writer writer) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Notification notification : mNotifications) {
+            sb.setLength(0);
+            sb.append(notification.mTimestampUs).append(' ').append(notification.mCharacteristic).append(' ');
+            for (byte b : notification.mValue) {
+                sb.append(HEX_CHARS[(b >> 4) & 0x0F]).append(HEX_CHARS[b & 0x0F]);
+            }
+            sb.append('\n');
+            writer.write(sb.toString());
+        }
+        writer.flush();
+    }
+
+    private static byte[] parseHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd number of hex digits");
+        }
+        byte[] value = new byte[hex.length() / 2];
+        for (int i = 0; i < value.length; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("Invalid hex digit");
+            }
+            value[i] = (byte) ((hi << 4) | lo);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,539 @@
+/*
+ * Copyright (C) 2018 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib.sensors;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.fau.sensorlib.BleGattAttributes;
+
+/**
+ * Scriptable in-memory {@link BleTransport} simulating a BLE device, e.g., to test sensor protocols on the JVM
+ * (with Robolectric) or to benchmark decoding and session download throughput without a phone.
+ * <p>
+ * Services and characteristics are declared with {@link #addService(UUID, UUID...)}, read values with
+ * {@link #setCharacteristicValue(UUID, byte[])}. Writes are passed to a {@link WriteHandler}, which can answer
+ * with notifications ({@link #notify(UUID, byte[])}). Captured notification streams can be replayed at their
+ * original timing, scaled, or at a fixed rate ({@link #replay(CapturedNotificationStream, double)},
+ * {@link #replay(UUID, List, double)}).
+ * <p>
+ * All callbacks are delivered on a single worker thread, in order of arrival (operation priorities are ignored).
+ * Call {@link #shutdown()} when the transport is not used anymore.
+ */
+public class FakeBleTransport implements BleTransport {
+
+    public interface WriteHandler {
+        /**
+         * Called on the worker thread for every characteristic write.
+         *
+         * @param transport      The transport, e.g., to answer with notifications
+         * @param characteristic UUID of the written characteristic
+         * @param value          The written value
+         */
+        void onWrite(FakeBleTransport transport, UUID characteristic, byte[] value);
+    }
+
+    /**
+     * Handle of a running replay.
+     */
+    public static class Replay {
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+        private volatile ScheduledFuture<?> mFuture;
+        private volatile boolean mCancelled;
+
+        public void cancel() {
+            mCancelled = true;
+            ScheduledFuture<?> future = mFuture;
+            if (future != null) {
+                future.cancel(false);
+            }
+            mFinished.countDown();
+        }
+
+        public boolean isFinished() {
+            return mFinished.getCount() == 0;
+        }
+
+        /**
+         * Blocks until all notifications were delivered or the replay was cancelled.
+         *
+         * @return true if the replay finished, false if the timeout elapsed
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return mFinished.await(timeout, unit);
+        }
+    }
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, FakeBleTransport.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String mDeviceName;
+    private final List<BluetoothGattService> mServices = new ArrayList<>();
+    private final Map<UUID, BluetoothGattCharacteristic> mCharacteristics = new HashMap<>();
+    private final Map<UUID, byte[]> mValues = new HashMap<>();
+    private final Set<UUID> mNotifyingCharacteristics = Collections.synchronizedSet(new HashSet<>());
+    private final Map<GattOperationQueue.OperationType, Integer> mPendingOperations = new EnumMap<>(GattOperationQueue.OperationType.class);
+
+    private volatile Callback mCallback;
+    private volatile WriteHandler mWriteHandler;
+    private final Map<UUID, Integer> mWriteStatus = new ConcurrentHashMap<>();
+    private volatile boolean mOpen;
+    private volatile boolean mConnected;
+    private volatile long mLatencyUs = 0;
+    private volatile int mMtu = 23;
+    private volatile int mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private volatile int mTxPhy = BluetoothDevice.PHY_LE_1M;
+    private volatile int mRssi = -60;
+    /**
+     * Incremented by {@link #close()}. Operations, notifications and replays are tagged with the generation they were
+     * issued in and dropped if the transport was closed in the meantime, even if it was connected again.
+     */
+    private volatile int mGeneration;
+
+    private final AtomicLong mNumNotifications = new AtomicLong();
+    private final AtomicLong mNumNotifiedBytes = new AtomicLong();
+
+
+    public FakeBleTransport(String deviceName) {
+        mDeviceName = deviceName;
+    }
+
+    /**
+     * Adds a primary service with the given characteristics. All characteristics can be read, written and notify.
+     */
+    public synchronized FakeBleTransport addService(UUID serviceUuid, UUID... characteristicUuids) {
+        BluetoothGattService service = new BluetoothGattService(serviceUuid, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        for (UUID uuid : characteristicUuids) {
+            BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(uuid,
+                    BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                    BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+            characteristic.addDescriptor(new BluetoothGattDescriptor(BleGattAttributes.CLIENT_CHARACTERISTIC_CONFIGURATION,
+                    BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+            service.addCharacteristic(characteristic);
+            mCharacteristics.put(uuid, characteristic);
+        }
+        mServices.add(service);
+        return this;
+    }
+
+    /**
+     * Sets the value returned when the characteristic is read.
+     */
+    public synchronized FakeBleTransport setCharacteristicValue(UUID characteristic, byte[] value) {
+        mValues.put(characteristic, value);
+        return this;
+    }
+
+    public FakeBleTransport setWriteHandler(WriteHandler handler) {
+        mWriteHandler = handler;
+        return this;
+    }
+
+    /**
+     * Sets the GATT status writes to the characteristic are answered with (default: {@link BluetoothGatt#GATT_SUCCESS}).
+     * Failed writes are not passed to the {@link WriteHandler}.
+     */
+    public FakeBleTransport setWriteStatus(UUID characteristic, int status) {
+        mWriteStatus.put(characteristic, status);
+        return this;
+    }
+
+    /**
+     * Sets the simulated latency of GATT operations (default: 0).
+     */
+    public FakeBleTransport setLatency(long latency, TimeUnit unit) {
+        mLatencyUs = unit.toMicros(latency);
+        return this;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    public int getTxPhy() {
+        return mTxPhy;
+    }
+
+    /**
+     * Sets the RSSI (in dBm) reported by {@link #readRemoteRssi(GattOperationQueue.Priority)}.
+     */
+    public FakeBleTransport setRssi(int rssi) {
+        mRssi = rssi;
+        return this;
+    }
+
+    public boolean isNotifying(UUID characteristic) {
+        return mNotifyingCharacteristics.contains(characteristic);
+    }
+
+    public long getNumNotifications() {
+        return mNumNotifications.get();
+    }
+
+    public long getNumNotifiedBytes() {
+        return mNumNotifiedBytes.get();
+    }
+
+    /**
+     * Sends a notification, if notifications are enabled for the characteristic.
+     *
+     * @param characteristic UUID of the notifying characteristic
+     * @param value          Notified value, passed to the callback without copying
+     */
+    public void notify(UUID characteristic, byte[] value) {
+        int generation = mGeneration;
+        mExecutor.execute(() -> deliverNotification(generation, characteristic, value));
+    }
+
+    /**
+     * Replays packets of one characteristic at a fixed rate.
+     *
+     * @param characteristic   UUID of the notifying characteristic
+     * @param packets          Packets to notify
+     * @param packetsPerSecond Replay rate, or &lt;= 0 to replay as fast as possible
+     * @return Handle of the replay
+     */
+    public Replay replay(UUID characteristic, List<byte[]> packets, double packetsPerSecond) {
+        CapturedNotificationStream stream = new CapturedNotificationStream();
+        long periodUs = (packetsPerSecond > 0) ? (long) (1e6 / packetsPerSecond) : 0;
+        for (int i = 0; i < packets.size(); i++) {
+            stream.add(i * periodUs, characteristic, packets.get(i));
+        }
+        return replay(stream, 1.0);
+    }
+
+    /**
+     * Replays a captured notification stream. The replay is stopped when the transport is closed.
+     *
+     * @param stream      The captured stream
+     * @param speedFactor Replay speed relative to the captured timing (e.g., 2.0 replays twice as fast),
+     *                    or &lt;= 0 to replay as fast as possible
+     * @return Handle of the replay
+     */
+    public Replay replay(CapturedNotificationStream stream, double speedFactor) {
+        Replay replay = new Replay();
+        List<CapturedNotificationStream.Notification> notifications = stream.getNotifications();
+        if (notifications.isEmpty()) {
+            replay.mFinished.countDown();
+            return replay;
+        }
+        int generation = mGeneration;
+        long origin = notifications.get(0).getTimestampUs();
+        long startNanos = System.nanoTime();
+        Runnable step = new Runnable() {
+            private int mIndex = 0;
+
+            @Override
+            public void run() {
+                // deliver all notifications that are due, then reschedule for the next one
+                while (!replay.mCancelled && generation == mGeneration && mIndex < notifications.size()) {
+                    CapturedNotificationStream.Notification notification = notifications.get(mIndex);
+                    long dueNanos = (speedFactor > 0) ? (long) ((notification.getTimestampUs() - origin) * 1000 / speedFactor) : 0;
+                    long waitNanos = dueNanos - (System.nanoTime() - startNanos);
+                    if (waitNanos > 0) {
+                        replay.mFuture = mExecutor.schedule(this, waitNanos, TimeUnit.NANOSECONDS);
+                        return;
+                    }
+                    deliverNotification(generation, notification.getCharacteristic(), notification.getValue());
+                    mIndex++;
+                }
+                replay.mFinished.countDown();
+            }
+        };
+        replay.mFuture = mExecutor.schedule(step, 0, TimeUnit.NANOSECONDS);
+        return replay;
+    }
+
+    /**
+     * Simulates a lost connection.
+     *
+     * @param status GATT status reported to the callback
+     */
+    public void simulateConnectionLoss(int status) {
+        int generation = mGeneration;
+        mExecutor.execute(() -> {
+            if (generation != mGeneration) {
+                return;
+            }
+            mConnected = false;
+            mNotifyingCharacteristics.clear();
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onConnectionStateChanged(status, false);
+            }
+        });
+    }
+
+    /**
+     * Stops the worker thread. Pending callbacks and replays are dropped.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Override
+    public boolean connect(Callback callback) {
+        mCallback = callback;
+        mOpen = true;
+        schedule(null, () -> {
+            mConnected = true;
+            callback.onConnectionStateChanged(BluetoothGatt.GATT_SUCCESS, true);
+        });
+        return true;
+    }
+
+    @Override
+    public boolean reconnect() {
+        Callback callback = mCallback;
+        if (!mOpen || callback == null) {
+            return false;
+        }
+        schedule(null, () -> {
+            mConnected = true;
+            callback.onConnectionStateChanged(BluetoothGatt.GATT_SUCCESS, true);
+        });
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        Callback callback = mCallback;
+        if (!mConnected || callback == null) {
+            return;
+        }
+        schedule(null, () -> {
+            mConnected = false;
+            mNotifyingCharacteristics.clear();
+            callback.onConnectionStateChanged(BluetoothGatt.GATT_SUCCESS, false);
+        });
+    }
+
+    /**
+     * Closes the connection. Operations, notifications and replays that were issued before are dropped.
+     */
+    @Override
+    public synchronized void close() {
+        mOpen = false;
+        mConnected = false;
+        mGeneration++;
+        mNotifyingCharacteristics.clear();
+        mPendingOperations.clear();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    public String getDeviceName() {
+        return mDeviceName;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        Callback callback = mCallback;
+        if (!mConnected || callback == null) {
+            return false;
+        }
+        schedule(null, () -> callback.onServicesDiscovered(BluetoothGatt.GATT_SUCCESS));
+        return true;
+    }
+
+    @Override
+    public synchronized List<BluetoothGattService> getServices() {
+        return new ArrayList<>(mServices);
+    }
+
+    @Override
+    public synchronized BluetoothGattService getService(UUID uuid) {
+        for (BluetoothGattService service : mServices) {
+            if (service.getUuid().equals(uuid)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void readCharacteristic(BluetoothGattCharacteristic characteristic, GattOperationQueue.Priority priority) {
+        schedule(GattOperationQueue.OperationType.READ_CHARACTERISTIC, () -> {
+            byte[] value;
+            synchronized (this) {
+                value = mValues.get(characteristic.getUuid());
+            }
+            if (value == null) {
+                mCallback.onCharacteristicRead(characteristic, null, BluetoothGatt.GATT_READ_NOT_PERMITTED);
+            } else {
+                characteristic.setValue(value);
+                mCallback.onCharacteristicRead(characteristic, value.clone(), BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+    }
+
+    @Override
+    public void writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, GattOperationQueue.Priority priority) {
+        schedule(GattOperationQueue.OperationType.WRITE_CHARACTERISTIC, () -> {
+            Integer status = mWriteStatus.get(characteristic.getUuid());
+            if (status != null && status != BluetoothGatt.GATT_SUCCESS) {
+                mCallback.onCharacteristicWrite(characteristic, status);
+                return;
+            }
+            characteristic.setValue(value);
+            mCallback.onCharacteristicWrite(characteristic, BluetoothGatt.GATT_SUCCESS);
+            WriteHandler handler = mWriteHandler;
+            if (handler != null) {
+                handler.onWrite(this, characteristic.getUuid(), value);
+            }
+        });
+    }
+
+    @Override
+    public boolean setNotificationsEnabled(BluetoothGattCharacteristic characteristic, boolean enable) {
+        BluetoothGattDescriptor desc = characteristic.getDescriptor(BleGattAttributes.CLIENT_CHARACTERISTIC_CONFIGURATION);
+        if (desc == null) {
+            return false;
+        }
+        byte[] value = enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        schedule(GattOperationQueue.OperationType.WRITE_DESCRIPTOR, () -> {
+            if (enable) {
+                mNotifyingCharacteristics.add(characteristic.getUuid());
+            } else {
+                mNotifyingCharacteristics.remove(characteristic.getUuid());
+            }
+            desc.setValue(value);
+            mCallback.onDescriptorWrite(desc, value, BluetoothGatt.GATT_SUCCESS);
+        });
+        return true;
+    }
+
+    @Override
+    public void requestMtu(int mtu, GattOperationQueue.Priority priority) {
+        schedule(GattOperationQueue.OperationType.REQUEST_MTU, () -> {
+            mMtu = mtu;
+            mCallback.onMtuChanged(mtu, BluetoothGatt.GATT_SUCCESS);
+        });
+    }
+
+    @Override
+    public void readRemoteRssi(GattOperationQueue.Priority priority) {
+        schedule(GattOperationQueue.OperationType.READ_REMOTE_RSSI, () -> mCallback.onReadRemoteRssi(mRssi, BluetoothGatt.GATT_SUCCESS));
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int connectionPriority) {
+        if (!mConnected) {
+            return false;
+        }
+        mConnectionPriority = connectionPriority;
+        // typical intervals granted by Android for the respective priority (in units of 1.25 ms)
+        int interval;
+        switch (connectionPriority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                interval = 6;
+                break;
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                interval = 80;
+                break;
+            default:
+                interval = 24;
+                break;
+        }
+        schedule(null, () -> mCallback.onConnectionUpdated(interval, 0, 500, BluetoothGatt.GATT_SUCCESS));
+        return true;
+    }
+
+    @Override
+    public boolean setPreferredPhy(int txPhyMask, int rxPhyMask) {
+        if (!mConnected) {
+            return false;
+        }
+        // prefer 2M if allowed, PHY masks and PHY values are identical for 1M and 2M
+        int txPhy = ((txPhyMask & BluetoothDevice.PHY_LE_2M_MASK) != 0) ? BluetoothDevice.PHY_LE_2M : BluetoothDevice.PHY_LE_1M;
+        int rxPhy = ((rxPhyMask & BluetoothDevice.PHY_LE_2M_MASK) != 0) ? BluetoothDevice.PHY_LE_2M : BluetoothDevice.PHY_LE_1M;
+        mTxPhy = txPhy;
+        schedule(null, () -> mCallback.onPhyUpdate(txPhy, rxPhy, BluetoothGatt.GATT_SUCCESS));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean hasPendingOperations(GattOperationQueue.OperationType type) {
+        Integer count = mPendingOperations.get(type);
+        return count != null && count > 0;
+    }
+
+    /**
+     * Schedules an operation on the worker thread after the simulated latency. The operation is counted as pending
+     * until right before its callback is invoked. Operations of a closed connection are dropped.
+     */
+    private void schedule(GattOperationQueue.OperationType type, Runnable operation) {
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+            if (type != null) {
+                Integer count = mPendingOperations.get(type);
+                mPendingOperations.put(type, (count == null) ? 1 : count + 1);
+            }
+        }
+        mExecutor.schedule(() -> {
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    // transport was closed in the meantime, pending operations were already cleared
+                    return;
+                }
+                if (type != null) {
+                    mPendingOperations.put(type, mPendingOperations.get(type) - 1);
+                }
+            }
+            if (mOpen) {
+                operation.run();
+            }
+        }, mLatencyUs, TimeUnit.MICROSECONDS);
+    }
+
+    private void deliverNotification(int generation, UUID characteristic, byte[] value) {
+        Callback callback = mCallback;
+        BluetoothGattCharacteristic c;
+        synchronized (this) {
+            c = mCharacteristics.get(characteristic);
+        }
+        if (generation != mGeneration || callback == null || c == null || !mConnected || !mNotifyingCharacteristics.contains(characteristic)) {
+            return;
+        }
+        mNumNotifications.incrementAndGet();
+        mNumNotifiedBytes.addAndGet(value.length);
+        callback.onCharacteristicChanged(c, value);
+    }
+}
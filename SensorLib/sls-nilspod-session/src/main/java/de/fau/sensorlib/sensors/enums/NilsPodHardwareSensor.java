@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib.sensors.enums;
+
+import androidx.annotation.NonNull;
+
+import org.apache.commons.text.WordUtils;
+
+import java.util.ArrayList;
+
+/**
+ * Enum describing the hardware sensors of the NilsPod and their bit masks in the session header.
+ * <p>
+ * The constant names are the same as in {@code de.fau.sensorlib.enums.HardwareSensor}, so both can be
+ * mapped onto each other via {@link #name()}.
+ */
+public enum NilsPodHardwareSensor {
+    ACCELEROMETER(0x0001),
+    GYROSCOPE(0x0002),
+    MAGNETOMETER(0x0004),
+    BAROMETER(0x0008),
+    ANALOG(0x0010),
+    ECG(0x0020),
+    PPG(0x0040),
+    TEMPERATURE(0x0080);
+
+    private int bitMask;
+
+    NilsPodHardwareSensor(int bitMask) {
+        this.bitMask = bitMask;
+    }
+
+    public int getBitMask() {
+        return bitMask;
+    }
+
+    /**
+     * Returns the hardware sensors that are enabled in the given bit mask (as stored in the session header).
+     */
+    public static ArrayList<NilsPodHardwareSensor> inferHardwareSensors(int sensors) {
+        ArrayList<NilsPodHardwareSensor> enabledSensorList = new ArrayList<>();
+        for (NilsPodHardwareSensor sensor : values()) {
+            if ((sensors & sensor.bitMask) != 0) {
+                enabledSensorList.add(sensor);
+            }
+        }
+        return enabledSensorList;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return WordUtils.capitalizeFully(name().replace('_', ' '));
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib.sensors.enums;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Enum describing the sampling rates supported by the NilsPod and their command codes.
+ */
+public enum NilsPodSamplingRate {
+
+    SAMPLING_RATE_1024_HZ(1, 1024.0),
+    SAMPLING_RATE_512_HZ(2, 512.0),
+    SAMPLING_RATE_256_HZ(4, 256.0),
+    SAMPLING_RATE_204_HZ(5, 204.8),
+    SAMPLING_RATE_102_HZ(10, 102.4),
+    SAMPLING_RATE_51_HZ(20, 51.2),
+    SAMPLING_RATE_25_HZ(40, 25.6),
+    SAMPLING_RATE_12_HZ(80, 12.8),
+    SAMPLING_RATE_6_HZ(160, 6.4);
+
+    private int code;
+    private double samplingRate;
+
+    NilsPodSamplingRate(int code, double samplingRate) {
+        this.code = code;
+        this.samplingRate = samplingRate;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public double getSamplingRate() {
+        return samplingRate;
+    }
+
+    /**
+     * Returns the sampling rate (in Hz) for the given command code or 0.0 if the code is unknown.
+     */
+    public static double inferSamplingRate(int code) {
+        for (NilsPodSamplingRate samplingRate : values()) {
+            if (samplingRate.code == code) {
+                return samplingRate.samplingRate;
+            }
+        }
+        return 0.0;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return samplingRate + " Hz";
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+
+package de.fau.sensorlib.sensors.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import de.fau.sensorlib.sensors.enums.NilsPodHardwareSensor;
+
+/**
+ * Offline converter for session files (.bin) downloaded from a NilsPod that uses all available CPU cores.
+ * <p>
+ * Since all samples of a session have the same size, a session can be split into independent chunks of samples.
+ * The chunks are decoded and encoded in parallel on a {@link ForkJoinPool}, each into its own buffer, and then
+ * written to the output in their original order. The number of chunks in flight is bounded, so memory usage
+ * does not depend on the session length.
+ * <p>
+ * Supported output formats:
+ * <ul>
+ * <li>{@link OutputFormat#CSV}: Session header (JSON) in the first line, column names in the second line,
+ * followed by one line per sample (same header and column names as the CSV files created by {@code SessionCsvConverter})</li>
+ * <li>{@link OutputFormat#BINARY}: One record per sample without any header: the sample counter as
+ * little-endian int64 followed by all columns (see {@link #getColumnNames(SessionHeader)}) as little-endian float64</li>
+ * </ul>
+ */
+public class ParallelSessionConverter implements Closeable {
+
+    private static final String TAG = ParallelSessionConverter.class.getSimpleName();
+
+    public enum OutputFormat {
+        CSV,
+        BINARY
+    }
+
+    /**
+     * Default number of samples per chunk
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 10000;
+
+    private static final String SEPARATOR = ",";
+    private static final String DELIMITER = "\r\n";
+
+    private final ForkJoinPool mPool;
+    private final boolean mOwnsPool;
+
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private int mMaxChunksInFlight;
+
+
+    /**
+     * Creates a new converter using one worker thread per available CPU core.
+     */
+    public ParallelSessionConverter() {
+        this(new ForkJoinPool(Runtime.getRuntime().availableProcessors()), true);
+    }
+
+    /**
+     * Creates a new converter that runs on the given pool. The pool is not shut down by {@link #close()}.
+     */
+    public ParallelSessionConverter(ForkJoinPool pool) {
+        this(pool, false);
+    }
+
+    private ParallelSessionConverter(ForkJoinPool pool, boolean ownsPool) {
+        mPool = pool;
+        mOwnsPool = ownsPool;
+        mMaxChunksInFlight = 2 * pool.getParallelism();
+    }
+
+    /**
+     * Sets the number of samples that are decoded and encoded by one task.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive, got " + chunkSize + "!");
+        }
+        mChunkSize = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Sets the maximum number of chunks that are processed (or waiting to be written) at the same time.
+     */
+    public void setMaxChunksInFlight(int maxChunksInFlight) {
+        if (maxChunksInFlight <= 0) {
+            throw new IllegalArgumentException("Number of chunks must be positive, got " + maxChunksInFlight + "!");
+        }
+        mMaxChunksInFlight = maxChunksInFlight;
+    }
+
+    /**
+     * Converts a session file.
+     *
+     * @param sessionFile Session file (.bin) to convert
+     * @param outputFile  Output file. Will be overwritten if it already exists
+     * @param format      Output format
+     * @return Number of converted samples
+     * @throws IOException if reading the session or writing the output failed
+     */
+    public long convert(File sessionFile, File outputFile, OutputFormat format) throws IOException {
+        try (SessionReader reader = new SessionReader(sessionFile);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16)) {
+            return convert(reader, out, format);
+        }
+    }
+
+    /**
+     * Converts a session and writes the result to the given stream. The stream is not closed.
+     *
+     * @param reader Reader of the session to convert
+     * @param out    Stream to write the converted session to
+     * @param format Output format
+     * @return Number of converted samples
+     * @throws IOException if reading the session or writing the output failed
+     */
+    public long convert(SessionReader reader, OutputStream out, OutputFormat format) throws IOException {
+        writeHeader(reader.getHeader(), out, format);
+        return writeSamples(reader, out, format);
+    }
+
+    /**
+     * Writes the header of the given session. Only the CSV format has a header, for the binary format nothing is written.
+     *
+     * @param header Header of the session
+     * @param out    Stream to write the header to
+     * @param format Output format
+     * @throws IOException if writing the output failed
+     */
+    public void writeHeader(SessionHeader header, OutputStream out, OutputFormat format) throws IOException {
+        if (format != OutputFormat.CSV) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(header.toJson()).append(DELIMITER);
+        sb.append("timestamp");
+        for (String column : getColumnNames(header)) {
+            sb.append(SEPARATOR).append(column);
+        }
+        sb.append(DELIMITER);
+        out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Converts all samples of a session (without header) and writes them to the given stream.
+     *
+     * @param reader Reader of the session to convert
+     * @param out    Stream to write the converted samples to
+     * @param format Output format
+     * @return Number of converted samples
+     * @throws IOException if reading the session or writing the output failed
+     */
+    public long writeSamples(SessionReader reader, OutputStream out, OutputFormat format) throws IOException {
+        int numColumns = getColumnNames(reader.getHeader()).length;
+        long numSamples = reader.getNumSamples();
+        ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<>();
+        try {
+            for (long from = 0; from < numSamples; from += mChunkSize) {
+                if (pending.size() >= mMaxChunksInFlight) {
+                    out.write(await(pending.poll()));
+                }
+                int count = (int) Math.min(mChunkSize, numSamples - from);
+                pending.add(mPool.submit(new ChunkTask(reader, from, count, format, numColumns)));
+            }
+            while (!pending.isEmpty()) {
+                out.write(await(pending.poll()));
+            }
+        } finally {
+            for (ForkJoinTask<byte[]> task : pending) {
+                task.cancel(true);
+            }
+        }
+        out.flush();
+        return numSamples;
+    }
+
+    private static byte[] await(ForkJoinTask<byte[]> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Conversion interrupted!", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Conversion failed!", e.getCause());
+        }
+    }
+
+    /**
+     * Returns the names of the data columns of the given session, in the order they are written.
+     */
+    public static String[] getColumnNames(SessionHeader header) {
+        List<String> columns = new ArrayList<>();
+        if (header.isSensorEnabled(NilsPodHardwareSensor.ACCELEROMETER)) {
+            columns.add("acc_x");
+            columns.add("acc_y");
+            columns.add("acc_z");
+        }
+        if (header.isSensorEnabled(NilsPodHardwareSensor.GYROSCOPE)) {
+            columns.add("gyro_x");
+            columns.add("gyro_y");
+            columns.add("gyro_z");
+        }
+        if (header.isSensorEnabled(NilsPodHardwareSensor.MAGNETOMETER)) {
+            columns.add("mag_x");
+            columns.add("mag_y");
+            columns.add("mag_z");
+        }
+        if (header.isSensorEnabled(NilsPodHardwareSensor.BAROMETER)) {
+            columns.add("baro");
+        }
+        if (header.isSensorEnabled(NilsPodHardwareSensor.ANALOG)) {
+            columns.add("ana_1");
+            columns.add("ana_2");
+            columns.add("ana_3");
+        }
+        if (header.isSensorEnabled(NilsPodHardwareSensor.ECG)) {
+            columns.add("ecg");
+        }
+        if (header.isSensorEnabled(NilsPodHardwareSensor.PPG)) {
+            columns.add("ppg");
+        }
+        if (header.isSensorEnabled(NilsPodHardwareSensor.TEMPERATURE)) {
+            columns.add("temp");
+        }
+        return columns.toArray(new String[0]);
+    }
+
+    /**
+     * Copies the columns of one sample into the given row, in the order of {@link #getColumnNames(SessionHeader)}.
+     */
+    private static void fillRow(SessionHeader header, SensorDataBlock block, int index, double[] row) {
+        int col = 0;
+        if (header.isSensorEnabled(NilsPodHardwareSensor.ACCELEROMETER)) {
+            System.arraycopy(block.getAccColumn(), 3 * index, row, col, 3);
+            col += 3;
+        }
+        if (header.isSensorEnabled(NilsPodHardwareSensor.GYROSCOPE)) {
+            System.arraycopy(block.getGyroColumn(), 3 * index, row, col, 3);
+            col += 3;
+        }
+        if (header.isSensorEnabled(NilsPodHardwareSensor.MAGNETOMETER)) {
+            System.arraycopy(block.getMagColumn(), 3 * index, row, col, 3);
+            col += 3;
+        }
+        if (header.isSensorEnabled(NilsPodHardwareSensor.BAROMETER)) {
+            row[col++] = block.getBaro(index);
+        }
+        if (header.isSensorEnabled(NilsPodHardwareSensor.ANALOG)) {
+            System.arraycopy(block.getAnalogColumn(), 3 * index, row, col, 3);
+            col += 3;
+        }
+        if (header.isSensorEnabled(NilsPodHardwareSensor.ECG)) {
+            row[col++] = block.getEcg(index);
+        }
+        if (header.isSensorEnabled(NilsPodHardwareSensor.PPG)) {
+            row[col++] = block.getPpg(index);
+        }
+        if (header.isSensorEnabled(NilsPodHardwareSensor.TEMPERATURE)) {
+            row[col] = block.getTemp(index);
+        }
+    }
+
+
+    /**
+     * Decodes one chunk of samples and encodes it into the output format.
+     */
+    private static class ChunkTask implements Callable<byte[]> {
+
+        private final SessionReader mReader;
+        private final long mFromSample;
+        private final int mCount;
+        private final OutputFormat mFormat;
+        private final int mNumColumns;
+
+        private ChunkTask(SessionReader reader, long fromSample, int count, OutputFormat format, int numColumns) {
+            mReader = reader;
+            mFromSample = fromSample;
+            mCount = count;
+            mFormat = format;
+            mNumColumns = numColumns;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            SensorDataBlock block = new SensorDataBlock(mCount);
+            int numSamples = mReader.read(mFromSample, mCount, block);
+
+            SessionHeader header = mReader.getHeader();
+            double[] row = new double[mNumColumns];
+
+            if (mFormat == OutputFormat.BINARY) {
+                ByteBuffer buffer = ByteBuffer.allocate(numSamples * 8 * (1 + mNumColumns)).order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < numSamples; i++) {
+                    fillRow(header, block, i, row);
+                    buffer.putLong(block.getCounter(i));
+                    for (double value : row) {
+                        buffer.putDouble(value);
+                    }
+                }
+                return buffer.array();
+            } else {
+                StringBuilder sb = new StringBuilder(numSamples * 16 * (1 + mNumColumns));
+                for (int i = 0; i < numSamples; i++) {
+                    fillRow(header, block, i, row);
+                    sb.append(block.getCounter(i));
+                    for (double value : row) {
+                        sb.append(SEPARATOR).append(value);
+                    }
+                    sb.append(DELIMITER);
+                }
+                return sb.toString().getBytes(StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mOwnsPool) {
+            mPool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+
+package de.fau.sensorlib.sensors.logging;
+
+/**
+ * Reusable, column-oriented buffer for a block of consecutive samples decoded from a NilsPod session.
+ * <p>
+ * Values of 3-axis sensors (accelerometer, gyroscope, magnetometer, analog) are stored interleaved,
+ * i.e., sample <code>i</code> occupies the indices <code>3 * i</code> to <code>3 * i + 2</code>.
+ * Columns of sensors that are not enabled in the session are left untouched.
+ * <p>
+ * A block is meant to be allocated once and passed to {@link SessionReader#read(long, int, SensorDataBlock)}
+ * repeatedly, so no objects are allocated per sample.
+ */
+public class SensorDataBlock {
+
+    private final int mCapacity;
+
+    /**
+     * Number of valid samples in this block
+     */
+    private int mSize;
+    /**
+     * Index of the first sample of this block within the session
+     */
+    private long mFirstSample;
+
+    private final long[] mCounter;
+    private final double[] mAcc;
+    private final double[] mGyro;
+    private final double[] mMag;
+    private final double[] mBaro;
+    private final double[] mAnalog;
+    private final double[] mEcg;
+    private final double[] mPpg;
+    private final double[] mTemp;
+
+
+    public SensorDataBlock(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive, got " + capacity + "!");
+        }
+        mCapacity = capacity;
+        mCounter = new long[capacity];
+        mAcc = new double[3 * capacity];
+        mGyro = new double[3 * capacity];
+        mMag = new double[3 * capacity];
+        mBaro = new double[capacity];
+        mAnalog = new double[3 * capacity];
+        mEcg = new double[capacity];
+        mPpg = new double[capacity];
+        mTemp = new double[capacity];
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    protected void setSize(int size) {
+        mSize = size;
+    }
+
+    public long getFirstSample() {
+        return mFirstSample;
+    }
+
+    protected void setFirstSample(long firstSample) {
+        mFirstSample = firstSample;
+    }
+
+    /**
+     * Clears this block. The underlying arrays are kept for reuse.
+     */
+    public void clear() {
+        mSize = 0;
+        mFirstSample = 0;
+    }
+
+    public long getCounter(int index) {
+        return mCounter[index];
+    }
+
+    public double getAcc(int index, int axis) {
+        return mAcc[3 * index + axis];
+    }
+
+    public double getGyro(int index, int axis) {
+        return mGyro[3 * index + axis];
+    }
+
+    public double getMag(int index, int axis) {
+        return mMag[3 * index + axis];
+    }
+
+    public double getBaro(int index) {
+        return mBaro[index];
+    }
+
+    public double getAnalog(int index, int channel) {
+        return mAnalog[3 * index + channel];
+    }
+
+    public double getEcg(int index) {
+        return mEcg[index];
+    }
+
+    public double getPpg(int index) {
+        return mPpg[index];
+    }
+
+    public double getTemp(int index) {
+        return mTemp[index];
+    }
+
+    /**
+     * Direct access to the underlying columns, e.g., for bulk processing. Only the first
+     * {@link #getSize()} (or <code>3 * getSize()</code>) entries are valid.
+     */
+    public long[] getCounterColumn() {
+        return mCounter;
+    }
+
+    public double[] getAccColumn() {
+        return mAcc;
+    }
+
+    public double[] getGyroColumn() {
+        return mGyro;
+    }
+
+    public double[] getMagColumn() {
+        return mMag;
+    }
+
+    public double[] getBaroColumn() {
+        return mBaro;
+    }
+
+    public double[] getAnalogColumn() {
+        return mAnalog;
+    }
+
+    public double[] getEcgColumn() {
+        return mEcg;
+    }
+
+    public double[] getPpgColumn() {
+        return mPpg;
+    }
+
+    public double[] getTempColumn() {
+        return mTemp;
+    }
+}
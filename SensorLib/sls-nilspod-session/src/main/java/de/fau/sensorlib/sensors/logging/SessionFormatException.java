@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+
+package de.fau.sensorlib.sensors.logging;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown if a NilsPod session file (or its header) does not have the expected format.
+ */
+public class SessionFormatException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SessionFormatException(String message) {
+        super(message);
+    }
+
+    public SessionFormatException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
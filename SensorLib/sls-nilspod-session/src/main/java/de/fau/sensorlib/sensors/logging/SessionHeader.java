@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+
+package de.fau.sensorlib.sensors.logging;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import de.fau.sensorlib.sensors.enums.NilsPodHardwareSensor;
+import de.fau.sensorlib.sensors.enums.NilsPodSamplingRate;
+import de.fau.sensorlib.sensors.enums.NilsPodSensorPosition;
+import de.fau.sensorlib.sensors.enums.NilsPodSyncRole;
+import de.fau.sensorlib.sensors.enums.NilsPodTerminationSource;
+
+public class SessionHeader {
+
+    private static final String TAG = SessionHeader.class.getSimpleName();
+
+    private ArrayList<NilsPodHardwareSensor> enabled_sensors = new ArrayList<>();
+
+    private boolean motion_interrupt_enabled;
+    private boolean dock_mode_enabled;
+    private NilsPodSensorPosition sensor_position;
+    private NilsPodTerminationSource session_termination = NilsPodTerminationSource.BLE;
+    private int sample_size;
+
+    private double sampling_rate_hz;
+    private int acc_range_g;
+    private int gyro_range_dps;
+
+    private NilsPodSyncRole sync_role = NilsPodSyncRole.SYNC_ROLE_SLAVE;
+    private int sync_distance_ms;
+    private String sync_address = "n/a";
+    private int sync_channel;
+    private int sync_index_start;
+    private int sync_index_end;
+
+    private String version_firmware = "n/a";
+    private String version_hardware = "n/a";
+    private String mac_address = "n/a";
+
+    private int utc_start;
+    private int utc_stop;
+
+    private byte[] custom_meta_data;
+
+    private int num_samples;
+
+
+    /**
+     * Parses the session header stored at the beginning of a session file (.bin) downloaded from a NilsPod.
+     *
+     * @param values Header bytes. The first byte contains the header size, the remaining bytes the header content
+     * @return The parsed session header
+     * @throws SessionFormatException if the header could not be parsed
+     */
+    public static SessionHeader parse(byte[] values) throws SessionFormatException {
+        SessionHeader header = new SessionHeader();
+        ByteBuffer buffer = ByteBuffer.wrap(values).order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            int offset = 1;
+            // Byte 1
+            int sampleSize = values[offset++] & 0xFF;
+
+            // Byte 2-3
+            ArrayList<NilsPodHardwareSensor> enabledSensorList = NilsPodHardwareSensor.inferHardwareSensors(buffer.getShort(offset) & 0xFFFF);
+            offset += 2;
+
+            // Byte 4
+            double samplingRate = NilsPodSamplingRate.inferSamplingRate(values[offset++] & 0xFF);
+
+            // Byte 5
+            NilsPodTerminationSource terminationSource = NilsPodTerminationSource.inferTerminationSource(values[offset++] & 0xFF);
+
+            // Byte 6
+            NilsPodSyncRole syncRole = NilsPodSyncRole.values()[values[offset++]];
+
+            // Byte 7
+            int syncDistance = values[offset++] * 100; // in ms
+
+            // Byte 8
+            int accRange = values[offset++]; // in g
+
+            // Byte 9
+            int gyroRange = values[offset++] * 125; // in dps
+
+            // Bytes 10-14: System Settings
+            // Byte 10: Sensor Position
+            NilsPodSensorPosition sensorPosition = NilsPodSensorPosition.values()[values[offset++]];
+
+            // Byte 11: Operation Modes (Motion Interrupt, Home Monitoring, etc.)
+            boolean dockMode = (values[offset] & 0x40) != 0;
+            boolean motionInterrupt = (values[offset++] & 0x80) != 0;
+
+            // Bytes 12-14: Custom Meta Data
+            byte[] customMetaData = new byte[3];
+            System.arraycopy(values, offset, customMetaData, 0, 3);
+            offset += 3;
+
+            // Bytes 15-18
+            int startTime = buffer.getInt(offset);
+            offset += 4;
+
+            // Bytes 19-22
+            int endTime = buffer.getInt(offset);
+            offset += 4;
+
+            // Bytes 23-26: Session Size (number of samples)
+            int sessionSize = buffer.getInt(offset);
+            offset += 4;
+
+            // Bytes 27-30
+            int syncIndexStart = buffer.getInt(offset);
+            offset += 4;
+            // Bytes 31-34
+            int syncIndexEnd = buffer.getInt(offset);
+            offset += 4;
+
+            // Bytes 35-40: 6 Byte MAC Address
+            StringBuilder sb = new StringBuilder();
+            for (int i = 5; i >= 0; i--) {
+                byte val = values[offset + i];
+                sb.append(String.format("%02x", val).toUpperCase(Locale.ROOT));
+                if (i != 0) {
+                    sb.append(":");
+                }
+            }
+            String macAddress = sb.toString();
+            offset += 6;
+
+            // Bytes 41-45: 5 Byte RF Address used for synchronization packages
+            sb = new StringBuilder();
+            for (int i = 4; i >= 0; i--) {
+                byte val = values[offset + i];
+                sb.append("0x").append(String.format("%02x", val).toUpperCase(Locale.ROOT));
+                if (i != 0) {
+                    sb.append(" ");
+                }
+            }
+            String syncAddress = sb.toString();
+            offset += 5;
+
+            // Byte 46
+            int syncChannel = values[offset++];
+
+            // Bytes 47-48
+            String hardwareVersion = Integer.toString(buffer.getShort(offset) & 0xFFFF);
+            offset += 2;
+
+            // Bytes 49-51
+            String firmwareVersion = "v" + (values[offset++] & 0xFF) + "." + (values[offset++] & 0xFF) + "." + (values[offset] & 0xFF);
+
+            header.setSampleSize(sampleSize);
+            header.setSamplingRate(samplingRate);
+            header.setEnabledSensors(enabledSensorList);
+            header.setTerminationSource(terminationSource);
+            header.setSyncRole(syncRole);
+            header.setSyncDistance(syncDistance);
+            header.setSyncIndex(syncIndexStart, syncIndexEnd);
+            header.setSyncAddress(syncAddress, syncChannel);
+            header.setAccRange(accRange);
+            header.setGyroRange(gyroRange);
+            header.setSensorPosition(sensorPosition);
+            header.setDockModeEnabled(dockMode);
+            header.setMotionInterruptEnabled(motionInterrupt);
+            header.setCustomMetaData(customMetaData);
+            header.setStartTime(startTime);
+            header.setEndTime(endTime);
+            header.setSessionSize(sessionSize);
+            header.setHardwareVersion(hardwareVersion);
+            header.setMacAddress(macAddress);
+            header.setFirmwareVersion(firmwareVersion);
+        } catch (RuntimeException e) {
+            throw new SessionFormatException("Error reading session header.", e);
+        }
+
+        return header;
+    }
+
+
+    public int getSampleSize() {
+        return sample_size;
+    }
+
+    public void setSampleSize(int sampleSize) {
+        this.sample_size = sampleSize;
+    }
+
+    public ArrayList<NilsPodHardwareSensor> getEnabledSensors() {
+        return enabled_sensors;
+    }
+
+    public boolean isSensorEnabled(NilsPodHardwareSensor sensor) {
+        return enabled_sensors.contains(sensor);
+    }
+
+    public void setEnabledSensors(ArrayList<NilsPodHardwareSensor> enabledSensors) {
+        this.enabled_sensors = enabledSensors;
+    }
+
+    public double getSamplingRate() {
+        return sampling_rate_hz;
+    }
+
+    public void setSamplingRate(double samplingRate) {
+        this.sampling_rate_hz = samplingRate;
+    }
+
+    public NilsPodTerminationSource getTerminationSource() {
+        return session_termination;
+    }
+
+    public void setTerminationSource(NilsPodTerminationSource terminationSource) {
+        this.session_termination = terminationSource;
+    }
+
+    public NilsPodSyncRole getSyncRole() {
+        return sync_role;
+    }
+
+    public void setSyncRole(NilsPodSyncRole syncRole) {
+        this.sync_role = syncRole;
+    }
+
+    public int getSyncDistance() {
+        return sync_distance_ms;
+    }
+
+    public void setSyncDistance(int syncDistance) {
+        this.sync_distance_ms = syncDistance;
+    }
+
+    public void setSyncIndex(int syncIndexStart, int syncIndexEnd) {
+        this.sync_index_start = syncIndexStart;
+        this.sync_index_end = syncIndexEnd;
+    }
+
+    public int getSyncIndexStart() {
+        return sync_index_start;
+    }
+
+    public int getSyncIndexEnd() {
+        return sync_index_end;
+    }
+
+    public void setSyncAddress(String syncAddress, int syncChannel) {
+        this.sync_address = syncAddress;
+        this.sync_channel = syncChannel;
+    }
+
+    public String getSyncAddress() {
+        return sync_address;
+    }
+
+    public int getSyncChannel() {
+        return sync_channel;
+    }
+
+    public void setCustomMetaData(byte[] customMetaData) {
+        this.custom_meta_data = customMetaData;
+    }
+
+    public byte[] getCustomMetaData() {
+        return custom_meta_data;
+    }
+
+    public int getAccRange() {
+        return acc_range_g;
+    }
+
+    public void setAccRange(int accRange) {
+        this.acc_range_g = accRange;
+    }
+
+    public int getGyroRange() {
+        return gyro_range_dps;
+    }
+
+    public void setGyroRange(int gyroRange) {
+        this.gyro_range_dps = gyroRange;
+    }
+
+    public NilsPodSensorPosition getSensorPosition() {
+        return sensor_position;
+    }
+
+    public void setSensorPosition(NilsPodSensorPosition sensorPosition) {
+        this.sensor_position = sensorPosition;
+    }
+
+    public boolean getDockModeEnabled() {
+        return dock_mode_enabled;
+    }
+
+    public void setDockModeEnabled(boolean enabled) {
+        this.dock_mode_enabled = enabled;
+    }
+
+    public void setMotionInterruptEnabled(boolean enabled) {
+        this.motion_interrupt_enabled = enabled;
+    }
+
+    public boolean wasMotionInterruptEnabled() {
+        return motion_interrupt_enabled;
+    }
+
+    public int getStartDate() {
+        return utc_start;
+    }
+
+    public void setStartTime(int startDate) {
+        this.utc_start = startDate;
+    }
+
+    public int getEndDate() {
+        return utc_stop;
+    }
+
+    public void setEndTime(int endDate) {
+        this.utc_stop = endDate;
+    }
+
+    public int getSessionSize() {
+        return num_samples;
+    }
+
+    public void setSessionSize(int sessionSize) {
+        this.num_samples = sessionSize;
+    }
+
+    public String getFirmwareVersion() {
+        return version_firmware;
+    }
+
+    public void setFirmwareVersion(String firmwareVersion) {
+        this.version_firmware = firmwareVersion;
+    }
+
+    public void setHardwareVersion(String hardwareVersion) {
+        this.version_hardware = hardwareVersion;
+    }
+
+    public String getHardwareVersion() {
+        return version_hardware;
+    }
+
+    public void setMacAddress(String macAddress) {
+        this.mac_address = macAddress;
+    }
+
+    public String getMacAddress() {
+        return mac_address;
+    }
+
+    public String toJson() {
+        return new Gson().toJson(this);
+    }
+
+
+    @Override
+    public String toString() {
+        return new GsonBuilder().setPrettyPrinting().create().toJson(this);
+    }
+}
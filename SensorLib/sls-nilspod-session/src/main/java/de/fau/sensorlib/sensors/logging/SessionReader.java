@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+
+package de.fau.sensorlib.sensors.logging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random-access reader for session files (.bin) downloaded from a NilsPod (see {@code SessionByteWriter}).
+ * <p>
+ * The session header is parsed once when opening the file. Since all samples of a session have the same size,
+ * the file offset of every sample is known and arbitrary sample ranges can be read without scanning the file.
+ * Reads use positional {@link FileChannel} access and a read buffer per thread, so a single reader can be shared
+ * between threads.
+ */
+public class SessionReader implements Closeable {
+
+    private static final String TAG = SessionReader.class.getSimpleName();
+
+    private final File mFile;
+    private final FileChannel mChannel;
+
+    private final SessionHeader mHeader;
+    private final SessionSampleDecoder mDecoder;
+
+    private final int mHeaderSize;
+    private final int mSampleSize;
+    private final long mNumSamples;
+
+    /**
+     * Read buffer of the calling thread, reused for all reads of that thread
+     */
+    private final ThreadLocal<ByteBuffer> mReadBuffer = new ThreadLocal<>();
+
+
+    public SessionReader(File file) throws IOException {
+        mFile = file;
+        mChannel = new RandomAccessFile(file, "r").getChannel();
+
+        try {
+            ByteBuffer sizeBuffer = ByteBuffer.allocate(1);
+            readFully(sizeBuffer, 0);
+            mHeaderSize = sizeBuffer.get(0) & 0xFF;
+
+            ByteBuffer headerBuffer = ByteBuffer.allocate(mHeaderSize);
+            readFully(headerBuffer, 0);
+            mHeader = SessionHeader.parse(headerBuffer.array());
+            mDecoder = new SessionSampleDecoder(mHeader);
+            mSampleSize = mHeader.getSampleSize();
+            if (mSampleSize <= 0) {
+                throw new SessionFormatException("Invalid sample size: " + mSampleSize + "!");
+            }
+            // derive the number of samples from the file size => also works for incomplete downloads
+            mNumSamples = (mChannel.size() - mHeaderSize) / mSampleSize;
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public SessionHeader getHeader() {
+        return mHeader;
+    }
+
+    public SessionSampleDecoder getDecoder() {
+        return mDecoder;
+    }
+
+    public int getHeaderSize() {
+        return mHeaderSize;
+    }
+
+    public int getSampleSize() {
+        return mSampleSize;
+    }
+
+    /**
+     * Returns the number of complete samples stored in the session file.
+     */
+    public long getNumSamples() {
+        return mNumSamples;
+    }
+
+    /**
+     * Returns the byte offset of the given sample within the session file.
+     */
+    public long getSampleOffset(long sampleIndex) {
+        return mHeaderSize + sampleIndex * mSampleSize;
+    }
+
+    /**
+     * Reads and decodes a range of samples into the given data block.
+     *
+     * @param fromSample Index of the first sample to read
+     * @param count      Maximum number of samples to read
+     * @param out        Data block to decode the samples into. At most {@link SensorDataBlock#getCapacity()} samples are read
+     * @return Number of samples actually read (less than <code>count</code> if the end of the session was reached)
+     * @throws IOException if reading from the session file failed
+     */
+    public int read(long fromSample, int count, SensorDataBlock out) throws IOException {
+        if (fromSample < 0 || count < 0) {
+            throw new IndexOutOfBoundsException("Invalid sample range (from: " + fromSample + ", count: " + count + ")!");
+        }
+
+        int numSamples = (int) Math.max(0, Math.min(Math.min(count, out.getCapacity()), mNumSamples - fromSample));
+        out.setFirstSample(fromSample);
+        if (numSamples == 0) {
+            out.setSize(0);
+            return 0;
+        }
+
+        ByteBuffer buffer = getReadBuffer(numSamples * mSampleSize);
+        readFully(buffer, getSampleOffset(fromSample));
+        buffer.flip();
+        mDecoder.decode(buffer, 0, numSamples, out);
+        return numSamples;
+    }
+
+    /**
+     * Reads the raw bytes of a range of samples.
+     *
+     * @param fromSample Index of the first sample to read
+     * @param count      Number of samples to read
+     * @param dst        Buffer to read into. Must have at least <code>count * getSampleSize()</code> bytes remaining
+     * @throws IOException if reading from the session file failed
+     */
+    public void readRaw(long fromSample, int count, ByteBuffer dst) throws IOException {
+        if (fromSample < 0 || count < 0 || fromSample + count > mNumSamples) {
+            throw new IndexOutOfBoundsException("Invalid sample range (from: " + fromSample + ", count: " + count + ")!");
+        }
+        ByteBuffer slice = dst.duplicate();
+        slice.limit(slice.position() + count * mSampleSize);
+        readFully(slice, getSampleOffset(fromSample));
+        dst.position(slice.position());
+    }
+
+    /**
+     * Returns the read buffer of the calling thread, cleared and limited to the given size.
+     * The buffer is only reallocated if it is too small.
+     */
+    private ByteBuffer getReadBuffer(int size) {
+        ByteBuffer buffer = mReadBuffer.get();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            mReadBuffer.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of session file " + mFile.getName() + "!");
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
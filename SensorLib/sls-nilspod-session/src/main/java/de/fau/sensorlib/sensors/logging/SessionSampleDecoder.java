@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+
+package de.fau.sensorlib.sensors.logging;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import de.fau.sensorlib.sensors.enums.NilsPodHardwareSensor;
+
+/**
+ * Decodes raw samples of a NilsPod session into a {@link SensorDataBlock}.
+ * <p>
+ * The byte offsets of all sensor values within a sample are computed once from the {@link SessionHeader},
+ * so decoding a sample only consists of absolute reads from the sample buffer.
+ */
+public class SessionSampleDecoder {
+
+    /**
+     * Standard gravity (in m/s^2). Same (float) value as <code>android.hardware.SensorManager.GRAVITY_EARTH</code>,
+     * so that decoded values are identical on Android and on the JVM.
+     */
+    public static final float GRAVITY_EARTH = 9.80665f;
+
+    public static final double BASE_SCALING_FACTOR_GYRO = 16.4;
+    public static final double BASE_SCALING_FACTOR_ACC = 2 << 14;
+
+    /**
+     * Gyroscope range (in dps) that {@link #BASE_SCALING_FACTOR_GYRO} refers to
+     */
+    private static final int BASE_GYRO_RANGE_DPS = 2000;
+
+    private static final int NOT_AVAILABLE = -1;
+
+    private final int mSampleSize;
+
+    private final int mGyroOffset;
+    private final int mAccOffset;
+    private final int mMagOffset;
+    private final int mBaroOffset;
+    private final int mAnalogOffset;
+    private final int mEcgOffset;
+    private final int mPpgOffset;
+    private final int mTempOffset;
+    private final int mCounterOffset;
+
+    private final boolean mAnalog16Bit;
+
+    private final double mAccScalingFactor;
+    private final double mGyroScalingFactor;
+
+
+    public SessionSampleDecoder(SessionHeader header) {
+        mSampleSize = header.getSampleSize();
+
+        // analog channels are stored with 16 bit since firmware 0.18.0
+        mAnalog16Bit = isFirmwareAtLeast(header.getFirmwareVersion(), 0, 18, 0);
+
+        int offset = 0;
+        mGyroOffset = header.isSensorEnabled(NilsPodHardwareSensor.GYROSCOPE) ? offset : NOT_AVAILABLE;
+        offset += (mGyroOffset != NOT_AVAILABLE) ? 6 : 0;
+        mAccOffset = header.isSensorEnabled(NilsPodHardwareSensor.ACCELEROMETER) ? offset : NOT_AVAILABLE;
+        offset += (mAccOffset != NOT_AVAILABLE) ? 6 : 0;
+        mMagOffset = header.isSensorEnabled(NilsPodHardwareSensor.MAGNETOMETER) ? offset : NOT_AVAILABLE;
+        offset += (mMagOffset != NOT_AVAILABLE) ? 6 : 0;
+        mBaroOffset = header.isSensorEnabled(NilsPodHardwareSensor.BAROMETER) ? offset : NOT_AVAILABLE;
+        offset += (mBaroOffset != NOT_AVAILABLE) ? 2 : 0;
+        mAnalogOffset = header.isSensorEnabled(NilsPodHardwareSensor.ANALOG) ? offset : NOT_AVAILABLE;
+        offset += (mAnalogOffset != NOT_AVAILABLE) ? (mAnalog16Bit ? 6 : 3) : 0;
+        mEcgOffset = header.isSensorEnabled(NilsPodHardwareSensor.ECG) ? offset : NOT_AVAILABLE;
+        offset += (mEcgOffset != NOT_AVAILABLE) ? 4 : 0;
+        mPpgOffset = header.isSensorEnabled(NilsPodHardwareSensor.PPG) ? offset : NOT_AVAILABLE;
+        offset += (mPpgOffset != NOT_AVAILABLE) ? 4 : 0;
+        mTempOffset = header.isSensorEnabled(NilsPodHardwareSensor.TEMPERATURE) ? offset : NOT_AVAILABLE;
+        // counter is always stored in the last 4 bytes of a sample
+        mCounterOffset = mSampleSize - 4;
+
+        // acc scaling factor for conversion from raw values to m/s^2
+        mAccScalingFactor = (BASE_SCALING_FACTOR_ACC / header.getAccRange()) / GRAVITY_EARTH;
+        // gyro scaling factor for conversion from raw values to dps
+        mGyroScalingFactor = (BASE_SCALING_FACTOR_GYRO * BASE_GYRO_RANGE_DPS) / header.getGyroRange();
+    }
+
+    /**
+     * Checks whether the firmware version stored in the session header ("vX.Y.Z") is the same or newer
+     * than the specified version.
+     */
+    static boolean isFirmwareAtLeast(String firmwareVersion, int major, int minor, int patch) {
+        try {
+            String[] split = firmwareVersion.replace("v", "").split("\\.");
+            int fwMajor = Integer.parseInt(split[0]);
+            if (fwMajor >= Byte.MAX_VALUE) {
+                // development firmware versions are counted from the "end"
+                fwMajor = 255 - fwMajor;
+            }
+            int fwMinor = Integer.parseInt(split[1]);
+            int fwPatch = Integer.parseInt(split[2]);
+            return fwMajor * 10000 + fwMinor * 100 + fwPatch >= major * 10000 + minor * 100 + patch;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    public int getSampleSize() {
+        return mSampleSize;
+    }
+
+    /**
+     * Decodes <code>count</code> consecutive samples from the buffer into the data block.
+     *
+     * @param buffer   Buffer containing the raw samples
+     * @param position Position of the first sample within the buffer
+     * @param count    Number of samples to decode
+     * @param out      Data block to decode the samples into, starting at index 0
+     */
+    public void decode(ByteBuffer buffer, int position, int count, SensorDataBlock out) {
+        if (count > out.getCapacity()) {
+            throw new IllegalArgumentException("Data block too small (capacity: " + out.getCapacity() + ", samples: " + count + ")!");
+        }
+        if (buffer.order() != ByteOrder.LITTLE_ENDIAN) {
+            buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        for (int i = 0; i < count; i++) {
+            decodeSample(buffer, position + i * mSampleSize, i, out);
+        }
+        out.setSize(count);
+    }
+
+    /**
+     * Decodes a single sample into the given index of the data block.
+     *
+     * @param buffer   Little-endian buffer containing the raw sample
+     * @param position Position of the sample within the buffer
+     * @param index    Index in the data block
+     * @param out      Data block to decode the sample into
+     */
+    public void decodeSample(ByteBuffer buffer, int position, int index, SensorDataBlock out) {
+        if (mGyroOffset != NOT_AVAILABLE) {
+            double[] gyro = out.getGyroColumn();
+            for (int j = 0; j < 3; j++) {
+                gyro[3 * index + j] = buffer.getShort(position + mGyroOffset + 2 * j) / mGyroScalingFactor;
+            }
+        }
+
+        if (mAccOffset != NOT_AVAILABLE) {
+            double[] acc = out.getAccColumn();
+            for (int j = 0; j < 3; j++) {
+                acc[3 * index + j] = buffer.getShort(position + mAccOffset + 2 * j) / mAccScalingFactor;
+            }
+        }
+
+        if (mMagOffset != NOT_AVAILABLE) {
+            double[] mag = out.getMagColumn();
+            for (int j = 0; j < 3; j++) {
+                mag[3 * index + j] = buffer.getShort(position + mMagOffset + 2 * j);
+            }
+        }
+
+        if (mBaroOffset != NOT_AVAILABLE) {
+            out.getBaroColumn()[index] = (buffer.getShort(position + mBaroOffset) + 101325.0) / 100.0;
+        }
+
+        if (mAnalogOffset != NOT_AVAILABLE) {
+            double[] analog = out.getAnalogColumn();
+            for (int j = 0; j < 3; j++) {
+                if (mAnalog16Bit) {
+                    analog[3 * index + j] = buffer.getShort(position + mAnalogOffset + 2 * j) & 0xFFFF;
+                } else {
+                    analog[3 * index + j] = buffer.get(position + mAnalogOffset + j) & 0xFF;
+                }
+            }
+        }
+
+        if (mEcgOffset != NOT_AVAILABLE) {
+            out.getEcgColumn()[index] = buffer.getInt(position + mEcgOffset);
+        }
+
+        if (mPpgOffset != NOT_AVAILABLE) {
+            out.getPpgColumn()[index] = buffer.getInt(position + mPpgOffset);
+        }
+
+        if (mTempOffset != NOT_AVAILABLE) {
+            out.getTempColumn()[index] = buffer.getShort(position + mTempOffset) * (1.0 / 512) + 23;
+        }
+
+        out.getCounterColumn()[index] = buffer.getInt(position + mCounterOffset) & 0xFFFFFFFFL;
+    }
+}
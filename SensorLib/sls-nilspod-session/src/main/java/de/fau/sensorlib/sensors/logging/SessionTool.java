@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+
+package de.fau.sensorlib.sensors.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.fau.sensorlib.sensors.logging.ParallelSessionConverter.OutputFormat;
+
+/**
+ * Command line tool for batch processing of session files (.bin) downloaded from NilsPod sensors.
+ * <p>
+ * Usage:
+ * <pre>
+ * convert [-f csv|bin] [-t threads] &lt;input file or directory&gt; &lt;output directory&gt;
+ *     Converts every session file into one output file.
+ * merge [-f csv|bin] [-t threads] &lt;input directory&gt; &lt;output directory&gt;
+ *     Concatenates all sessions of the same sensor (identified by its MAC address) in chronological
+ *     order into one output file per sensor. The header of the first session is written.
+ * </pre>
+ * Input directories are searched recursively for session files. Converted files keep their path relative to the input
+ * directory.
+ */
+public class SessionTool {
+
+    private static final String SESSION_FILE_EXTENSION = ".bin";
+
+    private final OutputFormat mFormat;
+    private final int mNumThreads;
+
+    private static class SessionEntry {
+        private final File mFile;
+        private final SessionHeader mHeader;
+
+        private SessionEntry(File file, SessionHeader header) {
+            mFile = file;
+            mHeader = header;
+        }
+    }
+
+
+    public SessionTool(OutputFormat format, int numThreads) {
+        mFormat = format;
+        mNumThreads = numThreads;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            printUsage();
+            System.exit(2);
+        }
+
+        String command = args[0];
+        OutputFormat format = OutputFormat.CSV;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+
+        int i = 1;
+        try {
+            // options come first, each followed by exactly one value
+            while (i < args.length && args[i].startsWith("-")) {
+                String option = args[i++];
+                if (i >= args.length) {
+                    throw new IllegalArgumentException("Missing value for option " + option);
+                }
+                String value = args[i++];
+                switch (option) {
+                    case "-f":
+                        format = parseFormat(value);
+                        break;
+                    case "-t":
+                        numThreads = parseNumThreads(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + option);
+                }
+            }
+            if (args.length - i != 2) {
+                throw new IllegalArgumentException("Expected input and output directory, got " + (args.length - i) + " argument(s)");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(2);
+        }
+
+        File input = new File(args[i]);
+        File outputDir = new File(args[i + 1]);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            System.err.println("Output directory " + outputDir + " could not be created!");
+            System.exit(1);
+        }
+
+        SessionTool tool = new SessionTool(format, numThreads);
+        int numErrors;
+        switch (command) {
+            case "convert":
+                numErrors = tool.convert(input, outputDir);
+                break;
+            case "merge":
+                numErrors = tool.merge(input, outputDir);
+                break;
+            default:
+                System.err.println("Unknown command: " + command);
+                printUsage();
+                System.exit(2);
+                return;
+        }
+        System.exit(numErrors == 0 ? 0 : 1);
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage:");
+        System.err.println("  convert [-f csv|bin] [-t threads] <input file or directory> <output directory>");
+        System.err.println("  merge [-f csv|bin] [-t threads] <input directory> <output directory>");
+    }
+
+    private static OutputFormat parseFormat(String format) {
+        switch (format.toLowerCase(Locale.ROOT)) {
+            case "csv":
+                return OutputFormat.CSV;
+            case "bin":
+                return OutputFormat.BINARY;
+            default:
+                throw new IllegalArgumentException("Unknown output format: " + format);
+        }
+    }
+
+    private static int parseNumThreads(String numThreads) {
+        int value;
+        try {
+            value = Integer.parseInt(numThreads);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number of threads: " + numThreads);
+        }
+        if (value <= 0) {
+            throw new IllegalArgumentException("Number of threads must be positive!");
+        }
+        return value;
+    }
+
+    private String getOutputExtension() {
+        return (mFormat == OutputFormat.CSV) ? ".csv" : ".dat";
+    }
+
+    /**
+     * Converts all session files found in the input into separate output files.
+     * The directory structure below the input directory is mirrored in the output directory.
+     * Files are converted concurrently, and each file is split into chunks that are converted in parallel.
+     *
+     * @return Number of session files that could not be converted
+     */
+    public int convert(File input, File outputDir) {
+        List<File> sessionFiles = findSessionFiles(input);
+
+        // map every session to its output file first => two sessions must never write the same file
+        Map<File, File> outputFiles = new LinkedHashMap<>();
+        Map<File, File> sessionsPerOutput = new HashMap<>();
+        for (File sessionFile : sessionFiles) {
+            File outputFile = getOutputFile(input, sessionFile, outputDir);
+            File other = sessionsPerOutput.put(outputFile.getAbsoluteFile(), sessionFile);
+            if (other != null) {
+                System.err.println(other + " and " + sessionFile + " would both be converted to " + outputFile + ", aborting.");
+                return sessionFiles.size();
+            }
+            outputFiles.put(sessionFile, outputFile);
+        }
+
+        System.out.println("Converting " + sessionFiles.size() + " session(s) using " + mNumThreads + " thread(s)...");
+
+        AtomicInteger numErrors = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(mNumThreads);
+        ExecutorService fileExecutor = Executors.newFixedThreadPool(mNumThreads);
+        try (ParallelSessionConverter converter = new ParallelSessionConverter(pool)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Map.Entry<File, File> entry : outputFiles.entrySet()) {
+                File sessionFile = entry.getKey();
+                File outputFile = entry.getValue();
+                futures.add(fileExecutor.submit(() -> {
+                    try {
+                        File parent = outputFile.getParentFile();
+                        if (!parent.isDirectory() && !parent.mkdirs()) {
+                            throw new IOException("Output directory " + parent + " could not be created!");
+                        }
+                        long numSamples = converter.convert(sessionFile, outputFile, mFormat);
+                        System.out.println(sessionFile + ": " + numSamples + " samples => " + outputFile);
+                    } catch (IOException e) {
+                        numErrors.incrementAndGet();
+                        System.err.println(sessionFile + ": " + e.getMessage());
+                    }
+                }));
+            }
+            awaitAll(futures, numErrors);
+        } finally {
+            fileExecutor.shutdown();
+            pool.shutdown();
+        }
+        return numErrors.get();
+    }
+
+    /**
+     * Merges all sessions of the same sensor into one output file per sensor.
+     *
+     * @return Number of session files that could not be merged
+     */
+    public int merge(File inputDir, File outputDir) {
+        List<File> sessionFiles = findSessionFiles(inputDir);
+        int numErrors = 0;
+
+        // group sessions by sensor, only the headers are kept in memory
+        Map<String, List<SessionEntry>> sessionsPerSensor = new LinkedHashMap<>();
+        for (File sessionFile : sessionFiles) {
+            try (SessionReader reader = new SessionReader(sessionFile)) {
+                String macAddress = reader.getHeader().getMacAddress();
+                if (!sessionsPerSensor.containsKey(macAddress)) {
+                    sessionsPerSensor.put(macAddress, new ArrayList<>());
+                }
+                sessionsPerSensor.get(macAddress).add(new SessionEntry(sessionFile, reader.getHeader()));
+            } catch (IOException e) {
+                numErrors++;
+                System.err.println(sessionFile.getName() + ": " + e.getMessage());
+            }
+        }
+
+        System.out.println("Merging " + sessionFiles.size() + " session(s) of " + sessionsPerSensor.size() + " sensor(s) using " + mNumThreads + " thread(s)...");
+
+        ForkJoinPool pool = new ForkJoinPool(mNumThreads);
+        try (ParallelSessionConverter converter = new ParallelSessionConverter(pool)) {
+            for (Map.Entry<String, List<SessionEntry>> entry : sessionsPerSensor.entrySet()) {
+                numErrors += mergeSessions(converter, entry.getKey(), entry.getValue(), outputDir);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return numErrors;
+    }
+
+    private int mergeSessions(ParallelSessionConverter converter, String macAddress, List<SessionEntry> sessions, File outputDir) {
+        // sort sessions chronologically
+        Collections.sort(sessions, Comparator.comparingLong(session -> session.mHeader.getStartDate() & 0xFFFFFFFFL));
+
+        int numErrors = 0;
+        SessionHeader firstHeader = sessions.get(0).mHeader;
+        String[] columns = ParallelSessionConverter.getColumnNames(firstHeader);
+        File outputFile = new File(outputDir, "NilsPod-" + macAddress.replace(":", "") + getOutputExtension());
+        long numSamples = 0;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16)) {
+            converter.writeHeader(firstHeader, out, mFormat);
+            for (SessionEntry session : sessions) {
+                if (!Arrays.equals(columns, ParallelSessionConverter.getColumnNames(session.mHeader))) {
+                    numErrors++;
+                    System.err.println(session.mFile.getName() + ": enabled sensors differ from first session of " + macAddress + ", skipping.");
+                    continue;
+                }
+                try (SessionReader reader = new SessionReader(session.mFile)) {
+                    numSamples += converter.writeSamples(reader, out, mFormat);
+                }
+            }
+            System.out.println(macAddress + ": " + sessions.size() + " session(s), " + numSamples + " samples => " + outputFile.getName());
+        } catch (IOException e) {
+            System.err.println(macAddress + ": " + e.getMessage());
+            return sessions.size();
+        }
+        return numErrors;
+    }
+
+    private static void awaitAll(List<Future<?>> futures, AtomicInteger numErrors) {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                numErrors.incrementAndGet();
+                e.getCause().printStackTrace();
+            }
+        }
+    }
+
+    private static List<File> findSessionFiles(File input) {
+        List<File> sessionFiles = new ArrayList<>();
+        if (input.isFile()) {
+            sessionFiles.add(input);
+        } else {
+            File[] files = input.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    if (file.isDirectory()) {
+                        sessionFiles.addAll(findSessionFiles(file));
+                    } else if (file.getName().toLowerCase(Locale.ROOT).endsWith(SESSION_FILE_EXTENSION)) {
+                        sessionFiles.add(file);
+                    }
+                }
+            }
+        }
+        return sessionFiles;
+    }
+
+    /**
+     * Returns the output file of a session, at the same path relative to the output directory as the session
+     * relative to the input directory.
+     */
+    private File getOutputFile(File input, File sessionFile, File outputDir) {
+        String fileName = stripExtension(sessionFile.getName()) + getOutputExtension();
+        if (input.isFile()) {
+            return new File(outputDir, fileName);
+        }
+        Path relativeDir = input.toPath().toAbsolutePath().normalize()
+                .relativize(sessionFile.getParentFile().toPath().toAbsolutePath().normalize());
+        return outputDir.toPath().resolve(relativeDir).resolve(fileName).toFile();
+    }
+
+    private static String stripExtension(String fileName) {
+        int idx = fileName.lastIndexOf('.');
+        return (idx > 0) ? fileName.substring(0, idx) : fileName;
+    }
+}
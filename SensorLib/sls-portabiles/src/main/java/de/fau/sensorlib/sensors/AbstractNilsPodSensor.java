@@ -8,6 +8,7 @@
 
 package de.fau.sensorlib.sensors;
 
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.content.Context;
@@ -28,6 +29,7 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import de.fau.sensorlib.BleGattAttributes;
 import de.fau.sensorlib.HwSensorNotAvailableException;
@@ -46,10 +48,12 @@ import de.fau.sensorlib.sensors.enums.NilsPodGyroRange;
 import de.fau.sensorlib.sensors.enums.NilsPodIndicationLed;
 import de.fau.sensorlib.sensors.enums.NilsPodMotionInterrupt;
 import de.fau.sensorlib.sensors.enums.NilsPodOperationMode;
+import de.fau.sensorlib.sensors.enums.NilsPodSamplingRate;
 import de.fau.sensorlib.sensors.enums.NilsPodSensorPosition;
 import de.fau.sensorlib.sensors.enums.NilsPodSyncGroup;
 import de.fau.sensorlib.sensors.enums.NilsPodSyncRole;
 import de.fau.sensorlib.sensors.enums.NilsPodTimerMode;
+import de.fau.sensorlib.sensors.logging.SessionSampleDecoder;
 import de.fau.sensorlib.widgets.config.ConfigItem;
 import no.nordicsemi.android.dfu.DfuLogListener;
 import no.nordicsemi.android.dfu.DfuProgressListener;
@@ -96,8 +100,8 @@ public abstract class AbstractNilsPodSensor extends GenericBleSensor implements
         }
     }
 
-    public static final double BASE_SCALING_FACTOR_GYRO = 16.4;
-    public static final double BASE_SCALING_FACTOR_ACC = 2 << 14;
+    public static final double BASE_SCALING_FACTOR_GYRO = SessionSampleDecoder.BASE_SCALING_FACTOR_GYRO;
+    public static final double BASE_SCALING_FACTOR_ACC = SessionSampleDecoder.BASE_SCALING_FACTOR_ACC;
 
 
     protected static final int MESSAGE_OPERATION_STATE_CHANGED = 2000;
@@ -107,6 +111,7 @@ public abstract class AbstractNilsPodSensor extends GenericBleSensor implements
     protected static final int MESSAGE_SESSION_DOWNLOAD_PROGRESS = 2004;
     protected static final int MESSAGE_SESSION_DOWNLOAD_FINISHED = 2005;
     protected static final int MESSAGE_SENSOR_CONFIG_CHANGED = 2006;
+    protected static final int MESSAGE_CONFIG_TRANSACTION_COMPLETE = 2007;
 
     /**
      * UUID for Data Streaming Service of NilsPod sensor
@@ -265,15 +270,9 @@ public abstract class AbstractNilsPodSensor extends GenericBleSensor implements
     protected static SparseArray<Double> sSamplingRateCommands = new SparseArray<>();
 
     static {
-        sSamplingRateCommands.put(1, 1024.0);
-        sSamplingRateCommands.put(2, 512.0);
-        sSamplingRateCommands.put(4, 256.0);
-        sSamplingRateCommands.put(5, 204.8);
-        sSamplingRateCommands.put(10, 102.4);
-        sSamplingRateCommands.put(20, 51.2);
-        sSamplingRateCommands.put(40, 25.6);
-        sSamplingRateCommands.put(80, 12.8);
-        sSamplingRateCommands.put(160, 6.4);
+        for (NilsPodSamplingRate samplingRate : NilsPodSamplingRate.values()) {
+            sSamplingRateCommands.put(samplingRate.getCode(), samplingRate.getSamplingRate());
+        }
     }
 
     static {
@@ -378,6 +377,32 @@ public abstract class AbstractNilsPodSensor extends GenericBleSensor implements
 
     protected HashMap<String, Object> mCurrentConfigMap = new LinkedHashMap<>();
 
+    /**
+     * Commands that were sent while a config write was in progress
+     */
+    private ConcurrentLinkedQueue<byte[]> mPendingCommands = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Maximum time (in ms) to wait for the sensor to save a config write before deferred commands are sent anyway
+     */
+    protected static final long CONFIG_WRITE_TIMEOUT_MS = 5000;
+
+    /**
+     * Set if the sensor did not finish saving its config in time, cleared once the operation state changes
+     */
+    private volatile boolean mConfigWriteTimedOut;
+
+    /**
+     * Set if START_STREAMING is sent once all notifications are enabled, see {@link #startStreaming()}
+     */
+    private volatile boolean mStartStreamingPending;
+
+    private final Runnable mConfigWriteTimeoutRunnable = () -> {
+        if (isConfigWriteInProgress()) {
+            onConfigWriteTimeout();
+        }
+    };
+
     protected static class BasicNilsPodInternalHandler extends InternalHandler {
 
         public BasicNilsPodInternalHandler(AbstractNilsPodSensor sensor) {
@@ -469,6 +494,24 @@ public abstract class AbstractNilsPodSensor extends GenericBleSensor implements
     }
 
 
+    /**
+     * Enum describing the result of sending a command to the NilsPod
+     */
+    protected enum NilsPodCommandResult {
+        /**
+         * Command was written to the sensor
+         */
+        SENT,
+        /**
+         * Command is sent as soon as the sensor finished saving its config
+         */
+        DEFERRED,
+        /**
+         * Command could not be sent
+         */
+        FAILED
+    }
+
     /**
      * Enum describing the operation state of the NilsPod sensor
      */
@@ -640,19 +683,40 @@ public abstract class AbstractNilsPodSensor extends GenericBleSensor implements
     @Override
     public void startStreaming() {
         super.startStreaming();
+        if (hasPendingDescriptorWrites()) {
+            // commands are written with CONTROL priority and would overtake the notification enables
+            // => the first samples would be lost
+            Log.d(TAG, "<" + getDeviceName() + "> notifications not enabled yet, deferring START_STREAMING.");
+            mStartStreamingPending = true;
+            return;
+        }
+        sendStartStreamingCommand();
+    }
+
+    private void sendStartStreamingCommand() {
         // send START_STREAMING command to NilsPod
-        if (send(NilsPodSensorCommand.START_STREAMING)) {
+        if (send(NilsPodSensorCommand.START_STREAMING) != NilsPodCommandResult.FAILED) {
             enableRecorder();
         } else {
             Log.e(TAG, "startStreaming failed!");
         }
     }
 
+    @Override
+    protected void onAllGattNotificationsEnabled() {
+        super.onAllGattNotificationsEnabled();
+        if (mStartStreamingPending) {
+            mStartStreamingPending = false;
+            sendStartStreamingCommand();
+        }
+    }
+
     @Override
     public void stopStreaming() {
+        mStartStreamingPending = false;
         super.stopStreaming();
         // send STOP_STREAMING command to sensor
-        if (send(NilsPodSensorCommand.STOP_STREAMING)) {
+        if (send(NilsPodSensorCommand.STOP_STREAMING) != NilsPodCommandResult.FAILED) {
             disableRecorder();
         } else {
             Log.e(TAG, "stopStreaming failed!");
@@ -673,6 +737,12 @@ public abstract class AbstractNilsPodSensor extends GenericBleSensor implements
     protected void onStateChange(SensorState oldState, SensorState newState) {
         super.onStateChange(oldState, newState);
 
+        if (newState == SensorState.DISCONNECTED) {
+            mStartStreamingPending = false;
+            mPendingCommands.clear();
+            mInternalHandler.removeCallbacks(mConfigWriteTimeoutRunnable);
+        }
+
         if (newState == SensorState.CONNECTED) {
             if (oldState == SensorState.STREAMING && mShouldDisconnect) {
                 mShouldDisconnect = false;
@@ -684,7 +754,17 @@ public abstract class AbstractNilsPodSensor extends GenericBleSensor implements
     protected void onOperationStateChanged(NilsPodOperationState oldState, NilsPodOperationState newState) throws SensorException {
         Log.d(TAG, "<" + getDeviceName() + "> onOperationStateChanged: <" + oldState + "> -> <" + newState + ">");
 
+        if (oldState != NilsPodOperationState.SAVING_CONFIG || newState != NilsPodOperationState.SAVING_CONFIG) {
+            // sensor left (or newly entered) SAVING_CONFIG => a previous timeout no longer applies
+            mConfigWriteTimedOut = false;
+        }
+
         switch (oldState) {
+            case SAVING_CONFIG:
+                if (!isConfigWriteInProgress()) {
+                    sendPendingCommands();
+                }
+                break;
             case IDLE:
                 switch (newState) {
                     case STREAMING:
@@ -701,9 +781,31 @@ public abstract class AbstractNilsPodSensor extends GenericBleSensor implements
                 break;
         }
 
+        updateLinkProfile();
         sendOperationStateChanged(newState);
     }
 
+    @Override
+    protected BleLinkProfile inferLinkProfile() {
+        if (!isConnected()) {
+            return super.inferLinkProfile();
+        }
+        switch (mOperationState) {
+            case STREAMING:
+                return BleLinkProfile.STREAMING;
+            case SESSION_DOWNLOAD:
+            case SESSION_LIST:
+                return BleLinkProfile.BULK;
+            case IDLE:
+            case LOGGING:
+            case FLASH_ERASE:
+                return BleLinkProfile.IDLE;
+            default:
+                // keep the link profile while saving the config
+                return null;
+        }
+    }
+
     protected void sendOperationStateChanged(NilsPodOperationState operationState) {
         mInternalHandler.obtainMessage(MESSAGE_OPERATION_STATE_CHANGED, operationState).sendToTarget();
     }
@@ -753,37 +855,130 @@ public abstract class AbstractNilsPodSensor extends GenericBleSensor implements
      * Send command to sensor via Config Characteristic
      *
      * @param cmd Sensor Command
-     * @return true if data has been successfully sent, false otherwise
+     * @return {@link NilsPodCommandResult#SENT} if the command was sent, {@link NilsPodCommandResult#DEFERRED} if it
+     * is sent once the sensor finished saving its config, {@link NilsPodCommandResult#FAILED} otherwise
      */
-    protected boolean send(NilsPodSensorCommand cmd) {
+    protected NilsPodCommandResult send(NilsPodSensorCommand cmd) {
         Log.d(TAG, "Sending " + cmd + " command to " + getDeviceName());
-        if (!send(cmd.cmd)) {
+        NilsPodCommandResult result = send(cmd.cmd);
+        if (result == NilsPodCommandResult.FAILED) {
             Log.e(TAG, cmd + " failed!");
-            return false;
+        } else if (result == NilsPodCommandResult.DEFERRED) {
+            Log.d(TAG, cmd + " deferred until config is saved.");
         }
-        return true;
+        return result;
     }
 
-    protected boolean send(byte[] data) {
+    protected NilsPodCommandResult send(byte[] data) {
+        BluetoothGattCharacteristic characteristic = getCommandCharacteristic();
+        if (characteristic == null) {
+            return NilsPodCommandResult.FAILED;
+        }
+
+        if (isConfigWriteInProgress()) {
+            // sensor is busy saving its configuration => send command as soon as all config writes are done
+            Log.d(TAG, "<" + getDeviceName() + "> config write in progress, deferring command.");
+            boolean first = mPendingCommands.isEmpty();
+            mPendingCommands.add(data);
+            if (first) {
+                restartConfigWriteTimeout();
+            }
+            return NilsPodCommandResult.DEFERRED;
+        }
+
+        return writeCharacteristic(characteristic, data, GattOperationQueue.Priority.CONTROL) ? NilsPodCommandResult.SENT : NilsPodCommandResult.FAILED;
+    }
+
+    /**
+     * Writes a command with a precomputed payload to a previously resolved command characteristic
+     * (see {@link #getCommandCharacteristic()}), without any lookup, logging or deferring. Used by
+     * {@link NilsPodGroupController} to issue commands to several sensors back-to-back.
+     *
+     * @param characteristic Command characteristic of this sensor
+     * @param data           Command payload
+     * @return true if data has been successfully sent, false otherwise
+     */
+    protected boolean sendPrepared(BluetoothGattCharacteristic characteristic, byte[] data) {
+        return writeCharacteristic(characteristic, data, GattOperationQueue.Priority.CONTROL);
+    }
+
+    /**
+     * Returns the characteristic commands are sent to.
+     *
+     * @return The command characteristic or <code>null</code> if the sensor's services were not discovered (yet)
+     */
+    protected BluetoothGattCharacteristic getCommandCharacteristic() {
         if (getStreamingService() == null) {
             Log.w(TAG, "Service not found");
-            return false;
+            return null;
         }
         BluetoothGattCharacteristic characteristic = getStreamingService().getCharacteristic(NILS_POD_COMMANDS);
         if (characteristic == null) {
             Log.w(TAG, "Send characteristic not found");
-            return false;
         }
+        return characteristic;
+    }
 
-        while (getOperationState() == NilsPodOperationState.SAVING_CONFIG) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    /**
+     * Called by {@link NilsPodGroupController} right before the START_STREAMING command is issued to a group of
+     * sensors, instead of {@link #startStreaming()}. The controller waits until all notifications are enabled
+     * (see {@link #hasPendingDescriptorWrites()}) before issuing the command.
+     */
+    protected void onGroupStartStreaming() {
+        super.startStreaming();
+        enableRecorder();
+    }
+
+    /**
+     * Called by {@link NilsPodGroupController} right after the STOP_STREAMING command was issued to a group of
+     * sensors, instead of {@link #stopStreaming()}.
+     */
+    protected void onGroupStopStreaming() {
+        super.stopStreaming();
+        disableRecorder();
+    }
+
+    /**
+     * Checks whether the sensor is currently busy writing (and saving) configuration values.
+     * Commands sent during that time are deferred until {@link #sendPendingCommands()} is called.
+     *
+     * @return true if a config write is in progress, false otherwise
+     */
+    protected boolean isConfigWriteInProgress() {
+        return !mConfigWriteTimedOut && getOperationState() == NilsPodOperationState.SAVING_CONFIG;
+    }
+
+    /**
+     * Sends all commands that were deferred while a config write was in progress, in the order they were issued.
+     */
+    protected void sendPendingCommands() {
+        byte[] data;
+        while (!isConfigWriteInProgress() && (data = mPendingCommands.poll()) != null) {
+            send(data);
+        }
+        if (!isConfigWriteInProgress()) {
+            mInternalHandler.removeCallbacks(mConfigWriteTimeoutRunnable);
         }
+    }
 
-        return writeCharacteristic(characteristic, data);
+    /**
+     * (Re)starts the timeout for the config write in progress, see {@link #CONFIG_WRITE_TIMEOUT_MS}.
+     */
+    protected void restartConfigWriteTimeout() {
+        mInternalHandler.removeCallbacks(mConfigWriteTimeoutRunnable);
+        mInternalHandler.postDelayed(mConfigWriteTimeoutRunnable, CONFIG_WRITE_TIMEOUT_MS);
+    }
+
+    /**
+     * Called on the main thread if the sensor did not finish saving its config within {@link #CONFIG_WRITE_TIMEOUT_MS},
+     * e.g., because the transition from SAVING_CONFIG to IDLE was missed. The config write is considered finished,
+     * the system state is read again and all deferred commands are sent.
+     */
+    protected void onConfigWriteTimeout() {
+        Log.e(TAG, "<" + getDeviceName() + "> config write timed out, sending " + mPendingCommands.size() + " deferred command(s).");
+        mConfigWriteTimedOut = true;
+        readConfigCharacteristic(NILS_POD_SYSTEM_STATE);
+        sendPendingCommands();
     }
 
     public void addNilsPodCallback(NilsPodCallback callback) {
@@ -838,58 +1033,44 @@ public abstract class AbstractNilsPodSensor extends GenericBleSensor implements
     }
 
     @Override
-    protected boolean onNewCharacteristicValue(BluetoothGattCharacteristic characteristic, boolean isChange) {
-        if (super.onNewCharacteristicValue(characteristic, isChange)) {
-            return true;
-        } else {
-            if (NILS_POD_STREAMING.equals(characteristic.getUuid())) {
-                if (getOperationState() == NilsPodOperationState.STREAMING || isStreaming()) {
-                    extractSensorData(characteristic);
-                    return true;
-                }
-            } else if (NILS_POD_SYSTEM_STATE.equals(characteristic.getUuid())) {
-                try {
-                    extractSystemState(characteristic);
-                } catch (SensorException e) {
-                    handleSensorException(e);
-                }
-                return true;
-            } else if (NILS_POD_SYNC_CONFIG.equals(characteristic.getUuid())) {
-                try {
-                    extractSyncConfig(characteristic);
-                } catch (SensorException e) {
-                    handleSensorException(e);
-                }
-                return true;
-            } else if (NILS_POD_SENSOR_CONFIG.equals(characteristic.getUuid())) {
-                try {
-                    extractSensorConfig(characteristic);
-                } catch (SensorException e) {
-                    handleSensorException(e);
-                }
-                return true;
-            } else if (NILS_POD_SYSTEM_SETTINGS_CONFIG.equals(characteristic.getUuid())) {
-                try {
-                    extractSystemSettings(characteristic);
-                } catch (SensorException e) {
-                    handleSensorException(e);
-                }
-                return true;
-            } else if (NILS_POD_SAMPLING_RATE_CONFIG.equals(characteristic.getUuid())) {
-                try {
-                    extractSamplingRate(characteristic);
-                } catch (SensorException e) {
-                    handleSensorException(e);
-                }
-                return true;
-            } else if (NILS_POD_TIMER_CONFIG.equals(characteristic.getUuid())) {
-                try {
-                    extractTimerConfig(characteristic);
-                } catch (SensorException e) {
-                    handleSensorException(e);
-                }
-                return true;
+    protected void registerCharacteristicHandlers() {
+        super.registerCharacteristicHandlers();
+        setFastPathHandler(NILS_POD_STREAMING, (characteristic, value, isChange) -> onStreamingValue(value));
+        registerConfigHandler(NILS_POD_SYSTEM_STATE, this::extractSystemState);
+        registerConfigHandler(NILS_POD_SYNC_CONFIG, this::extractSyncConfig);
+        registerConfigHandler(NILS_POD_SENSOR_CONFIG, this::extractSensorConfig);
+        registerConfigHandler(NILS_POD_SYSTEM_SETTINGS_CONFIG, this::extractSystemSettings);
+        registerConfigHandler(NILS_POD_SAMPLING_RATE_CONFIG, this::extractSamplingRate);
+        registerConfigHandler(NILS_POD_TIMER_CONFIG, this::extractTimerConfig);
+    }
+
+    private interface ConfigExtractor {
+        void extract(BluetoothGattCharacteristic characteristic) throws SensorException;
+    }
+
+    private void registerConfigHandler(UUID uuid, ConfigExtractor extractor) {
+        registerCharacteristicHandler(uuid, (characteristic, value, isChange) -> {
+            // the extractors parse the characteristic's value, which is not updated by the callbacks of API >= 33
+            characteristic.setValue(value);
+            try {
+                extractor.extract(characteristic);
+            } catch (SensorException e) {
+                handleSensorException(e);
             }
+            return true;
+        });
+    }
+
+    /**
+     * Called for every packet received on the streaming characteristic.
+     *
+     * @param values Received packet
+     * @return true if the packet was processed, false otherwise
+     */
+    protected boolean onStreamingValue(byte[] values) {
+        if (getOperationState() == NilsPodOperationState.STREAMING || isStreaming()) {
+            extractSensorData(values);
+            return true;
         }
         return false;
     }
@@ -897,19 +1078,43 @@ public abstract class AbstractNilsPodSensor extends GenericBleSensor implements
     @Override
     protected void onNewCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
         super.onNewCharacteristicWrite(characteristic, status);
-        if (NILS_POD_SENSOR_CONFIG.equals(characteristic.getUuid()) || NILS_POD_SYNC_CONFIG.equals(characteristic.getUuid()) || NILS_POD_SYSTEM_SETTINGS_CONFIG.equals(characteristic.getUuid()) || NILS_POD_SAMPLING_RATE_CONFIG.equals(characteristic.getUuid())) {
+        if (isWritableConfigCharacteristic(characteristic.getUuid())) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                onConfigWriteFailed(characteristic, status);
+            }
             // sensor config was changed from app side => read characteristic to update
             readConfigCharacteristic(characteristic.getUuid());
         }
     }
 
+    /**
+     * Checks whether the characteristic is one of the config characteristics written by
+     * {@link NilsPodSensor#writeConfig(NilsPodConfigTransaction.OnCompleteListener)}.
+     */
+    private static boolean isWritableConfigCharacteristic(UUID uuid) {
+        return NILS_POD_SENSOR_CONFIG.equals(uuid) || NILS_POD_SYNC_CONFIG.equals(uuid) || NILS_POD_SYSTEM_SETTINGS_CONFIG.equals(uuid)
+                || NILS_POD_SAMPLING_RATE_CONFIG.equals(uuid) || NILS_POD_TIMER_CONFIG.equals(uuid);
+    }
+
+    /**
+     * Called if writing a config characteristic failed or timed out. Commands that were deferred because of the
+     * config write are sent afterwards.
+     *
+     * @param characteristic The config characteristic
+     * @param status         GATT status of the write
+     */
+    protected void onConfigWriteFailed(BluetoothGattCharacteristic characteristic, int status) {
+        Log.e(TAG, "<" + getDeviceName() + "> writing " + BleGattAttributes.lookupCharacteristic(characteristic.getUuid()) + " failed with status " + status + ".");
+        sendPendingCommands();
+    }
+
 
     /**
-     * Extracts sensor data into data frames from the given characteristic.
+     * Extracts sensor data into data frames from the given streaming packet.
      *
-     * @param characteristic Received characteristic from the BLE API
+     * @param values Received packet from the BLE API. Not shared with subsequent packets, so it can be used without copying.
      */
-    protected abstract void extractSensorData(BluetoothGattCharacteristic characteristic);
+    protected abstract void extractSensorData(byte[] values);
 
     /**
      * Returns a reference to the BluetoothGattService of the NilsPodStreamingService.
@@ -1256,8 +1461,9 @@ public abstract class AbstractNilsPodSensor extends GenericBleSensor implements
 
         starter.start(getContext(), NilsPodDfuService.class);
 
-        DfuServiceListenerHelper.registerLogListener(getContext(), mDfuLogListener);
-        DfuServiceListenerHelper.registerProgressListener(getContext(), mDfuProgressListener);
+        // only listen to this device, other devices might be upgraded at the same time
+        DfuServiceListenerHelper.registerLogListener(getContext(), mDfuLogListener, getDeviceAddress());
+        DfuServiceListenerHelper.registerProgressListener(getContext(), mDfuProgressListener, getDeviceAddress());
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             DfuServiceInitiator.createDfuNotificationChannel(getContext());
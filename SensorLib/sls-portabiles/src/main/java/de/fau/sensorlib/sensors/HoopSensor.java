@@ -11,6 +11,8 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Context;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
 import de.fau.sensorlib.SensorDataProcessor;
@@ -76,13 +78,13 @@ public class HoopSensor extends AbstractNilsPodSensor {
     }
 
     /**
-     * Extracts sensor data into data frames from the given characteristic.
+     * Extracts sensor data into data frames from the given streaming packet.
      *
-     * @param characteristic Received characteristic from the BLE API
+     * @param values Received packet from the BLE API
      */
     @Override
-    protected void extractSensorData(BluetoothGattCharacteristic characteristic) {
-        byte[] values = characteristic.getValue();
+    protected void extractSensorData(byte[] values) {
+        ByteBuffer buffer = ByteBuffer.wrap(values).order(ByteOrder.LITTLE_ENDIAN);
 
         // one data packet always has size mSampleSize
         if (values.length % mSampleSize != 0) {
@@ -99,12 +101,12 @@ public class HoopSensor extends AbstractNilsPodSensor {
 
             // extract gyroscope data
             for (int j = 0; j < 3; j++) {
-                gyro[j] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, offset);
+                gyro[j] = buffer.getShort(offset);
                 offset += 2;
             }
             // extract accelerometer data
             for (int j = 0; j < 3; j++) {
-                accel[j] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, offset);
+                accel[j] = buffer.getShort(offset);
                 offset += 2;
             }
 
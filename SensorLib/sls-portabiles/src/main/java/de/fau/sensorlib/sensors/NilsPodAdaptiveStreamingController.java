@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+
+package de.fau.sensorlib.sensors;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import de.fau.sensorlib.enums.HardwareSensor;
+import de.fau.sensorlib.enums.SensorState;
+import de.fau.sensorlib.sensors.AbstractNilsPodSensor.NilsPodOperationState;
+
+/**
+ * Adapts the streaming configuration of {@link NilsPodSensor}s to the observed BLE packet loss.
+ * <p>
+ * For every sensor, a running loss rate (exponentially weighted over evaluation intervals) is computed from the
+ * gaps in the sample counter (see {@link NilsPodSensor#getNumLostSamples()}). When the loss rate exceeds the
+ * loss threshold, the data rate is stepped down: the low-priority channels (magnetometer, barometer) are disabled
+ * first, then the sampling rate is lowered to the next supported rate, down to a minimum sampling rate. When the
+ * loss rate stays below the stable threshold for the stable duration, the last step is reverted.
+ * <p>
+ * The NilsPod only accepts configuration changes while idle, so every step stops streaming, writes the new
+ * configuration as one {@link NilsPodConfigTransaction} and restarts streaming. All methods have to be called
+ * from the main thread.
+ */
+public class NilsPodAdaptiveStreamingController {
+
+    private static final String TAG = NilsPodAdaptiveStreamingController.class.getSimpleName();
+
+    public static final double DEFAULT_LOSS_THRESHOLD = 0.05;
+    public static final double DEFAULT_STABLE_THRESHOLD = 0.01;
+    public static final long DEFAULT_STABLE_DURATION_MS = 30000;
+    public static final long DEFAULT_EVALUATION_INTERVAL_MS = 1000;
+    public static final double DEFAULT_MIN_SAMPLING_RATE = 51.2;
+
+    /**
+     * Weight of the latest evaluation interval in the running loss rate
+     */
+    private static final double LOSS_RATE_ALPHA = 0.3;
+    /**
+     * Minimum number of expected samples in an evaluation interval to update the running loss rate
+     */
+    private static final int MIN_SAMPLES_PER_INTERVAL = 10;
+    /**
+     * Number of evaluation intervals to wait after a step before the loss rate is evaluated again
+     */
+    private static final int NUM_SETTLING_INTERVALS = 5;
+
+    /**
+     * Low-priority channels, in the order they are disabled
+     */
+    private static final HardwareSensor[] LOW_PRIORITY_CHANNELS = {HardwareSensor.MAGNETOMETER, HardwareSensor.BAROMETER};
+
+    public interface AdaptationListener {
+        /**
+         * Called on the main thread when a sensor's streaming configuration was adapted.
+         *
+         * @param sensor   The sensor
+         * @param step     The applied (or reverted) step
+         * @param stepDown <code>true</code> if the step was applied because of packet loss,
+         *                 <code>false</code> if it was reverted because the link was stable again
+         * @param lossRate Running loss rate that triggered the adaptation
+         */
+        void onStreamingAdapted(NilsPodSensor sensor, AdaptationStep step, boolean stepDown, double lossRate);
+    }
+
+    /**
+     * One step of reducing the streamed data rate: either disabling a hardware sensor or lowering the sampling rate.
+     */
+    public static class AdaptationStep {
+        private final HardwareSensor mDisabledSensor;
+        private final double mFromSamplingRate;
+        private final double mToSamplingRate;
+
+        private AdaptationStep(HardwareSensor disabledSensor) {
+            mDisabledSensor = disabledSensor;
+            mFromSamplingRate = 0.0;
+            mToSamplingRate = 0.0;
+        }
+
+        private AdaptationStep(double fromSamplingRate, double toSamplingRate) {
+            mDisabledSensor = null;
+            mFromSamplingRate = fromSamplingRate;
+            mToSamplingRate = toSamplingRate;
+        }
+
+        /**
+         * Returns the hardware sensor disabled by this step, or <code>null</code> if this step lowers the sampling rate.
+         */
+        public HardwareSensor getDisabledSensor() {
+            return mDisabledSensor;
+        }
+
+        public double getFromSamplingRate() {
+            return mFromSamplingRate;
+        }
+
+        public double getToSamplingRate() {
+            return mToSamplingRate;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            if (mDisabledSensor != null) {
+                return "disable " + mDisabledSensor;
+            }
+            return "sampling rate " + mFromSamplingRate + " Hz -> " + mToSamplingRate + " Hz";
+        }
+    }
+
+    private enum Phase {
+        MONITORING,
+        STOPPING,
+        WRITING_CONFIG,
+        RESTARTING
+    }
+
+    private static class LinkState {
+        private Phase mPhase = Phase.MONITORING;
+        private long mLastNumReceived;
+        private long mLastNumLost;
+        private double mLossRate;
+        private int mNumSettlingIntervals = NUM_SETTLING_INTERVALS;
+        private long mStableSince;
+        private final Deque<AdaptationStep> mAppliedSteps = new ArrayDeque<>();
+        private AdaptationStep mPendingStep;
+        private boolean mPendingStepDown;
+        private HashMap<String, Object> mPreviousConfig;
+
+        private void resetStatistics(NilsPodSensor sensor) {
+            mLastNumReceived = sensor.getNumReceivedSamples();
+            mLastNumLost = sensor.getNumLostSamples();
+            mLossRate = 0.0;
+            mNumSettlingIntervals = NUM_SETTLING_INTERVALS;
+            mStableSince = 0;
+        }
+    }
+
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<NilsPodSensor, LinkState> mLinkStates = new LinkedHashMap<>();
+    private AdaptationListener mListener;
+
+    private double mLossThreshold = DEFAULT_LOSS_THRESHOLD;
+    private double mStableThreshold = DEFAULT_STABLE_THRESHOLD;
+    private long mStableDurationMs = DEFAULT_STABLE_DURATION_MS;
+    private long mEvaluationIntervalMs = DEFAULT_EVALUATION_INTERVAL_MS;
+    private double mMinSamplingRate = DEFAULT_MIN_SAMPLING_RATE;
+    private boolean mChannelAdaptationEnabled = true;
+
+    private boolean mRunning;
+
+    private final Runnable mEvaluationRunnable = new Runnable() {
+        @Override
+        public void run() {
+            for (Map.Entry<NilsPodSensor, LinkState> entry : mLinkStates.entrySet()) {
+                evaluate(entry.getKey(), entry.getValue());
+            }
+            if (mRunning) {
+                mHandler.postDelayed(this, mEvaluationIntervalMs);
+            }
+        }
+    };
+
+
+    public void setAdaptationListener(AdaptationListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the running loss rate (0.0 - 1.0) above which the data rate is stepped down.
+     */
+    public void setLossThreshold(double lossThreshold) {
+        mLossThreshold = lossThreshold;
+    }
+
+    /**
+     * Sets the running loss rate (0.0 - 1.0) below which the link is considered stable.
+     */
+    public void setStableThreshold(double stableThreshold) {
+        mStableThreshold = stableThreshold;
+    }
+
+    /**
+     * Sets how long the link has to be stable before the last step is reverted.
+     */
+    public void setStableDuration(long stableDurationMs) {
+        mStableDurationMs = stableDurationMs;
+    }
+
+    public void setEvaluationInterval(long evaluationIntervalMs) {
+        mEvaluationIntervalMs = evaluationIntervalMs;
+    }
+
+    /**
+     * Sets the sampling rate (in Hz) the controller never steps below.
+     */
+    public void setMinSamplingRate(double minSamplingRate) {
+        mMinSamplingRate = minSamplingRate;
+    }
+
+    /**
+     * Sets whether low-priority channels (magnetometer, barometer) may be disabled before the sampling rate is lowered.
+     */
+    public void setChannelAdaptationEnabled(boolean enabled) {
+        mChannelAdaptationEnabled = enabled;
+    }
+
+    public void addSensor(NilsPodSensor sensor) {
+        if (!mLinkStates.containsKey(sensor)) {
+            LinkState state = new LinkState();
+            state.resetStatistics(sensor);
+            mLinkStates.put(sensor, state);
+        }
+    }
+
+    public void removeSensor(NilsPodSensor sensor) {
+        mLinkStates.remove(sensor);
+    }
+
+    public void start() {
+        if (!mRunning) {
+            mRunning = true;
+            mHandler.postDelayed(mEvaluationRunnable, mEvaluationIntervalMs);
+        }
+    }
+
+    public void stop() {
+        mRunning = false;
+        mHandler.removeCallbacks(mEvaluationRunnable);
+    }
+
+    /**
+     * Returns the running loss rate (0.0 - 1.0) of the given sensor.
+     */
+    public double getLossRate(NilsPodSensor sensor) {
+        LinkState state = mLinkStates.get(sensor);
+        return (state == null) ? 0.0 : state.mLossRate;
+    }
+
+    /**
+     * Returns the steps currently applied to the given sensor, the most recent one first.
+     */
+    public List<AdaptationStep> getAppliedSteps(NilsPodSensor sensor) {
+        LinkState state = mLinkStates.get(sensor);
+        return (state == null) ? new ArrayList<>() : new ArrayList<>(state.mAppliedSteps);
+    }
+
+    private void evaluate(NilsPodSensor sensor, LinkState state) {
+        if (sensor.getState().ordinal() < SensorState.CONNECTED.ordinal()) {
+            // connection lost, a pending step is lost as well
+            state.mPhase = Phase.MONITORING;
+            state.mPendingStep = null;
+            state.resetStatistics(sensor);
+            return;
+        }
+
+        switch (state.mPhase) {
+            case MONITORING:
+                updateLossRate(sensor, state);
+                break;
+            case STOPPING:
+                if (sensor.getOperationState() == NilsPodOperationState.IDLE) {
+                    writeAdaptedConfig(sensor, state);
+                }
+                return;
+            case WRITING_CONFIG:
+                return;
+            case RESTARTING:
+                if (sensor.getOperationState() == NilsPodOperationState.STREAMING) {
+                    state.mPhase = Phase.MONITORING;
+                    state.resetStatistics(sensor);
+                }
+                return;
+        }
+
+        if (state.mNumSettlingIntervals > 0) {
+            return;
+        }
+
+        if (state.mLossRate > mLossThreshold) {
+            state.mStableSince = 0;
+            AdaptationStep step = nextStepDown(sensor);
+            if (step != null) {
+                beginAdaptation(sensor, state, step, true);
+            }
+        } else if (state.mLossRate < mStableThreshold) {
+            long now = SystemClock.elapsedRealtime();
+            if (state.mStableSince == 0) {
+                state.mStableSince = now;
+            } else if (now - state.mStableSince >= mStableDurationMs && !state.mAppliedSteps.isEmpty()) {
+                beginAdaptation(sensor, state, state.mAppliedSteps.peek(), false);
+            }
+        } else {
+            state.mStableSince = 0;
+        }
+    }
+
+    private void updateLossRate(NilsPodSensor sensor, LinkState state) {
+        long numReceived = sensor.getNumReceivedSamples();
+        long numLost = sensor.getNumLostSamples();
+        long receivedDiff = numReceived - state.mLastNumReceived;
+        long lostDiff = numLost - state.mLastNumLost;
+
+        if (sensor.getOperationState() != NilsPodOperationState.STREAMING || receivedDiff < 0 || lostDiff < 0) {
+            // not streaming or streaming was restarted in the meantime
+            state.resetStatistics(sensor);
+            return;
+        }
+        if (receivedDiff + lostDiff < MIN_SAMPLES_PER_INTERVAL) {
+            return;
+        }
+
+        state.mLastNumReceived = numReceived;
+        state.mLastNumLost = numLost;
+        double intervalLossRate = (double) lostDiff / (receivedDiff + lostDiff);
+        if (state.mNumSettlingIntervals == NUM_SETTLING_INTERVALS) {
+            state.mLossRate = intervalLossRate;
+        } else {
+            state.mLossRate = LOSS_RATE_ALPHA * intervalLossRate + (1 - LOSS_RATE_ALPHA) * state.mLossRate;
+        }
+        if (state.mNumSettlingIntervals > 0) {
+            state.mNumSettlingIntervals--;
+        }
+    }
+
+    /**
+     * Returns the next step to reduce the streamed data rate of the given sensor, or <code>null</code> if the data
+     * rate cannot be reduced any further.
+     */
+    private AdaptationStep nextStepDown(NilsPodSensor sensor) {
+        if (mChannelAdaptationEnabled) {
+            for (HardwareSensor channel : LOW_PRIORITY_CHANNELS) {
+                if (sensor.isSensorEnabled(channel)) {
+                    return new AdaptationStep(channel);
+                }
+            }
+        }
+
+        // next lower sampling rate supported by the sensor
+        double samplingRate = sensor.getSamplingRate();
+        double nextSamplingRate = 0.0;
+        for (int i = 0; i < AbstractNilsPodSensor.sSamplingRateCommands.size(); i++) {
+            double rate = AbstractNilsPodSensor.sSamplingRateCommands.valueAt(i);
+            if (rate < samplingRate && rate >= mMinSamplingRate && rate > nextSamplingRate) {
+                nextSamplingRate = rate;
+            }
+        }
+        return (nextSamplingRate > 0.0) ? new AdaptationStep(samplingRate, nextSamplingRate) : null;
+    }
+
+    private void beginAdaptation(NilsPodSensor sensor, LinkState state, AdaptationStep step, boolean stepDown) {
+        Log.d(TAG, "<" + sensor.getDeviceName() + "> loss rate " + String.format(Locale.getDefault(), "%.1f %%", state.mLossRate * 100) +
+                ", " + (stepDown ? "applying" : "reverting") + " step: " + step);
+        state.mPendingStep = step;
+        state.mPendingStepDown = stepDown;
+        state.mPhase = Phase.STOPPING;
+        sensor.stopStreaming();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeAdaptedConfig(NilsPodSensor sensor, LinkState state) {
+        AdaptationStep step = state.mPendingStep;
+        boolean stepDown = state.mPendingStepDown;
+        HashMap<String, Object> currentConfig = sensor.getCurrentConfig();
+        HashMap<String, Object> config = new HashMap<>();
+
+        if (step.mDisabledSensor != null) {
+            ArrayList<HardwareSensor> sensors = new ArrayList<>((List<HardwareSensor>) currentConfig.get(AbstractNilsPodSensor.KEY_HARDWARE_SENSORS));
+            if (stepDown) {
+                sensors.remove(step.mDisabledSensor);
+            } else if (!sensors.contains(step.mDisabledSensor)) {
+                sensors.add(step.mDisabledSensor);
+            }
+            config.put(AbstractNilsPodSensor.KEY_HARDWARE_SENSORS, sensors);
+        } else {
+            double samplingRate = stepDown ? step.mToSamplingRate : step.mFromSamplingRate;
+            config.put(AbstractNilsPodSensor.KEY_SAMPLING_RATE, AbstractNilsPodSensor.getSamplingRateString(samplingRate));
+        }
+
+        state.mPreviousConfig = new HashMap<>();
+        for (String key : config.keySet()) {
+            if (currentConfig.get(key) != null) {
+                state.mPreviousConfig.put(key, currentConfig.get(key));
+            }
+        }
+
+        state.mPhase = Phase.WRITING_CONFIG;
+        sensor.setCurrentConfig(config);
+        sensor.writeConfig((configuredSensor, transaction) -> onConfigWritten(configuredSensor, transaction.isSuccessful()));
+    }
+
+    private void onConfigWritten(NilsPodSensor sensor, boolean successful) {
+        LinkState state = mLinkStates.get(sensor);
+        if (state == null || state.mPhase != Phase.WRITING_CONFIG) {
+            return;
+        }
+
+        AdaptationStep step = state.mPendingStep;
+        state.mPendingStep = null;
+        if (successful) {
+            if (state.mPendingStepDown) {
+                state.mAppliedSteps.push(step);
+            } else {
+                state.mAppliedSteps.remove(step);
+            }
+            if (mListener != null) {
+                mListener.onStreamingAdapted(sensor, step, state.mPendingStepDown, state.mLossRate);
+            }
+        } else {
+            Log.e(TAG, "<" + sensor.getDeviceName() + "> writing adapted config failed: " + step);
+            sensor.setCurrentConfig(state.mPreviousConfig);
+        }
+
+        state.mPhase = Phase.RESTARTING;
+        sensor.startStreaming();
+    }
+}
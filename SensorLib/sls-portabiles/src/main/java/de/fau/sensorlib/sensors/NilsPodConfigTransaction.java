@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+
+package de.fau.sensorlib.sensors;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A batch of configuration writes to a {@link NilsPodSensor} (see {@link NilsPodSensor#writeConfig(OnCompleteListener)}).
+ * <p>
+ * All config characteristics that changed are queued at once and written back-to-back, each followed by the
+ * sensor's save cycle. The transaction completes when the last write has been saved (or when a write failed),
+ * which can either be observed via {@link OnCompleteListener} or by blocking on {@link #await(long, TimeUnit)}.
+ */
+public class NilsPodConfigTransaction {
+
+    public interface OnCompleteListener {
+        /**
+         * Called on the main thread when the config transaction completed.
+         *
+         * @param sensor      The sensor that was configured
+         * @param transaction The completed transaction. Check {@link #isSuccessful()} for the result
+         */
+        void onConfigTransactionComplete(NilsPodSensor sensor, NilsPodConfigTransaction transaction);
+    }
+
+    private final OnCompleteListener mListener;
+
+    private final CountDownLatch mCompletionLatch = new CountDownLatch(1);
+
+    private int mNumWrites;
+    private int mNumRemainingWrites;
+
+    private volatile boolean mComplete;
+    private volatile boolean mSuccessful;
+
+
+    NilsPodConfigTransaction(OnCompleteListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns the number of config characteristics written in this transaction. Unchanged config values are not written.
+     */
+    public int getNumWrites() {
+        return mNumWrites;
+    }
+
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    public boolean isSuccessful() {
+        return mSuccessful;
+    }
+
+    /**
+     * Blocks until the transaction completed. Must not be called from the main thread.
+     *
+     * @param timeout Maximum time to wait
+     * @param unit    Time unit of the timeout
+     * @return <code>true</code> if all config writes were saved successfully, <code>false</code> if a write failed
+     * or the transaction did not complete within the timeout
+     * @throws InterruptedException if the waiting thread was interrupted
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return mCompletionLatch.await(timeout, unit) && mSuccessful;
+    }
+
+    synchronized void addWrite() {
+        mNumWrites++;
+        mNumRemainingWrites++;
+    }
+
+    /**
+     * Called when one config write of this transaction was saved.
+     *
+     * @return <code>true</code> if this was the last write of this transaction
+     */
+    synchronized boolean onWriteSaved() {
+        mNumRemainingWrites--;
+        return mNumRemainingWrites <= 0;
+    }
+
+    /**
+     * Marks this transaction as complete.
+     *
+     * @return <code>true</code> if the transaction was completed by this call, <code>false</code> if it was already complete
+     */
+    synchronized boolean complete(boolean successful) {
+        if (mComplete) {
+            return false;
+        }
+        mSuccessful = successful;
+        mComplete = true;
+        mCompletionLatch.countDown();
+        return true;
+    }
+
+    void dispatchComplete(NilsPodSensor sensor) {
+        if (mListener != null) {
+            mListener.onConfigTransactionComplete(sensor, this);
+        }
+    }
+}
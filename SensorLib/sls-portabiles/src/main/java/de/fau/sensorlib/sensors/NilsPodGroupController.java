@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+
+package de.fau.sensorlib.sensors;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import de.fau.sensorlib.SensorException;
+import de.fau.sensorlib.enums.SensorState;
+import de.fau.sensorlib.sensors.AbstractNilsPodSensor.NilsPodOperationState;
+import de.fau.sensorlib.sensors.enums.NilsPodSyncGroup;
+import de.fau.sensorlib.sensors.enums.NilsPodSyncRole;
+
+/**
+ * Starts and stops streaming or logging on a group of {@link NilsPodSensor}s with as little skew as possible.
+ * <p>
+ * Usage: call {@link #prepare()} once all sensors are connected, then issue one group command (e.g.,
+ * {@link #startStreaming()}). Preparing checks that no sensor is busy, resolves the command characteristics,
+ * and requests a high connection priority so that writes go out in the next (short) connection interval.
+ * The command is then written to all sensors back-to-back from one scheduler thread with a precomputed
+ * payload. Every group command consumes the preparation, i.e., {@link #prepare()} has to be called again
+ * before the next one.
+ * <p>
+ * If all sensors are configured in the same {@link NilsPodSyncGroup} with exactly one
+ * {@link NilsPodSyncRole#SYNC_ROLE_MASTER}, the group is considered synchronized: commands are issued to
+ * the slaves first and to the master last, so that all slaves are already waiting for the master's sync
+ * packets when it starts. After START_STREAMING, the achieved start skew is measured from each sensor's first
+ * sample counter (see {@link StartSkewReport}).
+ */
+public class NilsPodGroupController {
+
+    private static final String TAG = NilsPodGroupController.class.getSimpleName();
+
+    /**
+     * Default time to wait for the first sample of every sensor after START_STREAMING
+     */
+    public static final long DEFAULT_SKEW_MEASUREMENT_TIMEOUT_MS = 3000;
+
+    /**
+     * Maximum time to wait for notifications to be enabled before START_STREAMING is issued
+     */
+    private static final long NOTIFICATION_ENABLE_TIMEOUT_MS = 1000;
+
+    public enum GroupCommand {
+        START_STREAMING(AbstractNilsPodSensor.NilsPodSensorCommand.START_STREAMING),
+        STOP_STREAMING(AbstractNilsPodSensor.NilsPodSensorCommand.STOP_STREAMING),
+        START_LOGGING(AbstractNilsPodSensor.NilsPodSensorCommand.START_LOGGING),
+        STOP_LOGGING(AbstractNilsPodSensor.NilsPodSensorCommand.STOP_LOGGING);
+
+        private final AbstractNilsPodSensor.NilsPodSensorCommand mSensorCommand;
+
+        GroupCommand(AbstractNilsPodSensor.NilsPodSensorCommand sensorCommand) {
+            mSensorCommand = sensorCommand;
+        }
+    }
+
+    public interface GroupCallback {
+        /**
+         * Called on the main thread when a command was issued to all sensors of the group.
+         *
+         * @param controller       The group controller
+         * @param command          The issued command
+         * @param issueSpreadNanos Time between issuing the command to the first and to the last sensor, in ns
+         */
+        void onGroupCommandIssued(NilsPodGroupController controller, GroupCommand command, long issueSpreadNanos);
+
+        /**
+         * Called on the main thread when the first sample of every sensor was received after START_STREAMING,
+         * or when the skew measurement timed out.
+         *
+         * @param controller The group controller
+         * @param report     The measured start skew
+         */
+        void onStartSkewMeasured(NilsPodGroupController controller, StartSkewReport report);
+    }
+
+    /**
+     * Notified (once) by a {@link NilsPodSensor} about its first streamed sample.
+     */
+    interface FirstSampleListener {
+        /**
+         * @param sensor           The sensor
+         * @param counter          16 bit sample counter of the first sample
+         * @param samplesInPacket  Number of samples in the BLE packet containing the first sample
+         * @param receiveTimeNanos Time the packet was received, in {@link SystemClock#elapsedRealtimeNanos()}
+         */
+        void onFirstSample(NilsPodSensor sensor, int counter, int samplesInPacket, long receiveTimeNanos);
+    }
+
+    private static class FirstSample {
+        private final int mCounter;
+        private final int mSamplesInPacket;
+        private final long mReceiveTimeNanos;
+
+        private FirstSample(int counter, int samplesInPacket, long receiveTimeNanos) {
+            mCounter = counter;
+            mSamplesInPacket = samplesInPacket;
+            mReceiveTimeNanos = receiveTimeNanos;
+        }
+    }
+
+    /**
+     * Start skew of a group of sensors, measured from the first streamed sample of each sensor.
+     * <p>
+     * For a synchronized group, the sample counters of all sensors share the master's timebase, so the offsets
+     * are exact multiples of the sampling period. Otherwise, the sampling time of each first sample is
+     * estimated from the reception time of its BLE packet, which additionally includes the jitter of the
+     * BLE connection intervals.
+     */
+    public static class StartSkewReport {
+        private final boolean mSynchronized;
+        private final long mIssueSpreadNanos;
+        private final Map<NilsPodSensor, Double> mStartOffsets;
+        private final List<NilsPodSensor> mMissingSensors;
+
+        private StartSkewReport(boolean isSynchronized, long issueSpreadNanos, Map<NilsPodSensor, Double> startOffsets, List<NilsPodSensor> missingSensors) {
+            mSynchronized = isSynchronized;
+            mIssueSpreadNanos = issueSpreadNanos;
+            mStartOffsets = startOffsets;
+            mMissingSensors = missingSensors;
+        }
+
+        /**
+         * Returns whether the offsets were computed from synchronized sample counters.
+         */
+        public boolean isSynchronized() {
+            return mSynchronized;
+        }
+
+        /**
+         * Returns the time between issuing START_STREAMING to the first and to the last sensor, in ms.
+         */
+        public double getIssueSpreadMillis() {
+            return mIssueSpreadNanos / 1e6;
+        }
+
+        /**
+         * Returns the start offset of the given sensor relative to the earliest sensor of the group, in ms.
+         *
+         * @return The start offset or {@link Double#NaN} if no sample was received from this sensor
+         */
+        public double getStartOffsetMillis(NilsPodSensor sensor) {
+            Double offset = mStartOffsets.get(sensor);
+            return (offset == null) ? Double.NaN : offset;
+        }
+
+        /**
+         * Returns the difference between the latest and the earliest start of all sensors, in ms.
+         *
+         * @return The start skew or {@link Double#NaN} if no sample was received at all
+         */
+        public double getSkewMillis() {
+            if (mStartOffsets.isEmpty()) {
+                return Double.NaN;
+            }
+            return Collections.max(mStartOffsets.values());
+        }
+
+        /**
+         * Returns the sensors no sample was received from within the measurement timeout.
+         */
+        public List<NilsPodSensor> getMissingSensors() {
+            return mMissingSensors;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format(Locale.getDefault(), "skew: %.2f ms (%s), issue spread: %.2f ms",
+                    getSkewMillis(), mSynchronized ? "synchronized" : "estimated", getIssueSpreadMillis()));
+            for (Map.Entry<NilsPodSensor, Double> entry : mStartOffsets.entrySet()) {
+                builder.append(String.format(Locale.getDefault(), "\n<%s>: +%.2f ms", entry.getKey().getDeviceName(), entry.getValue()));
+            }
+            for (NilsPodSensor sensor : mMissingSensors) {
+                builder.append("\n<").append(sensor.getDeviceName()).append(">: no sample");
+            }
+            return builder.toString();
+        }
+    }
+
+
+    private final List<NilsPodSensor> mSensors;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mSchedulerThread;
+    private Handler mScheduler;
+
+    private GroupCallback mCallback;
+    private long mSkewMeasurementTimeoutMs = DEFAULT_SKEW_MEASUREMENT_TIMEOUT_MS;
+
+    /**
+     * Command characteristics of the sensors, in the same order as {@link #mSensors}
+     */
+    private BluetoothGattCharacteristic[] mCommandCharacteristics;
+    private boolean mPrepared;
+    private boolean mSynchronized;
+    private NilsPodSensor mSyncMaster;
+
+    /**
+     * State of the current skew measurement, only accessed from the scheduler thread
+     */
+    private final Map<NilsPodSensor, FirstSample> mFirstSamples = new HashMap<>();
+    private List<NilsPodSensor> mMeasuredSensors = Collections.emptyList();
+    private NilsPodSensor mMeasuredSyncMaster;
+    private long mStartIssueSpreadNanos;
+
+    private final FirstSampleListener mFirstSampleListener = (sensor, counter, samplesInPacket, receiveTimeNanos) -> {
+        Handler scheduler = mScheduler;
+        if (scheduler != null) {
+            scheduler.post(() -> onFirstSample(sensor, new FirstSample(counter, samplesInPacket, receiveTimeNanos)));
+        }
+    };
+
+    private final Runnable mSkewMeasurementTimeout = () -> {
+        Log.w(TAG, "Skew measurement timed out!");
+        finishSkewMeasurement();
+    };
+
+
+    public NilsPodGroupController(List<NilsPodSensor> sensors) {
+        if (sensors == null || sensors.isEmpty()) {
+            throw new IllegalArgumentException("Sensor group must not be empty!");
+        }
+        mSensors = new ArrayList<>(sensors);
+    }
+
+    public void setGroupCallback(GroupCallback callback) {
+        mCallback = callback;
+    }
+
+    public void setSkewMeasurementTimeout(long timeoutMs) {
+        mSkewMeasurementTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Returns the sensors of this group, in the order commands are issued.
+     */
+    public List<NilsPodSensor> getSensors() {
+        return Collections.unmodifiableList(mSensors);
+    }
+
+    /**
+     * Returns whether all sensors are configured in the same sync group with exactly one sync master.
+     * Only valid after {@link #prepare()}.
+     */
+    public boolean isSynchronized() {
+        return mSynchronized;
+    }
+
+    /**
+     * Returns the sync master of this group, or <code>null</code> if the group is not synchronized.
+     */
+    public NilsPodSensor getSyncMaster() {
+        return mSyncMaster;
+    }
+
+    public boolean isPrepared() {
+        return mPrepared;
+    }
+
+    /**
+     * Prepares all sensors for the next group command.
+     *
+     * @throws SensorException if a sensor is not connected or still busy (e.g., writing its configuration)
+     */
+    public void prepare() throws SensorException {
+        BluetoothGattCharacteristic[] characteristics = new BluetoothGattCharacteristic[mSensors.size()];
+        for (NilsPodSensor sensor : mSensors) {
+            if (sensor.getState().ordinal() < SensorState.CONNECTED.ordinal()) {
+                throw new SensorException(SensorException.SensorExceptionType.sensorStateError, "<" + sensor.getDeviceName() + "> not connected.");
+            }
+            if (sensor.isConfigWriteInProgress() || sensor.hasPendingCharacteristicWrites() || sensor.hasPendingDescriptorWrites()) {
+                throw new SensorException(SensorException.SensorExceptionType.sensorStateError, "<" + sensor.getDeviceName() + "> busy.");
+            }
+        }
+
+        inferSyncSettings();
+
+        for (int i = 0; i < mSensors.size(); i++) {
+            characteristics[i] = mSensors.get(i).getCommandCharacteristic();
+            if (characteristics[i] == null) {
+                throw new SensorException(SensorException.SensorExceptionType.sensorStateError, "<" + mSensors.get(i).getDeviceName() + "> command characteristic not found.");
+            }
+        }
+        mCommandCharacteristics = characteristics;
+
+        for (NilsPodSensor sensor : mSensors) {
+            sensor.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        }
+
+        if (mSchedulerThread == null) {
+            mSchedulerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            mSchedulerThread.start();
+            mScheduler = new Handler(mSchedulerThread.getLooper());
+        }
+        mPrepared = true;
+    }
+
+    /**
+     * Checks the sync settings of all sensors and orders the sensors so that the sync master comes last.
+     */
+    private void inferSyncSettings() {
+        NilsPodSyncGroup syncGroup = mSensors.get(0).getSyncGroup();
+        NilsPodSensor master = null;
+        boolean synced = syncGroup != null && syncGroup != NilsPodSyncGroup.SYNC_GROUP_UNKNOWN;
+        for (NilsPodSensor sensor : mSensors) {
+            if (sensor.getSyncGroup() != syncGroup || sensor.getSyncRole() == null || sensor.getSyncRole() == NilsPodSyncRole.SYNC_ROLE_DISABLED) {
+                synced = false;
+            } else if (sensor.getSyncRole() == NilsPodSyncRole.SYNC_ROLE_MASTER) {
+                if (master != null) {
+                    Log.w(TAG, "More than one sync master in group: <" + master.getDeviceName() + ">, <" + sensor.getDeviceName() + ">");
+                    synced = false;
+                }
+                master = sensor;
+            }
+        }
+        if (master == null) {
+            synced = false;
+        }
+
+        mSynchronized = synced;
+        mSyncMaster = synced ? master : null;
+        if (synced) {
+            mSensors.remove(master);
+            mSensors.add(master);
+        }
+        Log.d(TAG, "Group of " + mSensors.size() + " sensors, synchronized: " + mSynchronized);
+    }
+
+    public void startStreaming() throws SensorException {
+        issue(GroupCommand.START_STREAMING);
+    }
+
+    public void stopStreaming() throws SensorException {
+        issue(GroupCommand.STOP_STREAMING);
+    }
+
+    public void startLogging() throws SensorException {
+        issue(GroupCommand.START_LOGGING);
+    }
+
+    public void stopLogging() throws SensorException {
+        issue(GroupCommand.STOP_LOGGING);
+    }
+
+    /**
+     * Issues the given command to all sensors of the group.
+     *
+     * @throws SensorException if the group was not prepared or a sensor is not in the expected operation state
+     */
+    public void issue(GroupCommand command) throws SensorException {
+        if (!mPrepared) {
+            throw new SensorException(SensorException.SensorExceptionType.sensorStateError, "Sensor group not prepared.");
+        }
+        NilsPodOperationState expectedState = (command == GroupCommand.STOP_STREAMING) ? NilsPodOperationState.STREAMING :
+                (command == GroupCommand.STOP_LOGGING) ? NilsPodOperationState.LOGGING : NilsPodOperationState.IDLE;
+        for (NilsPodSensor sensor : mSensors) {
+            if (sensor.getOperationState() != expectedState) {
+                throw new SensorException(SensorException.SensorExceptionType.sensorStateError,
+                        "<" + sensor.getDeviceName() + "> in operation state " + sensor.getOperationState() + ", expected " + expectedState + ".");
+            }
+        }
+        mPrepared = false;
+
+        final List<NilsPodSensor> sensors = new ArrayList<>(mSensors);
+        final NilsPodSensor syncMaster = mSyncMaster;
+        final BluetoothGattCharacteristic[] characteristics = mCommandCharacteristics;
+        final byte[] payload = command.mSensorCommand.getByteCmd().clone();
+        mScheduler.post(() -> issueOnScheduler(command, sensors, syncMaster, characteristics, payload));
+    }
+
+    private void issueOnScheduler(GroupCommand command, List<NilsPodSensor> sensors, NilsPodSensor syncMaster, BluetoothGattCharacteristic[] characteristics, byte[] payload) {
+        if (command == GroupCommand.START_STREAMING) {
+            mScheduler.removeCallbacks(mSkewMeasurementTimeout);
+            mFirstSamples.clear();
+            mMeasuredSensors = sensors;
+            mMeasuredSyncMaster = syncMaster;
+            for (NilsPodSensor sensor : sensors) {
+                sensor.onGroupStartStreaming();
+                sensor.setFirstSampleListener(mFirstSampleListener);
+            }
+            // START_STREAMING would overtake the notification enables (CONTROL priority) => first samples lost
+            awaitNotificationsEnabled(sensors);
+        }
+
+        // time-critical part: nothing but the writes
+        long firstIssueTime = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < characteristics.length; i++) {
+            sensors.get(i).sendPrepared(characteristics[i], payload);
+        }
+        long issueSpread = SystemClock.elapsedRealtimeNanos() - firstIssueTime;
+
+        Log.d(TAG, command + " issued to " + sensors.size() + " sensors within " + issueSpread / 1000 + " us");
+        if (command == GroupCommand.STOP_STREAMING) {
+            for (NilsPodSensor sensor : sensors) {
+                sensor.onGroupStopStreaming();
+            }
+        }
+
+        if (command == GroupCommand.START_STREAMING) {
+            mStartIssueSpreadNanos = issueSpread;
+            mScheduler.postDelayed(mSkewMeasurementTimeout, mSkewMeasurementTimeoutMs);
+        } else {
+            restoreConnectionPriority(sensors);
+        }
+
+        mMainHandler.post(() -> {
+            if (mCallback != null) {
+                mCallback.onGroupCommandIssued(this, command, issueSpread);
+            }
+        });
+    }
+
+    /**
+     * Blocks the scheduler thread until no sensor has pending descriptor writes, or until
+     * {@link #NOTIFICATION_ENABLE_TIMEOUT_MS} elapsed.
+     */
+    private void awaitNotificationsEnabled(List<NilsPodSensor> sensors) {
+        long deadline = SystemClock.elapsedRealtime() + NOTIFICATION_ENABLE_TIMEOUT_MS;
+        for (NilsPodSensor sensor : sensors) {
+            while (sensor.hasPendingDescriptorWrites()) {
+                if (SystemClock.elapsedRealtime() > deadline) {
+                    Log.w(TAG, "<" + sensor.getDeviceName() + "> notifications not enabled in time, issuing START_STREAMING anyway.");
+                    return;
+                }
+                SystemClock.sleep(5);
+            }
+        }
+    }
+
+    private void onFirstSample(NilsPodSensor sensor, FirstSample firstSample) {
+        if (!mMeasuredSensors.contains(sensor) || mFirstSamples.containsKey(sensor)) {
+            return;
+        }
+        mFirstSamples.put(sensor, firstSample);
+        if (mFirstSamples.size() == mMeasuredSensors.size()) {
+            mScheduler.removeCallbacks(mSkewMeasurementTimeout);
+            finishSkewMeasurement();
+        }
+    }
+
+    private void finishSkewMeasurement() {
+        List<NilsPodSensor> missingSensors = new ArrayList<>();
+        for (NilsPodSensor sensor : mMeasuredSensors) {
+            if (!mFirstSamples.containsKey(sensor)) {
+                sensor.setFirstSampleListener(null);
+                missingSensors.add(sensor);
+            }
+        }
+
+        boolean synced = mMeasuredSyncMaster != null && mFirstSamples.containsKey(mMeasuredSyncMaster);
+        Map<NilsPodSensor, Double> startTimes = new LinkedHashMap<>();
+        for (NilsPodSensor sensor : mMeasuredSensors) {
+            FirstSample firstSample = mFirstSamples.get(sensor);
+            if (firstSample == null) {
+                continue;
+            }
+            double samplePeriodMs = 1000.0 / sensor.getSamplingRate();
+            if (synced) {
+                // counters share the master's timebase, 16 bit difference to the master's first sample
+                int diff = (short) (firstSample.mCounter - mFirstSamples.get(mMeasuredSyncMaster).mCounter);
+                startTimes.put(sensor, diff * samplePeriodMs);
+            } else {
+                // sampling time of the first sample of the packet, estimated from the packet's reception time
+                startTimes.put(sensor, firstSample.mReceiveTimeNanos / 1e6 - (firstSample.mSamplesInPacket - 1) * samplePeriodMs);
+            }
+        }
+
+        Map<NilsPodSensor, Double> startOffsets = new LinkedHashMap<>();
+        if (!startTimes.isEmpty()) {
+            double earliest = Collections.min(startTimes.values());
+            for (Map.Entry<NilsPodSensor, Double> entry : startTimes.entrySet()) {
+                startOffsets.put(entry.getKey(), entry.getValue() - earliest);
+            }
+        }
+
+        StartSkewReport report = new StartSkewReport(synced, mStartIssueSpreadNanos, startOffsets, missingSensors);
+        Log.d(TAG, "Start skew: " + report);
+        mFirstSamples.clear();
+        restoreConnectionPriority(mMeasuredSensors);
+        mMeasuredSensors = Collections.emptyList();
+
+        mMainHandler.post(() -> {
+            if (mCallback != null) {
+                mCallback.onStartSkewMeasured(this, report);
+            }
+        });
+    }
+
+    private void restoreConnectionPriority(List<NilsPodSensor> sensors) {
+        for (NilsPodSensor sensor : sensors) {
+            // back to the link profile of the sensor's current operation state
+            sensor.restoreLinkProfile();
+        }
+    }
+
+    /**
+     * Stops the scheduler thread. The controller must not be used afterwards.
+     */
+    public void release() {
+        if (mSchedulerThread != null) {
+            mScheduler.removeCallbacksAndMessages(null);
+            for (NilsPodSensor sensor : mSensors) {
+                sensor.setFirstSampleListener(null);
+            }
+            mSchedulerThread.quitSafely();
+            mSchedulerThread = null;
+            mScheduler = null;
+        }
+        mPrepared = false;
+    }
+}
@@ -10,21 +10,26 @@ package de.fau.sensorlib.sensors;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Context;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.text.DecimalFormat;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.fau.sensorlib.HwSensorNotAvailableException;
 import de.fau.sensorlib.SensorDataProcessor;
@@ -51,6 +56,7 @@ import de.fau.sensorlib.sensors.logging.NilsPodLoggable;
 import de.fau.sensorlib.sensors.logging.Session;
 import de.fau.sensorlib.sensors.logging.SessionDownloader;
 import de.fau.sensorlib.sensors.logging.SessionHandler;
+import de.fau.sensorlib.sensors.logging.SessionListCache;
 import de.fau.sensorlib.widgets.config.ConfigItem;
 
 
@@ -91,6 +97,9 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
                     case MESSAGE_SENSOR_CONFIG_CHANGED:
                         sensor.dispatchSensorConfigChanged();
                         break;
+                    case MESSAGE_CONFIG_TRANSACTION_COMPLETE:
+                        ((NilsPodConfigTransaction) msg.obj).dispatchComplete(sensor);
+                        break;
                 }
             }
         }
@@ -104,6 +113,13 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
      */
     protected int globalCounter = 0;
 
+    /**
+     * Number of streamed samples received and lost (detected by gaps in the sample counter) since streaming was started.
+     * Counted on the BLE callback thread, but reset and read (e.g., by {@link NilsPodAdaptiveStreamingController}) on others.
+     */
+    private final AtomicLong mNumReceivedSamples = new AtomicLong();
+    private final AtomicLong mNumLostSamples = new AtomicLong();
+
     private double mTotalFlashSize = 0;
     private double mRemainingFlashSize = 0;
     private double mRemainingCapacity = 0;
@@ -113,14 +129,50 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
     private SessionHandler mSessionHandler = new SessionHandler();
     private SessionDownloader mSessionDownloader;
     private boolean mCsvExportEnabled = false;
+    private double mDownloadProgressUpdateRate = SessionDownloader.DEFAULT_PROGRESS_UPDATE_RATE;
 
-    private ConcurrentLinkedQueue<BluetoothGattCharacteristic> mConfigWriteRequests = new ConcurrentLinkedQueue<>();
+    private SessionListCache mSessionListCache;
+    private boolean mSessionListCacheEnabled = true;
+    /**
+     * Number of recordings advertised by the sensor when it was discovered
+     */
+    private int mAdvertisedNumRecordings;
+
+    private static class ConfigWriteRequest {
+        private final BluetoothGattCharacteristic mCharacteristic;
+        private final byte[] mValue;
+        private final NilsPodConfigTransaction mTransaction;
+
+        private ConfigWriteRequest(BluetoothGattCharacteristic characteristic, byte[] value, NilsPodConfigTransaction transaction) {
+            mCharacteristic = characteristic;
+            mValue = value;
+            mTransaction = transaction;
+        }
+    }
+
+    private ConcurrentLinkedQueue<ConfigWriteRequest> mConfigWriteRequests = new ConcurrentLinkedQueue<>();
+    /**
+     * Transaction that config writes are currently collected for, or <code>null</code> if config writes are queued directly
+     */
+    private NilsPodConfigTransaction mOpenConfigTransaction;
+    private List<ConfigWriteRequest> mOpenConfigTransactionWrites = new ArrayList<>();
+
+    /**
+     * One-shot listener notified about the first streamed sample, used to measure the start skew of a group of sensors
+     */
+    private volatile NilsPodGroupController.FirstSampleListener mFirstSampleListener;
 
 
     public NilsPodSensor(Context context, SensorInfo info, SensorDataProcessor dataHandler) {
         super(context, info, dataHandler);
         mConfigWriteRequests.clear();
         mInternalHandler = new NilsPodInternalHandler(this);
+        mSessionListCache = new SessionListCache(context);
+        if (info.getManufacturerData() != null && info.getManufacturerData().length > 3) {
+            mAdvertisedNumRecordings = info.getNumRecordings();
+        } else {
+            mAdvertisedNumRecordings = SessionListCache.NUM_RECORDINGS_UNKNOWN;
+        }
     }
 
     @Override
@@ -128,34 +180,60 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
         super.startStreaming();
         lastCounter = 0;
         globalCounter = 0;
+        mNumReceivedSamples.set(0);
+        mNumLostSamples.set(0);
+    }
+
+    @Override
+    protected void onGroupStartStreaming() {
+        lastCounter = 0;
+        globalCounter = 0;
+        mNumReceivedSamples.set(0);
+        mNumLostSamples.set(0);
+        super.onGroupStartStreaming();
+    }
+
+    /**
+     * Returns the number of streamed samples received since streaming was started.
+     */
+    @Override
+    public long getNumReceivedSamples() {
+        return mNumReceivedSamples.get();
     }
 
+    /**
+     * Returns the number of streamed samples lost since streaming was started, detected by gaps in the sample counter.
+     */
     @Override
-    protected boolean onNewCharacteristicValue(BluetoothGattCharacteristic characteristic, boolean isChange) {
-        if (super.onNewCharacteristicValue(characteristic, isChange)) {
+    public long getNumLostSamples() {
+        return mNumLostSamples.get();
+    }
+
+    void setFirstSampleListener(NilsPodGroupController.FirstSampleListener listener) {
+        mFirstSampleListener = listener;
+    }
+
+    @Override
+    protected boolean onStreamingValue(byte[] values) {
+        if (super.onStreamingValue(values)) {
             return true;
-        } else {
-            if (NILS_POD_STREAMING.equals(characteristic.getUuid())) {
-                switch (getOperationState()) {
-                    case SESSION_LIST:
-                        extractSessionListData(characteristic);
-                        return true;
-                    case SESSION_DOWNLOAD:
-                        extractSessionData(characteristic);
-                        return true;
-                }
-            }
+        }
+        switch (getOperationState()) {
+            case SESSION_LIST:
+                extractSessionListData(values);
+                return true;
+            case SESSION_DOWNLOAD:
+                extractSessionData(values);
+                return true;
         }
         return false;
     }
 
-    protected void extractSessionListData(BluetoothGattCharacteristic characteristic) {
-        byte[] values = characteristic.getValue();
-
+    protected void extractSessionListData(byte[] values) {
         if (!mSessionHandler.firstPacketRead()) {
             mSessionHandler.setSessionCount(values[0]);
         } else {
-            Session session = new Session(characteristic);
+            Session session = new Session(values);
             mSessionHandler.addSession(session);
             Log.d(TAG, session.toDebugString());
         }
@@ -168,20 +246,22 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
         }
     }
 
-    protected void extractSessionData(BluetoothGattCharacteristic characteristic) {
-        byte[] values = characteristic.getValue();
+    protected void extractSessionData(byte[] values) {
         mSessionDownloader.onNewData(values);
-        sendSessionDownloadProgress(mSessionDownloader);
+        // coalesce progress updates to not flood the UI thread with one message per notification
+        if (mSessionDownloader.shouldPublishProgress()) {
+            sendSessionDownloadProgress(mSessionDownloader);
+        }
     }
 
     /**
-     * Extracts sensor data into data frames from the given characteristic.
+     * Extracts sensor data into data frames from the given streaming packet.
      *
-     * @param characteristic Received characteristic from the BLE API
+     * @param values Received packet from the BLE API
      */
     @Override
-    protected void extractSensorData(BluetoothGattCharacteristic characteristic) {
-        byte[] values = characteristic.getValue();
+    protected void extractSensorData(byte[] values) {
+        ByteBuffer buffer = ByteBuffer.wrap(values).order(ByteOrder.LITTLE_ENDIAN);
 
         // one data packet always has size mSampleSize
         if (values.length % mSampleSize != 0) {
@@ -189,6 +269,13 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
             return;
         }
 
+        NilsPodGroupController.FirstSampleListener firstSampleListener = mFirstSampleListener;
+        long receiveTimeNanos = 0;
+        if (firstSampleListener != null) {
+            mFirstSampleListener = null;
+            receiveTimeNanos = SystemClock.elapsedRealtimeNanos();
+        }
+
         // iterate over data packets
         for (int i = 0; i < values.length; i += mSampleSize) {
             int offset = i;
@@ -206,7 +293,7 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
             if (isSensorEnabled(HardwareSensor.GYROSCOPE)) {
                 gyro = new double[3];
                 for (int j = 0; j < 3; j++) {
-                    gyro[j] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, offset) / getGyroScalingFactor();
+                    gyro[j] = buffer.getShort(offset) / getGyroScalingFactor();
                     offset += 2;
                 }
             }
@@ -215,7 +302,7 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
             if (isSensorEnabled(HardwareSensor.ACCELEROMETER)) {
                 accel = new double[3];
                 for (int j = 0; j < 3; j++) {
-                    accel[j] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, offset) / getAccScalingFactor();
+                    accel[j] = buffer.getShort(offset) / getAccScalingFactor();
                     offset += 2;
                 }
             }
@@ -224,13 +311,13 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
             if (isSensorEnabled(HardwareSensor.MAGNETOMETER)) {
                 mag = new double[3];
                 for (int j = 0; j < 3; j++) {
-                    mag[j] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, offset);
+                    mag[j] = buffer.getShort(offset);
                     offset += 2;
                 }
             }
 
             if (isSensorEnabled(HardwareSensor.BAROMETER)) {
-                baro = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, offset);
+                baro = buffer.getShort(offset);
                 baro = (baro + 101325.0) / 100.0;
                 offset += 2;
             }
@@ -239,38 +326,41 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
                 analog = new double[3];
                 for (int j = 0; j < 3; j++) {
                     if (getFirmwareRevision().isAtLeast(NilsPodFirmwareRevisions.FW_0_18_0)) {
-                        analog[j] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, offset);
+                        analog[j] = (buffer.getShort(offset) & 0xFFFF);
                         offset += 2;
                     } else {
-                        analog[j] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, offset);
+                        analog[j] = (buffer.get(offset) & 0xFF);
                         offset += 1;
                     }
                 }
             }
 
             if (isSensorEnabled(HardwareSensor.ECG)) {
-                ecg = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT32, offset);
+                ecg = buffer.getInt(offset);
                 offset += 4;
             }
 
             if (isSensorEnabled(HardwareSensor.PPG)) {
-                ppg = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT32, offset);
+                ppg = buffer.getInt(offset);
                 offset += 4;
             }
 
             if (isSensorEnabled(HardwareSensor.TEMPERATURE)) {
-                temp = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, offset);
+                temp = buffer.getShort(offset);
                 temp = temp * (1.0 / 512) + 23;
                 offset += 2;
             }
 
             // extract packet counter (16 bit)
-            localCounter = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, i + mSampleSize - 2);
+            localCounter = buffer.getShort(i + mSampleSize - 2) & 0xFFFF;
 
             // check if packets have been lost
-            if (((localCounter - lastCounter) % (2 << 15)) > 1) {
+            int counterDiff = (int) ((localCounter - lastCounter) & 0xFFFF);
+            if (mNumReceivedSamples.get() > 0 && counterDiff > 1) {
                 Log.w(TAG, this + ": BLE Packet Loss!");
+                mNumLostSamples.addAndGet(counterDiff - 1);
             }
+            mNumReceivedSamples.incrementAndGet();
             // increment global counter if local counter overflows
             if (localCounter < lastCounter) {
                 globalCounter++;
@@ -278,6 +368,11 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
 
 
             long timestamp = globalCounter * (2 << 15) + localCounter;
+            if (firstSampleListener != null) {
+                firstSampleListener.onFirstSample(this, localCounter, values.length / mSampleSize, receiveTimeNanos);
+                firstSampleListener = null;
+            }
+
             NilsPodDataFrame df;
             if (isSensorEnabled(HardwareSensor.ANALOG)) {
                 df = new NilsPodAnalogDataFrame(this, timestamp, accel, gyro, baro, temp, mag, analog);
@@ -313,6 +408,9 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
     @Override
     protected void onStateChange(SensorState oldState, SensorState newState) {
         super.onStateChange(oldState, newState);
+        if (newState == SensorState.DISCONNECTED) {
+            failConfigWrites();
+        }
         if (newState == SensorState.CONNECTED) {
             if (getOperationState() == NilsPodOperationState.LOGGING) {
                 // operation state is read before sensor state is connected => check again
@@ -339,14 +437,21 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
 
                 switch (oldState) {
                     case LOGGING:
+                        // a new session was recorded => cached session list is outdated
+                        invalidateSessionListCache();
                         setState(SensorState.CONNECTED);
                         sendStopLogging();
                         break;
                     case FLASH_ERASE:
+                        invalidateSessionListCache();
                         sendSessionsCleared();
                         break;
                     case SESSION_LIST:
                         if (mSessionHandler != null) {
+                            if (mSessionHandler.allSessionsRead()) {
+                                mSessionListCache.putSessionList(getDeviceAddress(), mSessionHandler.getSessionCount(), mSessionHandler.getSessionList());
+                                mAdvertisedNumRecordings = mSessionHandler.getSessionCount();
+                            }
                             sendSessionListRead(mSessionHandler.getSessionList());
                         }
                         break;
@@ -355,15 +460,7 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
                         sendSessionDownloadFinished(mSessionDownloader);
                         break;
                     case SAVING_CONFIG:
-                        // remove last written item
-                        mConfigWriteRequests.poll();
-                        if (!mConfigWriteRequests.isEmpty()) {
-                            BluetoothGattCharacteristic chara = mConfigWriteRequests.peek();
-                            if (!writeCharacteristic(chara, chara.getValue())) {
-                                throw new SensorException(SensorException.SensorExceptionType.configError);
-                            }
-                        }
-                        sendSensorConfigChanged();
+                        onConfigWriteSaved();
                         break;
                 }
                 break;
@@ -388,11 +485,64 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
 
     @Override
     public void readSessionList() {
+        readSessionList(mSessionListCacheEnabled);
+    }
+
+    /**
+     * Reads the session list, either from the session list cache or from the sensor.
+     *
+     * @param useCache true to use the cached session list if it is still valid, false to always read the session list from the sensor
+     */
+    public void readSessionList(boolean useCache) {
+        if (useCache) {
+            List<Session> sessionList = mSessionListCache.getSessionList(getDeviceAddress(), mAdvertisedNumRecordings);
+            if (sessionList != null) {
+                Log.d(TAG, "<" + getDeviceName() + "> Using cached session list.");
+                mSessionHandler = new SessionHandler();
+                mSessionHandler.setSessionCount(sessionList.size());
+                for (Session session : sessionList) {
+                    mSessionHandler.addSession(session);
+                }
+                computeRemainingCapacity();
+                computeRemainingRuntime();
+                sendSessionListRead(mSessionHandler.getSessionList());
+                return;
+            }
+        }
+
         // clear session list (if there was some before)
         mSessionHandler = new SessionHandler();
+        requestLinkProfile(BleLinkProfile.BULK);
         send(NilsPodSensorCommand.FLASH_READ_SESSION_LIST);
     }
 
+    /**
+     * Enables or disables the use of cached session lists in {@link #readSessionList()}.
+     *
+     * @param enabled true to enable the session list cache, false otherwise
+     */
+    public void setSessionListCacheEnabled(boolean enabled) {
+        mSessionListCacheEnabled = enabled;
+    }
+
+    /**
+     * Updates the number of recordings advertised by the sensor, e.g., from a more recent BLE scan.
+     * A cached session list is only used if its size matches the advertised number of recordings.
+     *
+     * @param numRecordings Number of recordings advertised by the sensor
+     */
+    public void setAdvertisedNumRecordings(int numRecordings) {
+        mAdvertisedNumRecordings = numRecordings;
+    }
+
+    /**
+     * Removes the cached session list of this sensor.
+     */
+    public void invalidateSessionListCache() {
+        mAdvertisedNumRecordings = SessionListCache.NUM_RECORDINGS_UNKNOWN;
+        mSessionListCache.invalidate(getDeviceAddress());
+    }
+
     @Override
     public void startLogging() {
         send(NilsPodSensorCommand.START_LOGGING);
@@ -407,9 +557,12 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
     public void downloadSession(int sessionId) throws SensorException {
         mSessionDownloader = new SessionDownloader(this, mSessionHandler.getSessionById(sessionId));
         mSessionDownloader.setCsvExportEnabled(mCsvExportEnabled);
+        mSessionDownloader.setProgressUpdateRate(mDownloadProgressUpdateRate);
 
         byte[] cmd = NilsPodSensorCommand.FLASH_TRANSMIT_SESSION.getByteCmd();
         cmd[1] = (byte) sessionId;
+        // switch link parameters before the first packet arrives
+        requestLinkProfile(BleLinkProfile.BULK);
         send(cmd);
     }
 
@@ -422,8 +575,21 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public void writeConfig() {
+        writeConfig(null);
+    }
+
+    /**
+     * Writes all config values from the current config map (see {@link #setCurrentConfig(HashMap)}) to the sensor
+     * as one transaction. Only config values that differ from the sensor's current configuration are written.
+     * Commands sent while the transaction is in progress are deferred until all config writes are saved.
+     *
+     * @param listener Listener notified when all config writes were saved, or <code>null</code>
+     * @return The transaction, e.g., to wait for its completion
+     */
+    @SuppressWarnings("unchecked")
+    public NilsPodConfigTransaction writeConfig(NilsPodConfigTransaction.OnCompleteListener listener) {
+        NilsPodConfigTransaction transaction = new NilsPodConfigTransaction(listener);
         double samplingRate = 0.0;
         ArrayList<HardwareSensor> sensors = (ArrayList<HardwareSensor>) mCurrentConfigMap.get(KEY_HARDWARE_SENSORS);
         NilsPodAccRange accRange = (NilsPodAccRange) mCurrentConfigMap.get(KEY_ACC_RANGE);
@@ -448,17 +614,34 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
             samplingRate = sAvailableSamplingRates.get(sr);
         }
 
-        try {
-            writeSamplingRateConfig(samplingRate);
-            writeSyncConfig(syncRole, syncGroup);
-            writeSensorConfig(sensors, accRange, gyroRange);
-            writeSystemSettingsConfig(sensorPosition, operationMode, interrupt, indicationLed);
-            if (getFirmwareRevision().isAtLeast(NilsPodFirmwareRevisions.FW_0_17_0) && timerConfig != null) {
-                writeTimerConfig(timerConfig);
+        synchronized (mConfigWriteRequests) {
+            // collect all config writes first and queue them at once
+            mOpenConfigTransaction = transaction;
+            try {
+                writeSamplingRateConfig(samplingRate);
+                writeSyncConfig(syncRole, syncGroup);
+                writeSensorConfig(sensors, accRange, gyroRange);
+                writeSystemSettingsConfig(sensorPosition, operationMode, interrupt, indicationLed);
+                if (getFirmwareRevision().isAtLeast(NilsPodFirmwareRevisions.FW_0_17_0) && timerConfig != null) {
+                    writeTimerConfig(timerConfig);
+                }
+                mOpenConfigTransaction = null;
+
+                if (mOpenConfigTransactionWrites.isEmpty()) {
+                    // nothing changed
+                    completeConfigTransaction(transaction, true);
+                } else {
+                    enqueueConfigWrites(new ArrayList<>(mOpenConfigTransactionWrites));
+                }
+            } catch (SensorException e) {
+                e.printStackTrace();
+                completeConfigTransaction(transaction, false);
+            } finally {
+                mOpenConfigTransaction = null;
+                mOpenConfigTransactionWrites.clear();
             }
-        } catch (SensorException e) {
-            e.printStackTrace();
         }
+        return transaction;
     }
 
     @Override
@@ -602,6 +785,19 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
         }
     }
 
+    /**
+     * Sets the maximum rate at which session download progress is reported
+     * via {@link NilsPodLoggingCallback#onSessionDownloadProgress(NilsPodSensor, SessionDownloader)}.
+     *
+     * @param rateHz Progress update rate in Hz. Values &lt;= 0 report progress on every received packet.
+     */
+    public void setDownloadProgressUpdateRate(double rateHz) {
+        mDownloadProgressUpdateRate = rateHz;
+        if (mSessionDownloader != null) {
+            mSessionDownloader.setProgressUpdateRate(rateHz);
+        }
+    }
+
     @Override
     public void setCsvExportEnabled(boolean enabled) {
         mCsvExportEnabled = enabled;
@@ -616,18 +812,109 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
             return;
         }
 
-        configChara.setValue(value);
         configChara.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-        mConfigWriteRequests.add(configChara);
+        synchronized (mConfigWriteRequests) {
+            ConfigWriteRequest request = new ConfigWriteRequest(configChara, value, mOpenConfigTransaction);
+            if (mOpenConfigTransaction != null) {
+                // part of a transaction => queued together with all other writes of the transaction
+                mOpenConfigTransaction.addWrite();
+                mOpenConfigTransactionWrites.add(request);
+            } else {
+                enqueueConfigWrites(Collections.singletonList(request));
+            }
+        }
+    }
 
-        if (mConfigWriteRequests.size() == 1) {
-            BluetoothGattCharacteristic chara = mConfigWriteRequests.peek();
-            if (chara != null && !writeCharacteristic(chara, chara.getValue())) {
-                throw new SensorException(SensorException.SensorExceptionType.configError);
+    private void enqueueConfigWrites(List<ConfigWriteRequest> requests) throws SensorException {
+        synchronized (mConfigWriteRequests) {
+            for (ConfigWriteRequest request : requests) {
+                request.mCharacteristic.setValue(request.mValue);
+            }
+            boolean idle = mConfigWriteRequests.isEmpty();
+            mConfigWriteRequests.addAll(requests);
+            if (idle) {
+                writeNextConfig();
             }
         }
     }
 
+    private void writeNextConfig() throws SensorException {
+        ConfigWriteRequest request = mConfigWriteRequests.peek();
+        if (request == null) {
+            return;
+        }
+        request.mCharacteristic.setValue(request.mValue);
+        if (!writeCharacteristic(request.mCharacteristic, request.mValue)) {
+            failConfigWrites();
+            throw new SensorException(SensorException.SensorExceptionType.configError);
+        }
+        restartConfigWriteTimeout();
+    }
+
+    /**
+     * Called when the sensor finished saving the last written config value.
+     */
+    private void onConfigWriteSaved() throws SensorException {
+        synchronized (mConfigWriteRequests) {
+            // remove last written item
+            ConfigWriteRequest request = mConfigWriteRequests.poll();
+            if (request != null && request.mTransaction != null && request.mTransaction.onWriteSaved()) {
+                completeConfigTransaction(request.mTransaction, true);
+            }
+            if (!mConfigWriteRequests.isEmpty()) {
+                try {
+                    writeNextConfig();
+                    return;
+                } catch (SensorException e) {
+                    sendPendingCommands();
+                    throw e;
+                }
+            }
+        }
+        // all config writes saved => notify once
+        sendSensorConfigChanged();
+        sendPendingCommands();
+    }
+
+    /**
+     * Aborts all queued config writes and fails their transactions.
+     */
+    private void failConfigWrites() {
+        synchronized (mConfigWriteRequests) {
+            for (ConfigWriteRequest request : mConfigWriteRequests) {
+                if (request.mTransaction != null) {
+                    completeConfigTransaction(request.mTransaction, false);
+                }
+            }
+            mConfigWriteRequests.clear();
+        }
+    }
+
+    private void completeConfigTransaction(NilsPodConfigTransaction transaction, boolean successful) {
+        if (transaction.complete(successful)) {
+            mInternalHandler.obtainMessage(MESSAGE_CONFIG_TRANSACTION_COMPLETE, transaction).sendToTarget();
+        }
+    }
+
+    @Override
+    protected boolean isConfigWriteInProgress() {
+        return super.isConfigWriteInProgress() || !mConfigWriteRequests.isEmpty();
+    }
+
+    @Override
+    protected void onConfigWriteFailed(BluetoothGattCharacteristic characteristic, int status) {
+        // the sensor won't save the remaining writes => fail their transactions before sending deferred commands
+        failConfigWrites();
+        super.onConfigWriteFailed(characteristic, status);
+    }
+
+    @Override
+    protected void onConfigWriteTimeout() {
+        // outstanding writes will not be saved anymore => fail their transactions before sending deferred commands
+        failConfigWrites();
+        super.onConfigWriteTimeout();
+    }
+
     protected void writeSamplingRateConfig(double samplingRate) throws SensorException {
         BluetoothGattCharacteristic config = getConfigurationService().getCharacteristic(NILS_POD_SAMPLING_RATE_CONFIG);
         byte[] oldValue = config.getValue();
@@ -794,11 +1081,13 @@ public class NilsPodSensor extends AbstractNilsPodSensor implements NilsPodLogga
 
     @Override
     public void clearData() {
+        invalidateSessionListCache();
         send(NilsPodSensorCommand.FLASH_CLEAR_SESSIONS);
     }
 
     @Override
     public void fullErase() {
+        invalidateSessionListCache();
         send(NilsPodSensorCommand.FLASH_FULL_ERASE);
     }
 
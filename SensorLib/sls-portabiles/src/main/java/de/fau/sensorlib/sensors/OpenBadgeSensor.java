@@ -76,7 +76,7 @@ public class OpenBadgeSensor extends GenericBleSensor {
     }
 
     protected BluetoothGattService getStreamingService() {
-        return mGatt.getService(NORDIC_UART_SERVICE);
+        return mTransport.getService(NORDIC_UART_SERVICE);
     }
 
 
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+
+package de.fau.sensorlib.sensors.dfu;
+
+import de.fau.sensorlib.sensors.FirmwareRevision;
+
+/**
+ * Performs firmware upgrades of single devices on behalf of a {@link FirmwareUpgradeScheduler}.
+ * <p>
+ * {@link NilsPodDfuExecutor} runs the upgrades via the Nordic DFU service. For tests, this interface can be
+ * implemented by a fake that completes (or fails) upgrades without any BLE device.
+ * All callbacks have to be invoked on the main thread.
+ */
+public interface DfuExecutor {
+
+    interface UpgradeCallback {
+        void onUpgradeProgress(int percent);
+
+        void onUpgradeCompleted();
+
+        void onUpgradeError(String message);
+    }
+
+    interface FirmwareRevisionCallback {
+        void onFirmwareRevisionRead(FirmwareRevision firmwareRevision);
+
+        void onFirmwareRevisionError(String message);
+    }
+
+    /**
+     * Returns the maximum number of devices that can be upgraded at the same time.
+     */
+    int getMaxParallelUpgrades();
+
+    /**
+     * Starts the firmware upgrade of one device.
+     *
+     * @param slot          Index of the upgrade slot (0 &le; slot &lt; {@link #getMaxParallelUpgrades()}),
+     *                      no other upgrade runs in this slot at the same time
+     * @param deviceAddress MAC address of the device
+     * @param deviceName    Name of the device
+     * @param filePath      Path to the firmware file (.zip)
+     * @param callback      Callback notified about progress and result of the upgrade
+     */
+    void startUpgrade(int slot, String deviceAddress, String deviceName, String filePath, UpgradeCallback callback);
+
+    /**
+     * Aborts the firmware upgrade of the given device, if running.
+     */
+    void abortUpgrade(String deviceAddress);
+
+    /**
+     * Connects to the device (after it rebooted with the new firmware) and reads its firmware revision.
+     *
+     * @param deviceAddress MAC address of the device
+     * @param deviceName    Name of the device
+     * @param callback      Callback notified about the firmware revision
+     */
+    void readFirmwareRevision(String deviceAddress, String deviceName, FirmwareRevisionCallback callback);
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+
+package de.fau.sensorlib.sensors.dfu;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.fau.sensorlib.sensors.FirmwareRevision;
+
+/**
+ * Upgrades the firmware of a fleet of devices.
+ * <p>
+ * Devices are queued and upgraded by a {@link DfuExecutor}, at most {@link #setMaxParallelUpgrades(int)} at a
+ * time (bounded by {@link DfuExecutor#getMaxParallelUpgrades()}). After an upgrade, the device's firmware revision
+ * is read back and compared to the expected revision. Failed upgrades (or verifications) are queued again up to
+ * {@link #setMaxRetries(int)} times. All methods have to be called from the main thread.
+ */
+public class FirmwareUpgradeScheduler {
+
+    private static final String TAG = FirmwareUpgradeScheduler.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_RETRIES = 2;
+
+    public interface FirmwareUpgradeSchedulerListener {
+        /**
+         * Called whenever the aggregate progress of all upgrades changed.
+         *
+         * @param numSucceeded Number of devices upgraded and verified successfully
+         * @param numFailed    Number of devices whose upgrade finally failed
+         * @param numTotal     Total number of devices
+         * @param progress     Aggregate progress of all devices in percent
+         */
+        void onUpgradeProgress(int numSucceeded, int numFailed, int numTotal, int progress);
+
+        void onDeviceUpgraded(String deviceAddress, FirmwareRevision firmwareRevision);
+
+        /**
+         * Called when the upgrade of a device failed and no retries are left.
+         */
+        void onDeviceUpgradeFailed(String deviceAddress, String message);
+
+        void onAllUpgradesFinished(List<String> succeededDevices, List<String> failedDevices);
+    }
+
+    public enum UpgradeStatus {
+        QUEUED,
+        UPGRADING,
+        VERIFYING,
+        SUCCEEDED,
+        FAILED
+    }
+
+    private static class UpgradeJob {
+        private final String mDeviceAddress;
+        private final String mDeviceName;
+        private UpgradeStatus mStatus = UpgradeStatus.QUEUED;
+        private int mNumAttempts;
+        private int mProgress;
+        private int mSlot = -1;
+
+        private UpgradeJob(String deviceAddress, String deviceName) {
+            mDeviceAddress = deviceAddress;
+            mDeviceName = deviceName;
+        }
+    }
+
+
+    private final DfuExecutor mExecutor;
+    private final String mFilePath;
+    private final FirmwareRevision mExpectedRevision;
+    private FirmwareUpgradeSchedulerListener mListener;
+
+    private final Map<String, UpgradeJob> mJobs = new LinkedHashMap<>();
+    private final Deque<UpgradeJob> mQueue = new ArrayDeque<>();
+    private UpgradeJob[] mSlots;
+
+    private int mMaxParallelUpgrades;
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+    private boolean mRunning;
+    private boolean mFinished;
+
+
+    /**
+     * @param executor         Executor performing the single upgrades
+     * @param filePath         Path to the firmware file (.zip)
+     * @param expectedRevision Firmware revision every device must report after the upgrade, or <code>null</code>
+     *                         if the revision is not verified
+     */
+    public FirmwareUpgradeScheduler(DfuExecutor executor, String filePath, FirmwareRevision expectedRevision) {
+        mExecutor = executor;
+        mFilePath = filePath;
+        mExpectedRevision = expectedRevision;
+        mMaxParallelUpgrades = executor.getMaxParallelUpgrades();
+    }
+
+    public void setListener(FirmwareUpgradeSchedulerListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the maximum number of devices upgraded at the same time, bounded by {@link DfuExecutor#getMaxParallelUpgrades()}.
+     */
+    public void setMaxParallelUpgrades(int maxParallelUpgrades) {
+        mMaxParallelUpgrades = Math.max(1, Math.min(maxParallelUpgrades, mExecutor.getMaxParallelUpgrades()));
+    }
+
+    /**
+     * Sets how often a failed upgrade of a device is retried.
+     */
+    public void setMaxRetries(int maxRetries) {
+        mMaxRetries = maxRetries;
+    }
+
+    public void addDevice(String deviceAddress, String deviceName) {
+        if (mJobs.containsKey(deviceAddress)) {
+            return;
+        }
+        UpgradeJob job = new UpgradeJob(deviceAddress, deviceName);
+        mJobs.put(deviceAddress, job);
+        mQueue.add(job);
+        if (mRunning) {
+            scheduleNext();
+        }
+    }
+
+    public UpgradeStatus getUpgradeStatus(String deviceAddress) {
+        UpgradeJob job = mJobs.get(deviceAddress);
+        return (job == null) ? null : job.mStatus;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mFinished = false;
+        mSlots = new UpgradeJob[mMaxParallelUpgrades];
+        scheduleNext();
+    }
+
+    /**
+     * Stops scheduling further upgrades and aborts all running upgrades. Aborted devices are marked as failed.
+     */
+    public void cancel() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mQueue.clear();
+        for (UpgradeJob job : mJobs.values()) {
+            if (job.mStatus == UpgradeStatus.UPGRADING) {
+                mExecutor.abortUpgrade(job.mDeviceAddress);
+            }
+        }
+        if (isIdle()) {
+            finish();
+        }
+    }
+
+    private void scheduleNext() {
+        if (mRunning) {
+            for (int slot = 0; slot < mSlots.length && !mQueue.isEmpty(); slot++) {
+                if (mSlots[slot] == null) {
+                    startUpgrade(mQueue.poll(), slot);
+                }
+            }
+        }
+        if (mQueue.isEmpty() && isIdle()) {
+            finish();
+        }
+    }
+
+    private boolean isIdle() {
+        if (mSlots == null) {
+            return true;
+        }
+        for (UpgradeJob job : mSlots) {
+            if (job != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void startUpgrade(UpgradeJob job, int slot) {
+        job.mStatus = UpgradeStatus.UPGRADING;
+        job.mSlot = slot;
+        job.mProgress = 0;
+        job.mNumAttempts++;
+        mSlots[slot] = job;
+        Log.d(TAG, "<" + job.mDeviceName + "> upgrade attempt " + job.mNumAttempts + " in slot " + slot);
+
+        mExecutor.startUpgrade(slot, job.mDeviceAddress, job.mDeviceName, mFilePath, new DfuExecutor.UpgradeCallback() {
+            @Override
+            public void onUpgradeProgress(int percent) {
+                job.mProgress = percent;
+                dispatchProgress();
+            }
+
+            @Override
+            public void onUpgradeCompleted() {
+                if (job.mStatus != UpgradeStatus.UPGRADING) {
+                    return;
+                }
+                job.mProgress = 100;
+                if (mExpectedRevision == null) {
+                    onJobSucceeded(job, null);
+                } else {
+                    verify(job);
+                }
+            }
+
+            @Override
+            public void onUpgradeError(String message) {
+                if (job.mStatus == UpgradeStatus.UPGRADING) {
+                    onJobFailed(job, message);
+                }
+            }
+        });
+    }
+
+    private void verify(UpgradeJob job) {
+        job.mStatus = UpgradeStatus.VERIFYING;
+        dispatchProgress();
+        mExecutor.readFirmwareRevision(job.mDeviceAddress, job.mDeviceName, new DfuExecutor.FirmwareRevisionCallback() {
+            @Override
+            public void onFirmwareRevisionRead(FirmwareRevision firmwareRevision) {
+                if (job.mStatus != UpgradeStatus.VERIFYING) {
+                    return;
+                }
+                if (mExpectedRevision.equals(firmwareRevision)) {
+                    onJobSucceeded(job, firmwareRevision);
+                } else {
+                    onJobFailed(job, "Firmware revision " + firmwareRevision + " does not match expected revision " + mExpectedRevision);
+                }
+            }
+
+            @Override
+            public void onFirmwareRevisionError(String message) {
+                if (job.mStatus == UpgradeStatus.VERIFYING) {
+                    onJobFailed(job, message);
+                }
+            }
+        });
+    }
+
+    private void onJobSucceeded(UpgradeJob job, FirmwareRevision firmwareRevision) {
+        Log.d(TAG, "<" + job.mDeviceName + "> upgraded to " + firmwareRevision);
+        job.mStatus = UpgradeStatus.SUCCEEDED;
+        releaseSlot(job);
+        if (mListener != null) {
+            mListener.onDeviceUpgraded(job.mDeviceAddress, firmwareRevision);
+        }
+        dispatchProgress();
+        scheduleNext();
+    }
+
+    private void onJobFailed(UpgradeJob job, String message) {
+        Log.e(TAG, "<" + job.mDeviceName + "> upgrade attempt " + job.mNumAttempts + " failed: " + message);
+        releaseSlot(job);
+        if (mRunning && job.mNumAttempts <= mMaxRetries) {
+            // retry after all other queued devices
+            job.mStatus = UpgradeStatus.QUEUED;
+            job.mProgress = 0;
+            mQueue.add(job);
+        } else {
+            job.mStatus = UpgradeStatus.FAILED;
+            if (mListener != null) {
+                mListener.onDeviceUpgradeFailed(job.mDeviceAddress, message);
+            }
+        }
+        dispatchProgress();
+        scheduleNext();
+    }
+
+    private void releaseSlot(UpgradeJob job) {
+        if (job.mSlot >= 0 && mSlots[job.mSlot] == job) {
+            mSlots[job.mSlot] = null;
+        }
+        job.mSlot = -1;
+    }
+
+    private void dispatchProgress() {
+        if (mListener == null || mJobs.isEmpty()) {
+            return;
+        }
+        int numSucceeded = 0;
+        int numFailed = 0;
+        int progressSum = 0;
+        for (UpgradeJob job : mJobs.values()) {
+            switch (job.mStatus) {
+                case SUCCEEDED:
+                    numSucceeded++;
+                    progressSum += 100;
+                    break;
+                case FAILED:
+                    numFailed++;
+                    progressSum += 100;
+                    break;
+                case UPGRADING:
+                case VERIFYING:
+                    progressSum += job.mProgress;
+                    break;
+            }
+        }
+        mListener.onUpgradeProgress(numSucceeded, numFailed, mJobs.size(), progressSum / mJobs.size());
+    }
+
+    private void finish() {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        mRunning = false;
+        List<String> succeeded = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        for (UpgradeJob job : mJobs.values()) {
+            if (job.mStatus == UpgradeStatus.SUCCEEDED) {
+                succeeded.add(job.mDeviceAddress);
+            } else {
+                job.mStatus = UpgradeStatus.FAILED;
+                failed.add(job.mDeviceAddress);
+            }
+        }
+        Log.d(TAG, "All upgrades finished: " + succeeded.size() + " succeeded, " + failed.size() + " failed.");
+        if (mListener != null) {
+            mListener.onAllUpgradesFinished(succeeded, failed);
+        }
+    }
+}
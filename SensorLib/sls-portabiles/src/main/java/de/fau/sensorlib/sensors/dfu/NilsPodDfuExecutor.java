@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+
+package de.fau.sensorlib.sensors.dfu;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import de.fau.sensorlib.SensorDataProcessor;
+import de.fau.sensorlib.SensorInfo;
+import de.fau.sensorlib.dataframe.SensorDataFrame;
+import de.fau.sensorlib.sensors.AbstractSensor;
+import de.fau.sensorlib.sensors.NilsPodSensor;
+import no.nordicsemi.android.dfu.DfuBaseService;
+import no.nordicsemi.android.dfu.DfuProgressListener;
+import no.nordicsemi.android.dfu.DfuProgressListenerAdapter;
+import no.nordicsemi.android.dfu.DfuServiceController;
+import no.nordicsemi.android.dfu.DfuServiceInitiator;
+import no.nordicsemi.android.dfu.DfuServiceListenerHelper;
+
+/**
+ * {@link DfuExecutor} upgrading NilsPods via the Nordic DFU service.
+ * <p>
+ * One DFU service handles one device at a time, so every upgrade slot has its own service class
+ * ({@link NilsPodDfuService}, {@link NilsPodDfuService2}, {@link NilsPodDfuService3}).
+ * The firmware revision is verified by connecting to the device once it rebooted after the upgrade.
+ */
+public class NilsPodDfuExecutor implements DfuExecutor {
+
+    private static final String TAG = NilsPodDfuExecutor.class.getSimpleName();
+
+    private static final Class<?>[] DFU_SERVICES = {NilsPodDfuService.class, NilsPodDfuService2.class, NilsPodDfuService3.class};
+
+    /**
+     * Time the device needs to reboot after the upgrade before it can be connected
+     */
+    public static final long DEFAULT_REBOOT_DELAY_MS = 5000;
+    public static final long DEFAULT_VERIFICATION_TIMEOUT_MS = 30000;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Map<String, DfuServiceController> mDfuControllers = new HashMap<>();
+    private final Map<String, DfuProgressListener> mProgressListeners = new HashMap<>();
+
+    private long mRebootDelayMs = DEFAULT_REBOOT_DELAY_MS;
+    private long mVerificationTimeoutMs = DEFAULT_VERIFICATION_TIMEOUT_MS;
+
+
+    public NilsPodDfuExecutor(Context context) {
+        mContext = context.getApplicationContext();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            DfuServiceInitiator.createDfuNotificationChannel(mContext);
+        }
+    }
+
+    public void setRebootDelay(long rebootDelayMs) {
+        mRebootDelayMs = rebootDelayMs;
+    }
+
+    public void setVerificationTimeout(long verificationTimeoutMs) {
+        mVerificationTimeoutMs = verificationTimeoutMs;
+    }
+
+    @Override
+    public int getMaxParallelUpgrades() {
+        return DFU_SERVICES.length;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void startUpgrade(int slot, String deviceAddress, String deviceName, String filePath, UpgradeCallback callback) {
+        DfuProgressListener listener = new DfuProgressListenerAdapter() {
+            @Override
+            public void onProgressChanged(@NonNull String deviceAddress, int percent, float speed, float avgSpeed, int currentPart, int partsTotal) {
+                callback.onUpgradeProgress(percent);
+            }
+
+            @Override
+            public void onDfuCompleted(@NonNull String deviceAddress) {
+                finishUpgrade(deviceAddress);
+                callback.onUpgradeCompleted();
+            }
+
+            @Override
+            public void onError(@NonNull String deviceAddress, int error, int errorType, String message) {
+                Log.e(TAG, deviceName + " >> DFU Error: " + message);
+                finishUpgrade(deviceAddress);
+                callback.onUpgradeError(message);
+            }
+
+            @Override
+            public void onDfuAborted(@NonNull String deviceAddress) {
+                finishUpgrade(deviceAddress);
+                callback.onUpgradeError("DFU aborted");
+            }
+        };
+        mProgressListeners.put(deviceAddress, listener);
+        DfuServiceListenerHelper.registerProgressListener(mContext, listener, deviceAddress);
+
+        final DfuServiceInitiator starter = new DfuServiceInitiator(deviceAddress)
+                .setDeviceName(deviceName)
+                .setKeepBond(true);
+        starter.setZip(filePath);
+
+        Log.d(TAG, deviceName + " >> DFU starting in slot " + slot);
+        mDfuControllers.put(deviceAddress, starter.start(mContext, (Class<? extends DfuBaseService>) DFU_SERVICES[slot]));
+    }
+
+    @Override
+    public void abortUpgrade(String deviceAddress) {
+        DfuServiceController controller = mDfuControllers.get(deviceAddress);
+        if (controller != null) {
+            controller.abort();
+        }
+    }
+
+    private void finishUpgrade(String deviceAddress) {
+        mDfuControllers.remove(deviceAddress);
+        DfuProgressListener listener = mProgressListeners.remove(deviceAddress);
+        if (listener != null) {
+            DfuServiceListenerHelper.unregisterProgressListener(mContext, listener);
+        }
+    }
+
+    @Override
+    public void readFirmwareRevision(String deviceAddress, String deviceName, FirmwareRevisionCallback callback) {
+        mHandler.postDelayed(() -> connectAndReadFirmwareRevision(deviceAddress, deviceName, callback), mRebootDelayMs);
+    }
+
+    private void connectAndReadFirmwareRevision(String deviceAddress, String deviceName, FirmwareRevisionCallback callback) {
+        final boolean[] finished = {false};
+        final NilsPodSensor[] sensor = new NilsPodSensor[1];
+
+        Runnable timeout = () -> {
+            if (!finished[0]) {
+                finished[0] = true;
+                sensor[0].disconnect();
+                callback.onFirmwareRevisionError("Timeout while reading firmware revision");
+            }
+        };
+
+        SensorDataProcessor processor = new SensorDataProcessor() {
+            @Override
+            public void onNewData(SensorDataFrame data) {
+            }
+
+            @Override
+            public void onConnected(AbstractSensor connectedSensor) {
+                if (!finished[0]) {
+                    finished[0] = true;
+                    mHandler.removeCallbacks(timeout);
+                    connectedSensor.disconnect();
+                    callback.onFirmwareRevisionRead(connectedSensor.getFirmwareRevision());
+                }
+            }
+
+            @Override
+            public void onConnectionLost(AbstractSensor lostSensor) {
+                if (!finished[0]) {
+                    finished[0] = true;
+                    mHandler.removeCallbacks(timeout);
+                    callback.onFirmwareRevisionError("Connection lost while reading firmware revision");
+                }
+            }
+        };
+
+        sensor[0] = new NilsPodSensor(mContext, new SensorInfo(deviceName, deviceAddress), processor);
+        mHandler.postDelayed(timeout, mVerificationTimeoutMs);
+        try {
+            sensor[0].connect();
+        } catch (Exception e) {
+            e.printStackTrace();
+            finished[0] = true;
+            mHandler.removeCallbacks(timeout);
+            callback.onFirmwareRevisionError("Connecting failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package de.fau.sensorlib.sensors.dfu;
+
+/**
+ * Additional DFU service. Every DFU service handles one device at a time, so upgrading devices in parallel
+ * requires one service class per device (see {@link NilsPodDfuExecutor}).
+ */
+public class NilsPodDfuService3 extends NilsPodDfuService {
+}
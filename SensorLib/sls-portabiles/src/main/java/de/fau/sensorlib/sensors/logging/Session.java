@@ -10,6 +10,8 @@ package de.fau.sensorlib.sensors.logging;
 
 import android.bluetooth.BluetoothGattCharacteristic;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.text.CharacterIterator;
 import java.text.SimpleDateFormat;
 import java.text.StringCharacterIterator;
@@ -17,7 +19,7 @@ import java.util.Date;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
-import de.fau.sensorlib.sensors.AbstractNilsPodSensor;
+import de.fau.sensorlib.sensors.enums.NilsPodSamplingRate;
 import de.fau.sensorlib.sensors.enums.NilsPodTerminationSource;
 
 public class Session {
@@ -43,38 +45,53 @@ public class Session {
     private Date mStartTime;
     private Date mStopTime;
 
+    /**
+     * Raw session list entry as received from the sensor
+     */
+    private byte[] mRawValue;
+
     private SimpleDateFormat mStartTimeFormat = new SimpleDateFormat("EEE, dd.MM.yyyy HH:mm", Locale.getDefault());
     private SimpleDateFormat mSessionTimeFormat = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault());
 
 
     public Session(BluetoothGattCharacteristic chara) {
+        this(chara.getValue());
+    }
+
+    public Session(byte[] values) {
+        mRawValue = values.clone();
 
-        int offset = 0;
+        ByteBuffer buffer = ByteBuffer.wrap(mRawValue).order(ByteOrder.LITTLE_ENDIAN);
 
         // Bytes 0-3
-        mStartPage = chara.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, offset);
-        offset += 4;
+        mStartPage = buffer.getInt();
 
         // Bytes 4-7
-        int tmpTime = chara.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, offset);
+        int tmpTime = buffer.getInt();
         mStartTime = new Date(((long) tmpTime) * 1000);
-        offset += 4;
 
         // Bytes 8-11
-        tmpTime = chara.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, offset);
-        offset += 4;
+        tmpTime = buffer.getInt();
         mStopTime = new Date(((long) tmpTime) * 1000);
 
         // Bytes 12-15
-        mSessionSize = chara.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, offset);
-        offset += 4;
+        mSessionSize = buffer.getInt();
 
-        mSamplingRate = AbstractNilsPodSensor.inferSamplingRate(chara.getValue()[offset++]);
-        mTerminationSource = NilsPodTerminationSource.inferTerminationSource(chara.getValue()[offset]);
+        mSamplingRate = NilsPodSamplingRate.inferSamplingRate(buffer.get() & 0xFF);
+        mTerminationSource = NilsPodTerminationSource.inferTerminationSource(buffer.get() & 0xFF);
 
         mDuration = mStopTime.getTime() - mStartTime.getTime();
     }
 
+    /**
+     * Returns the raw session list entry this session was created from.
+     *
+     * @return Session list entry as byte array
+     */
+    public byte[] getRawValue() {
+        return mRawValue;
+    }
+
     public void setSessionId(int sessionId) {
         mSessionId = sessionId;
     }
@@ -8,36 +8,38 @@
 
 package de.fau.sensorlib.sensors.logging;
 
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.hardware.SensorManager;
 import android.util.Log;
 
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.nio.ByteOrder;
+import java.util.EnumSet;
 
 import de.fau.sensorlib.SensorDataRecorder;
 import de.fau.sensorlib.SensorException;
 import de.fau.sensorlib.enums.HardwareSensor;
-import de.fau.sensorlib.sensors.AbstractNilsPodSensor;
-import de.fau.sensorlib.sensors.AbstractNilsPodSensor.NilsPodFirmwareRevisions;
 import de.fau.sensorlib.sensors.AbstractSensor;
-import de.fau.sensorlib.sensors.FirmwareRevision;
 import de.fau.sensorlib.sensors.NilsPodSensor;
-import de.fau.sensorlib.sensors.enums.NilsPodGyroRange;
-import de.fau.sensorlib.sensors.enums.NilsPodSensorPosition;
-import de.fau.sensorlib.sensors.enums.NilsPodSyncRole;
-import de.fau.sensorlib.sensors.enums.NilsPodTerminationSource;
+import de.fau.sensorlib.sensors.enums.NilsPodHardwareSensor;
 
 public class SessionCsvConverter {
 
     private static final String TAG = SessionCsvConverter.class.getSimpleName();
 
+    /**
+     * Number of samples that can be buffered before being written
+     */
+    private static final int BUFFER_SIZE_SAMPLES = 1000;
 
     private boolean mFirstPacketRead;
 
     private SessionHeader mHeader;
 
+    /**
+     * Hardware sensors enabled in the session, mapped once from the session header
+     */
+    private EnumSet<HardwareSensor> mEnabledSensors = EnumSet.noneOf(HardwareSensor.class);
+
     private ByteBuffer mByteBuffer;
 
     private AbstractSensor mSensor;
@@ -45,8 +47,8 @@ public class SessionCsvConverter {
 
     private SensorDataRecorder mRecorder;
 
-    private double gyroScalingFactor = 1.0;
-    private double accScalingFactor = 1.0;
+    private SessionSampleDecoder mDecoder;
+    private SensorDataBlock mDataBlock;
 
     public SessionCsvConverter(AbstractSensor sensor, Session session) {
         mSensor = sensor;
@@ -74,161 +76,19 @@ public class SessionCsvConverter {
     }
 
     private synchronized void extractHeader(byte[] values) throws SensorException {
-        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(null, 0, 0);
-        characteristic.setValue(values);
-
-        mHeader = new SessionHeader();
-
         try {
-            int offset = 1;
-            // Byte 1
-            int sampleSize = values[offset++];
-
-            mByteBuffer = ByteBuffer.allocate(sampleSize * 1000);
-
-            // Byte 2-3
-            ArrayList<HardwareSensor> enabledSensorList = new ArrayList<>();
-            int sensors = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-            offset += 2;
-            if ((sensors & 0x0001) != 0) {
-                enabledSensorList.add(HardwareSensor.ACCELEROMETER);
-            }
-            if ((sensors & 0x0002) != 0) {
-                enabledSensorList.add(HardwareSensor.GYROSCOPE);
-            }
-            if ((sensors & 0x0004) != 0) {
-                enabledSensorList.add(HardwareSensor.MAGNETOMETER);
-            }
-            if ((sensors & 0x0008) != 0) {
-                enabledSensorList.add(HardwareSensor.BAROMETER);
-            }
-            if ((sensors & 0x0010) != 0) {
-                enabledSensorList.add(HardwareSensor.ANALOG);
-            }
-            if ((sensors & 0x0020) != 0) {
-                enabledSensorList.add(HardwareSensor.ECG);
-            }
-            if ((sensors & 0x0040) != 0) {
-                enabledSensorList.add(HardwareSensor.PPG);
-            }
-            if ((sensors & 0x0080) != 0) {
-                enabledSensorList.add(HardwareSensor.TEMPERATURE);
-            }
-
-            // Byte 4
-            double samplingRate = NilsPodSensor.inferSamplingRate(values[offset++]);
-
-            // Byte 5
-            NilsPodTerminationSource terminationSource = NilsPodTerminationSource.inferTerminationSource(values[offset++]);
-
-            // Byte 6
-            NilsPodSyncRole syncRole = NilsPodSyncRole.values()[values[offset++]];
-
-            // Byte 7
-            int syncDistance = values[offset++] * 100; // in ms
-
-            // Byte 8
-            int accRange = values[offset++]; // in g
-
-            // Byte 9
-            int gyroRange = values[offset++] * 125; // in dps
-
-            // Bytes 10-14: System Settings
-            // Byte 10: Sensor Position
-            NilsPodSensorPosition sensorPosition = NilsPodSensorPosition.values()[values[offset++]];
-
-            // Byte 11: Operation Modes (Motion Interrupt, Home Monitoring, etc.)
-            boolean dockMode = (values[offset] & 0x40) != 0;
-            boolean motionInterrupt = (values[offset++] & 0x80) != 0;
-
-            // Bytes 12-14: Custom Meta Data
-            byte[] customMetaData = new byte[3];
-            System.arraycopy(values, offset, customMetaData, 0, 3);
-            offset += 3;
-
-            // Bytes 15-18
-            int startTime = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, offset);
-            offset += 4;
-
-            // Bytes 19-22
-            int endTime = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, offset);
-            offset += 4;
-
-            // Bytes 23-26: Session Size (number of samples)
-            int sessionSize = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, offset);
-            offset += 4;
-
-            // Bytes 27-30
-            int syncIndexStart = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, offset);
-            offset += 4;
-            // Bytes 31-34
-            int syncIndexEnd = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, offset);
-            offset += 4;
-
-            // Bytes 35-40: 6 Byte MAC Address
-            StringBuilder sb = new StringBuilder();
-            for (int i = 5; i >= 0; i--) {
-                byte val = values[offset + i];
-                sb.append(String.format("%02x", val).toUpperCase());
-                if (i != 0) {
-                    sb.append(":");
-                }
-            }
-            String macAddress = sb.toString();
-            offset += 6;
-
-            // Bytes 41-45: 5 Byte RF Address used for synchronization packages
-            sb = new StringBuilder();
-            for (int i = 4; i >= 0; i--) {
-                byte val = values[offset + i];
-                sb.append("0x").append(String.format("%02x", val).toUpperCase());
-                if (i != 0) {
-                    sb.append(" ");
-                }
-            }
-            String syncAddress = sb.toString();
-            offset += 5;
-
-            // Byte 46
-            int syncChannel = values[offset++];
-
-            // Bytes 47-48
-            String hardwareVersion = Integer.toString(characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, offset));
-            offset += 2;
-
-            // Bytes 49-51
-            String firmwareVersion = "v" + characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, offset++) + "." + characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, offset++) + "." + characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, offset);
-
-            mHeader.setSampleSize(sampleSize);
-            mHeader.setSamplingRate(samplingRate);
-            mHeader.setEnabledSensors(enabledSensorList);
-            mHeader.setTerminationSource(terminationSource);
-            mHeader.setSyncRole(syncRole);
-            mHeader.setSyncDistance(syncDistance);
-            mHeader.setSyncIndex(syncIndexStart, syncIndexEnd);
-            mHeader.setSyncAddress(syncAddress, syncChannel);
-            mHeader.setAccRange(accRange);
-            mHeader.setGyroRange(gyroRange);
-            mHeader.setSensorPosition(sensorPosition);
-            mHeader.setDockModeEnabled(dockMode);
-            mHeader.setMotionInterruptEnabled(motionInterrupt);
-            mHeader.setCustomMetaData(customMetaData);
-            mHeader.setStartTime(startTime);
-            mHeader.setEndTime(endTime);
-            mHeader.setSessionSize(sessionSize);
-            mHeader.setHardwareVersion(hardwareVersion);
-            mHeader.setMacAddress(macAddress);
-            mHeader.setFirmwareVersion(firmwareVersion);
-
-            // acc scaling factor for conversion from raw values to m/s^2
-            accScalingFactor = (AbstractNilsPodSensor.BASE_SCALING_FACTOR_ACC / mHeader.getAccRange()) / SensorManager.GRAVITY_EARTH;
-            // gyro scaling factor for conversion from raw values to dps
-            gyroScalingFactor = (AbstractNilsPodSensor.BASE_SCALING_FACTOR_GYRO * NilsPodGyroRange.GYRO_RANGE_2000_DPS.getRangeDps()) / mHeader.getGyroRange();
-
-        } catch (Exception e) {
+            mHeader = SessionHeader.parse(values);
+        } catch (SessionFormatException e) {
             e.printStackTrace();
             throw new SensorException(SensorException.SensorExceptionType.readHeaderError);
         }
+        mEnabledSensors = EnumSet.noneOf(HardwareSensor.class);
+        for (NilsPodHardwareSensor sensor : mHeader.getEnabledSensors()) {
+            mEnabledSensors.add(HardwareSensor.valueOf(sensor.name()));
+        }
+        mDecoder = new SessionSampleDecoder(mHeader);
+        mByteBuffer = ByteBuffer.allocate(mHeader.getSampleSize() * BUFFER_SIZE_SAMPLES).order(ByteOrder.LITTLE_ENDIAN);
+        mDataBlock = new SensorDataBlock(BUFFER_SIZE_SAMPLES);
 
         Log.d(TAG, mHeader.toString());
 
@@ -244,24 +104,22 @@ public class SessionCsvConverter {
             e.printStackTrace();
         }
 
-        byte[] sample;
         // flip buffer to start reading
         mByteBuffer.flip();
-        while (mByteBuffer.remaining() / mHeader.getSampleSize() > 0) {
-            sample = new byte[mHeader.getSampleSize()];
-            // get one data sample
-            mByteBuffer.get(sample);
-            extractDataFrame(sample);
+        int numSamples = mByteBuffer.remaining() / mHeader.getSampleSize();
+        if (numSamples > 0) {
+            // decode all complete samples at once
+            mDecoder.decode(mByteBuffer, mByteBuffer.position(), numSamples, mDataBlock);
+            mByteBuffer.position(mByteBuffer.position() + numSamples * mHeader.getSampleSize());
+            for (int i = 0; i < numSamples; i++) {
+                mRecorder.writeData(createDataFrame(mDataBlock, i));
+            }
         }
         // compact buffer to shift remaining samples to beginning
         mByteBuffer.compact();
     }
 
-    protected void extractDataFrame(byte[] values) {
-        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(null, 0, 0);
-        characteristic.setValue(values);
-        int offset = 0;
-
+    protected NilsPodSensor.NilsPodDataFrame createDataFrame(SensorDataBlock block, int index) {
         double[] gyro = null;
         double[] acc = null;
         double[] mag = null;
@@ -271,73 +129,32 @@ public class SessionCsvConverter {
         double ppg = Double.MIN_VALUE;
         double temp = Double.MIN_VALUE;
 
-        // extract gyroscope data
         if (isSensorEnabled(HardwareSensor.GYROSCOPE)) {
-            gyro = new double[3];
-
-            for (int j = 0; j < 3; j++) {
-                gyro[j] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, offset) / gyroScalingFactor;
-                offset += 2;
-            }
+            gyro = new double[]{block.getGyro(index, 0), block.getGyro(index, 1), block.getGyro(index, 2)};
         }
-
-        // extract accelerometer data
         if (isSensorEnabled(HardwareSensor.ACCELEROMETER)) {
-            acc = new double[3];
-
-            for (int j = 0; j < 3; j++) {
-                acc[j] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, offset) / accScalingFactor;
-                offset += 2;
-            }
+            acc = new double[]{block.getAcc(index, 0), block.getAcc(index, 1), block.getAcc(index, 2)};
         }
-
-        // extract magnetometer data
         if (isSensorEnabled(HardwareSensor.MAGNETOMETER)) {
-            mag = new double[3];
-            for (int j = 0; j < 3; j++) {
-                mag[j] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, offset);
-                offset += 2;
-            }
+            mag = new double[]{block.getMag(index, 0), block.getMag(index, 1), block.getMag(index, 2)};
         }
-
         if (isSensorEnabled(HardwareSensor.BAROMETER)) {
-            baro = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, offset);
-            baro = (baro + 101325.0) / 100.0;
-            offset += 2;
+            baro = block.getBaro(index);
         }
-
-        FirmwareRevision fwRevision = new FirmwareRevision(mHeader.getFirmwareVersion());
-
         if (isSensorEnabled(HardwareSensor.ANALOG)) {
-            analog = new double[3];
-            for (int j = 0; j < 3; j++) {
-                if (fwRevision.isAtLeast(NilsPodFirmwareRevisions.FW_0_18_0)) {
-                    analog[j] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-                    offset += 2;
-                } else {
-                    analog[j] = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, offset);
-                    offset += 1;
-                }
-            }
+            analog = new double[]{block.getAnalog(index, 0), block.getAnalog(index, 1), block.getAnalog(index, 2)};
         }
-
         if (isSensorEnabled(HardwareSensor.ECG)) {
-            ecg = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT32, offset);
-            offset += 4;
+            ecg = block.getEcg(index);
         }
-
         if (isSensorEnabled(HardwareSensor.PPG)) {
-            ppg = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT32, offset);
-            offset += 4;
+            ppg = block.getPpg(index);
         }
-
         if (isSensorEnabled(HardwareSensor.TEMPERATURE)) {
-            temp = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16, offset);
-            temp = temp * (1.0 / 512) + 23;
-            offset += 2;
+            temp = block.getTemp(index);
         }
 
-        long timestamp = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, mHeader.getSampleSize() - 4);
+        long timestamp = block.getCounter(index);
 
         NilsPodSensor.NilsPodDataFrame df;
         if (isSensorEnabled(HardwareSensor.ANALOG)) {
@@ -353,14 +170,11 @@ public class SessionCsvConverter {
         } else {
             df = new NilsPodSensor.NilsPodDataFrame(mSensor, timestamp, acc, gyro, baro);
         }
-
-        //Log.d(TAG, df.toString());
-        mRecorder.writeData(df);
-
+        return df;
     }
 
     public boolean isSensorEnabled(HardwareSensor sensor) {
-        return mHeader.getEnabledSensors().contains(sensor);
+        return mEnabledSensors.contains(sensor);
     }
 
     public void completeBuilder() {
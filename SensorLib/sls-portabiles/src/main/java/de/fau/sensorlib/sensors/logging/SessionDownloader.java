@@ -25,6 +25,22 @@ public class SessionDownloader {
 
     private static final String TAG = SessionDownloader.class.getSimpleName();
 
+    /**
+     * Default rate (in Hz) at which download progress is published to listeners
+     */
+    public static final double DEFAULT_PROGRESS_UPDATE_RATE = 4.0;
+
+    /**
+     * Smoothing factor of the exponentially weighted moving average of the download rate.
+     * Small values favor the long-term average, large values react faster to rate changes.
+     */
+    public static final double DEFAULT_RATE_SMOOTHING_FACTOR = 0.2;
+
+    /**
+     * Minimum time window (in ms) over which an instantaneous rate sample is computed
+     */
+    private static final long RATE_SAMPLE_WINDOW = 250;
+
     private AbstractSensor mSensor;
 
     private Session mSession;
@@ -49,6 +65,16 @@ public class SessionDownloader {
     // in ms (I hope)
     private long mEstimatedRemainingTime;
 
+    // in Byte / s, exponentially weighted moving average of the download rate
+    private double mSmoothedDownloadRate;
+    private double mRateSmoothingFactor = DEFAULT_RATE_SMOOTHING_FACTOR;
+    private int mLastRateSampleProgress;
+    private long mLastRateSampleTime;
+
+    // in ms, minimum interval between two progress updates
+    private long mProgressUpdateInterval;
+    private long mLastProgressUpdateTime;
+
     private DecimalFormat mDf = new DecimalFormat("##.##");
 
     public SessionDownloader(AbstractSensor sensor, Session session) throws SensorException {
@@ -58,6 +84,9 @@ public class SessionDownloader {
         mSessionSize = session.getSessionSize();
         mStartTime = System.currentTimeMillis();
         mLastTime = System.currentTimeMillis();
+        mLastRateSampleTime = mStartTime;
+        mLastProgressUpdateTime = 0;
+        setProgressUpdateRate(DEFAULT_PROGRESS_UPDATE_RATE);
 
         setSessionWriter();
     }
@@ -77,25 +106,90 @@ public class SessionDownloader {
         }
     }
 
+    /**
+     * Sets the maximum rate at which download progress should be published to listeners.
+     *
+     * @param rateHz Progress update rate in Hz. Values &lt;= 0 publish progress on every packet.
+     */
+    public void setProgressUpdateRate(double rateHz) {
+        if (rateHz <= 0) {
+            mProgressUpdateInterval = 0;
+        } else {
+            mProgressUpdateInterval = (long) (1000 / rateHz);
+        }
+    }
+
+    /**
+     * Sets the smoothing factor of the download rate estimator.
+     *
+     * @param alpha Smoothing factor in the range (0, 1]
+     */
+    public void setRateSmoothingFactor(double alpha) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("Smoothing factor must be in range (0, 1]!");
+        }
+        mRateSmoothingFactor = alpha;
+    }
+
     public void onNewData(byte[] values) {
+        long currentTime = System.currentTimeMillis();
         mProgress += values.length;
-        mElapsedTime = System.currentTimeMillis() - mStartTime;
-        mDownloadRate = (((double) mProgress) / mElapsedTime) * 1000;
+        mElapsedTime = currentTime - mStartTime;
+        if (mElapsedTime > 0) {
+            mDownloadRate = (((double) mProgress) / mElapsedTime) * 1000;
+        }
+
+        updateSmoothedDownloadRate(currentTime);
 
-        if (System.currentTimeMillis() - mLastTime > 1000) {
-            mLastTime = System.currentTimeMillis();
+        if (currentTime - mLastTime > 1000) {
+            mLastTime = currentTime;
             Log.d(TAG, toString());
         }
 
-        int remainingBytes = mSessionSize - mProgress;
-        mEstimatedRemainingTime = (long) (remainingBytes / mDownloadRate) * 1000;
-
         mSessionWriter.writeData(values);
         if (mCsvExportEnabled) {
             mSessionCsvConverter.nextPacket(values);
         }
     }
 
+    private void updateSmoothedDownloadRate(long currentTime) {
+        long dt = currentTime - mLastRateSampleTime;
+        // notifications arrive in bursts => only sample the rate over a minimum time window
+        if (dt < RATE_SAMPLE_WINDOW) {
+            return;
+        }
+
+        double rate = ((double) (mProgress - mLastRateSampleProgress) / dt) * 1000;
+        if (mSmoothedDownloadRate == 0) {
+            mSmoothedDownloadRate = rate;
+        } else {
+            mSmoothedDownloadRate += mRateSmoothingFactor * (rate - mSmoothedDownloadRate);
+        }
+
+        mLastRateSampleProgress = mProgress;
+        mLastRateSampleTime = currentTime;
+
+        if (mSmoothedDownloadRate > 0) {
+            int remainingBytes = mSessionSize - mProgress;
+            mEstimatedRemainingTime = (long) ((remainingBytes / mSmoothedDownloadRate) * 1000);
+        }
+    }
+
+    /**
+     * Checks whether enough time has passed since the last published progress update and, if so,
+     * marks the progress as published.
+     *
+     * @return true if download progress should be published to listeners, false otherwise
+     */
+    public boolean shouldPublishProgress() {
+        long currentTime = System.currentTimeMillis();
+        if (currentTime - mLastProgressUpdateTime >= mProgressUpdateInterval || mProgress >= mSessionSize) {
+            mLastProgressUpdateTime = currentTime;
+            return true;
+        }
+        return false;
+    }
+
     public int getProgress() {
         return mProgress;
     }
@@ -108,8 +202,18 @@ public class SessionDownloader {
         return mDownloadRate;
     }
 
+    /**
+     * Returns the smoothed download rate, i.e., the exponentially weighted moving average
+     * of the download rate. Falls back to the average download rate before the first estimate.
+     *
+     * @return Smoothed download rate in Byte / s
+     */
+    public double getSmoothedDownloadRate() {
+        return mSmoothedDownloadRate > 0 ? mSmoothedDownloadRate : mDownloadRate;
+    }
+
     public String getDownloadRatekB() {
-        return mDf.format(toKiloByte(mDownloadRate));
+        return mDf.format(toKiloByte(getSmoothedDownloadRate()));
     }
 
     public long getEstimatedRemainingTime() {
@@ -145,7 +249,8 @@ public class SessionDownloader {
             mSessionCsvConverter.completeBuilder();
         }
         mElapsedTime = System.currentTimeMillis() - mStartTime;
-        mDownloadRate = ((double) mSessionSize) / mElapsedTime;
+        mDownloadRate = (((double) mSessionSize) / mElapsedTime) * 1000;
+        mEstimatedRemainingTime = 0;
     }
 
     public static double toKiloByte(double valueByte) {
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+
+package de.fau.sensorlib.sensors.logging;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persistent cache of the session lists read from NilsPod sensors, keyed by the sensor's MAC address.
+ * <p>
+ * A cached session list is only valid as long as the number of recordings advertised by the sensor
+ * (see {@link de.fau.sensorlib.BleManufacturerDataHelper#getNumberOfRecordings}) matches the number
+ * of sessions in the cache. It has to be invalidated explicitly whenever the sensor's flash content
+ * changes while being connected (new recording, erase).
+ */
+public class SessionListCache {
+
+    private static final String TAG = SessionListCache.class.getSimpleName();
+
+    private static final String PREFS_NAME = "NilsPodSessionListCache";
+
+    /**
+     * Value used if the number of recordings of a sensor is not known (e.g., no advertisement data available)
+     */
+    public static final int NUM_RECORDINGS_UNKNOWN = -1;
+
+    private static class CacheEntry {
+        private int session_count;
+        private long timestamp;
+        private List<byte[]> sessions = new ArrayList<>();
+    }
+
+    private SharedPreferences mPreferences;
+
+    private Gson mGson = new Gson();
+
+
+    public SessionListCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the cached session list for the given sensor.
+     *
+     * @param macAddress    MAC address of the sensor
+     * @param numRecordings Number of recordings currently advertised by the sensor
+     * @return List of cached sessions or <code>null</code> if no valid session list is cached for this sensor
+     */
+    public synchronized List<Session> getSessionList(String macAddress, int numRecordings) {
+        if (numRecordings == NUM_RECORDINGS_UNKNOWN) {
+            return null;
+        }
+
+        CacheEntry entry = readEntry(macAddress);
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.session_count != numRecordings || entry.sessions.size() != entry.session_count) {
+            Log.d(TAG, "<" + macAddress + "> cached session list outdated (" + entry.session_count + " cached, " + numRecordings + " advertised)");
+            invalidate(macAddress);
+            return null;
+        }
+
+        List<Session> sessionList = new ArrayList<>();
+        try {
+            for (byte[] value : entry.sessions) {
+                sessionList.add(new Session(value));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "<" + macAddress + "> invalid cached session list", e);
+            invalidate(macAddress);
+            return null;
+        }
+        return sessionList;
+    }
+
+    /**
+     * Stores the session list of the given sensor in the cache.
+     *
+     * @param macAddress   MAC address of the sensor
+     * @param sessionCount Number of sessions reported by the sensor
+     * @param sessionList  List of sessions read from the sensor
+     */
+    public synchronized void putSessionList(String macAddress, int sessionCount, List<Session> sessionList) {
+        if (sessionList.size() != sessionCount) {
+            // incomplete session list => don't cache
+            return;
+        }
+
+        CacheEntry entry = new CacheEntry();
+        entry.session_count = sessionCount;
+        entry.timestamp = System.currentTimeMillis();
+        for (Session session : sessionList) {
+            if (session.getRawValue() == null) {
+                return;
+            }
+            entry.sessions.add(session.getRawValue());
+        }
+
+        mPreferences.edit().putString(macAddress, mGson.toJson(entry)).apply();
+    }
+
+    /**
+     * Returns the time at which the session list of the given sensor was cached.
+     *
+     * @param macAddress MAC address of the sensor
+     * @return Unix timestamp (in ms) or 0 if no session list is cached for this sensor
+     */
+    public synchronized long getTimestamp(String macAddress) {
+        CacheEntry entry = readEntry(macAddress);
+        return (entry == null) ? 0 : entry.timestamp;
+    }
+
+    /**
+     * Removes the cached session list of the given sensor.
+     *
+     * @param macAddress MAC address of the sensor
+     */
+    public synchronized void invalidate(String macAddress) {
+        mPreferences.edit().remove(macAddress).apply();
+    }
+
+    /**
+     * Removes all cached session lists.
+     */
+    public synchronized void clear() {
+        mPreferences.edit().clear().apply();
+    }
+
+    private CacheEntry readEntry(String macAddress) {
+        String json = mPreferences.getString(macAddress, null);
+        if (json == null) {
+            return null;
+        }
+        try {
+            return mGson.fromJson(json, CacheEntry.class);
+        } catch (JsonParseException e) {
+            Log.e(TAG, "<" + macAddress + "> corrupt session list cache entry", e);
+            invalidate(macAddress);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib.sensors;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import de.fau.sensorlib.BleGattAttributes;
+import de.fau.sensorlib.SensorDataProcessor;
+import de.fau.sensorlib.SensorInfo;
+import de.fau.sensorlib.dataframe.SensorDataFrame;
+import de.fau.sensorlib.sensors.enums.NilsPodTimerMode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Checks that failed config writes fail their {@link NilsPodConfigTransaction} instead of leaving it pending.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class NilsPodConfigTransactionTest {
+
+    private static final String DEVICE_NAME = "NilsPod-1A2B";
+    private static final String DEVICE_ADDRESS = "AA:BB:CC:DD:1A:2B";
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private TimeZone mDefaultTimeZone;
+    private FakeBleTransport mTransport;
+    private NilsPodSensor mSensor;
+
+    private final List<UUID> mConfigWrites = new CopyOnWriteArrayList<>();
+    private final List<NilsPodConfigTransaction> mCompletedTransactions = new CopyOnWriteArrayList<>();
+
+
+    @Before
+    public void setUp() throws Exception {
+        // timer times are read and written in UTC
+        mDefaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+
+        mTransport = new FakeBleTransport(DEVICE_NAME)
+                .addService(BleGattAttributes.DEVICE_INFORMATION_SERVICE, BleGattAttributes.FIRMWARE_REVISION_STRING,
+                        BleGattAttributes.HARDWARE_REVISION_STRING, BleGattAttributes.MODEL_NUMBER_STRING)
+                .addService(AbstractNilsPodSensor.NILS_POD_STREAMING_SERVICE, AbstractNilsPodSensor.NILS_POD_COMMANDS,
+                        AbstractNilsPodSensor.NILS_POD_STREAMING)
+                .addService(AbstractNilsPodSensor.NILS_POD_CONFIGURATION_SERVICE, AbstractNilsPodSensor.NILS_POD_SYSTEM_STATE,
+                        AbstractNilsPodSensor.NILS_POD_SENSOR_CONFIG, AbstractNilsPodSensor.NILS_POD_SYNC_CONFIG,
+                        AbstractNilsPodSensor.NILS_POD_SYSTEM_SETTINGS_CONFIG, AbstractNilsPodSensor.NILS_POD_SAMPLING_RATE_CONFIG,
+                        AbstractNilsPodSensor.NILS_POD_TIMER_CONFIG)
+                .setCharacteristicValue(BleGattAttributes.FIRMWARE_REVISION_STRING, "0.18.0".getBytes(StandardCharsets.US_ASCII))
+                .setCharacteristicValue(BleGattAttributes.HARDWARE_REVISION_STRING, "3.0".getBytes(StandardCharsets.US_ASCII))
+                .setCharacteristicValue(BleGattAttributes.MODEL_NUMBER_STRING, "NilsPod-4".getBytes(StandardCharsets.US_ASCII))
+                // idle, no errors, battery level 80 %
+                .setCharacteristicValue(AbstractNilsPodSensor.NILS_POD_SYSTEM_STATE, new byte[]{0x00, 0x00, 0x00, 0x00, 0x50})
+                // gyroscope + accelerometer (±2 g, ±2000 dps), sample size 14 Byte
+                .setCharacteristicValue(AbstractNilsPodSensor.NILS_POD_SENSOR_CONFIG, new byte[]{0x03, 0x00, 0x03, 0x0E})
+                // sync disabled, sync group 0
+                .setCharacteristicValue(AbstractNilsPodSensor.NILS_POD_SYNC_CONFIG,
+                        new byte[]{0x00, 27, (byte) 0xDE, (byte) 0xAD, (byte) 0xBE, (byte) 0xEF, (byte) 0x19})
+                // no position, normal mode, motion interrupt disabled, indication LED enabled
+                .setCharacteristicValue(AbstractNilsPodSensor.NILS_POD_SYSTEM_SETTINGS_CONFIG, new byte[]{0x00, 0x01})
+                // 102.4 Hz
+                .setCharacteristicValue(AbstractNilsPodSensor.NILS_POD_SAMPLING_RATE_CONFIG, new byte[]{10})
+                // 08:00 - 17:00, timer disabled
+                .setCharacteristicValue(AbstractNilsPodSensor.NILS_POD_TIMER_CONFIG, new byte[]{8, 0, 17, 0, 0})
+                .setWriteHandler((transport, characteristic, value) -> {
+                    if (!AbstractNilsPodSensor.NILS_POD_COMMANDS.equals(characteristic)) {
+                        mConfigWrites.add(characteristic);
+                    }
+                });
+
+        SensorDataProcessor dataProcessor = new SensorDataProcessor() {
+            @Override
+            public void onNewData(SensorDataFrame data) {
+            }
+        };
+        mSensor = new NilsPodSensor(RuntimeEnvironment.getApplication(), new SensorInfo(DEVICE_NAME, DEVICE_ADDRESS), dataProcessor);
+        mSensor.setCharacteristicCacheEnabled(false);
+        mSensor.setTransport(mTransport);
+
+        assertTrue(mSensor.connect());
+        waitFor(mSensor::isConnected);
+        waitFor(() -> mSensor.getCurrentConfig().containsKey(AbstractNilsPodSensor.KEY_TIMER_ENABLED));
+    }
+
+    @After
+    public void tearDown() {
+        mTransport.shutdown();
+        TimeZone.setDefault(mDefaultTimeZone);
+    }
+
+    @Test
+    public void testUnchangedConfigIsNotWritten() {
+        NilsPodConfigTransaction transaction = mSensor.writeConfig(null);
+
+        assertEquals(0, transaction.getNumWrites());
+        assertTrue(transaction.isComplete());
+        assertTrue(transaction.isSuccessful());
+        assertTrue(mConfigWrites.isEmpty());
+    }
+
+    @Test
+    public void testFailedTimerConfigWriteFailsTransaction() throws Exception {
+        mTransport.setWriteStatus(AbstractNilsPodSensor.NILS_POD_TIMER_CONFIG, BluetoothGatt.GATT_WRITE_NOT_PERMITTED);
+
+        HashMap<String, Object> config = new HashMap<>();
+        config.put(AbstractNilsPodSensor.KEY_TIMER_ENABLED, NilsPodTimerMode.TIMER_ENABLED);
+        mSensor.setCurrentConfig(config);
+        NilsPodConfigTransaction transaction = mSensor.writeConfig((sensor, t) -> mCompletedTransactions.add(t));
+        assertEquals(1, transaction.getNumWrites());
+
+        // the main looper's clock is paused => the transaction can't have failed because of the config write timeout
+        waitFor(() -> !mCompletedTransactions.isEmpty());
+
+        assertEquals(Collections.singletonList(transaction), mCompletedTransactions);
+        assertTrue(transaction.isComplete());
+        assertFalse(transaction.isSuccessful());
+        assertFalse(mSensor.isConfigWriteInProgress());
+        // rejected writes never reach the sensor
+        assertTrue(mConfigWrites.isEmpty());
+    }
+
+    /**
+     * Runs the main looper (sensor callbacks are dispatched on the main thread) until the condition is met.
+     */
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for sensor");
+            }
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(10);
+        }
+    }
+}
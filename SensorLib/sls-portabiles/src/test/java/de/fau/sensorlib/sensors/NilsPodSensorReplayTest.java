@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2019 Machine Learning and Data Analytics Lab, Friedrich-Alexander-Universität Erlangen-Nürnberg (FAU).
+ * <p>
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. If you reuse
+ * this code you have to keep or cite this comment.
+ */
+package de.fau.sensorlib.sensors;
+
+import android.Manifest;
+import android.content.Context;
+import android.os.Environment;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import de.fau.sensorlib.BleGattAttributes;
+import de.fau.sensorlib.SensorDataProcessor;
+import de.fau.sensorlib.SensorInfo;
+import de.fau.sensorlib.dataframe.SensorDataFrame;
+import de.fau.sensorlib.sensors.AbstractNilsPodSensor.NilsPodOperationState;
+import de.fau.sensorlib.sensors.logging.SensorDataBlock;
+import de.fau.sensorlib.sensors.logging.Session;
+import de.fau.sensorlib.sensors.logging.SessionDownloader;
+import de.fau.sensorlib.sensors.logging.SessionReader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Replays captured NilsPod notification streams through a {@link FakeBleTransport} into a {@link NilsPodSensor}
+ * and checks the decoded data frames and the downloaded session.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class NilsPodSensorReplayTest {
+
+    private static final String DEVICE_NAME = "NilsPod-1A2B";
+    private static final String DEVICE_ADDRESS = "AA:BB:CC:DD:1A:2B";
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private Context mContext;
+    private FakeBleTransport mTransport;
+    private NilsPodSensor mSensor;
+
+    private final List<SensorDataFrame> mDataFrames = new CopyOnWriteArrayList<>();
+    private final List<byte[]> mCommands = new CopyOnWriteArrayList<>();
+    private final List<Session> mSessions = new CopyOnWriteArrayList<>();
+    private volatile SessionDownloader mFinishedDownload;
+
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.getApplication();
+        shadowOf(RuntimeEnvironment.getApplication()).grantPermissions(Manifest.permission.READ_EXTERNAL_STORAGE, Manifest.permission.WRITE_EXTERNAL_STORAGE);
+        ShadowEnvironment.setExternalStorageState(Environment.MEDIA_MOUNTED);
+
+        mTransport = new FakeBleTransport(DEVICE_NAME)
+                .addService(BleGattAttributes.DEVICE_INFORMATION_SERVICE, BleGattAttributes.FIRMWARE_REVISION_STRING,
+                        BleGattAttributes.HARDWARE_REVISION_STRING, BleGattAttributes.MODEL_NUMBER_STRING)
+                .addService(AbstractNilsPodSensor.NILS_POD_STREAMING_SERVICE, AbstractNilsPodSensor.NILS_POD_COMMANDS,
+                        AbstractNilsPodSensor.NILS_POD_STREAMING)
+                .addService(AbstractNilsPodSensor.NILS_POD_CONFIGURATION_SERVICE, AbstractNilsPodSensor.NILS_POD_SYSTEM_STATE,
+                        AbstractNilsPodSensor.NILS_POD_SENSOR_CONFIG)
+                .setCharacteristicValue(BleGattAttributes.FIRMWARE_REVISION_STRING, "0.18.0".getBytes(StandardCharsets.US_ASCII))
+                .setCharacteristicValue(BleGattAttributes.HARDWARE_REVISION_STRING, "3.0".getBytes(StandardCharsets.US_ASCII))
+                .setCharacteristicValue(BleGattAttributes.MODEL_NUMBER_STRING, "NilsPod-4".getBytes(StandardCharsets.US_ASCII))
+                // idle, no errors, battery level 80 %
+                .setCharacteristicValue(AbstractNilsPodSensor.NILS_POD_SYSTEM_STATE, new byte[]{0x00, 0x00, 0x00, 0x00, 0x50})
+                // gyroscope + accelerometer (±2 g, ±2000 dps), sample size 14 Byte
+                .setCharacteristicValue(AbstractNilsPodSensor.NILS_POD_SENSOR_CONFIG, new byte[]{0x03, 0x00, 0x03, 0x0E})
+                .setWriteHandler((transport, characteristic, value) -> {
+                    if (AbstractNilsPodSensor.NILS_POD_COMMANDS.equals(characteristic)) {
+                        mCommands.add(value);
+                    }
+                });
+
+        SensorDataProcessor dataProcessor = new SensorDataProcessor() {
+            @Override
+            public void onNewData(SensorDataFrame data) {
+                mDataFrames.add(data);
+            }
+        };
+
+        mSensor = new NilsPodSensor(mContext, new SensorInfo(DEVICE_NAME, DEVICE_ADDRESS), dataProcessor);
+        mSensor.setCharacteristicCacheEnabled(false);
+        mSensor.setSessionListCacheEnabled(false);
+        mSensor.addNilsPodCallback(new NilsPodCallback() {
+            @Override
+            public void onSessionListRead(NilsPodSensor sensor, List<Session> sessionList) {
+                mSessions.addAll(sessionList);
+            }
+
+            @Override
+            public void onClearSessions(NilsPodSensor sensor) {
+            }
+
+            @Override
+            public void onSessionDownloadStarted(NilsPodSensor sensor, SessionDownloader sessionDownloader) {
+            }
+
+            @Override
+            public void onSessionDownloadProgress(NilsPodSensor sensor, SessionDownloader sessionDownloader) {
+            }
+
+            @Override
+            public void onSessionDownloadFinished(NilsPodSensor sensor, SessionDownloader sessionDownloader) {
+                mFinishedDownload = sessionDownloader;
+            }
+
+            @Override
+            public void onOperationStateChanged(AbstractNilsPodSensor sensor, NilsPodOperationState operationState) {
+            }
+
+            @Override
+            public void onSensorConfigChanged(NilsPodSensor sensor) {
+            }
+        });
+        mSensor.setTransport(mTransport);
+
+        assertTrue(mSensor.connect());
+        waitFor(mSensor::isConnected);
+    }
+
+    @After
+    public void tearDown() {
+        mTransport.shutdown();
+    }
+
+    @Test
+    public void testStreamingReplay() throws Exception {
+        mSensor.startStreaming();
+        waitForCommand(AbstractNilsPodSensor.NilsPodSensorCommand.START_STREAMING.getByteCmd());
+
+        replay("nilspod_streaming.txt");
+        // samples 1 - 20 were captured, samples 9 and 10 were lost
+        waitFor(() -> mDataFrames.size() == 18);
+
+        assertEquals(18, mSensor.getNumReceivedSamples());
+        assertEquals(2, mSensor.getNumLostSamples());
+        for (SensorDataFrame frame : mDataFrames) {
+            NilsPodSensor.NilsPodDataFrame df = (NilsPodSensor.NilsPodDataFrame) frame;
+            int counter = (int) df.getTimestamp();
+            assertTrue(counter != 9 && counter != 10);
+            assertEquals(counter / mSensor.getGyroScalingFactor(), df.getGyroX(), 1e-9);
+            assertEquals(-counter / mSensor.getGyroScalingFactor(), df.getGyroY(), 1e-9);
+            assertEquals(10 * counter / mSensor.getAccScalingFactor(), df.getAccelX(), 1e-9);
+            assertEquals(-30 * counter / mSensor.getAccScalingFactor(), df.getAccelZ(), 1e-9);
+        }
+    }
+
+    @Test
+    public void testSessionDownloadReplay() throws Exception {
+        mSensor.readSessionList(false);
+        waitForCommand(AbstractNilsPodSensor.NilsPodSensorCommand.FLASH_READ_SESSION_LIST.getByteCmd());
+        replay("nilspod_session_list.txt");
+        waitFor(() -> mSessions.size() == 1);
+
+        Session session = mSessions.get(0);
+        assertEquals(692, session.getSessionSize());
+        assertEquals(102.4, session.getSamplingRate(), 1e-9);
+
+        mSensor.downloadSession(session.getSessionId());
+        waitForCommand(new byte[]{(byte) 0xF3, (byte) session.getSessionId()});
+        CapturedNotificationStream stream = replay("nilspod_session_download.txt");
+        waitFor(() -> mFinishedDownload != null);
+
+        assertEquals(session.getSessionSize(), mFinishedDownload.getProgress());
+
+        // downloaded file contains the payload of all captured data notifications
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (CapturedNotificationStream.Notification notification : stream.getNotifications()) {
+            if (AbstractNilsPodSensor.NILS_POD_STREAMING.equals(notification.getCharacteristic())) {
+                expected.write(notification.getValue());
+            }
+        }
+        File file = new File(new File(mContext.getExternalFilesDir(null), "SensorLibRecordings/NilsPodSessionDownloads"),
+                mSensor.getDeviceName() + "_" + session.getSessionStartString() + ".bin");
+        assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file.toPath()));
+
+        // ... and can be decoded
+        try (SessionReader reader = new SessionReader(file)) {
+            assertEquals(102.4, reader.getHeader().getSamplingRate(), 1e-9);
+            assertEquals(40, reader.getNumSamples());
+            SensorDataBlock block = new SensorDataBlock(64);
+            assertEquals(40, reader.read(0, 64, block));
+            for (int i = 0; i < block.getSize(); i++) {
+                assertEquals(i, block.getCounter(i));
+            }
+        }
+    }
+
+    /**
+     * Loads a captured stream, checks that it survives a write/read round trip and replays it as fast as possible.
+     */
+    private CapturedNotificationStream replay(String resource) throws Exception {
+        CapturedNotificationStream stream;
+        try (InputStream is = getClass().getResourceAsStream(resource)) {
+            stream = CapturedNotificationStream.read(new InputStreamReader(is, StandardCharsets.UTF_8));
+        }
+        StringWriter writer = new StringWriter();
+        stream.write(writer);
+        CapturedNotificationStream copy = CapturedNotificationStream.read(new StringReader(writer.toString()));
+        assertEquals(stream.size(), copy.size());
+        assertEquals(stream.getDurationUs(), copy.getDurationUs());
+
+        FakeBleTransport.Replay replay = mTransport.replay(copy, 0);
+        assertTrue(replay.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        return copy;
+    }
+
+    private void waitForCommand(byte[] cmd) throws InterruptedException {
+        waitFor(() -> {
+            for (byte[] command : mCommands) {
+                if (Arrays.equals(cmd, command)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Runs the main looper (sensor callbacks are dispatched on the main thread) until the condition is met.
+     */
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for sensor");
+            }
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.shimmerresearch.driver;
+
+/**
+ * Precomputed calibration of a three-axis inertial sensor.
+ * <p>
+ * Combines the alignment matrix R, the sensitivity matrix K and the offset vector B into
+ * C = [R^(-1)] .[K^(-1)] .([U]-[B]) (see {@link Shimmer#calibrateInertialSensorData}), stored as a flat 3x3 matrix
+ * followed by the offset vector. The inverses are only computed when the calibration parameters change, so a sample is
+ * calibrated with 9 multiplications and without any allocation.
+ */
+class CalibrationTransform {
+
+    private static final int OFFSET = 9;
+
+    /**
+     * Row-major [R^(-1)] .[K^(-1)] at index 0-8, offset vector at index 9-11
+     */
+    private final double[] mTransform = new double[12];
+
+
+    CalibrationTransform(double[][] alignmentMatrix, double[][] sensitivityMatrix, double[][] offsetVector) {
+        set(alignmentMatrix, sensitivityMatrix, offsetVector);
+    }
+
+    /**
+     * Recomputes the transform from the given calibration parameters.
+     *
+     * @param alignmentMatrix   3x3 alignment matrix
+     * @param sensitivityMatrix 3x3 sensitivity matrix
+     * @param offsetVector      3x1 offset vector
+     */
+    void set(double[][] alignmentMatrix, double[][] sensitivityMatrix, double[][] offsetVector) {
+        double[] am = inverse(alignmentMatrix);
+        double[] sm = inverse(sensitivityMatrix);
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                double sum = 0;
+                for (int k = 0; k < 3; k++) {
+                    sum += am[i * 3 + k] * sm[k * 3 + j];
+                }
+                mTransform[i * 3 + j] = sum;
+            }
+        }
+        setOffset(offsetVector);
+    }
+
+    /**
+     * Only updates the offset vector, the matrices are kept.
+     *
+     * @param offsetVector 3x1 offset vector
+     */
+    void setOffset(double[][] offsetVector) {
+        mTransform[OFFSET] = offsetVector[0][0];
+        mTransform[OFFSET + 1] = offsetVector[1][0];
+        mTransform[OFFSET + 2] = offsetVector[2][0];
+    }
+
+    /**
+     * Calibrates a sample.
+     *
+     * @param data uncalibrated x, y and z value
+     * @param out  array for the calibrated x, y and z value, must not be data
+     * @return out
+     */
+    double[] apply(double[] data, double[] out) {
+        final double[] t = mTransform;
+        double x = data[0] - t[OFFSET];
+        double y = data[1] - t[OFFSET + 1];
+        double z = data[2] - t[OFFSET + 2];
+        out[0] = t[0] * x + t[1] * y + t[2] * z;
+        out[1] = t[3] * x + t[4] * y + t[5] * z;
+        out[2] = t[6] * x + t[7] * y + t[8] * z;
+        return out;
+    }
+
+    private static double[] inverse(double[][] data) {
+        double a = data[0][0], b = data[0][1], c = data[0][2];
+        double d = data[1][0], e = data[1][1], f = data[1][2];
+        double g = data[2][0], h = data[2][1], i = data[2][2];
+        double deter = a * e * i + b * f * g + c * d * h - c * e * g - b * d * i - a * f * h;
+        return new double[]{
+                (1 / deter) * (e * i - f * h), (1 / deter) * (c * h - b * i), (1 / deter) * (b * f - c * e),
+                (1 / deter) * (f * g - d * i), (1 / deter) * (a * i - c * g), (1 / deter) * (c * d - a * f),
+                (1 / deter) * (d * h - e * g), (1 / deter) * (g * b - a * h), (1 / deter) * (a * e - b * d)
+        };
+    }
+}
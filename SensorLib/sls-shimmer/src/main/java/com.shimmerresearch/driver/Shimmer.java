@@ -69,6 +69,7 @@ import com.google.common.collect.BiMap;
 import com.google.common.collect.ImmutableBiMap;
 import com.shimmerresearch.algorithms.GradDes3DOrientation;
 import com.shimmerresearch.algorithms.GradDes3DOrientation.Quaternion;
+import com.shimmerresearch.driver.ShimmerSample.Channel;
 
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
@@ -81,10 +82,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.Future;
 
 import javax.vecmath.Quat4d;
 import javax.vecmath.Vector3d;
@@ -267,17 +266,17 @@ public class Shimmer {
 
     private double mLastReceivedTimeStamp = 0;
     private double mCurrentTimeStampCycle = 0;
-    private boolean mStreaming = false;                                            // This is used to monitor whether the device is in streaming mode
+    private volatile boolean mStreaming = false;                                            // This is used to monitor whether the device is in streaming mode
     private double mSamplingRate;                                                // 51.2Hz is the default sampling rate
     protected int mEnabledSensors;                                                // This stores the enabled sensors
     private int tempEnabledSensors;                                                // This stores the enabled sensors
     private int mSetEnabledSensors = SENSOR_ACCEL;                                // Only used during the initialization process, see initialize();
     protected String mMyName;                                                        // This stores the user assigned name
-    private byte mCurrentCommand;                                                // This variable is used to keep track of the current command being executed while waiting for an Acknowledge Packet. This allows the appropriate action to be taken once an Acknowledge Packet is received.
+    private volatile byte mCurrentCommand;                                                // This variable is used to keep track of the current command being executed while waiting for an Acknowledge Packet. This allows the appropriate action to be taken once an Acknowledge Packet is received.
     private byte mTempByteValue;                                                // A temporary variable used to store Byte value
     private int mTempIntValue;                                                    // A temporary variable used to store Integer value, used mainly to store a value while waiting for an acknowledge packet (e.g. when writeGRange() is called, the range is stored temporarily and used to update GSRRange when the acknowledge packet is received.
-    private boolean mWaitForAck = false;                                          // This indicates whether the device is waiting for an acknowledge packet from the Shimmer Device
-    private boolean mWaitForResponse = false;                                    // This indicates whether the device is waiting for a response packet from the Shimmer Device
+    private volatile boolean mWaitForAck = false;                                          // This indicates whether the device is waiting for an acknowledge packet from the Shimmer Device
+    private volatile boolean mWaitForResponse = false;                                    // This indicates whether the device is waiting for a response packet from the Shimmer Device
     private int mPacketSize = 0;                                                    // Default 2 bytes for time stamp and 6 bytes for accelerometer
     private int mAccelRange = 0;                                                    // This stores the current accelerometer range being used. The accelerometer range is stored during two instances, once an ack packet is received after a writeAccelRange(), and after a response packet has been received after readAccelRange()
     private int mMagSamplingRate = 4;                                                // This stores the current Mag Sampling rate, it is a value between 0 and 6; 0 = 0.5 Hz; 1 = 1.0 Hz; 2 = 2.0 Hz; 3 = 5.0 Hz; 4 = 10.0 Hz; 5 = 20.0 Hz; 6 = 50.0 Hz
@@ -293,6 +292,10 @@ public class Shimmer {
     private String mMyBluetoothAddress = "";
     private String[] mSignalNameArray = new String[19];                            // 19 is the maximum number of signal thus far
     protected String[] mSignalDataTypeArray = new String[19];                        // 19 is the maximum number of signal thus far
+    private ShimmerPacketDecoder mPacketDecoder = ShimmerPacketDecoder.compile(mSignalDataTypeArray, false);   // Decoding program for the current packet format
+    private int[] mDecodedPacket = new int[mSignalDataTypeArray.length];           // Decoded signals of the current packet, only used by the connected thread
+    private int[] mChannelIndices = new int[Channel.values().length];              // Signal index of each sample channel, resolved whenever the packet format changes
+    private boolean mSampleOutput = false;                                           // Send ShimmerSamples instead of ObjectClusters with MESSAGE_READ
     private String[] mGetDataInstruction = {"a"};                                // This is the default value to return all data in both calibrated and uncalibrated format for now only 'a' is supported
     protected boolean mDefaultCalibrationParametersECG = true;
     protected boolean mDefaultCalibrationParametersEMG = true;
@@ -327,8 +330,6 @@ public class Shimmer {
     protected static double[][] OffsetVectorLowNoiseAccelShimmer3 = {{2047}, {2047}, {2047}};
     protected static double[][] OffsetVectorWideRangeAccelShimmer3 = {{0}, {0}, {0}};
 
-    protected List<byte[]> mListofInstructions = new ArrayList<byte[]>();
-    protected boolean mInstructionStackLock = false;
     protected double OffsetECGRALL = 2060;
     protected double GainECGRALL = 175;
     protected double OffsetECGLALL = 2060;
@@ -376,15 +377,22 @@ public class Shimmer {
     protected static double[][] SensitivityMatrixMag5p6GaShimmer3 = {{330, 0, 0}, {0, 330, 0}, {0, 0, 295}};
     protected static double[][] SensitivityMatrixMag8p1GaShimmer3 = {{230, 0, 0}, {0, 230, 0}, {0, 0, 205}};
 
+    // Calibration of the inertial sensors, rebuilt by updateCalibrationTransforms() whenever the matrices above change
+    private final CalibrationTransform mAccelTransform = new CalibrationTransform(AlignmentMatrixAccel, SensitivityMatrixAccel, OffsetVectorAccel);
+    private final CalibrationTransform mAccel2Transform = new CalibrationTransform(AlignmentMatrixAccel2, SensitivityMatrixAccel2, OffsetVectorAccel2);
+    private final CalibrationTransform mGyroTransform = new CalibrationTransform(AlignmentMatrixGyro, SensitivityMatrixGyro, OffsetVectorGyro);
+    private final CalibrationTransform mMagTransform = new CalibrationTransform(AlignmentMatrixMag, SensitivityMatrixMag, OffsetVectorMag);
+    private final double[] mCalibratedData = new double[3];                          // Calibrated inertial sensor data of the current packet, only used by the connected thread
+
 
     private boolean mTransactionCompleted = true;                                    // Variable is used to ensure a command has finished execution prior to executing the next command (see initialize())
-    private boolean mSync = true;                                                    // Variable to keep track of sync
+    private final ShimmerPacketFramer mPacketFramer = new ShimmerPacketFramer();      // Frames the data packets while streaming and keeps track of sync
     private boolean mContinousSync = false;                                       // This is to select whether to continuously check the data packets
     private boolean mSetupDevice = false;                                            // Used by the constructor when the user intends to write new settings to the Shimmer device after connection
     private boolean mLowPowerMag = false;
     private boolean mLowPowerAccel = false;
     private boolean mLowPowerGyro = false;
-    private Timer mTimer;                                                        // Timer variable used when waiting for an ack or response packet
+    private final ShimmerCommandExecutor mCommandExecutor = new ShimmerCommandExecutor(new CommandCallback());   // Sends the commands one after the other
     private int mBluetoothLib = 0;                                                // 0 = default lib, 1 = arduino lib
     private BluetoothAdapter mBluetoothAdapter = null;
     private long mPacketLossCount = 0;
@@ -566,7 +574,7 @@ public class Shimmer {
      * @param bluetoothLibrary Supported libraries are 'default' and 'gerdavax'
      */
     public synchronized void connect(final String address, String bluetoothLibrary) {
-        mListofInstructions.clear();
+        mCommandExecutor.clear();
         mFirstTime = true;
         if (bluetoothLibrary == "default") {
             mMyBluetoothAddress = address;
@@ -695,6 +703,25 @@ public class Shimmer {
         r.write(out);
     }
 
+    /**
+     * Queues a command, the commands are sent one after the other while connected.
+     *
+     * @param instruction the command byte followed by its arguments
+     * @return future that is done once the command was acknowledged and its response (if any) was received,
+     * it fails if the Shimmer does not answer in time
+     */
+    protected Future<Void> sendCommand(byte[] instruction) {
+        long timeout;
+        if (instruction[0] == STOP_STREAMING_COMMAND) {
+            timeout = 0; // the ack of the stop streaming command is not looked for
+        } else if (instruction[0] == GET_FW_VERSION_COMMAND || instruction[0] == GET_SAMPLING_RATE_COMMAND) {
+            timeout = ACK_TIMER_DURATION * 1000;
+        } else {
+            timeout = (ACK_TIMER_DURATION + 10) * 1000;
+        }
+        return mCommandExecutor.submit(instruction, timeout);
+    }
+
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
@@ -901,8 +928,35 @@ public class Shimmer {
         private final OutputStream mmOutStream;
         private BtSocket mSocket = null;
         byte[] tb = {0};
-        Stack<Byte> byteStack = new Stack<Byte>();
-        byte[] newPacket = new byte[mPacketSize + 1];
+        private volatile Thread mCommandWorker;
+
+        private final ShimmerPacketFramer.Listener mFramerListener = new ShimmerPacketFramer.Listener() {
+            @Override
+            public void onDataPacket(byte[] buffer, int offset, int length) {
+                ShimmerSample sample = buildSample(buffer, offset, mGetDataInstruction);    //the packet which is an array of bytes is converted to the data structure
+                mHandler.obtainMessage(MESSAGE_READ, mSampleOutput ? sample : sample.toObjectCluster())
+                        .sendToTarget();
+            }
+
+            @Override
+            public boolean onAck() {
+                if (mWaitForAck == false) {
+                    return false;
+                }
+                //this is to handle acks during mid stream, acks only are received between packets.
+                if (mCurrentCommand == SET_BLINK_LED) {
+                    Log.d("ShimmerCMD", "LED_BLINK_ACK_DETECTED");
+                    mWaitForAck = false;
+                    mTransactionCompleted = true;
+                    ShimmerCommand command = mCommandExecutor.getCurrentCommand();
+                    if (command != null) {
+                        mCurrentLEDStatus = (int) command.getInstruction()[1];
+                    }
+                    mCommandExecutor.completeCommand();
+                }
+                return true;
+            }
+        };
 
         public ConnectedThread(BluetoothSocket socket) {
 
@@ -942,660 +996,198 @@ public class Shimmer {
         }
 
         /**
-         * The received packets are processed here
+         * The received packets are processed here. Reads block until data is available,
+         * the commands are sent by the {@link ShimmerCommandExecutor}.
          */
         public synchronized void run() {
+            mPacketFramer.clear();
+            mCommandWorker = mCommandExecutor.start();
             // Keep listening to the InputStream while connected
             while (true) {
-
-                /////////////////////////
-                // is an instruction running ? if not proceed
-                if (mInstructionStackLock == false) {
-                    // check instruction stack, are there any other instructions left to be executed?
-                    if (!mListofInstructions.isEmpty()) {
-                        mInstructionStackLock = true;
-                        byte[] insBytes = (byte[]) mListofInstructions.get(0);
-                        mCurrentCommand = insBytes[0];
-                        mWaitForAck = true;
-                        write(insBytes);
-                        if (mCurrentCommand == STOP_STREAMING_COMMAND) {
-                            mStreaming = false;
-                        } else {
-                            if (mCurrentCommand == GET_FW_VERSION_COMMAND) {
-                                responseTimer(ACK_TIMER_DURATION);
-                            } else if (mCurrentCommand == GET_SAMPLING_RATE_COMMAND) {
-                                responseTimer(ACK_TIMER_DURATION);
-                            } else {
-                                responseTimer(ACK_TIMER_DURATION + 10);
-                            }
+                try {
+                    if (mStreaming == true) {
+                        mPacketFramer.read(mInStream);
+                        mPacketFramer.frame(mPacketSize, mContinousSync, mFramerListener);
+                        continue;
+                    }
+                    if (mWaitForAck == false && mWaitForResponse == true && mFirstTime) {
+                        while (mInStream.available() != 0) {
+                            mInStream.skip(mInStream.available());
                         }
-                        mTransactionCompleted = false;
+                        mFirstTime = false;
                     }
 
-                }
+                    if (mWaitForAck == true && mCurrentCommand == STOP_STREAMING_COMMAND) {
+                        // the ack may already have been consumed as streamed data, so don't block waiting for it
+                        stopStreamingCompleted();
+                        continue;
+                    }
 
-                try {
+                    readFully(tb, 0, 1);
+                    ShimmerCommand command = mCommandExecutor.getCurrentCommand();
+                    byte[] instruction = (command != null) ? command.getInstruction() : null;
 
                     //Log.d("Shimmer","byte " + Byte.toString(tb[0]) + " " + Boolean.toString(mWaitForAck) + " " + Boolean.toString(mWaitForResponse) );
                     //Is the device waiting for an Ack/Response if so look out for the appropriate command
 
-                    if (mWaitForAck == true && mStreaming == false) {
-                        if (mInStream.available() != 0) {
-                            mInStream.read(tb, 0, 1);
-                            Log.d("ShimmerREAD", mMyBluetoothAddress + " :: " + Byte.toString(tb[0]));
+                    if (mWaitForAck == true) {
+                        Log.d("ShimmerREAD", mMyBluetoothAddress + " :: " + Byte.toString(tb[0]));
+
 
+                        if (mCurrentCommand == STOP_STREAMING_COMMAND) { //due to not receiving the ack from stop streaming command we will skip looking for it.
+                            stopStreamingCompleted();
+                        }
+
+                        if ((byte) tb[0] == ACK_COMMAND_PROCESSED) {
 
-                            if (mCurrentCommand == STOP_STREAMING_COMMAND) { //due to not receiving the ack from stop streaming command we will skip looking for it.
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "ACK Received for Device: " + mMyBluetoothAddress + "; Command Issued: " + mCurrentCommand);
-                                mStreaming = false;
+                            Log.d("Shimmer", "ACK Received for Device: " + mMyBluetoothAddress + "; Command Issued: " + mCurrentCommand);
+                            if (mCurrentCommand == START_STREAMING_COMMAND) {
+                                mStreaming = true;
                                 mTransactionCompleted = true;
+                                mPacketFramer.clear();
+                                isNowStreaming();
                                 mWaitForAck = false;
-                                try {
-                                    Thread.sleep(200);    // Wait to ensure that we dont missed any bytes which need to be cleared
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                                byteStack.clear();
-                                mHandler.obtainMessage(Shimmer.MESSAGE_STATE_CHANGE, MSG_STATE_STOP_STREAMING, -1, new ObjectCluster(mMyName, getBluetoothAddress())).sendToTarget();
-                                Message msg = mHandler.obtainMessage(MESSAGE_STOP_STREAMING_COMPLETE);
-                                Bundle bundle = new Bundle();
-                                bundle.putBoolean("Stop Streaming", true);
-                                bundle.putString("Bluetooth Address", mMyBluetoothAddress);
-                                msg.setData(bundle);
-                                mHandler.sendMessage(msg);
-                                while (mInStream.available() > 0) { //this is to clear the buffer
-                                    byte[] tbtemp = new byte[mInStream.available()];
-                                    mInStream.read(tbtemp, 0, mInStream.available());
-                                    Log.d("ShimmerClear", "Streaming Stop Done " + "Bytes still available:" + Integer.toString(mInStream.available()));
-                                }
-                                Log.d("Shimmer", "Streaming Stop Done - clear readbuffer loop completed " + "Bytes still available:" + Integer.toString(mInStream.available()));
-                                mListofInstructions.remove(0);
-                                mInstructionStackLock = false;
+                                mHandler.obtainMessage(Shimmer.MESSAGE_STATE_CHANGE, MSG_STATE_STREAMING, -1, new ObjectCluster(mMyName, getBluetoothAddress())).sendToTarget();
+                                mCommandExecutor.completeCommand();
                             }
+                            /*else if (mCurrentCommand==STOP_STREAMING_COMMAND) {
 
-                            if ((byte) tb[0] == ACK_COMMAND_PROCESSED) {
-
-                                Log.d("Shimmer", "ACK Received for Device: " + mMyBluetoothAddress + "; Command Issued: " + mCurrentCommand);
-                                if (mCurrentCommand == START_STREAMING_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mStreaming = true;
-                                    mTransactionCompleted = true;
-                                    byteStack.clear();
-                                    isNowStreaming();
-                                    mWaitForAck = false;
-                                    mHandler.obtainMessage(Shimmer.MESSAGE_STATE_CHANGE, MSG_STATE_STREAMING, -1, new ObjectCluster(mMyName, getBluetoothAddress())).sendToTarget();
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                }
-                                /*else if (mCurrentCommand==STOP_STREAMING_COMMAND) {
-
-                		    	mStreaming=false;
-                    		    mTransactionCompleted=true;
-                    		    mWaitForAck=false;
-                    		    packetStack.clear();
+            		    	mStreaming=false;
+                		    mTransactionCompleted=true;
+                		    mWaitForAck=false;
+                		    packetStack.clear();
 								if(mInStream.available()>0){ //this is to clear the buffer
 									byte[] tbtemp =new byte[mInStream.available()];
-                    		    	mInStream.read(tbtemp,0,mInStream.available());
+                		    	mInStream.read(tbtemp,0,mInStream.available());
 								}
 								mHandler.obtainMessage(Shimmer.MESSAGE_STATE_CHANGE, MSG_STATE_STOP_STREAMING, -1, new ObjectCluster(mMyName,getBluetoothAddress())).sendToTarget();
 								Message msg = mHandler.obtainMessage(MESSAGE_STOP_STREAMING_COMPLETE);
-                    	        Bundle bundle = new Bundle();
-                    	        bundle.putBoolean("Stop Streaming", true);
-                    	        bundle.putString("Bluetooth Address", mMyBluetoothAddress);
-                    	        msg.setData(bundle);
-                    	        mHandler.sendMessage(msg);
-
-
-                    		    Log.d("Shimmer","Streaming Stop Done" + "Bytes still available:" + Integer.toString(mInStream.available()));
-
-                		    	}*/
-                                else if (mCurrentCommand == SET_SAMPLING_RATE_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mTransactionCompleted = true;
-                                    mWaitForAck = false;
-                                    byte[] instruction = mListofInstructions.get(0);
-                                    double tempdouble = 0;
-                                    if (mShimmerVersion == Shimmer.SHIMMER_2 || mShimmerVersion == Shimmer.SHIMMER_2R) {
-                                        tempdouble = (double) 1024 / instruction[1];
-                                    } else {
-                                        tempdouble = 32768 / (double) ((int) (instruction[1] & 0xFF) + ((int) (instruction[2] & 0xFF) << 8));
-                                    }
-                                    String x = new DecimalFormat("#.#").format(tempdouble);
-                                    String a = x.replace(",", ".");
-                                    double y = Double.parseDouble(a);
-                                    mSamplingRate = y;
-                                    Log.d("Shimmer", "SR rx" + Double.toString(mSamplingRate));
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == SET_BUFFER_SIZE_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mTransactionCompleted = true;
-                                    mWaitForAck = false;
-                                    mBufferSize = (int) ((byte[]) mListofInstructions.get(0))[1];
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == INQUIRY_COMMAND) {
-                                    mWaitForResponse = true;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                } else if (mCurrentCommand == GET_LSM303DLHC_ACCEL_LPMODE_COMMAND) {
-                                    mWaitForResponse = true;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                } else if (mCurrentCommand == GET_LSM303DLHC_ACCEL_HRMODE_COMMAND) {
-                                    mWaitForResponse = true;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                } else if (mCurrentCommand == GET_BUFFER_SIZE_COMMAND) {
-                                    mWaitForAck = false;
-                                    mWaitForResponse = true;
-                                    mListofInstructions.remove(0);
-                                } else if (mCurrentCommand == GET_BLINK_LED) {
-                                    mWaitForAck = false;
-                                    mWaitForResponse = true;
-                                    mListofInstructions.remove(0);
-                                } else if (mCurrentCommand == GET_MAG_SAMPLING_RATE_COMMAND) {
-                                    mWaitForAck = false;
-                                    mWaitForResponse = true;
-                                    mListofInstructions.remove(0);
-                                } else if (mCurrentCommand == GET_MAG_GAIN_COMMAND) {
-                                    mWaitForAck = false;
-                                    mWaitForResponse = true;
-                                    mListofInstructions.remove(0);
-                                } else if (mCurrentCommand == GET_ACCEL_SENSITIVITY_COMMAND) {
-                                    mWaitForAck = false;
-                                    mWaitForResponse = true;
-                                } else if (mCurrentCommand == GET_MPU9150_GYRO_RANGE_COMMAND) {
-                                    mWaitForAck = false;
-                                    mWaitForResponse = true;
-                                } else if (mCurrentCommand == GET_GSR_RANGE_COMMAND) {
-                                    mWaitForAck = false;
-                                    mWaitForResponse = true;
-                                    mListofInstructions.remove(0);
-                                } else if (mCurrentCommand == GET_FW_VERSION_COMMAND) {
-                                    mWaitForResponse = true;
-                                    mWaitForAck = false;
-                                } else if (mCurrentCommand == GET_ECG_CALIBRATION_COMMAND) {
-                                    mWaitForResponse = true;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                } else if (mCurrentCommand == GET_EMG_CALIBRATION_COMMAND) {
-                                    mWaitForResponse = true;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                } else if (mCurrentCommand == SET_BLINK_LED) {
-                                    mCurrentLEDStatus = (int) ((byte[]) mListofInstructions.get(0))[1];
-                                    mTransactionCompleted = true;
-                                    //mWaitForAck=false;
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == SET_GSR_RANGE_COMMAND) {
-
-                                    mTransactionCompleted = true;
-                                    mWaitForAck = false;
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mGSRRange = (int) ((byte[]) mListofInstructions.get(0))[1];
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == GET_SAMPLING_RATE_COMMAND) {
-                                    mWaitForResponse = true;
-                                    mWaitForAck = false;
-
-                                } else if (mCurrentCommand == GET_CONFIG_BYTE0_COMMAND) {
-                                    mWaitForResponse = true;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                } else if (mCurrentCommand == SET_CONFIG_BYTE0_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mConfigByte0 = (int) ((byte[]) mListofInstructions.get(0))[1];
-                                    ;
-                                    mWaitForAck = false;
-                                    mTransactionCompleted = true;
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == SET_LSM303DLHC_ACCEL_LPMODE_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mWaitForAck = false;
-                                    mTransactionCompleted = true;
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == SET_LSM303DLHC_ACCEL_HRMODE_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mWaitForAck = false;
-                                    mTransactionCompleted = true;
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == SET_PMUX_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    if (((byte[]) mListofInstructions.get(0))[1] == 1) {
-                                        mConfigByte0 = (byte) ((byte) (mConfigByte0 | 64) & (0xFF));
-                                    } else if (((byte[]) mListofInstructions.get(0))[1] == 0) {
-                                        mConfigByte0 = (byte) ((byte) (mConfigByte0 & 191) & (0xFF));
-                                    }
-                                    mTransactionCompleted = true;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == SET_GYRO_TEMP_VREF_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mTransactionCompleted = true;
-                                    mConfigByte0 = mTempByteValue;
-                                    mWaitForAck = false;
-                                } else if (mCurrentCommand == SET_5V_REGULATOR_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    if (((byte[]) mListofInstructions.get(0))[1] == 1) {
-                                        mConfigByte0 = (byte) (mConfigByte0 | 128);
-                                    } else if (((byte[]) mListofInstructions.get(0))[1] == 0) {
-                                        mConfigByte0 = (byte) (mConfigByte0 & 127);
-                                    }
-                                    mTransactionCompleted = true;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == SET_ACCEL_SENSITIVITY_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mAccelRange = (int) (((byte[]) mListofInstructions.get(0))[1]);
-                                    if (mDefaultCalibrationParametersAccel == true) {
-                                        if (mShimmerVersion != SHIMMER_3) {
-                                            if (getAccelRange() == 0) {
-                                                SensitivityMatrixAccel = SensitivityMatrixAccel1p5gShimmer2;
-                                            } else if (getAccelRange() == 1) {
-                                                SensitivityMatrixAccel = SensitivityMatrixAccel2gShimmer2;
-                                            } else if (getAccelRange() == 2) {
-                                                SensitivityMatrixAccel = SensitivityMatrixAccel4gShimmer2;
-                                            } else if (getAccelRange() == 3) {
-                                                SensitivityMatrixAccel = SensitivityMatrixAccel6gShimmer2;
-                                            }
-                                        } else if (mShimmerVersion == SHIMMER_3) {
-                                            SensitivityMatrixAccel = SensitivityMatrixLowNoiseAccel2gShimmer3;
-                                            AlignmentMatrixAccel = AlignmentMatrixLowNoiseAccelShimmer3;
-                                            OffsetVectorAccel = OffsetVectorLowNoiseAccelShimmer3;
-                                        }
-                                    }
+                	        Bundle bundle = new Bundle();
+                	        bundle.putBoolean("Stop Streaming", true);
+                	        bundle.putString("Bluetooth Address", mMyBluetoothAddress);
+                	        msg.setData(bundle);
+                	        mHandler.sendMessage(msg);
 
-                                    if (mDefaultCalibrationParametersDigitalAccel) {
-                                        if (mShimmerVersion == SHIMMER_3) {
-                                            if (getAccelRange() == 1) {
-                                                SensitivityMatrixAccel2 = SensitivityMatrixWideRangeAccel4gShimmer3;
-                                                AlignmentMatrixAccel2 = AlignmentMatrixWideRangeAccelShimmer3;
-                                                OffsetVectorAccel2 = OffsetVectorWideRangeAccelShimmer3;
-                                            } else if (getAccelRange() == 2) {
-                                                SensitivityMatrixAccel2 = SensitivityMatrixWideRangeAccel8gShimmer3;
-                                                AlignmentMatrixAccel2 = AlignmentMatrixWideRangeAccelShimmer3;
-                                                OffsetVectorAccel2 = OffsetVectorWideRangeAccelShimmer3;
-                                            } else if (getAccelRange() == 3) {
-                                                SensitivityMatrixAccel2 = SensitivityMatrixWideRangeAccel16gShimmer3;
-                                                AlignmentMatrixAccel2 = AlignmentMatrixWideRangeAccelShimmer3;
-                                                OffsetVectorAccel2 = OffsetVectorWideRangeAccelShimmer3;
-                                            } else if (getAccelRange() == 0) {
-                                                SensitivityMatrixAccel2 = SensitivityMatrixWideRangeAccel2gShimmer3;
-                                                AlignmentMatrixAccel2 = AlignmentMatrixWideRangeAccelShimmer3;
-                                                OffsetVectorAccel2 = OffsetVectorWideRangeAccelShimmer3;
-                                            }
-                                        }
-                                    }
-                                    mTransactionCompleted = true;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-
-                                } else if (mCurrentCommand == SET_MPU9150_GYRO_RANGE_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mGyroRange = (int) (((byte[]) mListofInstructions.get(0))[1]);
-                                    if (mDefaultCalibrationParametersGyro == true) {
-                                        if (mShimmerVersion == SHIMMER_3) {
-                                            AlignmentMatrixGyro = AlignmentMatrixGyroShimmer3;
-                                            OffsetVectorGyro = OffsetVectorGyroShimmer3;
-                                            if (mGyroRange == 0) {
-                                                SensitivityMatrixGyro = SensitivityMatrixGyro250dpsShimmer3;
-
-                                            } else if (mGyroRange == 1) {
-                                                SensitivityMatrixGyro = SensitivityMatrixGyro500dpsShimmer3;
-
-                                            } else if (mGyroRange == 2) {
-                                                SensitivityMatrixGyro = SensitivityMatrixGyro1000dpsShimmer3;
-
-                                            } else if (mGyroRange == 3) {
-                                                SensitivityMatrixGyro = SensitivityMatrixGyro2000dpsShimmer3;
-
-                                            }
-                                        }
-                                    }
-                                    mTransactionCompleted = true;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == SET_MAG_SAMPLING_RATE_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mTransactionCompleted = true;
-                                    mMagSamplingRate = mTempIntValue;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == GET_ACCEL_SAMPLING_RATE_COMMAND) {
-                                    mWaitForAck = false;
-                                    mWaitForResponse = true;
-                                    mListofInstructions.remove(0);
-                                } else if (mCurrentCommand == SET_ACCEL_SAMPLING_RATE_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mTransactionCompleted = true;
-                                    mAccelSamplingRate = mTempIntValue;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == SET_MPU9150_SAMPLING_RATE_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mTransactionCompleted = true;
-                                    mMPU9150SamplingRate = mTempIntValue;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == SET_SENSORS_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mWaitForAck = false;
-                                    mEnabledSensors = tempEnabledSensors;
-                                    byteStack.clear(); // Always clear the packetStack after setting the sensors, this is to ensure a fresh start
-                                    mTransactionCompleted = true;
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == SET_MAG_GAIN_COMMAND) {
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mTransactionCompleted = true;
-                                    mWaitForAck = false;
-                                    mMagGain = (int) ((byte[]) mListofInstructions.get(0))[1];
-                                    if (mDefaultCalibrationParametersMag == true) {
-                                        if (mShimmerVersion == SHIMMER_3) {
-                                            AlignmentMatrixMag = AlignmentMatrixMagShimmer3;
-                                            OffsetVectorMag = OffsetVectorMagShimmer3;
-                                            if (mMagGain == 1) {
-                                                SensitivityMatrixMag = SensitivityMatrixMag1p3GaShimmer3;
-                                            } else if (mMagGain == 2) {
-                                                SensitivityMatrixMag = SensitivityMatrixMag1p9GaShimmer3;
-                                            } else if (mMagGain == 3) {
-                                                SensitivityMatrixMag = SensitivityMatrixMag2p5GaShimmer3;
-                                            } else if (mMagGain == 4) {
-                                                SensitivityMatrixMag = SensitivityMatrixMag4GaShimmer3;
-                                            } else if (mMagGain == 5) {
-                                                SensitivityMatrixMag = SensitivityMatrixMag4p7GaShimmer3;
-                                            } else if (mMagGain == 6) {
-                                                SensitivityMatrixMag = SensitivityMatrixMag5p6GaShimmer3;
-                                            } else if (mMagGain == 7) {
-                                                SensitivityMatrixMag = SensitivityMatrixMag8p1GaShimmer3;
-                                            }
-                                        }
-                                    }
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == GET_ACCEL_CALIBRATION_COMMAND || mCurrentCommand == GET_GYRO_CALIBRATION_COMMAND || mCurrentCommand == GET_MAG_CALIBRATION_COMMAND || mCurrentCommand == GET_ALL_CALIBRATION_COMMAND) {
-                                    mWaitForResponse = true;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                } else if (mCurrentCommand == GET_SHIMMER_VERSION_COMMAND_NEW) {
-                                    mWaitForResponse = true;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                } else if (mCurrentCommand == GET_SHIMMER_VERSION_COMMAND) {
-                                    mWaitForResponse = true;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                } else if (mCurrentCommand == SET_ECG_CALIBRATION_COMMAND) {
-                                    //mGSRRange=mTempIntValue;
-                                    mDefaultCalibrationParametersECG = false;
-                                    OffsetECGLALL = (double) ((((byte[]) mListofInstructions.get(0))[0] & 0xFF) << 8) + (((byte[]) mListofInstructions.get(0))[1] & 0xFF);
-                                    GainECGLALL = (double) ((((byte[]) mListofInstructions.get(0))[2] & 0xFF) << 8) + (((byte[]) mListofInstructions.get(0))[3] & 0xFF);
-                                    OffsetECGRALL = (double) ((((byte[]) mListofInstructions.get(0))[4] & 0xFF) << 8) + (((byte[]) mListofInstructions.get(0))[5] & 0xFF);
-                                    GainECGRALL = (double) ((((byte[]) mListofInstructions.get(0))[6] & 0xFF) << 8) + (((byte[]) mListofInstructions.get(0))[7] & 0xFF);
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mTransactionCompleted = true;
-                                    mWaitForAck = false;
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == SET_EMG_CALIBRATION_COMMAND) {
-                                    //mGSRRange=mTempIntValue;
-                                    mDefaultCalibrationParametersEMG = false;
-                                    OffsetEMG = (double) ((((byte[]) mListofInstructions.get(0))[0] & 0xFF) << 8) + (((byte[]) mListofInstructions.get(0))[1] & 0xFF);
-                                    GainEMG = (double) ((((byte[]) mListofInstructions.get(0))[2] & 0xFF) << 8) + (((byte[]) mListofInstructions.get(0))[3] & 0xFF);
-                                    mTransactionCompleted = true;
-                                    mWaitForAck = false;
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                } else if (mCurrentCommand == TOGGLE_LED_COMMAND) {
-                                    //mGSRRange=mTempIntValue;
-                                    mTransactionCompleted = true;
-                                    mWaitForAck = false;
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                }
 
-                            }
-                        }
-                    } else if (mWaitForResponse == true) {
-                        if (mFirstTime) {
-                            while (mInStream.available() != 0) {
-                                mInStream.skip(mInStream.available());
-                            }
-                            mFirstTime = false;
-                        } else if (mInStream.available() != 0) {
-
-                            mInStream.read(tb, 0, 1);
-
-                            if (tb[0] == FW_VERSION_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
+                		    Log.d("Shimmer","Streaming Stop Done" + "Bytes still available:" + Integer.toString(mInStream.available()));
 
-                                try {
-                                    Thread.sleep(200);    // Wait to ensure the packet has been fully received
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                                byte[] bufferInquiry = new byte[6];
-                                mInStream.read(bufferInquiry, 0, 6);
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                mFWVersion = (double) ((bufferInquiry[3] & 0xFF) << 8) + (double) (bufferInquiry[2] & 0xFF) + ((double) ((bufferInquiry[4] & 0xFF)) / 10);
-                                mFWInternal = (int) (bufferInquiry[5] & 0xFF);
-                                if (((double) ((bufferInquiry[4] & 0xFF)) / 10) == 0) {
-                                    mFWVersionFullName = "BtStream " + Double.toString(mFWVersion) + "." + Integer.toString(mFWInternal);
-                                } else {
-                                    mFWVersionFullName = "BtStream " + Double.toString(mFWVersion) + "." + Integer.toString(mFWInternal);
-                                }
-                                Log.d("Shimmer", "Version:" + mFWVersionFullName);
-                                Message msg = mHandler.obtainMessage(MESSAGE_TOAST);
-                                Bundle bundle = new Bundle();
-                                bundle.putString(TOAST, "Firmware Version: " + mFWVersionFullName);
-                                msg.setData(bundle);
-                                if (!mDummy) {
-                                    mHandler.sendMessage(msg);
-                                }
-                                mListofInstructions.remove(0);
-                                mInstructionStackLock = false;
+            		    	}*/
+                            else if (mCurrentCommand == SET_SAMPLING_RATE_COMMAND) {
                                 mTransactionCompleted = true;
-                                readShimmerVersion();
-                            } else if (tb[0] == INQUIRY_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                try {
-                                    Thread.sleep(200);    // Wait to ensure the packet has been fully received
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                                if (mShimmerVersion == SHIMMER_2 || mShimmerVersion == SHIMMER_2R) {
-                                    byte[] bufferInquiry = new byte[30];
-                                    mInStream.read(bufferInquiry, 0, 30);
-                                    mPacketSize = 2 + bufferInquiry[3] * 2;
-                                    mSamplingRate = (double) 1024 / bufferInquiry[0];
-                                    if (mMagSamplingRate == 3 && mSamplingRate > 10) {
-                                        mLowPowerMag = true;
-                                    }
-                                    mAccelRange = bufferInquiry[1];
-                                    mConfigByte0 = bufferInquiry[2] & 0xFF; //convert the byte to unsigned integer
-                                    mNChannels = bufferInquiry[3];
-                                    mBufferSize = bufferInquiry[4];
-                                    byte[] signalIdArray = new byte[mNChannels];
-                                    System.arraycopy(bufferInquiry, 5, signalIdArray, 0, mNChannels);
-                                    updateEnabledSensorsFromChannels(signalIdArray);
-                                    interpretdatapacketformat(mNChannels, signalIdArray);
-                                    Log.d("Shimmer", "Inquiry Response Received for Device-> " + mMyBluetoothAddress + " " + bufferInquiry[0] + " " + bufferInquiry[1] + " " + bufferInquiry[2] + " " + bufferInquiry[3] + " " + bufferInquiry[4] + " " + bufferInquiry[5] + " " + bufferInquiry[6] + " " + bufferInquiry[7] + " " + bufferInquiry[8] + " " + bufferInquiry[9] + " " + bufferInquiry[10] + " " + bufferInquiry[11] + " " + bufferInquiry[12] + " " + bufferInquiry[13] + " " + bufferInquiry[14] + " " + bufferInquiry[15] + " " + bufferInquiry[16] + " " + bufferInquiry[17] + " " + bufferInquiry[18]);
-                                } else if (mShimmerVersion == SHIMMER_3) {
-                                    byte[] bufferInquiry = new byte[30];
-                                    mInStream.read(bufferInquiry, 0, 30);
-                                    mPacketSize = 2 + bufferInquiry[6] * 2;
-                                    String x = new DecimalFormat("#.#").format(32768 / (double) ((int) (bufferInquiry[0] & 0xFF) + ((int) (bufferInquiry[1] & 0xFF) << 8)));
-                                    String a = x.replace(",", ".");
-                                    double y = Double.parseDouble(a);
-                                    mSamplingRate = y;
-                                    mNChannels = bufferInquiry[6];
-                                    mBufferSize = bufferInquiry[7];
-                                    mConfigByte0 = ((int) (bufferInquiry[2] & 0xFF) + ((int) (bufferInquiry[3] & 0xFF) << 8) + ((int) (bufferInquiry[4] & 0xFF) << 16) + ((int) (bufferInquiry[5] & 0xFF) << 24));
-                                    mAccelRange = ((int) (mConfigByte0 & 0xC)) >> 2;
-                                    mGyroRange = ((int) (mConfigByte0 & 196608)) >> 16;
-                                    mMagGain = ((int) (mConfigByte0 & 14680064)) >> 21;
-                                    mAccelSamplingRate = ((int) (mConfigByte0 & 0xF0)) >> 4;
-                                    mMPU9150SamplingRate = ((int) (mConfigByte0 & 65280)) >> 8;
-                                    mMagSamplingRate = ((int) (mConfigByte0 & 1835008)) >> 18;
-                                    if ((mAccelSamplingRate == 2 && mSamplingRate > 10)) {
-                                        mLowPowerAccel = true;
-                                    }
-                                    if ((mMPU9150SamplingRate == 0xFF && mSamplingRate > 10)) {
-                                        mLowPowerGyro = true;
-                                    }
-                                    if ((mMagSamplingRate == 4 && mSamplingRate > 10)) {
-                                        mLowPowerMag = true;
-                                    }
-                                    byte[] signalIdArray = new byte[mNChannels];
-                                    System.arraycopy(bufferInquiry, 8, signalIdArray, 0, mNChannels);
-                                    updateEnabledSensorsFromChannels(signalIdArray);
-                                    interpretdatapacketformat(mNChannels, signalIdArray);
-                                    Log.d("Shimmer", "Inquiry Response Received for Device-> " + mMyBluetoothAddress + " " + bufferInquiry[0] + " " + bufferInquiry[1] + " " + bufferInquiry[2] + " " + bufferInquiry[3] + " " + bufferInquiry[4] + " " + bufferInquiry[5] + " " + bufferInquiry[6] + " " + bufferInquiry[7] + " " + bufferInquiry[8] + " " + bufferInquiry[9] + " " + bufferInquiry[10] + " " + bufferInquiry[11] + " " + bufferInquiry[12] + " " + bufferInquiry[13] + " " + bufferInquiry[14] + " " + bufferInquiry[15] + " " + bufferInquiry[16] + " " + bufferInquiry[17] + " " + bufferInquiry[18]);
-                                } else if (mShimmerVersion == SHIMMER_SR30) { //no config byte so adjust accordingly
-                                    byte[] bufferInquiry = new byte[30];
-                                    mInStream.read(bufferInquiry, 0, 30);
-                                    mPacketSize = 2 + bufferInquiry[2] * 2;
-                                    mSamplingRate = (double) 1024 / bufferInquiry[0];
-                                    mAccelRange = bufferInquiry[1];
-                                    mNChannels = bufferInquiry[2];
-                                    mBufferSize = bufferInquiry[3];
-                                    byte[] signalIdArray = new byte[mNChannels];
-                                    System.arraycopy(bufferInquiry, 4, signalIdArray, 0, mNChannels); // this is 4 because there is no config byte
-                                    interpretdatapacketformat(mNChannels, signalIdArray);
-                                    Log.d("Shimmer", "Inquiry Response Received for Device-> " + mMyBluetoothAddress + " " + bufferInquiry[0] + " " + bufferInquiry[1] + " " + bufferInquiry[2] + " " + bufferInquiry[3] + " " + bufferInquiry[4] + " " + bufferInquiry[5] + " " + bufferInquiry[6] + " " + bufferInquiry[7] + " " + bufferInquiry[8] + " " + bufferInquiry[9] + " " + bufferInquiry[10] + " " + bufferInquiry[11] + " " + bufferInquiry[12] + " " + bufferInquiry[13] + " " + bufferInquiry[14] + " " + bufferInquiry[15] + " " + bufferInquiry[16] + " " + bufferInquiry[17] + " " + bufferInquiry[18]);
+                                mWaitForAck = false;
+                                double tempdouble = 0;
+                                if (mShimmerVersion == Shimmer.SHIMMER_2 || mShimmerVersion == Shimmer.SHIMMER_2R) {
+                                    tempdouble = (double) 1024 / instruction[1];
+                                } else {
+                                    tempdouble = 32768 / (double) ((int) (instruction[1] & 0xFF) + ((int) (instruction[2] & 0xFF) << 8));
                                 }
-                                inquiryDone();
-                                mWaitForResponse = false;
+                                String x = new DecimalFormat("#.#").format(tempdouble);
+                                String a = x.replace(",", ".");
+                                double y = Double.parseDouble(a);
+                                mSamplingRate = y;
+                                Log.d("Shimmer", "SR rx" + Double.toString(mSamplingRate));
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == SET_BUFFER_SIZE_COMMAND) {
                                 mTransactionCompleted = true;
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == GSR_RANGE_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                mWaitForResponse = false;
-                                mTransactionCompleted = true;
-                                byte[] bufferGSRRange = new byte[1];
-                                mInStream.read(bufferGSRRange, 0, 1);
-                                mGSRRange = bufferGSRRange[0];
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == MAG_SAMPLING_RATE_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                mWaitForResponse = false;
+                                mWaitForAck = false;
+                                mBufferSize = (int) instruction[1];
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == INQUIRY_COMMAND) {
+                                mWaitForResponse = true;
+                                mWaitForAck = false;
+                            } else if (mCurrentCommand == GET_LSM303DLHC_ACCEL_LPMODE_COMMAND) {
+                                mWaitForResponse = true;
+                                mWaitForAck = false;
+                            } else if (mCurrentCommand == GET_LSM303DLHC_ACCEL_HRMODE_COMMAND) {
+                                mWaitForResponse = true;
+                                mWaitForAck = false;
+                            } else if (mCurrentCommand == GET_BUFFER_SIZE_COMMAND) {
+                                mWaitForAck = false;
+                                mWaitForResponse = true;
+                            } else if (mCurrentCommand == GET_BLINK_LED) {
+                                mWaitForAck = false;
+                                mWaitForResponse = true;
+                            } else if (mCurrentCommand == GET_MAG_SAMPLING_RATE_COMMAND) {
+                                mWaitForAck = false;
+                                mWaitForResponse = true;
+                            } else if (mCurrentCommand == GET_MAG_GAIN_COMMAND) {
+                                mWaitForAck = false;
+                                mWaitForResponse = true;
+                            } else if (mCurrentCommand == GET_ACCEL_SENSITIVITY_COMMAND) {
+                                mWaitForAck = false;
+                                mWaitForResponse = true;
+                            } else if (mCurrentCommand == GET_MPU9150_GYRO_RANGE_COMMAND) {
+                                mWaitForAck = false;
+                                mWaitForResponse = true;
+                            } else if (mCurrentCommand == GET_GSR_RANGE_COMMAND) {
+                                mWaitForAck = false;
+                                mWaitForResponse = true;
+                            } else if (mCurrentCommand == GET_FW_VERSION_COMMAND) {
+                                mWaitForResponse = true;
+                                mWaitForAck = false;
+                            } else if (mCurrentCommand == GET_ECG_CALIBRATION_COMMAND) {
+                                mWaitForResponse = true;
+                                mWaitForAck = false;
+                            } else if (mCurrentCommand == GET_EMG_CALIBRATION_COMMAND) {
+                                mWaitForResponse = true;
+                                mWaitForAck = false;
+                            } else if (mCurrentCommand == SET_BLINK_LED) {
+                                mCurrentLEDStatus = (int) instruction[1];
                                 mTransactionCompleted = true;
-                                byte[] bufferAns = new byte[1];
-                                mInStream.read(bufferAns, 0, 1);
-                                mMagSamplingRate = bufferAns[0];
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == ACCEL_SAMPLING_RATE_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                mWaitForResponse = false;
+                                //mWaitForAck=false;
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == SET_GSR_RANGE_COMMAND) {
+
                                 mTransactionCompleted = true;
-                                byte[] bufferAns = new byte[1];
-                                mAccelSamplingRate = bufferAns[0];
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == MAG_GAIN_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                mWaitForResponse = false;
+                                mWaitForAck = false;
+                                mGSRRange = (int) instruction[1];
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == GET_SAMPLING_RATE_COMMAND) {
+                                mWaitForResponse = true;
+                                mWaitForAck = false;
+
+                            } else if (mCurrentCommand == GET_CONFIG_BYTE0_COMMAND) {
+                                mWaitForResponse = true;
+                                mWaitForAck = false;
+                            } else if (mCurrentCommand == SET_CONFIG_BYTE0_COMMAND) {
+                                mConfigByte0 = (int) instruction[1];
+                                ;
+                                mWaitForAck = false;
                                 mTransactionCompleted = true;
-                                byte[] bufferAns = new byte[1];
-                                mInStream.read(bufferAns, 0, 1);
-                                mMagGain = bufferAns[0];
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == LSM303DLHC_ACCEL_HRMODE_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                mWaitForResponse = false;
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == SET_LSM303DLHC_ACCEL_LPMODE_COMMAND) {
+                                mWaitForAck = false;
                                 mTransactionCompleted = true;
-                                byte[] bufferAns = new byte[1];
-                                mInStream.read(bufferAns, 0, 1);
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == LSM303DLHC_ACCEL_LPMODE_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                mWaitForResponse = false;
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == SET_LSM303DLHC_ACCEL_HRMODE_COMMAND) {
+                                mWaitForAck = false;
                                 mTransactionCompleted = true;
-                                byte[] bufferAns = new byte[1];
-                                mInStream.read(bufferAns, 0, 1);
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == BUFFER_SIZE_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                mWaitForResponse = false;
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == SET_PMUX_COMMAND) {
+                                if (instruction[1] == 1) {
+                                    mConfigByte0 = (byte) ((byte) (mConfigByte0 | 64) & (0xFF));
+                                } else if (instruction[1] == 0) {
+                                    mConfigByte0 = (byte) ((byte) (mConfigByte0 & 191) & (0xFF));
+                                }
                                 mTransactionCompleted = true;
-                                byte[] byteled = new byte[1];
-                                mInStream.read(byteled, 0, 1);
-                                mBufferSize = byteled[0] & 0xFF;
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == BLINK_LED_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                mWaitForResponse = false;
+                                mWaitForAck = false;
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == SET_GYRO_TEMP_VREF_COMMAND) {
                                 mTransactionCompleted = true;
-                                byte[] byteled = new byte[1];
-                                mInStream.read(byteled, 0, 1);
-                                mCurrentLEDStatus = byteled[0] & 0xFF;
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == ACCEL_SENSITIVITY_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                mWaitForResponse = false;
+                                mConfigByte0 = mTempByteValue;
+                                mWaitForAck = false;
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == SET_5V_REGULATOR_COMMAND) {
+                                if (instruction[1] == 1) {
+                                    mConfigByte0 = (byte) (mConfigByte0 | 128);
+                                } else if (instruction[1] == 0) {
+                                    mConfigByte0 = (byte) (mConfigByte0 & 127);
+                                }
                                 mTransactionCompleted = true;
-                                byte[] bufferAccelSensitivity = new byte[1];
-                                mInStream.read(bufferAccelSensitivity, 0, 1);
-                                mAccelRange = bufferAccelSensitivity[0];
+                                mWaitForAck = false;
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == SET_ACCEL_SENSITIVITY_COMMAND) {
+                                mAccelRange = (int) (instruction[1]);
                                 if (mDefaultCalibrationParametersAccel == true) {
                                     if (mShimmerVersion != SHIMMER_3) {
                                         if (getAccelRange() == 0) {
@@ -1608,36 +1200,40 @@ public class Shimmer {
                                             SensitivityMatrixAccel = SensitivityMatrixAccel6gShimmer2;
                                         }
                                     } else if (mShimmerVersion == SHIMMER_3) {
-                                        if (getAccelRange() == 0) {
-                                            SensitivityMatrixAccel = SensitivityMatrixLowNoiseAccel2gShimmer3;
-                                            AlignmentMatrixAccel = AlignmentMatrixLowNoiseAccelShimmer3;
-                                            OffsetVectorAccel = OffsetVectorLowNoiseAccelShimmer3;
-                                        } else if (getAccelRange() == 1) {
-                                            SensitivityMatrixAccel = SensitivityMatrixWideRangeAccel4gShimmer3;
-                                            AlignmentMatrixAccel = AlignmentMatrixWideRangeAccelShimmer3;
-                                            OffsetVectorAccel = OffsetVectorWideRangeAccelShimmer3;
+                                        SensitivityMatrixAccel = SensitivityMatrixLowNoiseAccel2gShimmer3;
+                                        AlignmentMatrixAccel = AlignmentMatrixLowNoiseAccelShimmer3;
+                                        OffsetVectorAccel = OffsetVectorLowNoiseAccelShimmer3;
+                                    }
+                                }
+
+                                if (mDefaultCalibrationParametersDigitalAccel) {
+                                    if (mShimmerVersion == SHIMMER_3) {
+                                        if (getAccelRange() == 1) {
+                                            SensitivityMatrixAccel2 = SensitivityMatrixWideRangeAccel4gShimmer3;
+                                            AlignmentMatrixAccel2 = AlignmentMatrixWideRangeAccelShimmer3;
+                                            OffsetVectorAccel2 = OffsetVectorWideRangeAccelShimmer3;
                                         } else if (getAccelRange() == 2) {
-                                            SensitivityMatrixAccel = SensitivityMatrixWideRangeAccel8gShimmer3;
-                                            AlignmentMatrixAccel = AlignmentMatrixWideRangeAccelShimmer3;
-                                            OffsetVectorAccel = OffsetVectorWideRangeAccelShimmer3;
+                                            SensitivityMatrixAccel2 = SensitivityMatrixWideRangeAccel8gShimmer3;
+                                            AlignmentMatrixAccel2 = AlignmentMatrixWideRangeAccelShimmer3;
+                                            OffsetVectorAccel2 = OffsetVectorWideRangeAccelShimmer3;
                                         } else if (getAccelRange() == 3) {
-                                            SensitivityMatrixAccel = SensitivityMatrixWideRangeAccel16gShimmer3;
-                                            AlignmentMatrixAccel = AlignmentMatrixWideRangeAccelShimmer3;
-                                            OffsetVectorAccel = OffsetVectorWideRangeAccelShimmer3;
+                                            SensitivityMatrixAccel2 = SensitivityMatrixWideRangeAccel16gShimmer3;
+                                            AlignmentMatrixAccel2 = AlignmentMatrixWideRangeAccelShimmer3;
+                                            OffsetVectorAccel2 = OffsetVectorWideRangeAccelShimmer3;
+                                        } else if (getAccelRange() == 0) {
+                                            SensitivityMatrixAccel2 = SensitivityMatrixWideRangeAccel2gShimmer3;
+                                            AlignmentMatrixAccel2 = AlignmentMatrixWideRangeAccelShimmer3;
+                                            OffsetVectorAccel2 = OffsetVectorWideRangeAccelShimmer3;
                                         }
                                     }
                                 }
-                                mListofInstructions.remove(0);
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == MPU9150_GYRO_RANGE_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                mWaitForResponse = false;
+                                updateCalibrationTransforms();
                                 mTransactionCompleted = true;
-                                byte[] bufferGyroSensitivity = new byte[1];
-                                mInStream.read(bufferGyroSensitivity, 0, 1);
-                                mGyroRange = bufferGyroSensitivity[0];
+                                mWaitForAck = false;
+                                mCommandExecutor.completeCommand();
+
+                            } else if (mCurrentCommand == SET_MPU9150_GYRO_RANGE_COMMAND) {
+                                mGyroRange = (int) (instruction[1]);
                                 if (mDefaultCalibrationParametersGyro == true) {
                                     if (mShimmerVersion == SHIMMER_3) {
                                         AlignmentMatrixGyro = AlignmentMatrixGyroShimmer3;
@@ -1653,250 +1249,373 @@ public class Shimmer {
 
                                         } else if (mGyroRange == 3) {
                                             SensitivityMatrixGyro = SensitivityMatrixGyro2000dpsShimmer3;
+
                                         }
                                     }
                                 }
-                                mListofInstructions.remove(0);
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == SAMPLING_RATE_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                mWaitForResponse = false;
-                                if (mStreaming == false) {
-                                    if (mShimmerVersion == Shimmer.SHIMMER_2R && mShimmerVersion == Shimmer.SHIMMER_2) {
-                                        byte[] bufferSR = new byte[1];
-                                        mInStream.read(bufferSR, 0, 1); //read the sampling rate
-                                        if (mCurrentCommand == GET_SAMPLING_RATE_COMMAND) { // this is a double check, not necessary
-                                            double val = (double) (bufferSR[0] & (byte) ACK_COMMAND_PROCESSED);
-                                            mSamplingRate = 1024 / val;
+                                updateCalibrationTransforms();
+                                mTransactionCompleted = true;
+                                mWaitForAck = false;
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == SET_MAG_SAMPLING_RATE_COMMAND) {
+                                mTransactionCompleted = true;
+                                mMagSamplingRate = mTempIntValue;
+                                mWaitForAck = false;
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == GET_ACCEL_SAMPLING_RATE_COMMAND) {
+                                mWaitForAck = false;
+                                mWaitForResponse = true;
+                            } else if (mCurrentCommand == SET_ACCEL_SAMPLING_RATE_COMMAND) {
+                                mTransactionCompleted = true;
+                                mAccelSamplingRate = mTempIntValue;
+                                mWaitForAck = false;
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == SET_MPU9150_SAMPLING_RATE_COMMAND) {
+                                mTransactionCompleted = true;
+                                mMPU9150SamplingRate = mTempIntValue;
+                                mWaitForAck = false;
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == SET_SENSORS_COMMAND) {
+                                mWaitForAck = false;
+                                mEnabledSensors = tempEnabledSensors;
+                                mPacketFramer.clear(); // Always clear the packet buffer after setting the sensors, this is to ensure a fresh start
+                                mTransactionCompleted = true;
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == SET_MAG_GAIN_COMMAND) {
+                                mTransactionCompleted = true;
+                                mWaitForAck = false;
+                                mMagGain = (int) instruction[1];
+                                if (mDefaultCalibrationParametersMag == true) {
+                                    if (mShimmerVersion == SHIMMER_3) {
+                                        AlignmentMatrixMag = AlignmentMatrixMagShimmer3;
+                                        OffsetVectorMag = OffsetVectorMagShimmer3;
+                                        if (mMagGain == 1) {
+                                            SensitivityMatrixMag = SensitivityMatrixMag1p3GaShimmer3;
+                                        } else if (mMagGain == 2) {
+                                            SensitivityMatrixMag = SensitivityMatrixMag1p9GaShimmer3;
+                                        } else if (mMagGain == 3) {
+                                            SensitivityMatrixMag = SensitivityMatrixMag2p5GaShimmer3;
+                                        } else if (mMagGain == 4) {
+                                            SensitivityMatrixMag = SensitivityMatrixMag4GaShimmer3;
+                                        } else if (mMagGain == 5) {
+                                            SensitivityMatrixMag = SensitivityMatrixMag4p7GaShimmer3;
+                                        } else if (mMagGain == 6) {
+                                            SensitivityMatrixMag = SensitivityMatrixMag5p6GaShimmer3;
+                                        } else if (mMagGain == 7) {
+                                            SensitivityMatrixMag = SensitivityMatrixMag8p1GaShimmer3;
                                         }
-                                    } else if (mShimmerVersion == Shimmer.SHIMMER_3) {
-                                        byte[] bufferSR = new byte[2];
-                                        mInStream.read(bufferSR, 0, 2); //read the sampling rate
-                                        mSamplingRate = 32768 / (double) ((int) (bufferSR[0] & 0xFF) + ((int) (bufferSR[1] & 0xFF) << 8));
                                     }
                                 }
-
+                                updateCalibrationTransforms();
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == GET_ACCEL_CALIBRATION_COMMAND || mCurrentCommand == GET_GYRO_CALIBRATION_COMMAND || mCurrentCommand == GET_MAG_CALIBRATION_COMMAND || mCurrentCommand == GET_ALL_CALIBRATION_COMMAND) {
+                                mWaitForResponse = true;
+                                mWaitForAck = false;
+                            } else if (mCurrentCommand == GET_SHIMMER_VERSION_COMMAND_NEW) {
+                                mWaitForResponse = true;
+                                mWaitForAck = false;
+                            } else if (mCurrentCommand == GET_SHIMMER_VERSION_COMMAND) {
+                                mWaitForResponse = true;
+                                mWaitForAck = false;
+                            } else if (mCurrentCommand == SET_ECG_CALIBRATION_COMMAND) {
+                                //mGSRRange=mTempIntValue;
+                                mDefaultCalibrationParametersECG = false;
+                                OffsetECGLALL = (double) ((instruction[0] & 0xFF) << 8) + (instruction[1] & 0xFF);
+                                GainECGLALL = (double) ((instruction[2] & 0xFF) << 8) + (instruction[3] & 0xFF);
+                                OffsetECGRALL = (double) ((instruction[4] & 0xFF) << 8) + (instruction[5] & 0xFF);
+                                GainECGRALL = (double) ((instruction[6] & 0xFF) << 8) + (instruction[7] & 0xFF);
                                 mTransactionCompleted = true;
-                                mListofInstructions.remove(0);
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == ACCEL_CALIBRATION_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                try {
-                                    Thread.sleep(100);    // Due to the nature of the Bluetooth SPP stack a delay has been added to ensure the buffer is filled before it is read
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                                mWaitForResponse = false;
-                                byte[] bufferCalibrationParameters = new byte[21];
-                                mInStream.read(bufferCalibrationParameters, 0, 21);
-                                int packetType = tb[0];
-                                retrievecalibrationparametersfrompacket(bufferCalibrationParameters, packetType);
+                                mWaitForAck = false;
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == SET_EMG_CALIBRATION_COMMAND) {
+                                //mGSRRange=mTempIntValue;
+                                mDefaultCalibrationParametersEMG = false;
+                                OffsetEMG = (double) ((instruction[0] & 0xFF) << 8) + (instruction[1] & 0xFF);
+                                GainEMG = (double) ((instruction[2] & 0xFF) << 8) + (instruction[3] & 0xFF);
                                 mTransactionCompleted = true;
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == ALL_CALIBRATION_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                mWaitForResponse = false;
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-
-                                try {
-                                    Thread.sleep(100);    // Due to the nature of the Bluetooth SPP stack a delay has been added to ensure the buffer is filled before it is read
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
+                                mWaitForAck = false;
+                                mCommandExecutor.completeCommand();
+                            } else if (mCurrentCommand == TOGGLE_LED_COMMAND) {
+                                //mGSRRange=mTempIntValue;
+                                mTransactionCompleted = true;
+                                mWaitForAck = false;
+                                mCommandExecutor.completeCommand();
+                            }
+
+                        }
+                    } else if (mWaitForResponse == true) {
+                        if (tb[0] == FW_VERSION_RESPONSE) {
+
+                            byte[] bufferInquiry = new byte[6];
+                            readFully(bufferInquiry, 0, 6);
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            mFWVersion = (double) ((bufferInquiry[3] & 0xFF) << 8) + (double) (bufferInquiry[2] & 0xFF) + ((double) ((bufferInquiry[4] & 0xFF)) / 10);
+                            mFWInternal = (int) (bufferInquiry[5] & 0xFF);
+                            if (((double) ((bufferInquiry[4] & 0xFF)) / 10) == 0) {
+                                mFWVersionFullName = "BtStream " + Double.toString(mFWVersion) + "." + Integer.toString(mFWInternal);
+                            } else {
+                                mFWVersionFullName = "BtStream " + Double.toString(mFWVersion) + "." + Integer.toString(mFWInternal);
+                            }
+                            Log.d("Shimmer", "Version:" + mFWVersionFullName);
+                            Message msg = mHandler.obtainMessage(MESSAGE_TOAST);
+                            Bundle bundle = new Bundle();
+                            bundle.putString(TOAST, "Firmware Version: " + mFWVersionFullName);
+                            msg.setData(bundle);
+                            if (!mDummy) {
+                                mHandler.sendMessage(msg);
+                            }
+                            mCommandExecutor.completeCommand();
+                            mTransactionCompleted = true;
+                            readShimmerVersion();
+                        } else if (tb[0] == INQUIRY_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            if (mShimmerVersion == SHIMMER_2 || mShimmerVersion == SHIMMER_2R) {
+                                byte[] bufferInquiry = new byte[30];
+                                readFully(bufferInquiry, 0, 5);
+                                readFully(bufferInquiry, 5, bufferInquiry[3]); // one byte per channel
+                                mPacketSize = 2 + bufferInquiry[3] * 2;
+                                mSamplingRate = (double) 1024 / bufferInquiry[0];
+                                if (mMagSamplingRate == 3 && mSamplingRate > 10) {
+                                    mLowPowerMag = true;
                                 }
-                                if (mShimmerVersion != Shimmer.SHIMMER_3) {
-                                    byte[] bufferCalibrationParameters = new byte[21];
-                                    mInStream.read(bufferCalibrationParameters, 0, 21);
-                                    retrievecalibrationparametersfrompacket(bufferCalibrationParameters, ACCEL_CALIBRATION_RESPONSE);
-
-                                    //get gyro
-                                    try {
-                                        Thread.sleep(100);    // Due to the nature of the Bluetooth SPP stack a delay has been added to ensure the buffer is filled before it is read
-                                    } catch (InterruptedException e) {
-                                        e.printStackTrace();
-                                    }
-                                    bufferCalibrationParameters = new byte[21];
-                                    mInStream.read(bufferCalibrationParameters, 0, 21);
-                                    retrievecalibrationparametersfrompacket(bufferCalibrationParameters, GYRO_CALIBRATION_RESPONSE);
-
-                                    //get mag
-                                    try {
-                                        Thread.sleep(100);    // Due to the nature of the Bluetooth SPP stack a delay has been added to ensure the buffer is filled before it is read
-                                    } catch (InterruptedException e) {
-                                        e.printStackTrace();
+                                mAccelRange = bufferInquiry[1];
+                                mConfigByte0 = bufferInquiry[2] & 0xFF; //convert the byte to unsigned integer
+                                mNChannels = bufferInquiry[3];
+                                mBufferSize = bufferInquiry[4];
+                                byte[] signalIdArray = new byte[mNChannels];
+                                System.arraycopy(bufferInquiry, 5, signalIdArray, 0, mNChannels);
+                                updateEnabledSensorsFromChannels(signalIdArray);
+                                interpretdatapacketformat(mNChannels, signalIdArray);
+                                Log.d("Shimmer", "Inquiry Response Received for Device-> " + mMyBluetoothAddress + " " + bufferInquiry[0] + " " + bufferInquiry[1] + " " + bufferInquiry[2] + " " + bufferInquiry[3] + " " + bufferInquiry[4] + " " + bufferInquiry[5] + " " + bufferInquiry[6] + " " + bufferInquiry[7] + " " + bufferInquiry[8] + " " + bufferInquiry[9] + " " + bufferInquiry[10] + " " + bufferInquiry[11] + " " + bufferInquiry[12] + " " + bufferInquiry[13] + " " + bufferInquiry[14] + " " + bufferInquiry[15] + " " + bufferInquiry[16] + " " + bufferInquiry[17] + " " + bufferInquiry[18]);
+                            } else if (mShimmerVersion == SHIMMER_3) {
+                                byte[] bufferInquiry = new byte[30];
+                                readFully(bufferInquiry, 0, 8);
+                                readFully(bufferInquiry, 8, bufferInquiry[6]); // one byte per channel
+                                mPacketSize = 2 + bufferInquiry[6] * 2;
+                                String x = new DecimalFormat("#.#").format(32768 / (double) ((int) (bufferInquiry[0] & 0xFF) + ((int) (bufferInquiry[1] & 0xFF) << 8)));
+                                String a = x.replace(",", ".");
+                                double y = Double.parseDouble(a);
+                                mSamplingRate = y;
+                                mNChannels = bufferInquiry[6];
+                                mBufferSize = bufferInquiry[7];
+                                mConfigByte0 = ((int) (bufferInquiry[2] & 0xFF) + ((int) (bufferInquiry[3] & 0xFF) << 8) + ((int) (bufferInquiry[4] & 0xFF) << 16) + ((int) (bufferInquiry[5] & 0xFF) << 24));
+                                mAccelRange = ((int) (mConfigByte0 & 0xC)) >> 2;
+                                mGyroRange = ((int) (mConfigByte0 & 196608)) >> 16;
+                                mMagGain = ((int) (mConfigByte0 & 14680064)) >> 21;
+                                mAccelSamplingRate = ((int) (mConfigByte0 & 0xF0)) >> 4;
+                                mMPU9150SamplingRate = ((int) (mConfigByte0 & 65280)) >> 8;
+                                mMagSamplingRate = ((int) (mConfigByte0 & 1835008)) >> 18;
+                                if ((mAccelSamplingRate == 2 && mSamplingRate > 10)) {
+                                    mLowPowerAccel = true;
+                                }
+                                if ((mMPU9150SamplingRate == 0xFF && mSamplingRate > 10)) {
+                                    mLowPowerGyro = true;
+                                }
+                                if ((mMagSamplingRate == 4 && mSamplingRate > 10)) {
+                                    mLowPowerMag = true;
+                                }
+                                byte[] signalIdArray = new byte[mNChannels];
+                                System.arraycopy(bufferInquiry, 8, signalIdArray, 0, mNChannels);
+                                updateEnabledSensorsFromChannels(signalIdArray);
+                                interpretdatapacketformat(mNChannels, signalIdArray);
+                                Log.d("Shimmer", "Inquiry Response Received for Device-> " + mMyBluetoothAddress + " " + bufferInquiry[0] + " " + bufferInquiry[1] + " " + bufferInquiry[2] + " " + bufferInquiry[3] + " " + bufferInquiry[4] + " " + bufferInquiry[5] + " " + bufferInquiry[6] + " " + bufferInquiry[7] + " " + bufferInquiry[8] + " " + bufferInquiry[9] + " " + bufferInquiry[10] + " " + bufferInquiry[11] + " " + bufferInquiry[12] + " " + bufferInquiry[13] + " " + bufferInquiry[14] + " " + bufferInquiry[15] + " " + bufferInquiry[16] + " " + bufferInquiry[17] + " " + bufferInquiry[18]);
+                            } else if (mShimmerVersion == SHIMMER_SR30) { //no config byte so adjust accordingly
+                                byte[] bufferInquiry = new byte[30];
+                                readFully(bufferInquiry, 0, 4);
+                                readFully(bufferInquiry, 4, bufferInquiry[2]); // one byte per channel
+                                mPacketSize = 2 + bufferInquiry[2] * 2;
+                                mSamplingRate = (double) 1024 / bufferInquiry[0];
+                                mAccelRange = bufferInquiry[1];
+                                mNChannels = bufferInquiry[2];
+                                mBufferSize = bufferInquiry[3];
+                                byte[] signalIdArray = new byte[mNChannels];
+                                System.arraycopy(bufferInquiry, 4, signalIdArray, 0, mNChannels); // this is 4 because there is no config byte
+                                interpretdatapacketformat(mNChannels, signalIdArray);
+                                Log.d("Shimmer", "Inquiry Response Received for Device-> " + mMyBluetoothAddress + " " + bufferInquiry[0] + " " + bufferInquiry[1] + " " + bufferInquiry[2] + " " + bufferInquiry[3] + " " + bufferInquiry[4] + " " + bufferInquiry[5] + " " + bufferInquiry[6] + " " + bufferInquiry[7] + " " + bufferInquiry[8] + " " + bufferInquiry[9] + " " + bufferInquiry[10] + " " + bufferInquiry[11] + " " + bufferInquiry[12] + " " + bufferInquiry[13] + " " + bufferInquiry[14] + " " + bufferInquiry[15] + " " + bufferInquiry[16] + " " + bufferInquiry[17] + " " + bufferInquiry[18]);
+                            }
+                            inquiryDone();
+                            mWaitForResponse = false;
+                            mTransactionCompleted = true;
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == GSR_RANGE_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            mWaitForResponse = false;
+                            mTransactionCompleted = true;
+                            byte[] bufferGSRRange = new byte[1];
+                            readFully(bufferGSRRange, 0, 1);
+                            mGSRRange = bufferGSRRange[0];
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == MAG_SAMPLING_RATE_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            mWaitForResponse = false;
+                            mTransactionCompleted = true;
+                            byte[] bufferAns = new byte[1];
+                            readFully(bufferAns, 0, 1);
+                            mMagSamplingRate = bufferAns[0];
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == ACCEL_SAMPLING_RATE_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            mWaitForResponse = false;
+                            mTransactionCompleted = true;
+                            byte[] bufferAns = new byte[1];
+                            mAccelSamplingRate = bufferAns[0];
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == MAG_GAIN_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            mWaitForResponse = false;
+                            mTransactionCompleted = true;
+                            byte[] bufferAns = new byte[1];
+                            readFully(bufferAns, 0, 1);
+                            mMagGain = bufferAns[0];
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == LSM303DLHC_ACCEL_HRMODE_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            mWaitForResponse = false;
+                            mTransactionCompleted = true;
+                            byte[] bufferAns = new byte[1];
+                            readFully(bufferAns, 0, 1);
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == LSM303DLHC_ACCEL_LPMODE_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            mWaitForResponse = false;
+                            mTransactionCompleted = true;
+                            byte[] bufferAns = new byte[1];
+                            readFully(bufferAns, 0, 1);
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == BUFFER_SIZE_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            mWaitForResponse = false;
+                            mTransactionCompleted = true;
+                            byte[] byteled = new byte[1];
+                            readFully(byteled, 0, 1);
+                            mBufferSize = byteled[0] & 0xFF;
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == BLINK_LED_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            mWaitForResponse = false;
+                            mTransactionCompleted = true;
+                            byte[] byteled = new byte[1];
+                            readFully(byteled, 0, 1);
+                            mCurrentLEDStatus = byteled[0] & 0xFF;
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == ACCEL_SENSITIVITY_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            mWaitForResponse = false;
+                            mTransactionCompleted = true;
+                            byte[] bufferAccelSensitivity = new byte[1];
+                            readFully(bufferAccelSensitivity, 0, 1);
+                            mAccelRange = bufferAccelSensitivity[0];
+                            if (mDefaultCalibrationParametersAccel == true) {
+                                if (mShimmerVersion != SHIMMER_3) {
+                                    if (getAccelRange() == 0) {
+                                        SensitivityMatrixAccel = SensitivityMatrixAccel1p5gShimmer2;
+                                    } else if (getAccelRange() == 1) {
+                                        SensitivityMatrixAccel = SensitivityMatrixAccel2gShimmer2;
+                                    } else if (getAccelRange() == 2) {
+                                        SensitivityMatrixAccel = SensitivityMatrixAccel4gShimmer2;
+                                    } else if (getAccelRange() == 3) {
+                                        SensitivityMatrixAccel = SensitivityMatrixAccel6gShimmer2;
                                     }
-                                    bufferCalibrationParameters = new byte[21];
-                                    mInStream.read(bufferCalibrationParameters, 0, 21);
-                                    retrievecalibrationparametersfrompacket(bufferCalibrationParameters, MAG_CALIBRATION_RESPONSE);
-
-                                    try {
-                                        Thread.sleep(100);    // Due to the nature of the Bluetooth SPP stack a delay has been added to ensure the buffer is filled before it is read
-                                    } catch (InterruptedException e) {
-                                        e.printStackTrace();
+                                } else if (mShimmerVersion == SHIMMER_3) {
+                                    if (getAccelRange() == 0) {
+                                        SensitivityMatrixAccel = SensitivityMatrixLowNoiseAccel2gShimmer3;
+                                        AlignmentMatrixAccel = AlignmentMatrixLowNoiseAccelShimmer3;
+                                        OffsetVectorAccel = OffsetVectorLowNoiseAccelShimmer3;
+                                    } else if (getAccelRange() == 1) {
+                                        SensitivityMatrixAccel = SensitivityMatrixWideRangeAccel4gShimmer3;
+                                        AlignmentMatrixAccel = AlignmentMatrixWideRangeAccelShimmer3;
+                                        OffsetVectorAccel = OffsetVectorWideRangeAccelShimmer3;
+                                    } else if (getAccelRange() == 2) {
+                                        SensitivityMatrixAccel = SensitivityMatrixWideRangeAccel8gShimmer3;
+                                        AlignmentMatrixAccel = AlignmentMatrixWideRangeAccelShimmer3;
+                                        OffsetVectorAccel = OffsetVectorWideRangeAccelShimmer3;
+                                    } else if (getAccelRange() == 3) {
+                                        SensitivityMatrixAccel = SensitivityMatrixWideRangeAccel16gShimmer3;
+                                        AlignmentMatrixAccel = AlignmentMatrixWideRangeAccelShimmer3;
+                                        OffsetVectorAccel = OffsetVectorWideRangeAccelShimmer3;
                                     }
-                                    bufferCalibrationParameters = new byte[12];
-                                    mInStream.read(bufferCalibrationParameters, 0, 12); //just read the EMG and ECG values for now.
-
-                                    if (bufferCalibrationParameters[0] == -1 && bufferCalibrationParameters[1] == -1 && bufferCalibrationParameters[2] == -1 && bufferCalibrationParameters[3] == -1) {
-                                        mDefaultCalibrationParametersEMG = true;
-                                    } else {
-                                        mDefaultCalibrationParametersEMG = false;
-                                        OffsetEMG = (double) ((bufferCalibrationParameters[0] & 0xFF) << 8) + (bufferCalibrationParameters[1] & 0xFF);
-                                        GainEMG = (double) ((bufferCalibrationParameters[2] & 0xFF) << 8) + (bufferCalibrationParameters[3] & 0xFF);
+                                }
+                            }
+                            updateCalibrationTransforms();
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == MPU9150_GYRO_RANGE_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            mWaitForResponse = false;
+                            mTransactionCompleted = true;
+                            byte[] bufferGyroSensitivity = new byte[1];
+                            readFully(bufferGyroSensitivity, 0, 1);
+                            mGyroRange = bufferGyroSensitivity[0];
+                            if (mDefaultCalibrationParametersGyro == true) {
+                                if (mShimmerVersion == SHIMMER_3) {
+                                    AlignmentMatrixGyro = AlignmentMatrixGyroShimmer3;
+                                    OffsetVectorGyro = OffsetVectorGyroShimmer3;
+                                    if (mGyroRange == 0) {
+                                        SensitivityMatrixGyro = SensitivityMatrixGyro250dpsShimmer3;
+
+                                    } else if (mGyroRange == 1) {
+                                        SensitivityMatrixGyro = SensitivityMatrixGyro500dpsShimmer3;
+
+                                    } else if (mGyroRange == 2) {
+                                        SensitivityMatrixGyro = SensitivityMatrixGyro1000dpsShimmer3;
+
+                                    } else if (mGyroRange == 3) {
+                                        SensitivityMatrixGyro = SensitivityMatrixGyro2000dpsShimmer3;
                                     }
-                                    if (bufferCalibrationParameters[4] == -1 && bufferCalibrationParameters[5] == -1 && bufferCalibrationParameters[6] == -1 && bufferCalibrationParameters[7] == -1) {
-                                        mDefaultCalibrationParametersECG = true;
-                                    } else {
-                                        mDefaultCalibrationParametersECG = false;
-                                        OffsetECGLALL = (double) ((bufferCalibrationParameters[4] & 0xFF) << 8) + (bufferCalibrationParameters[5] & 0xFF);
-                                        GainECGLALL = (double) ((bufferCalibrationParameters[6] & 0xFF) << 8) + (bufferCalibrationParameters[7] & 0xFF);
-                                        OffsetECGRALL = (double) ((bufferCalibrationParameters[8] & 0xFF) << 8) + (bufferCalibrationParameters[9] & 0xFF);
-                                        GainECGRALL = (double) ((bufferCalibrationParameters[10] & 0xFF) << 8) + (bufferCalibrationParameters[11] & 0xFF);
+                                }
+                            }
+                            updateCalibrationTransforms();
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == SAMPLING_RATE_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            mWaitForResponse = false;
+                            if (mStreaming == false) {
+                                if (mShimmerVersion == Shimmer.SHIMMER_2R && mShimmerVersion == Shimmer.SHIMMER_2) {
+                                    byte[] bufferSR = new byte[1];
+                                    readFully(bufferSR, 0, 1); //read the sampling rate
+                                    if (mCurrentCommand == GET_SAMPLING_RATE_COMMAND) { // this is a double check, not necessary
+                                        double val = (double) (bufferSR[0] & (byte) ACK_COMMAND_PROCESSED);
+                                        mSamplingRate = 1024 / val;
                                     }
+                                } else if (mShimmerVersion == Shimmer.SHIMMER_3) {
+                                    byte[] bufferSR = new byte[2];
+                                    readFully(bufferSR, 0, 2); //read the sampling rate
+                                    mSamplingRate = 32768 / (double) ((int) (bufferSR[0] & 0xFF) + ((int) (bufferSR[1] & 0xFF) << 8));
+                                }
+                            }
 
-                                    mTransactionCompleted = true;
-                                    mInstructionStackLock = false;
-
-                                } else {
+                            mTransactionCompleted = true;
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == ACCEL_CALIBRATION_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            mWaitForResponse = false;
+                            byte[] bufferCalibrationParameters = new byte[21];
+                            readFully(bufferCalibrationParameters, 0, 21);
+                            int packetType = tb[0];
+                            retrievecalibrationparametersfrompacket(bufferCalibrationParameters, packetType);
+                            mTransactionCompleted = true;
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == ALL_CALIBRATION_RESPONSE) {
+                            mWaitForResponse = false;
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+
+                            if (mShimmerVersion != Shimmer.SHIMMER_3) {
+                                byte[] bufferCalibrationParameters = new byte[21];
+                                readFully(bufferCalibrationParameters, 0, 21);
+                                retrievecalibrationparametersfrompacket(bufferCalibrationParameters, ACCEL_CALIBRATION_RESPONSE);
 
+                                //get gyro
+                                bufferCalibrationParameters = new byte[21];
+                                readFully(bufferCalibrationParameters, 0, 21);
+                                retrievecalibrationparametersfrompacket(bufferCalibrationParameters, GYRO_CALIBRATION_RESPONSE);
 
-                                    byte[] bufferCalibrationParameters = new byte[21];
-                                    mInStream.read(bufferCalibrationParameters, 0, 21);
-                                    retrievecalibrationparametersfrompacket(bufferCalibrationParameters, ACCEL_CALIBRATION_RESPONSE);
+                                //get mag
+                                bufferCalibrationParameters = new byte[21];
+                                readFully(bufferCalibrationParameters, 0, 21);
+                                retrievecalibrationparametersfrompacket(bufferCalibrationParameters, MAG_CALIBRATION_RESPONSE);
 
-                                    //get gyro
-                                    try {
-                                        Thread.sleep(100);    // Due to the nature of the Bluetooth SPP stack a delay has been added to ensure the buffer is filled before it is read
-                                    } catch (InterruptedException e) {
-                                        e.printStackTrace();
-                                    }
-                                    bufferCalibrationParameters = new byte[21];
-                                    mInStream.read(bufferCalibrationParameters, 0, 21);
-                                    retrievecalibrationparametersfrompacket(bufferCalibrationParameters, GYRO_CALIBRATION_RESPONSE);
-
-                                    //get mag
-                                    try {
-                                        Thread.sleep(100);    // Due to the nature of the Bluetooth SPP stack a delay has been added to ensure the buffer is filled before it is read
-                                    } catch (InterruptedException e) {
-                                        e.printStackTrace();
-                                    }
-                                    bufferCalibrationParameters = new byte[21];
-                                    mInStream.read(bufferCalibrationParameters, 0, 21);
-                                    retrievecalibrationparametersfrompacket(bufferCalibrationParameters, MAG_CALIBRATION_RESPONSE);
-
-                                    //second accel cal params
-                                    try {
-                                        Thread.sleep(100);    // Due to the nature of the Bluetooth SPP stack a delay has been added to ensure the buffer is filled before it is read
-                                    } catch (InterruptedException e) {
-                                        e.printStackTrace();
-                                    }
-                                    bufferCalibrationParameters = new byte[21];
-                                    mInStream.read(bufferCalibrationParameters, 0, 21);
-                                    retrievecalibrationparametersfrompacket(bufferCalibrationParameters, LSM303DLHC_ACCEL_CALIBRATION_RESPONSE);
-                                    mTransactionCompleted = true;
-                                    mInstructionStackLock = false;
+                                bufferCalibrationParameters = new byte[12];
+                                readFully(bufferCalibrationParameters, 0, 12); //just read the EMG and ECG values for now.
 
-                                }
-                            } else if (tb[0] == GYRO_CALIBRATION_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                try {
-                                    Thread.sleep(100);    // Due to the nature of the Bluetooth SPP stack a delay has been added to ensure the buffer is filled before it is read
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                                mWaitForResponse = false;
-                                byte[] bufferCalibrationParameters = new byte[21];
-                                mInStream.read(bufferCalibrationParameters, 0, 21);
-                                int packetType = tb[0];
-                                retrievecalibrationparametersfrompacket(bufferCalibrationParameters, packetType);
-                                mTransactionCompleted = true;
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == MAG_CALIBRATION_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                mWaitForResponse = false;
-                                try {
-                                    Thread.sleep(100);    // Due to the nature of the Bluetooth SPP stack a delay has been added to ensure the buffer is filled before it is read
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                                byte[] bufferCalibrationParameters = new byte[21];
-                                mInStream.read(bufferCalibrationParameters, 0, 21);
-                                int packetType = tb[0];
-                                retrievecalibrationparametersfrompacket(bufferCalibrationParameters, packetType);
-                                mTransactionCompleted = true;
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == CONFIG_BYTE0_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                byte[] bufferConfigByte0 = new byte[1];
-                                mInStream.read(bufferConfigByte0, 0, 1);
-                                mConfigByte0 = bufferConfigByte0[0] & 0xFF;
-                                mTransactionCompleted = true;
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == GET_SHIMMER_VERSION_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                try {
-                                    Thread.sleep(100);    // Due to the nature of the Bluetooth SPP stack a delay has been added to ensure the buffer is filled before it is read
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                byte[] bufferShimmerVersion = new byte[1];
-                                mInStream.read(bufferShimmerVersion, 0, 1);
-                                mShimmerVersion = (int) bufferShimmerVersion[0];
-                                generateBiMapSensorIDtoSensorName();
-                                mTransactionCompleted = true;
-                                mInstructionStackLock = false;
-                                if (mShimmerVersion == SHIMMER_2R) {
-                                    initializeShimmer2R();
-                                } else if (mShimmerVersion == SHIMMER_3) {
-                                    initializeShimmer3();
-                                }
-                            } else if (tb[0] == ECG_CALIBRATION_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                try {
-                                    Thread.sleep(100);    // Due to the nature of the Bluetooth SPP stack a delay has been added to ensure the buffer is filled before it is read
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                                byte[] bufferCalibrationParameters = new byte[8];
-                                mInStream.read(bufferCalibrationParameters, 0, 4); //just read the EMCG and ECG values for now.
-                                //get ecg
-                                if (bufferCalibrationParameters[0] == -1 && bufferCalibrationParameters[1] == -1 && bufferCalibrationParameters[2] == -1 && bufferCalibrationParameters[3] == -1) {
-                                    mDefaultCalibrationParametersECG = true;
-                                } else {
-                                    mDefaultCalibrationParametersECG = false;
-                                    OffsetECGLALL = (double) ((bufferCalibrationParameters[0] & 0xFF) << 8) + (bufferCalibrationParameters[1] & 0xFF);
-                                    GainECGLALL = (double) ((bufferCalibrationParameters[2] & 0xFF) << 8) + (bufferCalibrationParameters[3] & 0xFF);
-                                    OffsetECGRALL = (double) ((bufferCalibrationParameters[4] & 0xFF) << 8) + (bufferCalibrationParameters[5] & 0xFF);
-                                    GainECGRALL = (double) ((bufferCalibrationParameters[6] & 0xFF) << 8) + (bufferCalibrationParameters[7] & 0xFF);
-                                }
-                                mTransactionCompleted = true;
-                                mInstructionStackLock = false;
-                            } else if (tb[0] == EMG_CALIBRATION_RESPONSE) {
-                                mTimer.cancel(); //cancel the ack timer
-                                mTimer.purge();
-                                Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
-                                try {
-                                    Thread.sleep(100);    // Due to the nature of the Bluetooth SPP stack a delay has been added to ensure the buffer is filled before it is read
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                                byte[] bufferCalibrationParameters = new byte[4];
-                                mInStream.read(bufferCalibrationParameters, 0, 4); //just read the EMCG and ECG values for now.
-                                //get ecg
                                 if (bufferCalibrationParameters[0] == -1 && bufferCalibrationParameters[1] == -1 && bufferCalibrationParameters[2] == -1 && bufferCalibrationParameters[3] == -1) {
                                     mDefaultCalibrationParametersEMG = true;
                                 } else {
@@ -1904,94 +1623,164 @@ public class Shimmer {
                                     OffsetEMG = (double) ((bufferCalibrationParameters[0] & 0xFF) << 8) + (bufferCalibrationParameters[1] & 0xFF);
                                     GainEMG = (double) ((bufferCalibrationParameters[2] & 0xFF) << 8) + (bufferCalibrationParameters[3] & 0xFF);
                                 }
+                                if (bufferCalibrationParameters[4] == -1 && bufferCalibrationParameters[5] == -1 && bufferCalibrationParameters[6] == -1 && bufferCalibrationParameters[7] == -1) {
+                                    mDefaultCalibrationParametersECG = true;
+                                } else {
+                                    mDefaultCalibrationParametersECG = false;
+                                    OffsetECGLALL = (double) ((bufferCalibrationParameters[4] & 0xFF) << 8) + (bufferCalibrationParameters[5] & 0xFF);
+                                    GainECGLALL = (double) ((bufferCalibrationParameters[6] & 0xFF) << 8) + (bufferCalibrationParameters[7] & 0xFF);
+                                    OffsetECGRALL = (double) ((bufferCalibrationParameters[8] & 0xFF) << 8) + (bufferCalibrationParameters[9] & 0xFF);
+                                    GainECGRALL = (double) ((bufferCalibrationParameters[10] & 0xFF) << 8) + (bufferCalibrationParameters[11] & 0xFF);
+                                }
+
                                 mTransactionCompleted = true;
-                                mInstructionStackLock = false;
+                                mCommandExecutor.completeCommand();
+
+                            } else {
+
+
+                                byte[] bufferCalibrationParameters = new byte[21];
+                                readFully(bufferCalibrationParameters, 0, 21);
+                                retrievecalibrationparametersfrompacket(bufferCalibrationParameters, ACCEL_CALIBRATION_RESPONSE);
+
+                                //get gyro
+                                bufferCalibrationParameters = new byte[21];
+                                readFully(bufferCalibrationParameters, 0, 21);
+                                retrievecalibrationparametersfrompacket(bufferCalibrationParameters, GYRO_CALIBRATION_RESPONSE);
+
+                                //get mag
+                                bufferCalibrationParameters = new byte[21];
+                                readFully(bufferCalibrationParameters, 0, 21);
+                                retrievecalibrationparametersfrompacket(bufferCalibrationParameters, MAG_CALIBRATION_RESPONSE);
+
+                                //second accel cal params
+                                bufferCalibrationParameters = new byte[21];
+                                readFully(bufferCalibrationParameters, 0, 21);
+                                retrievecalibrationparametersfrompacket(bufferCalibrationParameters, LSM303DLHC_ACCEL_CALIBRATION_RESPONSE);
+                                mTransactionCompleted = true;
+                                mCommandExecutor.completeCommand();
+
                             }
-                        }
-                    }
-                    if (mStreaming == true) {
-                        mInStream.read(tb, 0, 1);
-
-
-                        //Log.d("Shimmer","Incoming Byte: " + Byte.toString(tb[0])); // can be commented out to watch the incoming bytes
-                        if (mSync == true) {        //if the stack is full
-                            if (mWaitForAck == true && (byte) tb[0] == ACK_COMMAND_PROCESSED && byteStack.size() == mPacketSize + 1) { //this is to handle acks during mid stream, acks only are received between packets.
-                                if (mCurrentCommand == SET_BLINK_LED) {
-                                    Log.d("ShimmerCMD", "LED_BLINK_ACK_DETECTED");
-                                    mWaitForAck = false;
-                                    mTransactionCompleted = true;
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mCurrentLEDStatus = (int) ((byte[]) mListofInstructions.get(0))[1];
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                }
-                            } else { // the first time you start streaming it will go through this piece of code to make sure the data streaming is alligned/sync
-                                if (byteStack.size() == mPacketSize + 1) {
-                                    if (tb[0] == DATA_PACKET && byteStack.firstElement() == DATA_PACKET) { //check for the starting zero of the packet, and the starting zero of the subsequent packet, this causes a delay equivalent to the transmission duration between two packets
-                                        newPacket = convertstacktobytearray(byteStack, mPacketSize);
-                                        ObjectCluster objectCluster = (ObjectCluster) buildMsg(newPacket, mGetDataInstruction);
-                                        //printtofile(newmsg.UncalibratedData);
-                                        mHandler.obtainMessage(MESSAGE_READ, objectCluster)
-                                                .sendToTarget();
-                                        byteStack.clear();
-                                        if (mContinousSync == false) {         //disable continuous synchronizing
-                                            mSync = false;
-                                        }
-                                    }
-                                }
-                                /*if (mStreaming==true && mWaitForAck==true && (byte)tb[0]==ACK_COMMAND_PROCESSED && (packetStack.size()==0)){ //this is to handle acks during mid stream, acks only are received between packets.
-	                        		Log.d("ShimmerCMD","LED_BLINK_ACK_DETECTED");
-	                        		mWaitForAck=false;
-	                        		mCurrentLEDStatus=mTempIntValue;
-	                    		    mTransactionCompleted = true;
-	                        	} */
-                                byteStack.push((tb[0])); //push new sensor data into the stack
-                                if (byteStack.size() > mPacketSize + 1) { //if the stack has reached the packet size remove an element from the stack
-                                    byteStack.removeElementAt(0);
-                                    Log.d("ShimmerCMD", "Throwing Data");
-                                }
+                        } else if (tb[0] == GYRO_CALIBRATION_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            mWaitForResponse = false;
+                            byte[] bufferCalibrationParameters = new byte[21];
+                            readFully(bufferCalibrationParameters, 0, 21);
+                            int packetType = tb[0];
+                            retrievecalibrationparametersfrompacket(bufferCalibrationParameters, packetType);
+                            mTransactionCompleted = true;
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == MAG_CALIBRATION_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            mWaitForResponse = false;
+                            byte[] bufferCalibrationParameters = new byte[21];
+                            readFully(bufferCalibrationParameters, 0, 21);
+                            int packetType = tb[0];
+                            retrievecalibrationparametersfrompacket(bufferCalibrationParameters, packetType);
+                            mTransactionCompleted = true;
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == CONFIG_BYTE0_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            byte[] bufferConfigByte0 = new byte[1];
+                            readFully(bufferConfigByte0, 0, 1);
+                            mConfigByte0 = bufferConfigByte0[0] & 0xFF;
+                            mTransactionCompleted = true;
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == GET_SHIMMER_VERSION_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            byte[] bufferShimmerVersion = new byte[1];
+                            readFully(bufferShimmerVersion, 0, 1);
+                            mShimmerVersion = (int) bufferShimmerVersion[0];
+                            generateBiMapSensorIDtoSensorName();
+                            mTransactionCompleted = true;
+                            mCommandExecutor.completeCommand();
+                            if (mShimmerVersion == SHIMMER_2R) {
+                                initializeShimmer2R();
+                            } else if (mShimmerVersion == SHIMMER_3) {
+                                initializeShimmer3();
                             }
-                        } else if (mSync == false) {
-                            if (mWaitForAck == true && (byte) tb[0] == ACK_COMMAND_PROCESSED && byteStack.size() == 0) { //this is to handle acks during mid stream, acks only are received between packets.
-                                if (mCurrentCommand == SET_BLINK_LED) {
-                                    Log.d("ShimmerCMD", "LED_BLINK_ACK_DETECTED");
-                                    mWaitForAck = false;
-                                    mTransactionCompleted = true;
-                                    mTimer.cancel(); //cancel the ack timer
-                                    mTimer.purge();
-                                    mCurrentLEDStatus = (int) ((byte[]) mListofInstructions.get(0))[1];
-                                    mListofInstructions.remove(0);
-                                    mInstructionStackLock = false;
-                                }
+                        } else if (tb[0] == ECG_CALIBRATION_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            byte[] bufferCalibrationParameters = new byte[8];
+                            readFully(bufferCalibrationParameters, 0, 8);
+                            //get ecg
+                            if (bufferCalibrationParameters[0] == -1 && bufferCalibrationParameters[1] == -1 && bufferCalibrationParameters[2] == -1 && bufferCalibrationParameters[3] == -1) {
+                                mDefaultCalibrationParametersECG = true;
                             } else {
-                                byteStack.push((tb[0])); //push new sensor data into the stack
-                                if (byteStack.firstElement() == DATA_PACKET && (byteStack.size() == mPacketSize + 1)) {         //only used when continous sync is disabled
-                                    newPacket = convertstacktobytearray(byteStack, mPacketSize);
-                                    ObjectCluster objectCluster = (ObjectCluster) buildMsg(newPacket, mGetDataInstruction);    //the packet which is an array of bytes is converted to the data structure
-                                    mHandler.obtainMessage(MESSAGE_READ, objectCluster)
-                                            .sendToTarget();
-                                    byteStack.clear();
-                                }
-
-                                if (byteStack.size() > mPacketSize) { //if the stack has reached the packet size remove an element from the stack
-                                    byteStack.removeElementAt(0);
-                                    Log.d("ShimmerCMD", "Throwing Data");
-                                }
+                                mDefaultCalibrationParametersECG = false;
+                                OffsetECGLALL = (double) ((bufferCalibrationParameters[0] & 0xFF) << 8) + (bufferCalibrationParameters[1] & 0xFF);
+                                GainECGLALL = (double) ((bufferCalibrationParameters[2] & 0xFF) << 8) + (bufferCalibrationParameters[3] & 0xFF);
+                                OffsetECGRALL = (double) ((bufferCalibrationParameters[4] & 0xFF) << 8) + (bufferCalibrationParameters[5] & 0xFF);
+                                GainECGRALL = (double) ((bufferCalibrationParameters[6] & 0xFF) << 8) + (bufferCalibrationParameters[7] & 0xFF);
                             }
+                            mTransactionCompleted = true;
+                            mCommandExecutor.completeCommand();
+                        } else if (tb[0] == EMG_CALIBRATION_RESPONSE) {
+                            Log.d("Shimmer", "Response received: " + Integer.toString(mCurrentCommand));
+                            byte[] bufferCalibrationParameters = new byte[4];
+                            readFully(bufferCalibrationParameters, 0, 4); //just read the EMCG and ECG values for now.
+                            //get ecg
+                            if (bufferCalibrationParameters[0] == -1 && bufferCalibrationParameters[1] == -1 && bufferCalibrationParameters[2] == -1 && bufferCalibrationParameters[3] == -1) {
+                                mDefaultCalibrationParametersEMG = true;
+                            } else {
+                                mDefaultCalibrationParametersEMG = false;
+                                OffsetEMG = (double) ((bufferCalibrationParameters[0] & 0xFF) << 8) + (bufferCalibrationParameters[1] & 0xFF);
+                                GainEMG = (double) ((bufferCalibrationParameters[2] & 0xFF) << 8) + (bufferCalibrationParameters[3] & 0xFF);
+                            }
+                            mTransactionCompleted = true;
+                            mCommandExecutor.completeCommand();
                         }
-
-
                     }
-
-
                 } catch (IOException e) {
                     Log.d("Shimmer", e.toString());
                     connectionLost();
                     break;
                 }
+            }
+            mCommandExecutor.stop(mCommandWorker);
+        }
 
+        /**
+         * Completes the stop streaming command once the device left streaming mode and clears the remaining bytes.
+         */
+        private void stopStreamingCompleted() throws IOException {
+            Log.d("Shimmer", "ACK Received for Device: " + mMyBluetoothAddress + "; Command Issued: " + mCurrentCommand);
+            mStreaming = false;
+            mTransactionCompleted = true;
+            mWaitForAck = false;
+            try {
+                Thread.sleep(200);    // Wait to ensure that we dont missed any bytes which need to be cleared
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            mPacketFramer.clear();
+            mHandler.obtainMessage(Shimmer.MESSAGE_STATE_CHANGE, MSG_STATE_STOP_STREAMING, -1, new ObjectCluster(mMyName, getBluetoothAddress())).sendToTarget();
+            Message msg = mHandler.obtainMessage(MESSAGE_STOP_STREAMING_COMPLETE);
+            Bundle bundle = new Bundle();
+            bundle.putBoolean("Stop Streaming", true);
+            bundle.putString("Bluetooth Address", mMyBluetoothAddress);
+            msg.setData(bundle);
+            mHandler.sendMessage(msg);
+            while (mInStream.available() > 0) { //this is to clear the buffer
+                byte[] tbtemp = new byte[mInStream.available()];
+                mInStream.read(tbtemp, 0, mInStream.available());
+                Log.d("ShimmerClear", "Streaming Stop Done " + "Bytes still available:" + Integer.toString(mInStream.available()));
+            }
+            Log.d("Shimmer", "Streaming Stop Done - clear readbuffer loop completed " + "Bytes still available:" + Integer.toString(mInStream.available()));
+            mCommandExecutor.completeCommand();
+        }
 
+        /**
+         * Reads the given number of bytes, blocks until all of them are received.
+         */
+        private void readFully(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                int numRead = mInStream.read(buffer, offset, length);
+                if (numRead < 0) {
+                    throw new IOException("Input stream closed");
+                }
+                offset += numRead;
+                length -= numRead;
             }
         }
 
@@ -2012,6 +1801,7 @@ public class Shimmer {
         }
 
         public void cancel() {
+            mCommandExecutor.stop(mCommandWorker);
             if (mInStream != null) {
                 try {
                     mInStream.close();
@@ -2038,64 +1828,61 @@ public class Shimmer {
     }
 
 
-    public synchronized void responseTimer(int seconds) {
-        if (mTimer != null) {
-            mTimer.cancel();
-            mTimer.purge();
+    /**
+     * Transmits the commands and handles missing acknowledgements or responses, called by the command executor thread
+     */
+    private class CommandCallback implements ShimmerCommandExecutor.Callback {
+        @Override
+        public void onSend(ShimmerCommand command) {
+            mCurrentCommand = command.getCommand();
+            mWaitForAck = true;
+            mTransactionCompleted = false;
+            if (mCurrentCommand == STOP_STREAMING_COMMAND) {
+                mStreaming = false;
+            }
+            write(command.getInstruction());
         }
-        Log.d("ShimmerTimer", Integer.toString(mCurrentCommand));
-        mTimer = new Timer();
-        mTimer.schedule(new responseTask(), seconds * 1000);
-    }
 
-    class responseTask extends TimerTask {
-        public void run() {
-            {
-                if (mCurrentCommand == GET_FW_VERSION_COMMAND) {
-                    Log.d("ShimmerFW", "FW Response Timeout");
-                    mFWVersion = 0.1;
-                    mFWInternal = 0;
-                    mFWVersionFullName = "BoilerPlate 0.1.0";
+        @Override
+        public void onTimeout(ShimmerCommand command) {
+            if (mCurrentCommand == GET_FW_VERSION_COMMAND) {
+                Log.d("ShimmerFW", "FW Response Timeout");
+                mFWVersion = 0.1;
+                mFWInternal = 0;
+                mFWVersionFullName = "BoilerPlate 0.1.0";
 					/*Message msg = mHandler.obtainMessage(MESSAGE_TOAST);
-          	        Bundle bundle = new Bundle();
-          	        bundle.putString(TOAST, "Firmware Version: " +mFWVersionFullName);
-          	        msg.setData(bundle);*/
-                    if (!mDummy) {
-                        //mHandler.sendMessage(msg);
-                    }
-                    mWaitForAck = false;
-                    mTransactionCompleted = true; //should be false, so the driver will know that the command has to be executed again, this is not supported at the moment
-                    mTimer.cancel(); //Terminate the timer thread
-                    mTimer.purge();
-                    mFirstTime = false;
-                    mListofInstructions.remove(0);
-                    mInstructionStackLock = false;
-                    initializeBoilerPlate();
-                } else if (mCurrentCommand == GET_SAMPLING_RATE_COMMAND && mInitialized == false) {
-                    Log.d("ShimmerFW", "FW Response Timeout");
-                    mWaitForAck = false;
-                    mTransactionCompleted = true; //should be false, so the driver will know that the command has to be executed again, this is not supported at the moment
-                    mTimer.cancel(); //Terminate the timer thread
-                    mTimer.purge();
-                    mFirstTime = false;
-                    mListofInstructions.remove(0);
-                    mInstructionStackLock = false;
-                } else {
-                    Log.d("Shimmer", "Command " + Integer.toString(mCurrentCommand) + " failed; Killing Connection  " + Double.toString(mSamplingRate));
-                    if (mWaitForResponse) {
-                        Log.d("Shimmer", "Response not received");
-
-                        Message msg = mHandler.obtainMessage(MESSAGE_TOAST);
-                        Bundle bundle = new Bundle();
-                        bundle.putString(TOAST, "Response not received, please reset Shimmer Device." + mMyBluetoothAddress);
-                        msg.setData(bundle);
-                        mHandler.sendMessage(msg);
-                    }
-                    mWaitForAck = false;
-                    mTransactionCompleted = true; //should be false, so the driver will know that the command has to be executed again, this is not supported at the moment
-                    stop(); //If command fail exit device
+      	        Bundle bundle = new Bundle();
+      	        bundle.putString(TOAST, "Firmware Version: " +mFWVersionFullName);
+      	        msg.setData(bundle);*/
+                if (!mDummy) {
+                    //mHandler.sendMessage(msg);
+                }
+                mWaitForAck = false;
+                mTransactionCompleted = true; //should be false, so the driver will know that the command has to be executed again, this is not supported at the moment
+                mFirstTime = false;
+                mCommandExecutor.completeCommand();
+                initializeBoilerPlate();
+            } else if (mCurrentCommand == GET_SAMPLING_RATE_COMMAND && mInitialized == false) {
+                Log.d("ShimmerFW", "FW Response Timeout");
+                mWaitForAck = false;
+                mTransactionCompleted = true; //should be false, so the driver will know that the command has to be executed again, this is not supported at the moment
+                mFirstTime = false;
+                mCommandExecutor.completeCommand();
+            } else {
+                Log.d("Shimmer", "Command " + Integer.toString(mCurrentCommand) + " failed; Killing Connection  " + Double.toString(mSamplingRate));
+                if (mWaitForResponse) {
+                    Log.d("Shimmer", "Response not received");
 
+                    Message msg = mHandler.obtainMessage(MESSAGE_TOAST);
+                    Bundle bundle = new Bundle();
+                    bundle.putString(TOAST, "Response not received, please reset Shimmer Device." + mMyBluetoothAddress);
+                    msg.setData(bundle);
+                    mHandler.sendMessage(msg);
                 }
+                mWaitForAck = false;
+                mTransactionCompleted = true; //should be false, so the driver will know that the command has to be executed again, this is not supported at the moment
+                stop(); //If command fail exit device
+
             }
         }
     }
@@ -2231,6 +2018,15 @@ public class Shimmer {
         mGetDataInstruction = instruction;
     }
 
+    /**
+     * Selects the data structure sent with MESSAGE_READ. ShimmerSamples avoid building an ObjectCluster for every packet, the ObjectCluster can still be obtained from the sample if needed.
+     *
+     * @param sampleOutput true to send a ShimmerSample, false to send an ObjectCluster (default)
+     */
+    public void setSampleOutput(boolean sampleOutput) {
+        mSampleOutput = sampleOutput;
+    }
+
     /**
      * This returns the variable mTransactionCompleted which indicates whether the Shimmer device is in the midst of a command transaction. True when no transaction is taking place. This is deprecated since the update to a thread model for executing commands
      *
@@ -2263,79 +2059,34 @@ public class Shimmer {
      * @return
      */
     protected int[] parsedData(byte[] data, String[] dataType) {
-        int iData = 0;
-        int[] formattedData = new int[dataType.length];
-
-        for (int i = 0; i < dataType.length; i++)
-            if (dataType[i] == "u8") {
-                formattedData[i] = (int) data[iData];
-                iData = iData + 1;
-            } else if (dataType[i] == "i8") {
-                formattedData[i] = calculatetwoscomplement((int) ((int) 0xFF & data[iData]), 8);
-                iData = iData + 1;
-            } else if (dataType[i] == "u12") {
-
-                formattedData[i] = (int) ((int) (data[iData] & 0xFF) + ((int) (data[iData + 1] & 0xFF) << 8));
-                iData = iData + 2;
-            } else if (dataType[i] == "i12>") {
-                formattedData[i] = calculatetwoscomplement((int) ((int) (data[iData] & 0xFF) + ((int) (data[iData + 1] & 0xFF) << 8)), 16);
-                formattedData[i] = formattedData[i] >> 4; // shift right by 4 bits
-                iData = iData + 2;
-            } else if (dataType[i] == "u16") {
-                formattedData[i] = (int) ((int) (data[iData] & 0xFF) + ((int) (data[iData + 1] & 0xFF) << 8));
-                iData = iData + 2;
-            } else if (dataType[i] == "i16") {
-                formattedData[i] = calculatetwoscomplement((int) ((int) (data[iData] & 0xFF) + ((int) (data[iData + 1] & 0xFF) << 8)), 16);
-                //formattedData[i]=ByteBuffer.wrap(arrayb).order(ByteOrder.LITTLE_ENDIAN).getShort();
-                iData = iData + 2;
-            } else if (dataType[i] == "i16*") {
-                formattedData[i] = calculatetwoscomplement((int) ((int) (data[iData + 1] & 0xFF) + ((int) (data[iData] & 0xFF) << 8)), 16);
-                //formattedData[i]=ByteBuffer.wrap(arrayb).order(ByteOrder.LITTLE_ENDIAN).getShort();
-                iData = iData + 2;
-            }
-        return formattedData;
+        return parsedData(data, 0, dataType);
+    }
+
+    /**
+     * Converts the raw packet byte values, see {@link #parsedData(byte[], String[])}
+     *
+     * @param data     a byte array containing the current received packet
+     * @param offset   offset of the packet in the byte array
+     * @param dataType an array string containing the commands to execute. It is currently not fully supported
+     * @return
+     */
+    protected int[] parsedData(byte[] data, int offset, String[] dataType) {
+        ShimmerPacketDecoder decoder = (dataType == mSignalDataTypeArray) ? mPacketDecoder : ShimmerPacketDecoder.compile(dataType, false);
+        return decoder.decode(data, offset, new int[dataType.length]);
     }
 
     private int[] formatdatapacketreverse(byte[] data, String[] dataType) {
-        int iData = 0;
-        int[] formattedData = new int[dataType.length];
-
-        for (int i = 0; i < dataType.length; i++)
-            if (dataType[i] == "u8") {
-                formattedData[i] = (int) data[iData];
-                iData = iData + 1;
-            } else if (dataType[i] == "i8") {
-                formattedData[i] = calculatetwoscomplement((int) ((int) 0xFF & data[iData]), 8);
-                iData = iData + 1;
-            } else if (dataType[i] == "u12") {
-
-                formattedData[i] = (int) ((int) (data[iData + 1] & 0xFF) + ((int) (data[iData] & 0xFF) << 8));
-                iData = iData + 2;
-            } else if (dataType[i] == "u16") {
-
-                formattedData[i] = (int) ((int) (data[iData + 1] & 0xFF) + ((int) (data[iData] & 0xFF) << 8));
-                iData = iData + 2;
-            } else if (dataType[i] == "i16") {
-
-                formattedData[i] = calculatetwoscomplement((int) ((int) (data[iData + 1] & 0xFF) + ((int) (data[iData] & 0xFF) << 8)), 16);
-                iData = iData + 2;
-            }
-        return formattedData;
+        return ShimmerPacketDecoder.compile(dataType, true).decode(data, 0, new int[dataType.length]);
     }
 
     private int calculatetwoscomplement(int signedData, int bitLength) {
-        int newData = signedData;
-        if (signedData > (1 << (bitLength - 1))) {
-            newData = -((signedData ^ (int) (Math.pow(2, bitLength) - 1)) + 1);
-        }
-
-        return newData;
+        return ShimmerPacketDecoder.toSigned(signedData, bitLength);
     }
 
     protected int getSignalIndex(String signalName) {
         int iSignal = 0; //used to be -1, putting to zero ensure it works eventhough it might be wrong SR30
         for (int i = 0; i < mSignalNameArray.length; i++) {
-            if (signalName == mSignalNameArray[i]) {
+            if (signalName.equals(mSignalNameArray[i])) {
                 iSignal = i;
             }
         }
@@ -2659,7 +2410,30 @@ public class Shimmer {
         }
         mSignalNameArray = signalNameArray;
         mSignalDataTypeArray = signalDataTypeArray;
+        mPacketDecoder = ShimmerPacketDecoder.compile(signalDataTypeArray, false);
         mPacketSize = packetSize;
+        resolveChannelIndices();
+    }
+
+    /**
+     * Resolves the signal index of each sample channel from the current packet format
+     */
+    private void resolveChannelIndices() {
+        Channel[] channels = Channel.values();
+        int[] channelIndices = new int[channels.length];
+        for (Channel channel : channels) {
+            if (channel.getSignalName() != null) {
+                channelIndices[channel.ordinal()] = getSignalIndex(channel.getSignalName());
+            }
+        }
+        mChannelIndices = channelIndices;
+    }
+
+    /**
+     * @return the index of the signal the given channel is decoded from, 0 if the signal is not contained in the packet
+     */
+    protected int getChannelIndex(Channel channel) {
+        return mChannelIndices[channel.ordinal()];
     }
 
     private void retrievecalibrationparametersfrompacket(byte[] bufferCalibrationParameters, int packetType) {
@@ -2794,6 +2568,18 @@ public class Shimmer {
                 SensitivityMatrixMag = SensitivityMatrixMagShimmer3;
             }
         }
+        updateCalibrationTransforms();
+    }
+
+    /**
+     * Rebuilds the calibration of the inertial sensors, must be called whenever the alignment matrices, sensitivity
+     * matrices or offset vectors change.
+     */
+    private void updateCalibrationTransforms() {
+        mAccelTransform.set(AlignmentMatrixAccel, SensitivityMatrixAccel, OffsetVectorAccel);
+        mAccel2Transform.set(AlignmentMatrixAccel2, SensitivityMatrixAccel2, OffsetVectorAccel2);
+        mGyroTransform.set(AlignmentMatrixGyro, SensitivityMatrixGyro, OffsetVectorGyro);
+        mMagTransform.set(AlignmentMatrixMag, SensitivityMatrixMag, OffsetVectorMag);
     }
 
     private double[][] matrixinverse3x3(double[][] data) {
@@ -2933,9 +2719,28 @@ public class Shimmer {
 
 
     protected Object buildMsg(byte[] newPacket, String... Instructions) {
-        ObjectCluster objectCluster = new ObjectCluster(mMyName, getBluetoothAddress());
-        double[] calibratedData = new double[mNChannels + 1]; //plus 1 because of the time stamp
-        int[] newPacketInt = parsedData(newPacket, mSignalDataTypeArray);
+        return buildMsg(newPacket, 0, Instructions);
+    }
+
+    protected Object buildMsg(byte[] newPacket, int offset, String... Instructions) {
+        return buildSample(newPacket, offset, Instructions).toObjectCluster();
+    }
+
+    /**
+     * Converts a received data packet into a {@link ShimmerSample} containing the uncalibrated and calibrated sensor values
+     *
+     * @param newPacket    a byte array containing the received packet
+     * @param offset       offset of the packet in the byte array
+     * @param Instructions the instruction Strings which determine the output, for now only 'a' is supported
+     * @return the sample
+     */
+    protected ShimmerSample buildSample(byte[] newPacket, int offset, String... Instructions) {
+        ShimmerSample sample = new ShimmerSample(mMyName, getBluetoothAddress());
+        ShimmerPacketDecoder decoder = mPacketDecoder;
+        if (mDecodedPacket.length < decoder.getNumSignals()) {
+            mDecodedPacket = new int[decoder.getNumSignals()];
+        }
+        int[] newPacketInt = decoder.decode(newPacket, offset, mDecodedPacket);
         double[] tempData = new double[3];
         Vector3d accelerometer = new Vector3d();
         Vector3d magnetometer = new Vector3d();
@@ -2943,460 +2748,142 @@ public class Shimmer {
         mTempPacketCountforBatt = mTempPacketCountforBatt + 1;
         for (int i = 0; i < Instructions.length; i++) {
             if ((Instructions[i] == "a" || Instructions[i] == "c")) {
-                int iTimeStamp = getSignalIndex("TimeStamp"); //find index
-                tempData[0] = (double) newPacketInt[1];
-                objectCluster.mPropertyCluster.put("Timestamp", new FormatCluster("RAW", "no units", (double) newPacketInt[iTimeStamp]));
-                objectCluster.mPropertyCluster.put("Timestamp", new FormatCluster("CAL", "mSecs", calibrateTimeStamp((double) newPacketInt[iTimeStamp])));
+                int iTimeStamp = getChannelIndex(Channel.TIMESTAMP);
+                sample.put(Channel.TIMESTAMP, (double) newPacketInt[iTimeStamp], calibrateTimeStamp((double) newPacketInt[iTimeStamp]), false);
 
                 if (mShimmerVersion == SHIMMER_SR30 || mShimmerVersion == SHIMMER_3) {
                     if ((((mEnabledSensors & 0xFF) & SENSOR_ACCEL) > 0) && (mAccelSmartSetting == ACCEL_SMART_MODE || mAccelSmartSetting == ACCEL_DUAL_SMART_MODE)) {
-                        int iAccelX = getSignalIndex("Low Noise Accelerometer X"); //find index
-                        int iAccelY = getSignalIndex("Low Noise Accelerometer Y"); //find index
-                        int iAccelZ = getSignalIndex("Low Noise Accelerometer Z"); //find index
+                        int iAccelX = getChannelIndex(Channel.LOW_NOISE_ACCEL_X);
+                        int iAccelY = getChannelIndex(Channel.LOW_NOISE_ACCEL_Y);
+                        int iAccelZ = getChannelIndex(Channel.LOW_NOISE_ACCEL_Z);
                         //check range
                         if (mAccelRange != 0) {
-                            iAccelX = getSignalIndex("Wide Range Accelerometer X"); //find index
-                            iAccelY = getSignalIndex("Wide Range Accelerometer Y"); //find index
-                            iAccelZ = getSignalIndex("Wide Range Accelerometer Z"); //find index
+                            iAccelX = getChannelIndex(Channel.WIDE_RANGE_ACCEL_X);
+                            iAccelY = getChannelIndex(Channel.WIDE_RANGE_ACCEL_Y);
+                            iAccelZ = getChannelIndex(Channel.WIDE_RANGE_ACCEL_Z);
                         }
                         tempData[0] = (double) newPacketInt[iAccelX];
                         tempData[1] = (double) newPacketInt[iAccelY];
                         tempData[2] = (double) newPacketInt[iAccelZ];
                         double[] accelCalibratedData;
                         if (mAccelRange != 0) {
-                            accelCalibratedData = calibrateInertialSensorData(tempData, AlignmentMatrixAccel2, SensitivityMatrixAccel2, OffsetVectorAccel2);
+                            accelCalibratedData = mAccel2Transform.apply(tempData, mCalibratedData);
                         } else {
-                            accelCalibratedData = calibrateInertialSensorData(tempData, AlignmentMatrixAccel, SensitivityMatrixAccel, OffsetVectorAccel);
-                        }
-                        calibratedData[iAccelX] = accelCalibratedData[0];
-                        calibratedData[iAccelY] = accelCalibratedData[1];
-                        calibratedData[iAccelZ] = accelCalibratedData[2];
-                        objectCluster.mPropertyCluster.put("Accelerometer X", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelX]));
-                        objectCluster.mPropertyCluster.put("Accelerometer Y", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelY]));
-                        objectCluster.mPropertyCluster.put("Accelerometer Z", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelZ]));
-                        if ((mDefaultCalibrationParametersDigitalAccel == true && mAccelRange != 0) || (mDefaultCalibrationParametersAccel == true && mAccelRange == 0)) {
-                            objectCluster.mPropertyCluster.put("Accelerometer X", new FormatCluster("CAL", "m/(sec^2)*", accelCalibratedData[0]));
-                            objectCluster.mPropertyCluster.put("Accelerometer Y", new FormatCluster("CAL", "m/(sec^2)*", accelCalibratedData[1]));
-                            objectCluster.mPropertyCluster.put("Accelerometer Z", new FormatCluster("CAL", "m/(sec^2)*", accelCalibratedData[2]));
-                            accelerometer.x = accelCalibratedData[0];
-                            accelerometer.y = accelCalibratedData[1];
-                            accelerometer.z = accelCalibratedData[2];
-                        } else {
-                            objectCluster.mPropertyCluster.put("Accelerometer X", new FormatCluster("CAL", "m/(sec^2)", accelCalibratedData[0]));
-                            objectCluster.mPropertyCluster.put("Accelerometer Y", new FormatCluster("CAL", "m/(sec^2)", accelCalibratedData[1]));
-                            objectCluster.mPropertyCluster.put("Accelerometer Z", new FormatCluster("CAL", "m/(sec^2)", accelCalibratedData[2]));
-                            accelerometer.x = accelCalibratedData[0];
-                            accelerometer.y = accelCalibratedData[1];
-                            accelerometer.z = accelCalibratedData[2];
+                            accelCalibratedData = mAccelTransform.apply(tempData, mCalibratedData);
                         }
+                        boolean defaultCalibration = (mDefaultCalibrationParametersDigitalAccel == true && mAccelRange != 0) || (mDefaultCalibrationParametersAccel == true && mAccelRange == 0);
+                        sample.put(Channel.ACCEL_X, tempData[0], accelCalibratedData[0], defaultCalibration);
+                        sample.put(Channel.ACCEL_Y, tempData[1], accelCalibratedData[1], defaultCalibration);
+                        sample.put(Channel.ACCEL_Z, tempData[2], accelCalibratedData[2], defaultCalibration);
+                        accelerometer.x = accelCalibratedData[0];
+                        accelerometer.y = accelCalibratedData[1];
+                        accelerometer.z = accelCalibratedData[2];
                     }
                     if ((((mEnabledSensors & 0xFF) & SENSOR_ACCEL) > 0) && (mAccelSmartSetting == ACCEL_DUAL_SMART_MODE || mAccelSmartSetting == ACCEL_DUAL_MODE)) {
-                        int iAccelX = getSignalIndex("Low Noise Accelerometer X"); //find index
-                        int iAccelY = getSignalIndex("Low Noise Accelerometer Y"); //find index
-                        int iAccelZ = getSignalIndex("Low Noise Accelerometer Z"); //find index
-                        //check range
-
-                        tempData[0] = (double) newPacketInt[iAccelX];
-                        tempData[1] = (double) newPacketInt[iAccelY];
-                        tempData[2] = (double) newPacketInt[iAccelZ];
-                        double[] accelCalibratedData;
-                        accelCalibratedData = calibrateInertialSensorData(tempData, AlignmentMatrixAccel, SensitivityMatrixAccel, OffsetVectorAccel);
-
-                        calibratedData[iAccelX] = accelCalibratedData[0];
-                        calibratedData[iAccelY] = accelCalibratedData[1];
-                        calibratedData[iAccelZ] = accelCalibratedData[2];
-                        objectCluster.mPropertyCluster.put("Low Noise Accelerometer X", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelX]));
-                        objectCluster.mPropertyCluster.put("Low Noise Accelerometer Y", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelY]));
-                        objectCluster.mPropertyCluster.put("Low Noise Accelerometer Z", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelZ]));
+                        tempData[0] = (double) newPacketInt[getChannelIndex(Channel.LOW_NOISE_ACCEL_X)];
+                        tempData[1] = (double) newPacketInt[getChannelIndex(Channel.LOW_NOISE_ACCEL_Y)];
+                        tempData[2] = (double) newPacketInt[getChannelIndex(Channel.LOW_NOISE_ACCEL_Z)];
+                        double[] accelCalibratedData = mAccelTransform.apply(tempData, mCalibratedData);
+                        sample.put(Channel.LOW_NOISE_ACCEL_X, tempData[0], accelCalibratedData[0], mDefaultCalibrationParametersAccel);
+                        sample.put(Channel.LOW_NOISE_ACCEL_Y, tempData[1], accelCalibratedData[1], mDefaultCalibrationParametersAccel);
+                        sample.put(Channel.LOW_NOISE_ACCEL_Z, tempData[2], accelCalibratedData[2], mDefaultCalibrationParametersAccel);
                         if (((mEnabledSensors & 0xFFFF) & SENSOR_DACCEL) == 0 && mAccelSmartSetting == ACCEL_DUAL_SMART_MODE) {
-                            objectCluster.mPropertyCluster.put("Accelerometer X", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelX]));
-                            objectCluster.mPropertyCluster.put("Accelerometer Y", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelY]));
-                            objectCluster.mPropertyCluster.put("Accelerometer Z", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelZ]));
+                            sample.put(Channel.ACCEL_X, tempData[0], accelCalibratedData[0], mDefaultCalibrationParametersAccel);
+                            sample.put(Channel.ACCEL_Y, tempData[1], accelCalibratedData[1], mDefaultCalibrationParametersAccel);
+                            sample.put(Channel.ACCEL_Z, tempData[2], accelCalibratedData[2], mDefaultCalibrationParametersAccel);
                         }
-                        if (mDefaultCalibrationParametersAccel == true) {
-                            objectCluster.mPropertyCluster.put("Low Noise Accelerometer X", new FormatCluster("CAL", "m/(sec^2)*", accelCalibratedData[0]));
-                            objectCluster.mPropertyCluster.put("Low Noise Accelerometer Y", new FormatCluster("CAL", "m/(sec^2)*", accelCalibratedData[1]));
-                            objectCluster.mPropertyCluster.put("Low Noise Accelerometer Z", new FormatCluster("CAL", "m/(sec^2)*", accelCalibratedData[2]));
-                            if (((mEnabledSensors & 0xFFFF) & SENSOR_DACCEL) == 0 && mAccelSmartSetting == ACCEL_DUAL_SMART_MODE) {
-                                objectCluster.mPropertyCluster.put("Accelerometer X", new FormatCluster("CAL", "m/(sec^2)*", accelCalibratedData[0]));
-                                objectCluster.mPropertyCluster.put("Accelerometer Y", new FormatCluster("CAL", "m/(sec^2)*", accelCalibratedData[1]));
-                                objectCluster.mPropertyCluster.put("Accelerometer Z", new FormatCluster("CAL", "m/(sec^2)*", accelCalibratedData[2]));
-                            }
-                            if (mAccelSmartSetting == ACCEL_DUAL_MODE) {
-                                accelerometer.x = accelCalibratedData[0];
-                                accelerometer.y = accelCalibratedData[1];
-                                accelerometer.z = accelCalibratedData[2];
-                            }
-                        } else {
-                            objectCluster.mPropertyCluster.put("Low Noise Accelerometer X", new FormatCluster("CAL", "m/(sec^2)", accelCalibratedData[0]));
-                            objectCluster.mPropertyCluster.put("Low Noise Accelerometer Y", new FormatCluster("CAL", "m/(sec^2)", accelCalibratedData[1]));
-                            objectCluster.mPropertyCluster.put("Low Noise Accelerometer Z", new FormatCluster("CAL", "m/(sec^2)", accelCalibratedData[2]));
-                            if (((mEnabledSensors & 0xFFFF) & SENSOR_DACCEL) == 0 && mAccelSmartSetting == ACCEL_DUAL_SMART_MODE) {
-                                objectCluster.mPropertyCluster.put("Accelerometer X", new FormatCluster("CAL", "m/(sec^2)", accelCalibratedData[0]));
-                                objectCluster.mPropertyCluster.put("Accelerometer Y", new FormatCluster("CAL", "m/(sec^2)", accelCalibratedData[1]));
-                                objectCluster.mPropertyCluster.put("Accelerometer Z", new FormatCluster("CAL", "m/(sec^2)", accelCalibratedData[2]));
-                            }
-                            if (mAccelSmartSetting == ACCEL_DUAL_MODE) {
-                                accelerometer.x = accelCalibratedData[0];
-                                accelerometer.y = accelCalibratedData[1];
-                                accelerometer.z = accelCalibratedData[2];
-                            }
+                        if (mAccelSmartSetting == ACCEL_DUAL_MODE) {
+                            accelerometer.x = accelCalibratedData[0];
+                            accelerometer.y = accelCalibratedData[1];
+                            accelerometer.z = accelCalibratedData[2];
                         }
                     }
                     if ((((mEnabledSensors & 0xFFFF) & SENSOR_DACCEL) > 0) && (mAccelSmartSetting == ACCEL_DUAL_SMART_MODE || mAccelSmartSetting == ACCEL_DUAL_MODE)) {
-                        int iAccelX = getSignalIndex("Wide Range Accelerometer X"); //find index
-                        int iAccelY = getSignalIndex("Wide Range Accelerometer Y"); //find index
-                        int iAccelZ = getSignalIndex("Wide Range Accelerometer Z"); //find index
-                        //check range
-
-                        tempData[0] = (double) newPacketInt[iAccelX];
-                        tempData[1] = (double) newPacketInt[iAccelY];
-                        tempData[2] = (double) newPacketInt[iAccelZ];
-                        double[] accelCalibratedData;
-                        accelCalibratedData = calibrateInertialSensorData(tempData, AlignmentMatrixAccel2, SensitivityMatrixAccel2, OffsetVectorAccel2);
-
-                        calibratedData[iAccelX] = accelCalibratedData[0];
-                        calibratedData[iAccelY] = accelCalibratedData[1];
-                        calibratedData[iAccelZ] = accelCalibratedData[2];
-                        objectCluster.mPropertyCluster.put("Wide Range Accelerometer X", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelX]));
-                        objectCluster.mPropertyCluster.put("Wide Range Accelerometer Y", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelY]));
-                        objectCluster.mPropertyCluster.put("Wide Range Accelerometer Z", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelZ]));
+                        tempData[0] = (double) newPacketInt[getChannelIndex(Channel.WIDE_RANGE_ACCEL_X)];
+                        tempData[1] = (double) newPacketInt[getChannelIndex(Channel.WIDE_RANGE_ACCEL_Y)];
+                        tempData[2] = (double) newPacketInt[getChannelIndex(Channel.WIDE_RANGE_ACCEL_Z)];
+                        double[] accelCalibratedData = mAccel2Transform.apply(tempData, mCalibratedData);
+                        sample.put(Channel.WIDE_RANGE_ACCEL_X, tempData[0], accelCalibratedData[0], mDefaultCalibrationParametersDigitalAccel);
+                        sample.put(Channel.WIDE_RANGE_ACCEL_Y, tempData[1], accelCalibratedData[1], mDefaultCalibrationParametersDigitalAccel);
+                        sample.put(Channel.WIDE_RANGE_ACCEL_Z, tempData[2], accelCalibratedData[2], mDefaultCalibrationParametersDigitalAccel);
                         if (((mEnabledSensors & 0xFF) & SENSOR_ACCEL) == 0 && mAccelSmartSetting == ACCEL_DUAL_SMART_MODE) {
-                            objectCluster.mPropertyCluster.put("Accelerometer X", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelX]));
-                            objectCluster.mPropertyCluster.put("Accelerometer Y", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelX]));
-                            objectCluster.mPropertyCluster.put("Accelerometer Z", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelX]));
+                            sample.put(Channel.ACCEL_X, tempData[0], accelCalibratedData[0], mDefaultCalibrationParametersDigitalAccel);
+                            sample.put(Channel.ACCEL_Y, tempData[1], accelCalibratedData[1], mDefaultCalibrationParametersDigitalAccel);
+                            sample.put(Channel.ACCEL_Z, tempData[2], accelCalibratedData[2], mDefaultCalibrationParametersDigitalAccel);
                         }
-                        if (mDefaultCalibrationParametersDigitalAccel == true) {
-                            objectCluster.mPropertyCluster.put("Wide Range Accelerometer X", new FormatCluster("CAL", "m/(sec^2)*", calibratedData[iAccelX]));
-                            objectCluster.mPropertyCluster.put("Wide Range Accelerometer Y", new FormatCluster("CAL", "m/(sec^2)*", calibratedData[iAccelY]));
-                            objectCluster.mPropertyCluster.put("Wide Range Accelerometer Z", new FormatCluster("CAL", "m/(sec^2)*", calibratedData[iAccelZ]));
-                            if (((mEnabledSensors & 0xFF) & SENSOR_ACCEL) == 0 && mAccelSmartSetting == ACCEL_DUAL_SMART_MODE) {
-                                objectCluster.mPropertyCluster.put("Accelerometer X", new FormatCluster("CAL", "m/(sec^2)*", calibratedData[iAccelX]));
-                                objectCluster.mPropertyCluster.put("Accelerometer Y", new FormatCluster("CAL", "m/(sec^2)*", calibratedData[iAccelY]));
-                                objectCluster.mPropertyCluster.put("Accelerometer Z", new FormatCluster("CAL", "m/(sec^2)*", calibratedData[iAccelZ]));
-                            }
-                            if (mAccelSmartSetting == ACCEL_DUAL_MODE) {
-                                accelerometer.x = calibratedData[iAccelX];
-                                accelerometer.y = calibratedData[iAccelY];
-                                accelerometer.z = calibratedData[iAccelZ];
-                            }
-                        } else {
-                            objectCluster.mPropertyCluster.put("Wide Range Accelerometer X", new FormatCluster("CAL", "m/(sec^2)", calibratedData[iAccelX]));
-                            objectCluster.mPropertyCluster.put("Wide Range Accelerometer Y", new FormatCluster("CAL", "m/(sec^2)", calibratedData[iAccelY]));
-                            objectCluster.mPropertyCluster.put("Wide Range Accelerometer Z", new FormatCluster("CAL", "m/(sec^2)", calibratedData[iAccelZ]));
-                            if (((mEnabledSensors & 0xFF) & SENSOR_ACCEL) == 0 && mAccelSmartSetting == ACCEL_DUAL_SMART_MODE) {
-                                objectCluster.mPropertyCluster.put("Accelerometer X", new FormatCluster("CAL", "m/(sec^2)", calibratedData[iAccelX]));
-                                objectCluster.mPropertyCluster.put("Accelerometer Y", new FormatCluster("CAL", "m/(sec^2)", calibratedData[iAccelY]));
-                                objectCluster.mPropertyCluster.put("Accelerometer Z", new FormatCluster("CAL", "m/(sec^2)", calibratedData[iAccelZ]));
-                            }
-                            if (mAccelSmartSetting == ACCEL_DUAL_MODE) {
-                                accelerometer.x = calibratedData[iAccelX];
-                                accelerometer.y = calibratedData[iAccelY];
-                                accelerometer.z = calibratedData[iAccelZ];
-                            }
+                        if (mAccelSmartSetting == ACCEL_DUAL_MODE) {
+                            accelerometer.x = accelCalibratedData[0];
+                            accelerometer.y = accelCalibratedData[1];
+                            accelerometer.z = accelCalibratedData[2];
                         }
                     }
                     if (((mEnabledSensors & 0xFF) & SENSOR_GYRO) > 0) {
-                        int iGyroX = getSignalIndex("Gyroscope X");
-                        int iGyroY = getSignalIndex("Gyroscope Y");
-                        int iGyroZ = getSignalIndex("Gyroscope Z");
-                        tempData[0] = (double) newPacketInt[iGyroX];
-                        tempData[1] = (double) newPacketInt[iGyroY];
-                        tempData[2] = (double) newPacketInt[iGyroZ];
-                        double[] gyroCalibratedData = calibrateInertialSensorData(tempData, AlignmentMatrixGyro, SensitivityMatrixGyro, OffsetVectorGyro);
-                        calibratedData[iGyroX] = gyroCalibratedData[0];
-                        calibratedData[iGyroY] = gyroCalibratedData[1];
-                        calibratedData[iGyroZ] = gyroCalibratedData[2];
-
-                        objectCluster.mPropertyCluster.put("Gyroscope X", new FormatCluster("RAW", "no units", (double) newPacketInt[iGyroX]));
-                        objectCluster.mPropertyCluster.put("Gyroscope Y", new FormatCluster("RAW", "no units", (double) newPacketInt[iGyroY]));
-                        objectCluster.mPropertyCluster.put("Gyroscope Z", new FormatCluster("RAW", "no units", (double) newPacketInt[iGyroZ]));
-                        if (mDefaultCalibrationParametersGyro == true) {
-                            objectCluster.mPropertyCluster.put("Gyroscope X", new FormatCluster("CAL", "deg/sec*", gyroCalibratedData[0]));
-                            objectCluster.mPropertyCluster.put("Gyroscope Y", new FormatCluster("CAL", "deg/sec*", gyroCalibratedData[1]));
-                            objectCluster.mPropertyCluster.put("Gyroscope Z", new FormatCluster("CAL", "deg/sec*", gyroCalibratedData[2]));
-                            gyroscope.x = gyroCalibratedData[0] * Math.PI / 180;
-                            gyroscope.y = gyroCalibratedData[1] * Math.PI / 180;
-                            gyroscope.z = gyroCalibratedData[2] * Math.PI / 180;
-                        } else {
-                            objectCluster.mPropertyCluster.put("Gyroscope X", new FormatCluster("CAL", "deg/sec", gyroCalibratedData[0]));
-                            objectCluster.mPropertyCluster.put("Gyroscope Y", new FormatCluster("CAL", "deg/sec", gyroCalibratedData[1]));
-                            objectCluster.mPropertyCluster.put("Gyroscope Z", new FormatCluster("CAL", "deg/sec", gyroCalibratedData[2]));
-                            gyroscope.x = gyroCalibratedData[0] * Math.PI / 180;
-                            gyroscope.y = gyroCalibratedData[1] * Math.PI / 180;
-                            gyroscope.z = gyroCalibratedData[2] * Math.PI / 180;
-                            if (mEnableOntheFlyGyroOVCal) {
-                                mGyroX.addValue(gyroCalibratedData[0]);
-                                mGyroY.addValue(gyroCalibratedData[1]);
-                                mGyroZ.addValue(gyroCalibratedData[2]);
-                                mGyroXRaw.addValue((double) newPacketInt[iGyroX]);
-                                mGyroYRaw.addValue((double) newPacketInt[iGyroY]);
-                                mGyroZRaw.addValue((double) newPacketInt[iGyroZ]);
-                                if (mGyroX.getStandardDeviation() < mGyroOVCalThreshold && mGyroY.getStandardDeviation() < mGyroOVCalThreshold && mGyroZ.getStandardDeviation() < mGyroOVCalThreshold) {
-                                    OffsetVectorGyro[0][0] = mGyroXRaw.getMean();
-                                    OffsetVectorGyro[1][0] = mGyroYRaw.getMean();
-                                    OffsetVectorGyro[2][0] = mGyroZRaw.getMean();
-                                }
-                            }
-                        }
-
+                        buildGyroSample(sample, newPacketInt, tempData, gyroscope);
                     }
                     if (((mEnabledSensors & 0xFF) & SENSOR_MAG) > 0) {
-                        int iMagX = getSignalIndex("Magnetometer X");
-                        int iMagY = getSignalIndex("Magnetometer Y");
-                        int iMagZ = getSignalIndex("Magnetometer Z");
-                        tempData[0] = (double) newPacketInt[iMagX];
-                        tempData[1] = (double) newPacketInt[iMagY];
-                        tempData[2] = (double) newPacketInt[iMagZ];
-                        double[] magCalibratedData = calibrateInertialSensorData(tempData, AlignmentMatrixMag, SensitivityMatrixMag, OffsetVectorMag);
-                        calibratedData[iMagX] = magCalibratedData[0];
-                        calibratedData[iMagY] = magCalibratedData[1];
-                        calibratedData[iMagZ] = magCalibratedData[2];
-
-                        objectCluster.mPropertyCluster.put("Magnetometer X", new FormatCluster("RAW", "no units", (double) newPacketInt[iMagX]));
-                        objectCluster.mPropertyCluster.put("Magnetometer Y", new FormatCluster("RAW", "no units", (double) newPacketInt[iMagY]));
-                        objectCluster.mPropertyCluster.put("Magnetometer Z", new FormatCluster("RAW", "no units", (double) newPacketInt[iMagZ]));
-                        if (mDefaultCalibrationParametersMag == true) {
-                            objectCluster.mPropertyCluster.put("Magnetometer X", new FormatCluster("CAL", "local*", magCalibratedData[0]));
-                            objectCluster.mPropertyCluster.put("Magnetometer Y", new FormatCluster("CAL", "local*", magCalibratedData[1]));
-                            objectCluster.mPropertyCluster.put("Magnetometer Z", new FormatCluster("CAL", "local*", magCalibratedData[2]));
-                            magnetometer.x = magCalibratedData[0];
-                            magnetometer.y = magCalibratedData[1];
-                            magnetometer.z = magCalibratedData[2];
-                        } else {
-                            objectCluster.mPropertyCluster.put("Magnetometer X", new FormatCluster("CAL", "local", magCalibratedData[0]));
-                            objectCluster.mPropertyCluster.put("Magnetometer Y", new FormatCluster("CAL", "local", magCalibratedData[1]));
-                            objectCluster.mPropertyCluster.put("Magnetometer Z", new FormatCluster("CAL", "local", magCalibratedData[2]));
-                            magnetometer.x = magCalibratedData[0];
-                            magnetometer.y = magCalibratedData[1];
-                            magnetometer.z = magCalibratedData[2];
-                        }
+                        buildMagSample(sample, newPacketInt, tempData, magnetometer);
                     }
 
                     if ((mEnabledSensors & SENSOR_BATT) > 0) {
-                        int iA0 = getSignalIndex("VSenseBatt");
-                        tempData[0] = (double) newPacketInt[iA0];
-                        calibratedData[iA0] = calibrateU12AdcValue(tempData[0], 0, 3, 1) * 1.988;
-                        objectCluster.mPropertyCluster.put("VSenseBatt", new FormatCluster("RAW", "no Units", (double) newPacketInt[iA0]));
-                        objectCluster.mPropertyCluster.put("VSenseBatt", new FormatCluster("CAL", "mVolts", calibratedData[iA0]));
+                        tempData[0] = (double) newPacketInt[getChannelIndex(Channel.VSENSE_BATT)];
+                        sample.put(Channel.VSENSE_BATT, tempData[0], calibrateU12AdcValue(tempData[0], 0, 3, 1) * 1.988, false);
                     }
                     if ((mEnabledSensors & SENSOR_EXT_ADC_A7) > 0) {
-                        int iA0 = getSignalIndex("External ADC A7");
-                        tempData[0] = (double) newPacketInt[iA0];
-                        calibratedData[iA0] = calibrateU12AdcValue(tempData[0], 0, 3, 1);
-                        objectCluster.mPropertyCluster.put("External ADC A7", new FormatCluster("RAW", "no Units", (double) newPacketInt[iA0]));
-                        objectCluster.mPropertyCluster.put("External ADC A7", new FormatCluster("CAL", "mVolts", calibratedData[iA0]));
+                        buildAdcSample(sample, Channel.EXT_ADC_A7, newPacketInt);
                     }
                     if ((mEnabledSensors & SENSOR_EXT_ADC_A6) > 0) {
-                        int iA0 = getSignalIndex("External ADC A6");
-                        tempData[0] = (double) newPacketInt[iA0];
-                        calibratedData[iA0] = calibrateU12AdcValue(tempData[0], 0, 3, 1);
-                        objectCluster.mPropertyCluster.put("External ADC A6", new FormatCluster("RAW", "no Units", (double) newPacketInt[iA0]));
-                        objectCluster.mPropertyCluster.put("External ADC A6", new FormatCluster("CAL", "mVolts", calibratedData[iA0]));
+                        buildAdcSample(sample, Channel.EXT_ADC_A6, newPacketInt);
                     }
                     if ((mEnabledSensors & SENSOR_EXT_ADC_A15) > 0) {
-                        int iA0 = getSignalIndex("External ADC A15");
-                        tempData[0] = (double) newPacketInt[iA0];
-                        calibratedData[iA0] = calibrateU12AdcValue(tempData[0], 0, 3, 1);
-                        objectCluster.mPropertyCluster.put("External ADC A15", new FormatCluster("RAW", "no Units", (double) newPacketInt[iA0]));
-                        objectCluster.mPropertyCluster.put("External ADC A15", new FormatCluster("CAL", "mVolts", calibratedData[iA0]));
+                        buildAdcSample(sample, Channel.EXT_ADC_A15, newPacketInt);
                     }
                     if ((mEnabledSensors & SENSOR_INT_ADC_A1) > 0) {
-                        int iA0 = getSignalIndex("Internal ADC A1");
-                        tempData[0] = (double) newPacketInt[iA0];
-                        calibratedData[iA0] = calibrateU12AdcValue(tempData[0], 0, 3, 1);
-                        objectCluster.mPropertyCluster.put("Internal ADC A1", new FormatCluster("RAW", "no Units", (double) newPacketInt[iA0]));
-                        objectCluster.mPropertyCluster.put("Internal ADC A1", new FormatCluster("CAL", "mVolts", calibratedData[iA0]));
+                        buildAdcSample(sample, Channel.INT_ADC_A1, newPacketInt);
                     }
                     if ((mEnabledSensors & SENSOR_INT_ADC_A12) > 0) {
-                        int iA0 = getSignalIndex("Internal ADC A12");
-                        tempData[0] = (double) newPacketInt[iA0];
-                        calibratedData[iA0] = calibrateU12AdcValue(tempData[0], 0, 3, 1);
-                        objectCluster.mPropertyCluster.put("Internal ADC A12", new FormatCluster("RAW", "no Units", (double) newPacketInt[iA0]));
-                        objectCluster.mPropertyCluster.put("Internal ADC A12", new FormatCluster("CAL", "mVolts", calibratedData[iA0]));
+                        buildAdcSample(sample, Channel.INT_ADC_A12, newPacketInt);
                     }
                     if ((mEnabledSensors & SENSOR_INT_ADC_A13) > 0) {
-                        int iA0 = getSignalIndex("Internal ADC A13");
-                        tempData[0] = (double) newPacketInt[iA0];
-                        calibratedData[iA0] = calibrateU12AdcValue(tempData[0], 0, 3, 1);
-                        objectCluster.mPropertyCluster.put("Internal ADC A13", new FormatCluster("RAW", "no Units", (double) newPacketInt[iA0]));
-                        objectCluster.mPropertyCluster.put("Internal ADC A13", new FormatCluster("CAL", "mVolts", calibratedData[iA0]));
+                        buildAdcSample(sample, Channel.INT_ADC_A13, newPacketInt);
                     }
                     if ((mEnabledSensors & SENSOR_INT_ADC_A14) > 0) {
-                        int iA0 = getSignalIndex("Internal ADC A14");
-                        tempData[0] = (double) newPacketInt[iA0];
-                        calibratedData[iA0] = calibrateU12AdcValue(tempData[0], 0, 3, 1);
-                        objectCluster.mPropertyCluster.put("Internal ADC A14", new FormatCluster("RAW", "no Units", (double) newPacketInt[iA0]));
-                        objectCluster.mPropertyCluster.put("Internal ADC A14", new FormatCluster("CAL", "mVolts", calibratedData[iA0]));
+                        buildAdcSample(sample, Channel.INT_ADC_A14, newPacketInt);
                     }
                     if (((mEnabledSensors & 0xFF) & SENSOR_ACCEL) > 0 && ((mEnabledSensors & 0xFF) & SENSOR_GYRO) > 0 && ((mEnabledSensors & 0xFF) & SENSOR_MAG) > 0 && mOrientationEnabled) {
-
-                        Quaternion q = mOrientationAlgo.update(accelerometer.x, accelerometer.y, accelerometer.z, gyroscope.x, gyroscope.y, gyroscope.z, magnetometer.x, magnetometer.y, magnetometer.z);
-
-
-                        double theta, Rx, Ry, Rz, rho;
-                        rho = Math.acos(q.q1);
-                        theta = rho * 2;
-                        Rx = q.q2 / Math.sin(rho);
-                        Ry = q.q3 / Math.sin(rho);
-                        Rz = q.q4 / Math.sin(rho);
-
-
-                        objectCluster.mPropertyCluster.put("Axis Angle A", new FormatCluster("CAL", "local", theta));
-                        objectCluster.mPropertyCluster.put("Axis Angle X", new FormatCluster("CAL", "local", Rx));
-                        objectCluster.mPropertyCluster.put("Axis Angle Y", new FormatCluster("CAL", "local", Ry));
-                        objectCluster.mPropertyCluster.put("Axis Angle Z", new FormatCluster("CAL", "local", Rz));
-
-
-                        objectCluster.mPropertyCluster.put("Quaternion 0", new FormatCluster("CAL", "local", q.q1));
-                        objectCluster.mPropertyCluster.put("Quaternion 1", new FormatCluster("CAL", "local", q.q2));
-                        objectCluster.mPropertyCluster.put("Quaternion 2", new FormatCluster("CAL", "local", q.q3));
-                        objectCluster.mPropertyCluster.put("Quaternion 3", new FormatCluster("CAL", "local", q.q4));
+                        buildOrientationSample(sample, accelerometer, gyroscope, magnetometer, false);
                     }
 
 
                 } else {
 
                     if (((mEnabledSensors & 0xFF) & SENSOR_ACCEL) > 0) {
-                        int iAccelX = getSignalIndex("Accelerometer X"); //find index
-                        int iAccelY = getSignalIndex("Accelerometer Y"); //find index
-                        int iAccelZ = getSignalIndex("Accelerometer Z"); //find index
-                        tempData[0] = (double) newPacketInt[iAccelX];
-                        tempData[1] = (double) newPacketInt[iAccelY];
-                        tempData[2] = (double) newPacketInt[iAccelZ];
-                        double[] accelCalibratedData = calibrateInertialSensorData(tempData, AlignmentMatrixAccel, SensitivityMatrixAccel, OffsetVectorAccel);
-                        calibratedData[iAccelX] = accelCalibratedData[0];
-                        calibratedData[iAccelY] = accelCalibratedData[1];
-                        calibratedData[iAccelZ] = accelCalibratedData[2];
-
-                        objectCluster.mPropertyCluster.put("Accelerometer X", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelX]));
-                        objectCluster.mPropertyCluster.put("Accelerometer Y", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelY]));
-                        objectCluster.mPropertyCluster.put("Accelerometer Z", new FormatCluster("RAW", "no units", (double) newPacketInt[iAccelZ]));
-                        if (mDefaultCalibrationParametersAccel == true) {
-                            objectCluster.mPropertyCluster.put("Accelerometer X", new FormatCluster("CAL", "m/(sec^2)*", accelCalibratedData[0]));
-                            objectCluster.mPropertyCluster.put("Accelerometer Y", new FormatCluster("CAL", "m/(sec^2)*", accelCalibratedData[1]));
-                            objectCluster.mPropertyCluster.put("Accelerometer Z", new FormatCluster("CAL", "m/(sec^2)*", accelCalibratedData[2]));
-                            accelerometer.x = accelCalibratedData[0];
-                            accelerometer.y = accelCalibratedData[1];
-                            accelerometer.z = accelCalibratedData[2];
-                        } else {
-                            objectCluster.mPropertyCluster.put("Accelerometer X", new FormatCluster("CAL", "m/(sec^2)", accelCalibratedData[0]));
-                            objectCluster.mPropertyCluster.put("Accelerometer Y", new FormatCluster("CAL", "m/(sec^2)", accelCalibratedData[1]));
-                            objectCluster.mPropertyCluster.put("Accelerometer Z", new FormatCluster("CAL", "m/(sec^2)", accelCalibratedData[2]));
-                            accelerometer.x = accelCalibratedData[0];
-                            accelerometer.y = accelCalibratedData[1];
-                            accelerometer.z = accelCalibratedData[2];
-                        }
-
+                        tempData[0] = (double) newPacketInt[getChannelIndex(Channel.ACCEL_X)];
+                        tempData[1] = (double) newPacketInt[getChannelIndex(Channel.ACCEL_Y)];
+                        tempData[2] = (double) newPacketInt[getChannelIndex(Channel.ACCEL_Z)];
+                        double[] accelCalibratedData = mAccelTransform.apply(tempData, mCalibratedData);
+                        sample.put(Channel.ACCEL_X, tempData[0], accelCalibratedData[0], mDefaultCalibrationParametersAccel);
+                        sample.put(Channel.ACCEL_Y, tempData[1], accelCalibratedData[1], mDefaultCalibrationParametersAccel);
+                        sample.put(Channel.ACCEL_Z, tempData[2], accelCalibratedData[2], mDefaultCalibrationParametersAccel);
+                        accelerometer.x = accelCalibratedData[0];
+                        accelerometer.y = accelCalibratedData[1];
+                        accelerometer.z = accelCalibratedData[2];
                     }
 
                     if (((mEnabledSensors & 0xFF) & SENSOR_GYRO) > 0) {
-                        int iGyroX = getSignalIndex("Gyroscope X");
-                        int iGyroY = getSignalIndex("Gyroscope Y");
-                        int iGyroZ = getSignalIndex("Gyroscope Z");
-                        tempData[0] = (double) newPacketInt[iGyroX];
-                        tempData[1] = (double) newPacketInt[iGyroY];
-                        tempData[2] = (double) newPacketInt[iGyroZ];
-                        double[] gyroCalibratedData = calibrateInertialSensorData(tempData, AlignmentMatrixGyro, SensitivityMatrixGyro, OffsetVectorGyro);
-                        calibratedData[iGyroX] = gyroCalibratedData[0];
-                        calibratedData[iGyroY] = gyroCalibratedData[1];
-                        calibratedData[iGyroZ] = gyroCalibratedData[2];
-
-                        objectCluster.mPropertyCluster.put("Gyroscope X", new FormatCluster("RAW", "no units", (double) newPacketInt[iGyroX]));
-                        objectCluster.mPropertyCluster.put("Gyroscope Y", new FormatCluster("RAW", "no units", (double) newPacketInt[iGyroY]));
-                        objectCluster.mPropertyCluster.put("Gyroscope Z", new FormatCluster("RAW", "no units", (double) newPacketInt[iGyroZ]));
-                        if (mDefaultCalibrationParametersGyro == true) {
-                            objectCluster.mPropertyCluster.put("Gyroscope X", new FormatCluster("CAL", "deg/sec*", gyroCalibratedData[0]));
-                            objectCluster.mPropertyCluster.put("Gyroscope Y", new FormatCluster("CAL", "deg/sec*", gyroCalibratedData[1]));
-                            objectCluster.mPropertyCluster.put("Gyroscope Z", new FormatCluster("CAL", "deg/sec*", gyroCalibratedData[2]));
-                            gyroscope.x = gyroCalibratedData[0] * Math.PI / 180;
-                            gyroscope.y = gyroCalibratedData[1] * Math.PI / 180;
-                            gyroscope.z = gyroCalibratedData[2] * Math.PI / 180;
-                        } else {
-                            objectCluster.mPropertyCluster.put("Gyroscope X", new FormatCluster("CAL", "deg/sec", gyroCalibratedData[0]));
-                            objectCluster.mPropertyCluster.put("Gyroscope Y", new FormatCluster("CAL", "deg/sec", gyroCalibratedData[1]));
-                            objectCluster.mPropertyCluster.put("Gyroscope Z", new FormatCluster("CAL", "deg/sec", gyroCalibratedData[2]));
-                            gyroscope.x = gyroCalibratedData[0] * Math.PI / 180;
-                            gyroscope.y = gyroCalibratedData[1] * Math.PI / 180;
-                            gyroscope.z = gyroCalibratedData[2] * Math.PI / 180;
-                            if (mEnableOntheFlyGyroOVCal) {
-                                mGyroX.addValue(gyroCalibratedData[0]);
-                                mGyroY.addValue(gyroCalibratedData[1]);
-                                mGyroZ.addValue(gyroCalibratedData[2]);
-                                mGyroXRaw.addValue((double) newPacketInt[iGyroX]);
-                                mGyroYRaw.addValue((double) newPacketInt[iGyroY]);
-                                mGyroZRaw.addValue((double) newPacketInt[iGyroZ]);
-                                if (mGyroX.getStandardDeviation() < mGyroOVCalThreshold && mGyroY.getStandardDeviation() < mGyroOVCalThreshold && mGyroZ.getStandardDeviation() < mGyroOVCalThreshold) {
-                                    OffsetVectorGyro[0][0] = mGyroXRaw.getMean();
-                                    OffsetVectorGyro[1][0] = mGyroYRaw.getMean();
-                                    OffsetVectorGyro[2][0] = mGyroZRaw.getMean();
-                                }
-                            }
-                        }
-
+                        buildGyroSample(sample, newPacketInt, tempData, gyroscope);
                     }
                     if (((mEnabledSensors & 0xFF) & SENSOR_MAG) > 0) {
-                        int iMagX = getSignalIndex("Magnetometer X");
-                        int iMagY = getSignalIndex("Magnetometer Y");
-                        int iMagZ = getSignalIndex("Magnetometer Z");
-                        tempData[0] = (double) newPacketInt[iMagX];
-                        tempData[1] = (double) newPacketInt[iMagY];
-                        tempData[2] = (double) newPacketInt[iMagZ];
-                        double[] magCalibratedData = calibrateInertialSensorData(tempData, AlignmentMatrixMag, SensitivityMatrixMag, OffsetVectorMag);
-                        calibratedData[iMagX] = magCalibratedData[0];
-                        calibratedData[iMagY] = magCalibratedData[1];
-                        calibratedData[iMagZ] = magCalibratedData[2];
-
-                        objectCluster.mPropertyCluster.put("Magnetometer X", new FormatCluster("RAW", "no units", (double) newPacketInt[iMagX]));
-                        objectCluster.mPropertyCluster.put("Magnetometer Y", new FormatCluster("RAW", "no units", (double) newPacketInt[iMagY]));
-                        objectCluster.mPropertyCluster.put("Magnetometer Z", new FormatCluster("RAW", "no units", (double) newPacketInt[iMagZ]));
-                        if (mDefaultCalibrationParametersMag == true) {
-                            objectCluster.mPropertyCluster.put("Magnetometer X", new FormatCluster("CAL", "local*", magCalibratedData[0]));
-                            objectCluster.mPropertyCluster.put("Magnetometer Y", new FormatCluster("CAL", "local*", magCalibratedData[1]));
-                            objectCluster.mPropertyCluster.put("Magnetometer Z", new FormatCluster("CAL", "local*", magCalibratedData[2]));
-                            magnetometer.x = magCalibratedData[0];
-                            magnetometer.y = magCalibratedData[1];
-                            magnetometer.z = magCalibratedData[2];
-                        } else {
-                            objectCluster.mPropertyCluster.put("Magnetometer X", new FormatCluster("CAL", "local", magCalibratedData[0]));
-                            objectCluster.mPropertyCluster.put("Magnetometer Y", new FormatCluster("CAL", "local", magCalibratedData[1]));
-                            objectCluster.mPropertyCluster.put("Magnetometer Z", new FormatCluster("CAL", "local", magCalibratedData[2]));
-                            magnetometer.x = magCalibratedData[0];
-                            magnetometer.y = magCalibratedData[1];
-                            magnetometer.z = magCalibratedData[2];
-                        }
+                        buildMagSample(sample, newPacketInt, tempData, magnetometer);
                     }
 
 
                     if (((mEnabledSensors & 0xFF) & SENSOR_ACCEL) > 0 && ((mEnabledSensors & 0xFF) & SENSOR_GYRO) > 0 && ((mEnabledSensors & 0xFF) & SENSOR_MAG) > 0 && mOrientationEnabled) {
-
-                        Quaternion q = mOrientationAlgo.update(accelerometer.x, accelerometer.y, accelerometer.z, gyroscope.x, gyroscope.y, gyroscope.z, magnetometer.x, magnetometer.y, magnetometer.z);
-
-
-                        double theta, Rx, Ry, Rz, rho;
-                        rho = Math.acos(q.q1);
-                        theta = rho * 2;
-                        Rx = q.q2 / Math.sin(rho);
-                        Ry = q.q3 / Math.sin(rho);
-                        Rz = q.q4 / Math.sin(rho);
-
-
-                        objectCluster.mPropertyCluster.put("Axis Angle A", new FormatCluster("CAL", "local", theta));
-                        objectCluster.mPropertyCluster.put("Axis Angle X", new FormatCluster("CAL", "local", Rx));
-                        objectCluster.mPropertyCluster.put("Axis Angle Y", new FormatCluster("CAL", "local", Ry));
-                        objectCluster.mPropertyCluster.put("Axis Angle Z", new FormatCluster("CAL", "local", Rz));
-
-
-                        objectCluster.mPropertyCluster.put("Quartenion 0", new FormatCluster("CAL", "local", q.q1));
-                        objectCluster.mPropertyCluster.put("Quartenion 1", new FormatCluster("CAL", "local", q.q2));
-                        objectCluster.mPropertyCluster.put("Quartenion 2", new FormatCluster("CAL", "local", q.q3));
-                        objectCluster.mPropertyCluster.put("Quartenion 3", new FormatCluster("CAL", "local", q.q4));
+                        buildOrientationSample(sample, accelerometer, gyroscope, magnetometer, true);
                     }
 
 
                     if (((mEnabledSensors & 0xFF) & SENSOR_GSR) > 0) {
-                        int iGSR = getSignalIndex("GSR Raw");
-                        tempData[0] = (double) newPacketInt[iGSR];
+                        tempData[0] = (double) newPacketInt[getChannelIndex(Channel.GSR)];
                         int newGSRRange = -1; // initialized to -1 so it will only come into play if mGSRRange = 4
 
                         double p1 = 0, p2 = 0;//,p3=0,p4=0,p5=0;
@@ -3438,105 +2925,61 @@ public class Shimmer {
                             p2 = -0.3014;
                         }
 
-                        calibratedData[iGSR] = calibrateGsrData(tempData[0], p1, p2);
-                        objectCluster.mPropertyCluster.put("GSR", new FormatCluster("RAW", "no units", (double) newPacketInt[iGSR]));
-                        objectCluster.mPropertyCluster.put("GSR", new FormatCluster("CAL", "kOhms", calibratedData[iGSR]));
+                        sample.put(Channel.GSR, tempData[0], calibrateGsrData(tempData[0], p1, p2), false);
                     }
                     if (((mEnabledSensors & 0xFF) & SENSOR_ECG) > 0) {
-                        int iECGRALL = getSignalIndex("ECG RA LL");
-                        int iECGLALL = getSignalIndex("ECG LA LL");
-                        tempData[0] = (double) newPacketInt[iECGRALL];
-                        tempData[1] = (double) newPacketInt[iECGLALL];
-                        calibratedData[iECGRALL] = calibrateU12AdcValue(tempData[0], OffsetECGRALL, 3, GainECGRALL);
-                        calibratedData[iECGLALL] = calibrateU12AdcValue(tempData[1], OffsetECGLALL, 3, GainECGLALL);
-                        objectCluster.mPropertyCluster.put("ECG RA-LL", new FormatCluster("RAW", "no units", (double) newPacketInt[iECGRALL]));
-                        objectCluster.mPropertyCluster.put("ECG LA-LL", new FormatCluster("RAW", "no units", (double) newPacketInt[iECGLALL]));
-                        if (mDefaultCalibrationParametersECG == true) {
-                            objectCluster.mPropertyCluster.put("ECG RA-LL", new FormatCluster("CAL", "mVolts*", calibratedData[iECGRALL]));
-                            objectCluster.mPropertyCluster.put("ECG LA-LL", new FormatCluster("CAL", "mVolts*", calibratedData[iECGLALL]));
-                        } else {
-                            objectCluster.mPropertyCluster.put("ECG RA-LL", new FormatCluster("CAL", "mVolts", calibratedData[iECGRALL]));
-                            objectCluster.mPropertyCluster.put("ECG LA-LL", new FormatCluster("CAL", "mVolts", calibratedData[iECGLALL]));
-                        }
+                        tempData[0] = (double) newPacketInt[getChannelIndex(Channel.ECG_RA_LL)];
+                        tempData[1] = (double) newPacketInt[getChannelIndex(Channel.ECG_LA_LL)];
+                        sample.put(Channel.ECG_RA_LL, tempData[0], calibrateU12AdcValue(tempData[0], OffsetECGRALL, 3, GainECGRALL), mDefaultCalibrationParametersECG);
+                        sample.put(Channel.ECG_LA_LL, tempData[1], calibrateU12AdcValue(tempData[1], OffsetECGLALL, 3, GainECGLALL), mDefaultCalibrationParametersECG);
                     }
                     if (((mEnabledSensors & 0xFF) & SENSOR_EMG) > 0) {
-                        int iEMG = getSignalIndex("EMG");
-                        tempData[0] = (double) newPacketInt[iEMG];
-                        calibratedData[iEMG] = calibrateU12AdcValue(tempData[0], OffsetEMG, 3, GainEMG);
-                        objectCluster.mPropertyCluster.put("EMG", new FormatCluster("RAW", "no units", (double) newPacketInt[iEMG]));
-
-                        if (mDefaultCalibrationParametersEMG == true) {
-                            objectCluster.mPropertyCluster.put("EMG", new FormatCluster("CAL", "mVolts*", calibratedData[iEMG]));
-                        } else {
-                            objectCluster.mPropertyCluster.put("EMG", new FormatCluster("CAL", "mVolts", calibratedData[iEMG]));
-                        }
+                        tempData[0] = (double) newPacketInt[getChannelIndex(Channel.EMG)];
+                        sample.put(Channel.EMG, tempData[0], calibrateU12AdcValue(tempData[0], OffsetEMG, 3, GainEMG), mDefaultCalibrationParametersEMG);
                     }
                     if (((mEnabledSensors & 0xFF00) & SENSOR_STRAIN) > 0) {
-                        int iSGHigh = getSignalIndex("Strain Gauge High");
-                        int iSGLow = getSignalIndex("Strain Gauge Low");
-                        tempData[0] = (double) newPacketInt[iSGHigh];
-                        tempData[1] = (double) newPacketInt[iSGLow];
-                        calibratedData[iSGHigh] = calibrateU12AdcValue(tempData[0], 60, 3, 551 * 2.8);
-                        calibratedData[iSGLow] = calibrateU12AdcValue(tempData[0], 1950, 3, 183.7 * 2.8);
-                        objectCluster.mPropertyCluster.put("Strain Gauge High", new FormatCluster("RAW", "no units", (double) newPacketInt[iSGHigh]));
-                        objectCluster.mPropertyCluster.put("Strain Gauge High", new FormatCluster("CAL", "mVolts", calibratedData[iSGHigh]));
-                        objectCluster.mPropertyCluster.put("Strain Gauge Low", new FormatCluster("RAW", "no units", (double) newPacketInt[iSGLow]));
-                        objectCluster.mPropertyCluster.put("Strain Gauge Low", new FormatCluster("CAL", "mVolts", calibratedData[iSGLow]));
+                        tempData[0] = (double) newPacketInt[getChannelIndex(Channel.STRAIN_GAUGE_HIGH)];
+                        tempData[1] = (double) newPacketInt[getChannelIndex(Channel.STRAIN_GAUGE_LOW)];
+                        sample.put(Channel.STRAIN_GAUGE_HIGH, tempData[0], calibrateU12AdcValue(tempData[0], 60, 3, 551 * 2.8), false);
+                        sample.put(Channel.STRAIN_GAUGE_LOW, tempData[1], calibrateU12AdcValue(tempData[0], 1950, 3, 183.7 * 2.8), false);
                     }
                     if (((mEnabledSensors & 0xFF00) & SENSOR_HEART) > 0) {
-                        int iHeartRate = getSignalIndex("Heart Rate");
-                        tempData[0] = (double) newPacketInt[iHeartRate];
-                        calibratedData[iHeartRate] = tempData[0];
+                        tempData[0] = (double) newPacketInt[getChannelIndex(Channel.HEART_RATE)];
+                        double heartRate = tempData[0];
                         if (mFWVersion == 0.1) {
 
                         } else {
                             if (tempData[0] == 0) {
-                                calibratedData[iHeartRate] = mLastKnownHeartRate;
+                                heartRate = mLastKnownHeartRate;
                             } else {
-                                calibratedData[iHeartRate] = (int) (1024 / tempData[0] * 60);
-                                mLastKnownHeartRate = calibratedData[iHeartRate];
+                                heartRate = (int) (1024 / tempData[0] * 60);
+                                mLastKnownHeartRate = heartRate;
                             }
                         }
-
-                        objectCluster.mPropertyCluster.put("Heart Rate", new FormatCluster("CAL", "BPM", calibratedData[iHeartRate]));
-                        objectCluster.mPropertyCluster.put("Heart Rate", new FormatCluster("RAW", "no units", tempData[0]));
+                        sample.put(Channel.HEART_RATE, tempData[0], heartRate, false);
                     }
                     if (((mEnabledSensors & 0xFF) & SENSOR_EXP_BOARD_A0) > 0) {
-                        int iA0 = getSignalIndex("Exp Board A0");
-                        tempData[0] = (double) newPacketInt[iA0];
+                        tempData[0] = (double) newPacketInt[getChannelIndex(Channel.EXP_BOARD_A0)];
                         if (getPMux() == 0) {
-                            calibratedData[iA0] = calibrateU12AdcValue(tempData[0], 0, 3, 1);
-                            objectCluster.mPropertyCluster.put("ExpBoard A0", new FormatCluster("RAW", "no units", (double) newPacketInt[iA0]));
-                            objectCluster.mPropertyCluster.put("ExpBoard A0", new FormatCluster("CAL", "mVolts", calibratedData[iA0]));
+                            sample.put(Channel.EXP_BOARD_A0, tempData[0], calibrateU12AdcValue(tempData[0], 0, 3, 1), false);
                         } else {
-                            calibratedData[iA0] = calibrateU12AdcValue(tempData[0], 0, 3, 1) * 1.988;
-                            objectCluster.mPropertyCluster.put("VSenseReg", new FormatCluster("RAW", "no Units", (double) newPacketInt[iA0]));
-                            objectCluster.mPropertyCluster.put("VSenseReg", new FormatCluster("CAL", "mVolts", calibratedData[iA0]));
-
+                            sample.put(Channel.VSENSE_REG, tempData[0], calibrateU12AdcValue(tempData[0], 0, 3, 1) * 1.988, false);
                         }
                     }
                     if (((mEnabledSensors & 0xFF) & SENSOR_EXP_BOARD_A7) > 0) {
-                        int iA7 = getSignalIndex("Exp Board A7");
-                        tempData[0] = (double) newPacketInt[iA7];
+                        tempData[0] = (double) newPacketInt[getChannelIndex(Channel.EXP_BOARD_A7)];
                         if (getPMux() == 0) {
-                            calibratedData[iA7] = calibrateU12AdcValue(tempData[0], 0, 3, 1);
-                            objectCluster.mPropertyCluster.put("ExpBoard A7", new FormatCluster("RAW", "no units", (double) newPacketInt[iA7]));
-                            objectCluster.mPropertyCluster.put("ExpBoard A7", new FormatCluster("CAL", "mVolts", calibratedData[iA7]));
+                            sample.put(Channel.EXP_BOARD_A7, tempData[0], calibrateU12AdcValue(tempData[0], 0, 3, 1), false);
                         }
                     }
                     if ((mEnabledSensors & SENSOR_BATT) > 0) {
-                        int iA0 = getSignalIndex("Exp Board A0");
-                        tempData[0] = (double) newPacketInt[iA0];
-                        calibratedData[iA0] = calibrateU12AdcValue(tempData[0], 0, 3, 1) * 1.988;
-                        objectCluster.mPropertyCluster.put("VSenseReg", new FormatCluster("RAW", "no Units", (double) newPacketInt[iA0]));
-                        objectCluster.mPropertyCluster.put("VSenseReg", new FormatCluster("CAL", "mVolts", calibratedData[iA0]));
-
-                        int iA7 = getSignalIndex("Exp Board A7");
-                        calibratedData[iA7] = calibrateU12AdcValue(tempData[0], 0, 3, 1) * 2;
-                        objectCluster.mPropertyCluster.put("VSenseBatt", new FormatCluster("RAW", "no units", (double) newPacketInt[iA7]));
-                        objectCluster.mPropertyCluster.put("VSenseBatt", new FormatCluster("CAL", "mVolts", calibratedData[iA7]));
-
-                        mVSenseBattMA.addValue(calibratedData[iA7]);
+                        tempData[0] = (double) newPacketInt[getChannelIndex(Channel.EXP_BOARD_A0)];
+                        sample.put(Channel.VSENSE_REG, tempData[0], calibrateU12AdcValue(tempData[0], 0, 3, 1) * 1.988, false);
+
+                        double vSenseBatt = calibrateU12AdcValue(tempData[0], 0, 3, 1) * 2;
+                        sample.put(Channel.VSENSE_BATT, (double) newPacketInt[getChannelIndex(Channel.EXP_BOARD_A7)], vSenseBatt, false);
+
+                        mVSenseBattMA.addValue(vSenseBatt);
                         if (!mWaitForAck) {
 
                             if (mVSenseBattMA.getMean() < mLowBattLimit * 1000) {
@@ -3555,17 +2998,86 @@ public class Shimmer {
                 }
             }
         }
-        return objectCluster;
+        return sample;
+    }
+
+    private void buildGyroSample(ShimmerSample sample, int[] newPacketInt, double[] tempData, Vector3d gyroscope) {
+        int iGyroX = getChannelIndex(Channel.GYRO_X);
+        int iGyroY = getChannelIndex(Channel.GYRO_Y);
+        int iGyroZ = getChannelIndex(Channel.GYRO_Z);
+        tempData[0] = (double) newPacketInt[iGyroX];
+        tempData[1] = (double) newPacketInt[iGyroY];
+        tempData[2] = (double) newPacketInt[iGyroZ];
+        double[] gyroCalibratedData = mGyroTransform.apply(tempData, mCalibratedData);
+        sample.put(Channel.GYRO_X, tempData[0], gyroCalibratedData[0], mDefaultCalibrationParametersGyro);
+        sample.put(Channel.GYRO_Y, tempData[1], gyroCalibratedData[1], mDefaultCalibrationParametersGyro);
+        sample.put(Channel.GYRO_Z, tempData[2], gyroCalibratedData[2], mDefaultCalibrationParametersGyro);
+        gyroscope.x = gyroCalibratedData[0] * Math.PI / 180;
+        gyroscope.y = gyroCalibratedData[1] * Math.PI / 180;
+        gyroscope.z = gyroCalibratedData[2] * Math.PI / 180;
+        if (mDefaultCalibrationParametersGyro == false && mEnableOntheFlyGyroOVCal) {
+            mGyroX.addValue(gyroCalibratedData[0]);
+            mGyroY.addValue(gyroCalibratedData[1]);
+            mGyroZ.addValue(gyroCalibratedData[2]);
+            mGyroXRaw.addValue(tempData[0]);
+            mGyroYRaw.addValue(tempData[1]);
+            mGyroZRaw.addValue(tempData[2]);
+            if (mGyroX.getStandardDeviation() < mGyroOVCalThreshold && mGyroY.getStandardDeviation() < mGyroOVCalThreshold && mGyroZ.getStandardDeviation() < mGyroOVCalThreshold) {
+                OffsetVectorGyro[0][0] = mGyroXRaw.getMean();
+                OffsetVectorGyro[1][0] = mGyroYRaw.getMean();
+                OffsetVectorGyro[2][0] = mGyroZRaw.getMean();
+                mGyroTransform.setOffset(OffsetVectorGyro);
+            }
+        }
+    }
+
+    private void buildMagSample(ShimmerSample sample, int[] newPacketInt, double[] tempData, Vector3d magnetometer) {
+        tempData[0] = (double) newPacketInt[getChannelIndex(Channel.MAG_X)];
+        tempData[1] = (double) newPacketInt[getChannelIndex(Channel.MAG_Y)];
+        tempData[2] = (double) newPacketInt[getChannelIndex(Channel.MAG_Z)];
+        double[] magCalibratedData = mMagTransform.apply(tempData, mCalibratedData);
+        sample.put(Channel.MAG_X, tempData[0], magCalibratedData[0], mDefaultCalibrationParametersMag);
+        sample.put(Channel.MAG_Y, tempData[1], magCalibratedData[1], mDefaultCalibrationParametersMag);
+        sample.put(Channel.MAG_Z, tempData[2], magCalibratedData[2], mDefaultCalibrationParametersMag);
+        magnetometer.x = magCalibratedData[0];
+        magnetometer.y = magCalibratedData[1];
+        magnetometer.z = magCalibratedData[2];
     }
 
+    private void buildAdcSample(ShimmerSample sample, Channel channel, int[] newPacketInt) {
+        double raw = (double) newPacketInt[getChannelIndex(channel)];
+        sample.put(channel, raw, calibrateU12AdcValue(raw, 0, 3, 1), false);
+    }
 
-    private byte[] convertstacktobytearray(Stack<Byte> b, int packetSize) {
-        byte[] returnByte = new byte[packetSize];
-        b.remove(0); //remove the Data Packet identifier
-        for (int i = 0; i < packetSize; i++) {
-            returnByte[packetSize - 1 - i] = (byte) b.pop();
+    /**
+     * @param legacyNames true to use the quaternion property names of Shimmer2 devices
+     */
+    private void buildOrientationSample(ShimmerSample sample, Vector3d accelerometer, Vector3d gyroscope, Vector3d magnetometer, boolean legacyNames) {
+        Quaternion q = mOrientationAlgo.update(accelerometer.x, accelerometer.y, accelerometer.z, gyroscope.x, gyroscope.y, gyroscope.z, magnetometer.x, magnetometer.y, magnetometer.z);
+
+        double theta, Rx, Ry, Rz, rho;
+        rho = Math.acos(q.q1);
+        theta = rho * 2;
+        Rx = q.q2 / Math.sin(rho);
+        Ry = q.q3 / Math.sin(rho);
+        Rz = q.q4 / Math.sin(rho);
+
+        sample.putCal(Channel.AXIS_ANGLE_A, theta, false);
+        sample.putCal(Channel.AXIS_ANGLE_X, Rx, false);
+        sample.putCal(Channel.AXIS_ANGLE_Y, Ry, false);
+        sample.putCal(Channel.AXIS_ANGLE_Z, Rz, false);
+
+        if (legacyNames) {
+            sample.putCal(Channel.QUARTENION_0, q.q1, false);
+            sample.putCal(Channel.QUARTENION_1, q.q2, false);
+            sample.putCal(Channel.QUARTENION_2, q.q3, false);
+            sample.putCal(Channel.QUARTENION_3, q.q4, false);
+        } else {
+            sample.putCal(Channel.QUATERNION_0, q.q1, false);
+            sample.putCal(Channel.QUATERNION_1, q.q2, false);
+            sample.putCal(Channel.QUATERNION_2, q.q3, false);
+            sample.putCal(Channel.QUATERNION_3, q.q4, false);
         }
-        return returnByte;
     }
 
 
@@ -3720,7 +3232,7 @@ public class Shimmer {
      * @param range is a numeric value defining the desired accelerometer range. Valid range setting values for the Shimmer 2 are 0 (+/- 1.5g), 1 (+/- 2g), 2 (+/- 4g) and 3 (+/- 6g). Valid range setting values for the Shimmer 2r are 0 (+/- 1.5g) and 3 (+/- 6g).
      */
     public void writeAccelRange(int range) {
-        mListofInstructions.add(new byte[]{SET_ACCEL_SENSITIVITY_COMMAND, (byte) range});
+        sendCommand(new byte[]{SET_ACCEL_SENSITIVITY_COMMAND, (byte) range});
         mAccelRange = (int) range;
         if (mInitialized == true) { //if Shimmer if fully initialized (see initializeShimmer3()), setting the accel range
             writeEnabledSensors(mEnabledSensors);
@@ -3734,7 +3246,7 @@ public class Shimmer {
      */
     public void writeGyroRange(int range) {
         if (mShimmerVersion == Shimmer.SHIMMER_3) {
-            mListofInstructions.add(new byte[]{SET_MPU9150_GYRO_RANGE_COMMAND, (byte) range});
+            sendCommand(new byte[]{SET_MPU9150_GYRO_RANGE_COMMAND, (byte) range});
             mGyroRange = (int) range;
         }
     }
@@ -3758,7 +3270,7 @@ public class Shimmer {
                     writeMagSamplingRate(4);
                 }
                 rate = 1024 / rate; //the equivalent hex setting
-                mListofInstructions.add(new byte[]{SET_SAMPLING_RATE_COMMAND, (byte) Math.rint(rate), 0x00});
+                sendCommand(new byte[]{SET_SAMPLING_RATE_COMMAND, (byte) Math.rint(rate), 0x00});
             } else if (mShimmerVersion == SHIMMER_3) {
                 if (!mLowPowerMag) {
                     if (rate <= 1) {
@@ -3828,7 +3340,7 @@ public class Shimmer {
 
 
                 int samplingByteValue = (int) (32768 / rate);
-                mListofInstructions.add(new byte[]{SET_SAMPLING_RATE_COMMAND, (byte) (samplingByteValue & 0xFF), (byte) ((samplingByteValue >> 8) & 0xFF)});
+                sendCommand(new byte[]{SET_SAMPLING_RATE_COMMAND, (byte) (samplingByteValue & 0xFF), (byte) ((samplingByteValue >> 8) & 0xFF)});
 
 
             }
@@ -3843,12 +3355,12 @@ public class Shimmer {
 
         } else if (mShimmerVersion == Shimmer.SHIMMER_3) {
             if (enable) {
-                mListofInstructions.add(new byte[]{SET_LSM303DLHC_ACCEL_LPMODE_COMMAND, (byte) 0x01});
-                mListofInstructions.add(new byte[]{SET_LSM303DLHC_ACCEL_HRMODE_COMMAND, (byte) 0x00});
+                sendCommand(new byte[]{SET_LSM303DLHC_ACCEL_LPMODE_COMMAND, (byte) 0x01});
+                sendCommand(new byte[]{SET_LSM303DLHC_ACCEL_HRMODE_COMMAND, (byte) 0x00});
 
             } else {
-                mListofInstructions.add(new byte[]{SET_LSM303DLHC_ACCEL_HRMODE_COMMAND, (byte) 0x01});
-                mListofInstructions.add(new byte[]{SET_LSM303DLHC_ACCEL_LPMODE_COMMAND, (byte) 0x00});
+                sendCommand(new byte[]{SET_LSM303DLHC_ACCEL_HRMODE_COMMAND, (byte) 0x01});
+                sendCommand(new byte[]{SET_LSM303DLHC_ACCEL_LPMODE_COMMAND, (byte) 0x00});
 
             }
 
@@ -3864,7 +3376,7 @@ public class Shimmer {
         if (mFWVersion == 0.1 && mFWInternal == 0) {
         } else {
             mTempIntValue = rate;
-            mListofInstructions.add(new byte[]{SET_MAG_SAMPLING_RATE_COMMAND, (byte) rate});
+            sendCommand(new byte[]{SET_MAG_SAMPLING_RATE_COMMAND, (byte) rate});
         }
     }
 
@@ -3878,7 +3390,7 @@ public class Shimmer {
 
         } else if (mShimmerVersion == Shimmer.SHIMMER_3) {
             mTempIntValue = rate;
-            mListofInstructions.add(new byte[]{SET_ACCEL_SAMPLING_RATE_COMMAND, (byte) rate});
+            sendCommand(new byte[]{SET_ACCEL_SAMPLING_RATE_COMMAND, (byte) rate});
         }
     }
 
@@ -3892,7 +3404,7 @@ public class Shimmer {
 
         } else if (mShimmerVersion == Shimmer.SHIMMER_3) {
             mTempIntValue = rate;
-            mListofInstructions.add(new byte[]{SET_MPU9150_SAMPLING_RATE_COMMAND, (byte) rate});
+            sendCommand(new byte[]{SET_MPU9150_SAMPLING_RATE_COMMAND, (byte) rate});
         }
     }
 
@@ -3974,9 +3486,9 @@ public class Shimmer {
             //write(new byte[]{SET_SENSORS_COMMAND,(byte) lowByte, highByte});
             if (mShimmerVersion == Shimmer.SHIMMER_3) {
                 byte thirdByte = (byte) ((enabledSensors & 16711680) >> 16);
-                mListofInstructions.add(new byte[]{SET_SENSORS_COMMAND, (byte) firstByte, (byte) secondByte, (byte) thirdByte});
+                sendCommand(new byte[]{SET_SENSORS_COMMAND, (byte) firstByte, (byte) secondByte, (byte) thirdByte});
             } else {
-                mListofInstructions.add(new byte[]{SET_SENSORS_COMMAND, (byte) firstByte, (byte) secondByte});
+                sendCommand(new byte[]{SET_SENSORS_COMMAND, (byte) firstByte, (byte) secondByte});
             }
             inquiry();
         }
@@ -3998,17 +3510,17 @@ public class Shimmer {
                 }
             }
             if (sensor.equals("Accelerometer")) {
-                mListofInstructions.add(new byte[]{GET_ACCEL_CALIBRATION_COMMAND});
+                sendCommand(new byte[]{GET_ACCEL_CALIBRATION_COMMAND});
             } else if (sensor.equals("Gyroscope")) {
-                mListofInstructions.add(new byte[]{GET_GYRO_CALIBRATION_COMMAND});
+                sendCommand(new byte[]{GET_GYRO_CALIBRATION_COMMAND});
             } else if (sensor.equals("Magnetometer")) {
-                mListofInstructions.add(new byte[]{GET_MAG_CALIBRATION_COMMAND});
+                sendCommand(new byte[]{GET_MAG_CALIBRATION_COMMAND});
             } else if (sensor.equals("All")) {
-                mListofInstructions.add(new byte[]{GET_ALL_CALIBRATION_COMMAND});
+                sendCommand(new byte[]{GET_ALL_CALIBRATION_COMMAND});
             } else if (sensor.equals("ECG")) {
-                mListofInstructions.add(new byte[]{GET_ECG_CALIBRATION_COMMAND});
+                sendCommand(new byte[]{GET_ECG_CALIBRATION_COMMAND});
             } else if (sensor.equals("EMG")) {
-                mListofInstructions.add(new byte[]{GET_EMG_CALIBRATION_COMMAND});
+                sendCommand(new byte[]{GET_EMG_CALIBRATION_COMMAND});
             }
         }
     }
@@ -4020,13 +3532,13 @@ public class Shimmer {
      * @param size is a numeric value defining the desired accelerometer range. Valid range setting values for the Shimmer 2 are 0 (+/- 1.5g), 1 (+/- 2g), 2 (+/- 4g) and 3 (+/- 6g). Valid range setting values for the Shimmer 2r are 0 (+/- 1.5g) and 3 (+/- 6g).
      */
     public void writeBufferSize(int size) {
-        mListofInstructions.add(new byte[]{SET_BUFFER_SIZE_COMMAND, (byte) size});
+        sendCommand(new byte[]{SET_BUFFER_SIZE_COMMAND, (byte) size});
     }
 
 
     public void readFWVersion() {
         mDummy = false;//false
-        mListofInstructions.add(new byte[]{GET_FW_VERSION_COMMAND});
+        sendCommand(new byte[]{GET_FW_VERSION_COMMAND});
     }
 
     /**
@@ -4034,11 +3546,11 @@ public class Shimmer {
      */
     private void dummyreadSamplingRate() {
         mDummy = true;
-        mListofInstructions.add(new byte[]{GET_SAMPLING_RATE_COMMAND});
+        sendCommand(new byte[]{GET_SAMPLING_RATE_COMMAND});
     }
 
     public void stopStreaming() {
-        mListofInstructions.add(new byte[]{STOP_STREAMING_COMMAND});
+        sendCommand(new byte[]{STOP_STREAMING_COMMAND});
         mCurrentLEDStatus = -1;
     }
 
@@ -4049,8 +3561,8 @@ public class Shimmer {
         mFirstTimeCalTime = true;
         mLastReceivedCalibratedTimeStamp = -1;
         mOrientationAlgo = new GradDes3DOrientation(0.4, (double) 1 / mSamplingRate, 1, 0, 0, 0);
-        mSync = true; // a backup sync done every time you start streaming
-        mListofInstructions.add(new byte[]{START_STREAMING_COMMAND});
+        mPacketFramer.resync(); // a backup sync done every time you start streaming
+        sendCommand(new byte[]{START_STREAMING_COMMAND});
     }
 
 
@@ -4060,18 +3572,18 @@ public class Shimmer {
      * @param range numeric value defining the desired GSR range. Valid range settings are 0 (10kOhm to 56kOhm), 1 (56kOhm to 220kOhm), 2 (220kOhm to 680kOhm), 3 (680kOhm to 4.7MOhm) and 4 (Auto Range).
      */
     public void writeGSRRange(int range) {
-        mListofInstructions.add(new byte[]{SET_GSR_RANGE_COMMAND, (byte) range});
+        sendCommand(new byte[]{SET_GSR_RANGE_COMMAND, (byte) range});
     }
 
     public void readSamplingRate() {
-        mListofInstructions.add(new byte[]{GET_SAMPLING_RATE_COMMAND});
+        sendCommand(new byte[]{GET_SAMPLING_RATE_COMMAND});
     }
 
     /**
      * An inquiry is used to request for the current configuration parameters from the Shimmer device (e.g. Accelerometer settings, Configuration Byte, Sampling Rate, Number of Enabled Sensors and Sensors which have been enabled).
      */
     public void inquiry() {
-        mListofInstructions.add(new byte[]{INQUIRY_COMMAND});
+        sendCommand(new byte[]{INQUIRY_COMMAND});
     }
 
 
@@ -4084,7 +3596,7 @@ public class Shimmer {
         if (mFWVersion == 0.1 && mFWInternal == 0) {
             Log.d("Shimmer", "Command not supported on this firmware version");
         } else {
-            mListofInstructions.add(new byte[]{SET_MAG_GAIN_COMMAND, (byte) range});
+            sendCommand(new byte[]{SET_MAG_GAIN_COMMAND, (byte) range});
         }
     }
 
@@ -4094,7 +3606,7 @@ public class Shimmer {
             if (mFWVersion == 0.1 && mFWInternal == 0) {
                 Log.d("Shimmer", "This Shimmer Version does not support the command");
             } else {
-                mListofInstructions.add(new byte[]{SET_BLINK_LED, (byte) command});
+                sendCommand(new byte[]{SET_BLINK_LED, (byte) command});
             }
         }
     }
@@ -4117,7 +3629,7 @@ public class Shimmer {
         if (mFWVersion == 0.1 && mFWInternal == 0) {
             Log.d("Shimmer", "This Shimmer Version does not support the command");
         } else {
-            mListofInstructions.add(new byte[]{SET_ECG_CALIBRATION_COMMAND, data[0], data[1], data[2], data[3], data[4], data[5], data[6], data[7]});
+            sendCommand(new byte[]{SET_ECG_CALIBRATION_COMMAND, data[0], data[1], data[2], data[3], data[4], data[5], data[6], data[7]});
         }
     }
 
@@ -4130,31 +3642,31 @@ public class Shimmer {
         if (mFWVersion == 0.1 && mFWInternal == 0) {
             Log.d("Shimmer", "This Shimmer Version does not support the command");
         } else {
-            mListofInstructions.add(new byte[]{SET_EMG_CALIBRATION_COMMAND, data[0], data[1], data[2], data[3]});
+            sendCommand(new byte[]{SET_EMG_CALIBRATION_COMMAND, data[0], data[1], data[2], data[3]});
         }
     }
 
     public void readGSRRange() {
-        mListofInstructions.add(new byte[]{GET_GSR_RANGE_COMMAND});
+        sendCommand(new byte[]{GET_GSR_RANGE_COMMAND});
     }
 
     public void readAccelRange() {
-        mListofInstructions.add(new byte[]{GET_ACCEL_SENSITIVITY_COMMAND});
+        sendCommand(new byte[]{GET_ACCEL_SENSITIVITY_COMMAND});
     }
 
     public void readGyroRange() {
-        mListofInstructions.add(new byte[]{GET_MPU9150_GYRO_RANGE_COMMAND});
+        sendCommand(new byte[]{GET_MPU9150_GYRO_RANGE_COMMAND});
     }
 
     public void readBufferSize() {
-        mListofInstructions.add(new byte[]{GET_BUFFER_SIZE_COMMAND});
+        sendCommand(new byte[]{GET_BUFFER_SIZE_COMMAND});
     }
 
     public void readMagSamplingRate() {
         if (mFWVersion == 0.1 && mFWInternal == 0) {
             Log.d("Shimmer", "This Shimmer Version does not support the command");
         } else {
-            mListofInstructions.add(new byte[]{GET_MAG_SAMPLING_RATE_COMMAND});
+            sendCommand(new byte[]{GET_MAG_SAMPLING_RATE_COMMAND});
         }
     }
 
@@ -4165,17 +3677,17 @@ public class Shimmer {
         if (mFWVersion == 0.1 && mFWInternal == 0) {
             Log.d("Shimmer", "This Shimmer Version does not support the command");
         } else {
-            mListofInstructions.add(new byte[]{GET_ACCEL_SAMPLING_RATE_COMMAND});
+            sendCommand(new byte[]{GET_ACCEL_SAMPLING_RATE_COMMAND});
         }
     }
 
 
     public void readMagRange() {
-        mListofInstructions.add(new byte[]{GET_MAG_GAIN_COMMAND});
+        sendCommand(new byte[]{GET_MAG_GAIN_COMMAND});
     }
 
     public void readBlinkLED() {
-        mListofInstructions.add(new byte[]{GET_BLINK_LED});
+        sendCommand(new byte[]{GET_BLINK_LED});
     }
 
 
@@ -4183,7 +3695,7 @@ public class Shimmer {
         if (mFWVersion == 0.1 && mFWInternal == 0) {
             Log.d("Shimmer", "This Shimmer Version does not support the command");
         } else {
-            mListofInstructions.add(new byte[]{GET_ECG_CALIBRATION_COMMAND});
+            sendCommand(new byte[]{GET_ECG_CALIBRATION_COMMAND});
         }
     }
 
@@ -4191,7 +3703,7 @@ public class Shimmer {
         if (mFWVersion == 0.1 && mFWInternal == 0) {
             Log.d("Shimmer", "This Shimmer Version does not support the command");
         } else {
-            mListofInstructions.add(new byte[]{GET_EMG_CALIBRATION_COMMAND});
+            sendCommand(new byte[]{GET_EMG_CALIBRATION_COMMAND});
         }
     }
 
@@ -4199,14 +3711,14 @@ public class Shimmer {
         if (mFWVersion == 0.1 && mFWInternal == 0) {
             Log.d("Shimmer", "This Shimmer Version does not support the command");
         } else if ((mFWVersion == 0 && mFWInternal >= 3) || mFWVersion >= 1.3) {
-            mListofInstructions.add(new byte[]{GET_SHIMMER_VERSION_COMMAND_NEW});
+            sendCommand(new byte[]{GET_SHIMMER_VERSION_COMMAND_NEW});
         } else {
-            mListofInstructions.add(new byte[]{GET_SHIMMER_VERSION_COMMAND});
+            sendCommand(new byte[]{GET_SHIMMER_VERSION_COMMAND});
         }
     }
 
     public void readConfigByte0() {
-        mListofInstructions.add(new byte[]{GET_CONFIG_BYTE0_COMMAND});
+        sendCommand(new byte[]{GET_CONFIG_BYTE0_COMMAND});
     }
 
     /**
@@ -4215,13 +3727,16 @@ public class Shimmer {
      * @param configByte0 is an unsigned 8 bit value defining the desired config byte 0 value.
      */
     public void writeConfigByte0(byte configByte0) {
-        mListofInstructions.add(new byte[]{SET_CONFIG_BYTE0_COMMAND, (byte) configByte0});
+        sendCommand(new byte[]{SET_CONFIG_BYTE0_COMMAND, (byte) configByte0});
     }
 
+    /**
+     * Transmits the current command again
+     */
     public void writeInstruction() {
-        if (getShimmerState() == STATE_CONNECTED) {
-            byte[] instruction = (byte[]) mListofInstructions.get(0);
-            write(instruction);
+        ShimmerCommand command = mCommandExecutor.getCurrentCommand();
+        if (getShimmerState() == STATE_CONNECTED && command != null) {
+            write(command.getInstruction());
         }
     }
 
@@ -4232,7 +3747,7 @@ public class Shimmer {
      * @param setBit value defining the desired setting of the PMux (1=ON, 0=OFF).
      */
     public void writePMux(int setBit) {
-        mListofInstructions.add(new byte[]{SET_PMUX_COMMAND, (byte) setBit});
+        sendCommand(new byte[]{SET_PMUX_COMMAND, (byte) setBit});
     }
 
     /**
@@ -4261,11 +3776,11 @@ public class Shimmer {
      * @param setBit value defining the desired setting of the Volt regulator (1=ENABLED, 0=DISABLED).
      */
     public void writeFiveVoltReg(int setBit) {
-        mListofInstructions.add(new byte[]{SET_5V_REGULATOR_COMMAND, (byte) setBit});
+        sendCommand(new byte[]{SET_5V_REGULATOR_COMMAND, (byte) setBit});
     }
 
     public void toggleLed() {
-        mListofInstructions.add(new byte[]{TOGGLE_LED_COMMAND});
+        sendCommand(new byte[]{TOGGLE_LED_COMMAND});
     }
 
     public String getDeviceName() {
@@ -0,0 +1,125 @@
+package com.shimmerresearch.driver;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A command sent to a Shimmer device, completed once the device acknowledged it and sent its response (if any).
+ */
+class ShimmerCommand implements Future<Void> {
+
+    private static final int PENDING = 0;
+    private static final int COMPLETED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private final byte[] mInstruction;
+    private final long mTimeout;
+    private int mState = PENDING;
+    private Exception mException;
+
+
+    /**
+     * @param instruction the command byte followed by its arguments
+     * @param timeout     time in ms to wait for the acknowledgement and response, 0 to wait without timeout
+     */
+    ShimmerCommand(byte[] instruction, long timeout) {
+        mInstruction = instruction;
+        mTimeout = timeout;
+    }
+
+    byte[] getInstruction() {
+        return mInstruction;
+    }
+
+    byte getCommand() {
+        return mInstruction[0];
+    }
+
+    long getTimeout() {
+        return mTimeout;
+    }
+
+    synchronized void complete() {
+        finish(COMPLETED, null);
+    }
+
+    synchronized void fail(Exception exception) {
+        finish(FAILED, exception);
+    }
+
+    private void finish(int state, Exception exception) {
+        if (mState == PENDING) {
+            mState = state;
+            mException = exception;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the command to finish.
+     *
+     * @param timeout time in ms to wait, 0 to wait without timeout
+     * @return true if the command finished in time
+     */
+    synchronized boolean await(long timeout) throws InterruptedException {
+        if (timeout <= 0) {
+            while (mState == PENDING) {
+                wait();
+            }
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (mState == PENDING && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return mState != PENDING;
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (mState != PENDING) {
+            return false;
+        }
+        finish(CANCELLED, null);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != PENDING;
+    }
+
+    @Override
+    public synchronized Void get() throws InterruptedException, ExecutionException {
+        await(0);
+        return getResult();
+    }
+
+    @Override
+    public synchronized Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!await(Math.max(1, unit.toMillis(timeout)))) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private Void getResult() throws ExecutionException {
+        if (mState == CANCELLED) {
+            throw new CancellationException();
+        } else if (mState == FAILED) {
+            throw new ExecutionException(mException);
+        }
+        return null;
+    }
+}
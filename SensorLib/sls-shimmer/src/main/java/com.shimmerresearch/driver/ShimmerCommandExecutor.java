@@ -0,0 +1,146 @@
+package com.shimmerresearch.driver;
+
+import android.util.Log;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends the commands to a Shimmer device one after the other.
+ * <p>
+ * Commands are queued by {@link #submit(byte[], long)}. While connected, a worker thread takes the next command,
+ * passes it to {@link Callback#onSend(ShimmerCommand)} and blocks until the thread reading the input stream calls
+ * {@link #completeCommand()} or the timeout of the command elapsed.
+ */
+class ShimmerCommandExecutor {
+
+    interface Callback {
+        /**
+         * Called on the worker thread to transmit a command.
+         */
+        void onSend(ShimmerCommand command);
+
+        /**
+         * Called on the worker thread if a command was not completed in time.
+         * The command fails with a {@link TimeoutException} unless it is completed by the callback.
+         */
+        void onTimeout(ShimmerCommand command);
+    }
+
+    private final Callback mCallback;
+    private final LinkedBlockingDeque<ShimmerCommand> mQueue = new LinkedBlockingDeque<>();
+    private volatile ShimmerCommand mCurrentCommand;
+    private Thread mWorker;
+
+
+    ShimmerCommandExecutor(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Queues a command.
+     *
+     * @param instruction the command byte followed by its arguments
+     * @param timeout     time in ms to wait for the acknowledgement and response, 0 to wait without timeout
+     * @return the command, done once it was processed by the device. Cancelling it before it was sent skips it.
+     */
+    ShimmerCommand submit(byte[] instruction, long timeout) {
+        ShimmerCommand command = new ShimmerCommand(instruction, timeout);
+        mQueue.add(command);
+        return command;
+    }
+
+    /**
+     * Returns the command that is currently executed, null if none.
+     */
+    ShimmerCommand getCurrentCommand() {
+        return mCurrentCommand;
+    }
+
+    /**
+     * Completes the current command, the next command is sent afterwards.
+     */
+    void completeCommand() {
+        ShimmerCommand command = mCurrentCommand;
+        if (command != null) {
+            command.complete();
+        }
+    }
+
+    /**
+     * Cancels all queued commands.
+     */
+    void clear() {
+        ShimmerCommand command;
+        while ((command = mQueue.poll()) != null) {
+            command.cancel(false);
+        }
+    }
+
+    /**
+     * Starts sending the queued commands.
+     *
+     * @return the worker thread, to be passed to {@link #stop(Thread)}
+     */
+    synchronized Thread start() {
+        if (mWorker != null) {
+            mWorker.interrupt();
+        }
+        mWorker = new Thread("ShimmerCommandExecutor") {
+            @Override
+            public void run() {
+                execute(this);
+            }
+        };
+        mWorker.start();
+        return mWorker;
+    }
+
+    /**
+     * Stops sending commands and cancels the current command. Queued commands are kept.
+     *
+     * @param worker the worker thread returned by {@link #start()}, nothing happens if it was already stopped or replaced
+     */
+    synchronized void stop(Thread worker) {
+        if (worker == null || worker != mWorker) {
+            return;
+        }
+        mWorker.interrupt();
+        mWorker = null;
+        ShimmerCommand command = mCurrentCommand;
+        if (command != null) {
+            command.cancel(false);
+        }
+    }
+
+    private void execute(Thread worker) {
+        try {
+            while (!worker.isInterrupted()) {
+                ShimmerCommand command = mQueue.take();
+                if (command.isDone()) {
+                    // cancelled while queued
+                    continue;
+                }
+                synchronized (this) {
+                    if (worker != mWorker) {
+                        // stopped while waiting, keep the command for the next connection
+                        mQueue.addFirst(command);
+                        return;
+                    }
+                    mCurrentCommand = command;
+                }
+                try {
+                    mCallback.onSend(command);
+                    if (!command.await(command.getTimeout())) {
+                        mCallback.onTimeout(command);
+                        command.fail(new TimeoutException("No response to command " + command.getCommand()));
+                    }
+                } finally {
+                    mCurrentCommand = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d("Shimmer", "Command executor stopped");
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.shimmerresearch.driver;
+
+/**
+ * Decoding program for Shimmer data packets.
+ * <p>
+ * The data types of the packet format ("u8", "i8", "u12", "i12>", "u16", "i16", "i16*") are compiled once into
+ * an opcode and a byte offset per signal, so decoding a packet is a single loop without any String comparisons.
+ * A new program has to be compiled whenever the packet format changes.
+ */
+class ShimmerPacketDecoder {
+
+    /**
+     * Unknown or missing data type, decoded as 0 without consuming any bytes
+     */
+    private static final int OP_NONE = 0;
+    private static final int OP_U8 = 1;
+    private static final int OP_I8 = 2;
+    private static final int OP_U16 = 3;
+    private static final int OP_U16_BIG_ENDIAN = 4;
+    private static final int OP_I16 = 5;
+    private static final int OP_I16_BIG_ENDIAN = 6;
+    private static final int OP_I12_SHIFTED = 7;
+
+    private final int[] mOpcodes;
+    private final int[] mOffsets;
+    private final int mPacketSize;
+
+
+    private ShimmerPacketDecoder(int[] opcodes, int[] offsets, int packetSize) {
+        mOpcodes = opcodes;
+        mOffsets = offsets;
+        mPacketSize = packetSize;
+    }
+
+    /**
+     * Compiles the given data types into a decoding program.
+     *
+     * @param dataTypes data type of each signal, can contain null for unused signals
+     * @param reverse   true if multi-byte values are sent MSB first (used for calibration packets),
+     *                  in this case only "u8", "i8", "u12", "u16" and "i16" are supported
+     * @return the decoding program
+     */
+    static ShimmerPacketDecoder compile(String[] dataTypes, boolean reverse) {
+        int[] opcodes = new int[dataTypes.length];
+        int[] offsets = new int[dataTypes.length];
+        int offset = 0;
+        for (int i = 0; i < dataTypes.length; i++) {
+            int opcode = getOpcode(dataTypes[i], reverse);
+            opcodes[i] = opcode;
+            offsets[i] = offset;
+            offset += getSize(opcode);
+        }
+        return new ShimmerPacketDecoder(opcodes, offsets, offset);
+    }
+
+    private static int getOpcode(String dataType, boolean reverse) {
+        if (dataType == null) {
+            return OP_NONE;
+        }
+        switch (dataType) {
+            case "u8":
+                return OP_U8;
+            case "i8":
+                return OP_I8;
+            case "u12":
+            case "u16":
+                return reverse ? OP_U16_BIG_ENDIAN : OP_U16;
+            case "i16":
+                return reverse ? OP_I16_BIG_ENDIAN : OP_I16;
+            case "i16*":
+                return reverse ? OP_NONE : OP_I16_BIG_ENDIAN;
+            case "i12>":
+                return reverse ? OP_NONE : OP_I12_SHIFTED;
+            default:
+                return OP_NONE;
+        }
+    }
+
+    private static int getSize(int opcode) {
+        switch (opcode) {
+            case OP_NONE:
+                return 0;
+            case OP_U8:
+            case OP_I8:
+                return 1;
+            default:
+                return 2;
+        }
+    }
+
+    /**
+     * Returns the number of signals
+     */
+    int getNumSignals() {
+        return mOpcodes.length;
+    }
+
+    /**
+     * Returns the number of bytes the program decodes
+     */
+    int getPacketSize() {
+        return mPacketSize;
+    }
+
+    /**
+     * Decodes a packet.
+     *
+     * @param data   buffer containing the packet
+     * @param offset offset of the packet in the buffer
+     * @param out    array for the decoded signals, at least {@link #getNumSignals()} long
+     * @return out
+     */
+    int[] decode(byte[] data, int offset, int[] out) {
+        final int[] opcodes = mOpcodes;
+        final int[] offsets = mOffsets;
+        for (int i = 0; i < opcodes.length; i++) {
+            int p = offset + offsets[i];
+            switch (opcodes[i]) {
+                case OP_U8:
+                    // sign-extended, as it has always been decoded
+                    out[i] = data[p];
+                    break;
+                case OP_I8:
+                    out[i] = toSigned(data[p] & 0xFF, 8);
+                    break;
+                case OP_U16:
+                    out[i] = (data[p] & 0xFF) | ((data[p + 1] & 0xFF) << 8);
+                    break;
+                case OP_U16_BIG_ENDIAN:
+                    out[i] = (data[p + 1] & 0xFF) | ((data[p] & 0xFF) << 8);
+                    break;
+                case OP_I16:
+                    out[i] = toSigned((data[p] & 0xFF) | ((data[p + 1] & 0xFF) << 8), 16);
+                    break;
+                case OP_I16_BIG_ENDIAN:
+                    out[i] = toSigned((data[p + 1] & 0xFF) | ((data[p] & 0xFF) << 8), 16);
+                    break;
+                case OP_I12_SHIFTED:
+                    out[i] = toSigned((data[p] & 0xFF) | ((data[p + 1] & 0xFF) << 8), 16) >> 4;
+                    break;
+                default:
+                    out[i] = 0;
+                    break;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Interprets an unsigned value as two's complement. Values up to and including 2^(bitLength-1) are returned unchanged.
+     */
+    static int toSigned(int value, int bitLength) {
+        return (value > (1 << (bitLength - 1))) ? value - (1 << bitLength) : value;
+    }
+}
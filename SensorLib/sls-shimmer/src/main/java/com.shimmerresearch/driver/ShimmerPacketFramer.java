@@ -0,0 +1,184 @@
+package com.shimmerresearch.driver;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Frames the data packets of a streaming Shimmer from the raw Bluetooth input stream.
+ * <p>
+ * Incoming bytes are read in blocks into a primitive ring buffer. Each data packet starts with the
+ * {@link #DATA_PACKET} identifier followed by packetSize bytes. While synchronizing, a packet is only accepted
+ * if the identifier of the subsequent packet follows it, otherwise the buffer is shifted by one byte until the
+ * stream is aligned. Packets are passed to the {@link Listener} as slices of the ring buffer, they are only copied
+ * if they wrap around the end of the buffer.
+ * <p>
+ * Except for {@link #resync()}, must only be used from the thread reading the input stream.
+ */
+class ShimmerPacketFramer {
+
+    static final byte DATA_PACKET = (byte) 0x00;
+    static final byte ACK_COMMAND_PROCESSED = (byte) 0xff;
+
+    /**
+     * Ring buffer size, must be a power of 2 and hold many packets
+     */
+    private static final int BUFFER_SIZE = 4096;
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+    interface Listener {
+        /**
+         * Called for every data packet. The data is only valid during the call.
+         *
+         * @param buffer buffer containing the packet
+         * @param offset offset of the packet in the buffer (after the packet identifier)
+         * @param length packet size
+         */
+        void onDataPacket(byte[] buffer, int offset, int length);
+
+        /**
+         * Called when an acknowledgement was received between two packets.
+         *
+         * @return true if an acknowledgement was expected, false if the byte should be treated as data
+         */
+        boolean onAck();
+    }
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    /**
+     * Read and write positions, only masked when accessing the buffer
+     */
+    private int mReadPos;
+    private int mWritePos;
+    /**
+     * Scratch buffer for packets that wrap around the end of the ring buffer
+     */
+    private byte[] mWrappedPacket = new byte[0];
+    /**
+     * True while the alignment of the packets is checked, can be set from other threads
+     */
+    private volatile boolean mSync = true;
+    private long mNumDroppedBytes;
+
+
+    /**
+     * Reads the next block of bytes from the input stream, blocks until at least one byte is available.
+     *
+     * @param inStream the input stream
+     * @throws IOException if reading fails or the stream was closed
+     */
+    void read(InputStream inStream) throws IOException {
+        int free = BUFFER_SIZE - (mWritePos - mReadPos);
+        if (free == 0) {
+            // cannot happen as long as frame() is called after each read, packets are much smaller than the buffer
+            mReadPos++;
+            mNumDroppedBytes++;
+            free = 1;
+        }
+        int offset = mWritePos & BUFFER_MASK;
+        int len = Math.min(free, BUFFER_SIZE - offset);
+        int numRead = inStream.read(mBuffer, offset, len);
+        if (numRead < 0) {
+            throw new IOException("Input stream closed");
+        }
+        mWritePos += numRead;
+    }
+
+    /**
+     * Extracts all complete packets from the buffer.
+     *
+     * @param packetSize     size of a data packet (without the packet identifier)
+     * @param continuousSync true to check the alignment of every packet, false to stop checking once the stream is aligned
+     * @param listener       listener for packets and acknowledgements
+     */
+    void frame(int packetSize, boolean continuousSync, Listener listener) {
+        long numDropped = mNumDroppedBytes;
+        while (mWritePos - mReadPos > 0) {
+            int available = mWritePos - mReadPos;
+            byte first = get(0);
+
+            if (mSync) {
+                if (first != DATA_PACKET) {
+                    skip();
+                    continue;
+                }
+                if (available < packetSize + 2) {
+                    break;
+                }
+                // check for the starting zero of the subsequent packet, acks are only received between packets
+                byte next = get(packetSize + 1);
+                if (next == DATA_PACKET) {
+                    emit(packetSize, listener);
+                    if (!continuousSync) {
+                        mSync = false;
+                    }
+                } else if (next == ACK_COMMAND_PROCESSED && listener.onAck()) {
+                    emit(packetSize, listener);
+                    mReadPos++;
+                } else {
+                    skip();
+                }
+            } else {
+                if (first == ACK_COMMAND_PROCESSED && listener.onAck()) {
+                    mReadPos++;
+                } else if (first != DATA_PACKET) {
+                    skip();
+                } else if (available >= packetSize + 1) {
+                    emit(packetSize, listener);
+                } else {
+                    break;
+                }
+            }
+        }
+        if (mNumDroppedBytes != numDropped) {
+            Log.d("ShimmerCMD", "Throwing Data: " + (mNumDroppedBytes - numDropped) + " bytes");
+        }
+    }
+
+    /**
+     * Discards all buffered bytes.
+     */
+    void clear() {
+        mReadPos = mWritePos = 0;
+    }
+
+    /**
+     * Checks the alignment of the following packets again.
+     */
+    void resync() {
+        mSync = true;
+    }
+
+    /**
+     * Returns the number of bytes that were discarded because they did not belong to a packet.
+     */
+    long getNumDroppedBytes() {
+        return mNumDroppedBytes;
+    }
+
+    private byte get(int index) {
+        return mBuffer[(mReadPos + index) & BUFFER_MASK];
+    }
+
+    private void skip() {
+        mReadPos++;
+        mNumDroppedBytes++;
+    }
+
+    private void emit(int packetSize, Listener listener) {
+        int offset = (mReadPos + 1) & BUFFER_MASK;
+        if (offset + packetSize <= BUFFER_SIZE) {
+            listener.onDataPacket(mBuffer, offset, packetSize);
+        } else {
+            if (mWrappedPacket.length != packetSize) {
+                mWrappedPacket = new byte[packetSize];
+            }
+            int firstPart = BUFFER_SIZE - offset;
+            System.arraycopy(mBuffer, offset, mWrappedPacket, 0, firstPart);
+            System.arraycopy(mBuffer, 0, mWrappedPacket, firstPart, packetSize - firstPart);
+            listener.onDataPacket(mWrappedPacket, 0, packetSize);
+        }
+        mReadPos += packetSize + 1;
+    }
+}
@@ -0,0 +1,197 @@
+package com.shimmerresearch.driver;
+
+/**
+ * One decoded data packet of a Shimmer device.
+ * <p>
+ * Raw and calibrated values are stored in primitive arrays indexed by {@link Channel}. An {@link ObjectCluster}
+ * with the same content is only built on request (see {@link #toObjectCluster()}).
+ */
+public class ShimmerSample {
+
+    /**
+     * Channels of a Shimmer sample, with the property name used in {@link ObjectCluster}s
+     */
+    public enum Channel {
+        TIMESTAMP("Timestamp", "TimeStamp", "no units", "mSecs"),
+        ACCEL_X("Accelerometer X", "Accelerometer X", "no units", "m/(sec^2)"),
+        ACCEL_Y("Accelerometer Y", "Accelerometer Y", "no units", "m/(sec^2)"),
+        ACCEL_Z("Accelerometer Z", "Accelerometer Z", "no units", "m/(sec^2)"),
+        LOW_NOISE_ACCEL_X("Low Noise Accelerometer X", "Low Noise Accelerometer X", "no units", "m/(sec^2)"),
+        LOW_NOISE_ACCEL_Y("Low Noise Accelerometer Y", "Low Noise Accelerometer Y", "no units", "m/(sec^2)"),
+        LOW_NOISE_ACCEL_Z("Low Noise Accelerometer Z", "Low Noise Accelerometer Z", "no units", "m/(sec^2)"),
+        WIDE_RANGE_ACCEL_X("Wide Range Accelerometer X", "Wide Range Accelerometer X", "no units", "m/(sec^2)"),
+        WIDE_RANGE_ACCEL_Y("Wide Range Accelerometer Y", "Wide Range Accelerometer Y", "no units", "m/(sec^2)"),
+        WIDE_RANGE_ACCEL_Z("Wide Range Accelerometer Z", "Wide Range Accelerometer Z", "no units", "m/(sec^2)"),
+        GYRO_X("Gyroscope X", "Gyroscope X", "no units", "deg/sec"),
+        GYRO_Y("Gyroscope Y", "Gyroscope Y", "no units", "deg/sec"),
+        GYRO_Z("Gyroscope Z", "Gyroscope Z", "no units", "deg/sec"),
+        MAG_X("Magnetometer X", "Magnetometer X", "no units", "local"),
+        MAG_Y("Magnetometer Y", "Magnetometer Y", "no units", "local"),
+        MAG_Z("Magnetometer Z", "Magnetometer Z", "no units", "local"),
+        VSENSE_BATT("VSenseBatt", "VSenseBatt", "no Units", "mVolts"),
+        VSENSE_REG("VSenseReg", "Exp Board A0", "no Units", "mVolts"),
+        EXT_ADC_A7("External ADC A7", "External ADC A7", "no Units", "mVolts"),
+        EXT_ADC_A6("External ADC A6", "External ADC A6", "no Units", "mVolts"),
+        EXT_ADC_A15("External ADC A15", "External ADC A15", "no Units", "mVolts"),
+        INT_ADC_A1("Internal ADC A1", "Internal ADC A1", "no Units", "mVolts"),
+        INT_ADC_A12("Internal ADC A12", "Internal ADC A12", "no Units", "mVolts"),
+        INT_ADC_A13("Internal ADC A13", "Internal ADC A13", "no Units", "mVolts"),
+        INT_ADC_A14("Internal ADC A14", "Internal ADC A14", "no Units", "mVolts"),
+        EXP_BOARD_A0("ExpBoard A0", "Exp Board A0", "no units", "mVolts"),
+        EXP_BOARD_A7("ExpBoard A7", "Exp Board A7", "no units", "mVolts"),
+        GSR("GSR", "GSR Raw", "no units", "kOhms"),
+        ECG_RA_LL("ECG RA-LL", "ECG RA LL", "no units", "mVolts"),
+        ECG_LA_LL("ECG LA-LL", "ECG LA LL", "no units", "mVolts"),
+        EMG("EMG", "EMG", "no units", "mVolts"),
+        STRAIN_GAUGE_HIGH("Strain Gauge High", "Strain Gauge High", "no units", "mVolts"),
+        STRAIN_GAUGE_LOW("Strain Gauge Low", "Strain Gauge Low", "no units", "mVolts"),
+        HEART_RATE("Heart Rate", "Heart Rate", "no units", "BPM"),
+        AXIS_ANGLE_A("Axis Angle A", null, "no units", "local"),
+        AXIS_ANGLE_X("Axis Angle X", null, "no units", "local"),
+        AXIS_ANGLE_Y("Axis Angle Y", null, "no units", "local"),
+        AXIS_ANGLE_Z("Axis Angle Z", null, "no units", "local"),
+        QUATERNION_0("Quaternion 0", null, "no units", "local"),
+        QUATERNION_1("Quaternion 1", null, "no units", "local"),
+        QUATERNION_2("Quaternion 2", null, "no units", "local"),
+        QUATERNION_3("Quaternion 3", null, "no units", "local"),
+        /**
+         * Quaternion as named for Shimmer2 devices
+         */
+        QUARTENION_0("Quartenion 0", null, "no units", "local"),
+        QUARTENION_1("Quartenion 1", null, "no units", "local"),
+        QUARTENION_2("Quartenion 2", null, "no units", "local"),
+        QUARTENION_3("Quartenion 3", null, "no units", "local");
+
+        private final String mPropertyName;
+        private final String mSignalName;
+        private final String mRawUnits;
+        private final String mCalUnits;
+
+        Channel(String propertyName, String signalName, String rawUnits, String calUnits) {
+            mPropertyName = propertyName;
+            mSignalName = signalName;
+            mRawUnits = rawUnits;
+            mCalUnits = calUnits;
+        }
+
+        /**
+         * Returns the property name in {@link ObjectCluster}s.
+         */
+        public String getPropertyName() {
+            return mPropertyName;
+        }
+
+        /**
+         * Returns the name of the signal in the data packet the channel is decoded from,
+         * null if the channel is derived from other channels.
+         */
+        public String getSignalName() {
+            return mSignalName;
+        }
+
+        public String getCalUnits() {
+            return mCalUnits;
+        }
+    }
+
+    private static final Channel[] sChannels = Channel.values();
+
+    private final String mMyName;
+    private final String mBluetoothAddress;
+    private final double[] mRawData = new double[sChannels.length];
+    private final double[] mCalData = new double[sChannels.length];
+    /**
+     * Bitmasks of the channels (by ordinal) that contain raw or calibrated values,
+     * and of the channels calibrated with default calibration parameters
+     */
+    private long mRawChannels;
+    private long mCalChannels;
+    private long mDefaultCalChannels;
+
+    private ObjectCluster mObjectCluster;
+
+
+    public ShimmerSample(String myName, String myBlueAdd) {
+        mMyName = myName;
+        mBluetoothAddress = myBlueAdd;
+    }
+
+    public String getMyName() {
+        return mMyName;
+    }
+
+    public String getBluetoothAddress() {
+        return mBluetoothAddress;
+    }
+
+    void putRaw(Channel channel, double value) {
+        mRawData[channel.ordinal()] = value;
+        mRawChannels |= 1L << channel.ordinal();
+    }
+
+    void putCal(Channel channel, double value, boolean defaultCalibration) {
+        long bit = 1L << channel.ordinal();
+        mCalData[channel.ordinal()] = value;
+        mCalChannels |= bit;
+        if (defaultCalibration) {
+            mDefaultCalChannels |= bit;
+        } else {
+            mDefaultCalChannels &= ~bit;
+        }
+    }
+
+    void put(Channel channel, double raw, double cal, boolean defaultCalibration) {
+        putRaw(channel, raw);
+        putCal(channel, cal, defaultCalibration);
+    }
+
+    /**
+     * Returns true if the sample contains a raw or calibrated value for the given channel.
+     */
+    public boolean hasChannel(Channel channel) {
+        return ((mRawChannels | mCalChannels) & (1L << channel.ordinal())) != 0;
+    }
+
+    /**
+     * Returns the raw value of the given channel, NaN if the sample does not contain a raw value for this channel.
+     */
+    public double getRaw(Channel channel) {
+        return ((mRawChannels & (1L << channel.ordinal())) != 0) ? mRawData[channel.ordinal()] : Double.NaN;
+    }
+
+    /**
+     * Returns the calibrated value of the given channel, NaN if the sample does not contain a calibrated value for this channel.
+     */
+    public double getCal(Channel channel) {
+        return ((mCalChannels & (1L << channel.ordinal())) != 0) ? mCalData[channel.ordinal()] : Double.NaN;
+    }
+
+    /**
+     * Returns true if the given channel was calibrated with default calibration parameters.
+     */
+    public boolean isDefaultCalibrated(Channel channel) {
+        return (mDefaultCalChannels & (1L << channel.ordinal())) != 0;
+    }
+
+    /**
+     * Returns the sample as {@link ObjectCluster}, with a RAW and a CAL {@link FormatCluster} for each channel.
+     * The ObjectCluster is built on the first call.
+     */
+    public ObjectCluster toObjectCluster() {
+        if (mObjectCluster == null) {
+            ObjectCluster objectCluster = new ObjectCluster(mMyName, mBluetoothAddress);
+            for (Channel channel : sChannels) {
+                long bit = 1L << channel.ordinal();
+                if ((mRawChannels & bit) != 0) {
+                    objectCluster.mPropertyCluster.put(channel.mPropertyName, new FormatCluster("RAW", channel.mRawUnits, mRawData[channel.ordinal()]));
+                }
+                if ((mCalChannels & bit) != 0) {
+                    String units = ((mDefaultCalChannels & bit) != 0) ? channel.mCalUnits + "*" : channel.mCalUnits;
+                    objectCluster.mPropertyCluster.put(channel.mPropertyName, new FormatCluster("CAL", units, mCalData[channel.ordinal()]));
+                }
+            }
+            mObjectCluster = objectCluster;
+        }
+        return mObjectCluster;
+    }
+}
@@ -15,11 +15,9 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
-import com.shimmerresearch.driver.FormatCluster;
-import com.shimmerresearch.driver.ObjectCluster;
 import com.shimmerresearch.driver.Shimmer;
-
-import java.util.Collection;
+import com.shimmerresearch.driver.ShimmerSample;
+import com.shimmerresearch.driver.ShimmerSample.Channel;
 
 import de.fau.sensorlib.BleSensorManager;
 import de.fau.sensorlib.SensorDataProcessor;
@@ -118,7 +116,7 @@ public class ShimmerSensor extends AbstractSensor {
 
                 //handlers have a what identifier which is used to identify the type of msg
                 switch (msg.what) {
-                    //within each message an object can be include, object clusters are used to represent the data structure of the SHIMMER device
+                    //within each message an object can be include, samples are used to represent the data structure of the SHIMMER device
                     case Shimmer.MESSAGE_READ:
                         ShimmerDataFrame tempData = parseDataMessage(msg);
 
@@ -284,6 +282,7 @@ public class ShimmerSensor extends AbstractSensor {
                 mShimmerHandler = new ShimmerMessageHandler();
             }
             shimmer = new Shimmer(mContext, mShimmerHandler, getDeviceName(), mSamplingRate, accelRange, 4, getShimmerSelectedSensorsInt(), false);
+            shimmer.setSampleOutput(true);
         }
         shimmer.connect(mDeviceAddress, "default");
         return true;
@@ -318,104 +317,48 @@ public class ShimmerSensor extends AbstractSensor {
     }
 
     private ShimmerDataFrame parseDataMessage(Message msg) {
-        if (msg.obj instanceof ObjectCluster) {
-            ShimmerDataFrame df = null;
-            ObjectCluster objectCluster = (ObjectCluster) msg.obj;
-            //first retrieve all the possible formats for the current sensor device
-            Collection<FormatCluster> timestamp = objectCluster.mPropertyCluster.get("Timestamp");
-            if (timestamp.size() != 0) {
-                //retrieve the calibrated data
-                FormatCluster formatCluster = ObjectCluster.returnFormatCluster(timestamp, "RAW");
-                df = new ShimmerDataFrame(this, calTimestamp.calibrateTimestamp(formatCluster.mData));
-            }
-            if (df == null)
+        if (msg.obj instanceof ShimmerSample) {
+            ShimmerSample sample = (ShimmerSample) msg.obj;
+            if (!sample.hasChannel(Channel.TIMESTAMP)) {
                 return null;
-            //first retrieve all the possible formats for the current sensor device
-            Collection<FormatCluster> gyroXFormats = objectCluster.mPropertyCluster.get("Gyroscope X");
-            if (gyroXFormats.size() != 0) {
-                //retrieve the calibrated data
-                FormatCluster formatCluster = ObjectCluster.returnFormatCluster(gyroXFormats, "CAL");
-                df.gx = formatCluster.mData;
-            }
-            //first retrieve all the possible formats for the current sensor device
-            Collection<FormatCluster> gyroYFormats = objectCluster.mPropertyCluster.get("Gyroscope Y");
-            if (gyroYFormats.size() != 0) {
-                //retrieve the calibrated data
-                FormatCluster formatCluster = ObjectCluster.returnFormatCluster(gyroYFormats, "CAL");
-                df.gy = formatCluster.mData;
-            }
-            //first retrieve all the possible formats for the current sensor device
-            Collection<FormatCluster> gyroZFormats = objectCluster.mPropertyCluster.get("Gyroscope Z");
-            if (gyroZFormats.size() != 0) {
-                //retrieve the calibrated data
-                FormatCluster formatCluster = ObjectCluster.returnFormatCluster(gyroZFormats, "CAL");
-                df.gz = formatCluster.mData;
-            }
-            //first retrieve all the possible formats for the current sensor device
-            Collection<FormatCluster> accelXFormats = objectCluster.mPropertyCluster.get("Accelerometer X");
-            if (accelXFormats.size() != 0) {
-                //retrieve the calibrated data
-                FormatCluster formatCluster = ObjectCluster.returnFormatCluster(accelXFormats, "CAL");
-                df.ax = formatCluster.mData;
             }
-            //first retrieve all the possible formats for the current sensor device
-            Collection<FormatCluster> accelYFormats = objectCluster.mPropertyCluster.get("Accelerometer Y");
-            if (accelYFormats.size() != 0) {
-                //retrieve the calibrated data
-                FormatCluster formatCluster = ObjectCluster.returnFormatCluster(accelYFormats, "CAL");
-                df.ay = formatCluster.mData;
+            ShimmerDataFrame df = new ShimmerDataFrame(this, calTimestamp.calibrateTimestamp(sample.getRaw(Channel.TIMESTAMP)));
+
+            if (sample.hasChannel(Channel.GYRO_X)) {
+                df.gx = sample.getCal(Channel.GYRO_X);
+                df.gy = sample.getCal(Channel.GYRO_Y);
+                df.gz = sample.getCal(Channel.GYRO_Z);
             }
-            //first retrieve all the possible formats for the current sensor device
-            Collection<FormatCluster> accelZFormats = objectCluster.mPropertyCluster.get("Accelerometer Z");
-            if (accelZFormats.size() != 0) {
-                //retrieve the calibrated data
-                FormatCluster formatCluster = ObjectCluster.returnFormatCluster(accelZFormats, "CAL");
-                df.az = formatCluster.mData;
+            if (sample.hasChannel(Channel.ACCEL_X)) {
+                df.ax = sample.getCal(Channel.ACCEL_X);
+                df.ay = sample.getCal(Channel.ACCEL_Y);
+                df.az = sample.getCal(Channel.ACCEL_Z);
             }
 
-            // Check for the old "ECG" channel, or try the new two separate channels
-            Collection<FormatCluster> ecgFormats = objectCluster.mPropertyCluster.get("ECG");
-            if (ecgFormats.size() != 0) {
-                //retrieve the calibrated data
-                FormatCluster formatCluster = ObjectCluster.returnFormatCluster(ecgFormats, "CAL");
-                df.ecg = formatCluster.mData;
+            // two separate ECG channels "LA" and "RA"
+            if (sample.hasChannel(Channel.ECG_LA_LL)) {
+                df.ecgLA = sample.getCal(Channel.ECG_LA_LL);
+                // set ecg as ecgLA for backward compatibility
+                df.ecg = df.ecgLA;
+                df.isTwoChannelEcg = true;
+            }
+            if (sample.hasChannel(Channel.ECG_RA_LL)) {
+                df.ecgRA = sample.getCal(Channel.ECG_RA_LL);
+                // set ecg as ecgRA for backward compatibility, this is checked/done after checking for LA, so the RA value would overwrite the LA value in the "ecg" variable, since we assume that the RA-LL value (Einthoven Lead II) is more likely to be expected in an "ecg" variable.
+                df.ecg = df.ecgRA;
             } else {
-                // Try the "new" two separate channels "LA" and "RA"
-                ecgFormats = objectCluster.mPropertyCluster.get("ECG LA-LL");
-                if (ecgFormats.size() != 0) {
-                    //retrieve the calibrated data
-                    FormatCluster formatCluster = ObjectCluster.returnFormatCluster(ecgFormats, "CAL");
-                    df.ecgLA = formatCluster.mData;
-                    // set ecg as ecgLA for backward compatibility
-                    df.ecg = df.ecgLA;
-                    df.isTwoChannelEcg = true;
-                }
-
-                ecgFormats = objectCluster.mPropertyCluster.get("ECG RA-LL");
-                if (ecgFormats.size() != 0) {
-                    //retrieve the calibrated data
-                    FormatCluster formatCluster = ObjectCluster.returnFormatCluster(ecgFormats, "CAL");
-                    df.ecgRA = formatCluster.mData;
-                    // set ecg as ecgRA for backward compatibility, this is checked/done after checking for LA, so the RA value would overwrite the LA value in the "ecg" variable, since we assume that the RA-LL value (Einthoven Lead II) is more likely to be expected in an "ecg" variable.
-                    df.ecg = df.ecgRA;
-                } else {
-                    df.isTwoChannelEcg = false;
-                }
+                df.isTwoChannelEcg = false;
             }
 
-            //first retrieve all the possible formats for the current sensor device
-            Collection<FormatCluster> emgFormats = objectCluster.mPropertyCluster.get("EMG");
-            if (emgFormats.size() != 0) {
-                //retrieve the calibrated data
-                FormatCluster formatCluster = ObjectCluster.returnFormatCluster(emgFormats, "CAL");
-                df.emg = formatCluster.mData;
+            if (sample.hasChannel(Channel.EMG)) {
+                df.emg = sample.getCal(Channel.EMG);
             }
             //save name of the SHIMMER which sends data
-            df.name = objectCluster.mMyName;
+            df.name = sample.getMyName();
 
             return df;
         } else {
-            Log.e("ShimmerSensor", "Object of message is not an ObjectCluster instance.");
+            Log.e("ShimmerSensor", "Object of message is not a ShimmerSample instance.");
         }
 
         return null;
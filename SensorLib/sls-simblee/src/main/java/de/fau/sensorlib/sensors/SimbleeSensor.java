@@ -265,9 +265,7 @@ public class SimbleeSensor extends GenericBleSensor {
             return false;
         }
 
-        characteristic.setValue(data);
-        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-        return mGatt.writeCharacteristic(characteristic);
+        return writeCharacteristic(characteristic, data);
     }
 
     /**